@@ -0,0 +1,89 @@
+package visitorman;
+
+/**
+ *
+ * @author chenh
+ * The Arrival class is meant to store the details of one visitor arriving as part of a group,
+ * as given to {@link VisitorMan#checkInAll(java.util.Collection)}. The details are the same
+ * as the arguments of {@link VisitorMan#checkIn}.
+ *
+ */
+public class Arrival {
+	private String _Fname;
+	private String _Gname;
+	private String _Organisation;
+	private String _email;
+	private String _hostEmail;
+	private String _visitDate;
+	private String _visitStartTime;
+
+	/**
+	 * Create an Arrival object for a visitor.
+	 * @param familyName The family name of the visitor
+	 * @param givenName The given name of the visitor
+	 * @param organisation The organisation the visitor is from
+	 * @param visitorEmail The email address of the visitor
+	 * @param hostEmail The email address of the host the visitor is visiting
+	 * @param visitDate The date of the visit (ISO8601 format)
+	 * @param visitStartTime The time of the start of the visit (ISO8601 format)
+	 */
+	public Arrival(String familyName, String givenName, String organisation, String visitorEmail,
+			String hostEmail, String visitDate, String visitStartTime) {
+		_Fname = familyName;
+		_Gname = givenName;
+		_Organisation = organisation;
+		_email = visitorEmail;
+		_hostEmail = hostEmail;
+		_visitDate = visitDate;
+		_visitStartTime = visitStartTime;
+	}
+	/**
+	 * Access the family name of the visitor.
+	 * @return a string of the family name.
+	 */
+	public String AccessFname() {
+		return _Fname;
+	}
+	/**
+	 * Access the given name of the visitor.
+	 * @return a string of the given name.
+	 */
+	public String AccessGname() {
+		return _Gname;
+	}
+	/**
+	 * Access the organisation of the visitor.
+	 * @return a string of the organisation.
+	 */
+	public String AccessOrganisation() {
+		return _Organisation;
+	}
+	/**
+	 * Access the email address of the visitor.
+	 * @return a string of the email address.
+	 */
+	public String AccessEmail() {
+		return _email;
+	}
+	/**
+	 * Access the email address of the host.
+	 * @return a string of the email address.
+	 */
+	public String AccesshostEmail() {
+		return _hostEmail;
+	}
+	/**
+	 * Access the date of the visit.
+	 * @return a string of date (ISO8601 format).
+	 */
+	public String AccessDate() {
+		return _visitDate;
+	}
+	/**
+	 * Access the check-in time.
+	 * @return a string of check-in time (ISO8601 format).
+	 */
+	public String AccessTime() {
+		return _visitStartTime;
+	}
+}
@@ -0,0 +1,443 @@
+package visitorman;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * This provides a simple benchmark for the VisitorMan system, in the same spirit as
+ * {@link Checker}: it needs nothing but the JDK, and prints its results.
+ *
+ * For each population size (10^3, 10^4, ... up to the size given on the command line) a
+ * VisitorMan object is filled with synthetic hosts and visits. Visitors are drawn from a pool
+ * a quarter the size of the population, so most visitors come more than once, and a few
+ * visitors with popular hosts come very often. Nearly all visits are checked out again; the
+ * last few hundred stay on site. Each operation is then run many times against the filled
+ * object and reported as:
+ * - throughput, in operations per second
+ * - average latency, in nanoseconds per operation
+ * - allocation, in bytes allocated per operation by the benchmarking thread
+ *
+ * Each measurement is preceded by a warm-up run of the same operation, so the JIT compiler
+ * has a chance to compile it. The numbers are only comparable between runs on the same
+ * machine, but that is enough to see whether a change made an operation slower or made it
+ * allocate more.
+ *
+ * The visits are stored as LogEntry objects unless a layout is given on the command line
+ * (see {@link VisitStore.Layout}). Once a population is filled, the heap and direct memory it
+ * uses are reported, with the time spent in garbage collection while filling it and the pause
+ * of a full collection of it, so the layouts can be compared.
+ *
+ * Finally, several kiosks check visitors in and out at once, calling the VisitorMan object
+ * directly and then through a {@link VisitPipeline}, first in memory and then with a PER_EVENT
+ * journal, and the events per second and the p50 and p99 latencies are reported.
+ *
+ * Run with, for example:
+ *   java -Xmx8g visitorman.Benchmark 10000000 COLUMNS
+ *   java -Xmx8g -XX:MaxDirectMemorySize=8g visitorman.Benchmark 10000000 OFF_HEAP
+ */
+public class Benchmark {
+	/**
+	 * The largest population used when no size is given on the command line.
+	 */
+	private static final int DEFAULT_MAX_VISITS = 1000000;
+
+	/**
+	 * The number of visits that are left on site when the population is built.
+	 */
+	private static final int ON_SITE = 300;
+
+	/**
+	 * The number of visits recorded per day of the synthetic log.
+	 */
+	private static final int VISITS_PER_DAY = 2000;
+
+	/**
+	 * The number of times each fast operation is measured.
+	 */
+	private static final int OPERATIONS = 100000;
+
+	/**
+	 * The number of report lines to produce for each measurement of a report, so reports
+	 * of small logs are repeated often enough to measure.
+	 */
+	private static final int REPORT_LINES = 1000000;
+
+	/**
+	 * The number of visitors in a group checked in and out together, and the number of
+	 * groups measured.
+	 */
+	private static final int GROUP_SIZE = 10000;
+	private static final int GROUPS = 10;
+
+	/**
+	 * The number of kiosks checking visitors in and out at once, the number of visitors each
+	 * checks in and out, and the largest population they are measured against.
+	 */
+	private static final int KIOSKS = 4;
+	private static final int KIOSK_VISITORS = 50000;
+	private static final int KIOSK_POPULATION = 100000;
+
+	/**
+	 * The number of slots in the ring buffer of the pipeline.
+	 */
+	private static final int RING_SIZE = 8192;
+
+	private static final LocalDate FIRST_DAY = LocalDate.of(2019, 1, 1);
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * This is the main method that runs the benchmarks for each population size.
+	 * @param args The largest number of visits in a population, and the layout of the visits (both optional).
+	 */
+	public static void main(String[] args) throws IOException {
+		int maxVisits = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_MAX_VISITS;
+		VisitStore.Layout layout = args.length > 1 ? VisitStore.Layout.valueOf(args[1]) : VisitStore.Layout.OBJECTS;
+		System.out.println("****Version: Benchmark " + layout + " ****");
+		printHeader();
+		benchmarkMetrics();
+		for (int visits = 1000; visits <= maxVisits; visits *= 10) {
+			benchmarkPopulation(visits, layout);
+		}
+		benchmarkKiosks(Math.min(maxVisits, KIOSK_POPULATION), layout);
+	}
+
+	/**
+	 * Measure what the metrics add to each VisitorMan call: starting and stopping a timed
+	 * operation, and the sampled showHostDetails, which is only timed for some calls. Run with
+	 * -Dvisitorman.metrics=false to measure the calls with measuring turned off.
+	 */
+	private static void benchmarkMetrics() {
+		VisitorMetrics metrics = new VisitorMetrics(() -> 0, () -> 0, () -> 0);
+		for (VisitorMetrics.Operation op : new VisitorMetrics.Operation[] { VisitorMetrics.Operation.CHECK_IN, 
+				VisitorMetrics.Operation.SHOW_HOST_DETAILS }) {
+			measure("metrics(" + op.AccessName() + ")", 0, OPERATIONS * 10, i -> {
+				metrics.Stop(op, metrics.Start(op));
+				return null;
+			});
+		}
+	}
+
+	/**
+	 * Fill a VisitorMan object with the specified number of visits and measure each
+	 * operation against it.
+	 */
+	private static void benchmarkPopulation(int visits, VisitStore.Layout layout) throws IOException {
+		Population population = new Population(visits, layout);
+		long start = System.nanoTime();
+		long allocated = allocatedBytes();
+		population.registerHosts();
+		report("registerHost", visits, population.hosts, System.nanoTime() - start, allocatedBytes() - allocated);
+		long collecting = collectionMillis();
+		population.recordHistory();
+		reportMemory(visits, collectionMillis() - collecting);
+		VisitorMan visitorManager = population.visitorManager;
+
+		measure("showHostDetails", visits, OPERATIONS, i ->
+				visitorManager.showHostDetails(population.hostEmail(i % population.hosts)));
+		measure("getVisitorsOnSite", visits, OPERATIONS / 100, i -> visitorManager.getVisitorsOnSite());
+		int reports = Math.max(1, REPORT_LINES / visits);
+		measure("writeVisitorLogReport", visits, reports, i -> {
+			try {
+				visitorManager.writeVisitorLogReport(NULL_WRITER);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return null;
+		});
+		measure("writeVisitorLogReport(pool)", visits, reports, i -> {
+			try {
+				visitorManager.writeVisitorLogReport(NULL_WRITER, ForkJoinPool.commonPool());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return null;
+		});
+		if (visits <= 1000000) {      //The list form holds the whole report, so is only tried on smaller logs.
+			measure("getVisitorLogReport", visits, reports, i -> visitorManager.getVisitorLogReport());
+		}
+		//Measured last, as it adds to the log the other operations read.
+		measure("checkIn+checkOut", visits, OPERATIONS, i -> {
+			String email = "bench" + i + "@arrivals.test";
+			visitorManager.checkIn("Arrival", "Bench", "Bench Ltd", email,
+					population.hostEmail(i % population.hosts), "2020-01-01", "09:00");
+			visitorManager.checkOut(email, "10:00");
+			return email;
+		});
+		List<Arrival> group = new ArrayList<Arrival>(GROUP_SIZE);
+		List<String> leaving = new ArrayList<String>(GROUP_SIZE);
+		for (int g = 0; g < GROUP_SIZE; g++) {
+			String email = "attendee" + g + "@conference.test";
+			group.add(new Arrival("Attendee" + g, "Conference", "Conference Ltd", email, 
+					population.hostEmail(g % population.hosts), "2020-01-02", "09:00"));
+			leaving.add(email);
+		}
+		measure("checkInAll+checkOutAll", visits, GROUPS, i -> {
+			visitorManager.checkInAll(group);
+			return visitorManager.checkOutAll(leaving, "17:00");
+		});
+		//Measured after the check-ins, as the first search starts indexing every visitor checked in.
+		measure("findVisitors", visits, OPERATIONS / 10, i ->
+				visitorManager.findVisitors("Visitor" + (i % population.visitors) / 10, 10));
+	}
+
+	/**
+	 * Have several kiosks check visitors in and out at once, first by calling the VisitorMan
+	 * object directly, then by publishing to a {@link VisitPipeline}, and report the events
+	 * per second and the latency percentiles of each. The latency of a direct call is the time
+	 * the call takes; the latency of a published event is the time until the writer applied it.
+	 */
+	private static void benchmarkKiosks(int visits, VisitStore.Layout layout) throws IOException {
+		System.out.println(String.format("%-28s %12s %12s %16s %16s %16s",
+				"kiosks", "visits", "events", "events/s", "p50 ns", "p99 ns"));
+		for (boolean journalled : new boolean[] { false, true }) {
+			for (boolean piped : new boolean[] { false, true }) {
+				//Every event is forced to disk on its own with a journal, so far fewer are run.
+				int population = journalled ? Math.min(visits, 1000) : visits;
+				int visitors = journalled ? KIOSK_VISITORS / 50 : KIOSK_VISITORS;
+				Path directory = journalled ? Files.createTempDirectory("visitorman-benchmark") : null;
+				Population kiosks = new Population(population, layout, directory);
+				kiosks.registerHosts();
+				kiosks.recordHistory();
+				runKiosks(kiosks, piped, visitors, "warmup", new LatencyHistogram());
+				LatencyHistogram latencies = new LatencyHistogram();
+				long elapsed = runKiosks(kiosks, piped, visitors, "kiosk", latencies);
+				long events = 2L * KIOSKS * visitors;
+				System.out.println(String.format("%-28s %12d %12d %16.1f %16d %16d", 
+						(piped ? "pipeline" : "direct") + (journalled ? " PER_EVENT" : ""),
+						population, events, events * 1e9 / elapsed, latencies.ValueAt(50), latencies.ValueAt(99)));
+				kiosks.visitorManager.close();
+				if (directory != null) {
+					try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+						for (Path file : files) {
+							Files.delete(file);
+						}
+					}
+					Files.delete(directory);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run the kiosks to completion, recording latencies, and return the time taken in nanoseconds.
+	 */
+	private static long runKiosks(Population population, boolean piped, int visitors, String prefix, 
+			LatencyHistogram latencies) {
+		VisitorMan visitorManager = population.visitorManager;
+		VisitPipeline pipeline = piped ? new VisitPipeline(visitorManager, RING_SIZE) : null;
+		Thread[] kiosks = new Thread[KIOSKS];
+		long start = System.nanoTime();
+		for (int k = 0; k < KIOSKS; k++) {
+			final int kiosk = k;
+			kiosks[k] = new Thread(() -> {
+				for (int v = 0; v < visitors; v++) {
+					String email = prefix + v + "@kiosk" + kiosk + ".test";
+					String host = population.hostEmail(v % population.hosts);
+					if (piped) {
+						pipeline.PublishCheckIn("Arrival", "Kiosk", "Kiosk Ltd", email, host, "2020-01-03", "09:00");
+						pipeline.AwaitApplied(pipeline.PublishCheckOut(email, "10:00"));      //A kiosk waits to show the visitor out.
+						continue;
+					}
+					long started = System.nanoTime();
+					visitorManager.checkIn("Arrival", "Kiosk", "Kiosk Ltd", email, host, "2020-01-03", "09:00");
+					long checkedIn = System.nanoTime();
+					visitorManager.checkOut(email, "10:00");
+					latencies.Record(checkedIn - started);
+					latencies.Record(System.nanoTime() - checkedIn);
+				}
+			});
+			kiosks[k].start();
+		}
+		try {
+			for (Thread kiosk : kiosks) {
+				kiosk.join();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if (piped) {
+			pipeline.Close();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (piped) {
+			latencies.Add(pipeline.AccessLatencies());
+		}
+		return elapsed;
+	}
+
+	/* **********************************************************
+	 * Measurement and reporting
+	 */
+
+	/**
+	 * An operation to measure. The argument is the number of the run, starting at 0.
+	 */
+	private interface Operation {
+		Object run(int i);
+	}
+
+	/**
+	 * Run an operation the specified number of times to warm up, then the same number
+	 * of times while measuring, and report the result.
+	 */
+	private static void measure(String name, int visits, int operations, Operation operation) {
+		Object sink = null;
+		for (int i = 0; i < operations; i++) {
+			sink = operation.run(i + operations);
+		}
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			sink = operation.run(i);
+		}
+		long elapsed = System.nanoTime() - start;
+		report(name, visits, operations, elapsed, allocatedBytes() - allocated);
+		if (sink == Benchmark.class) {      //Keep the results alive so the loops are not removed.
+			System.out.println(sink);
+		}
+	}
+
+	private static void printHeader() {
+		System.out.println(String.format("%-28s %12s %12s %16s %16s %16s",
+				"operation", "visits", "ops", "ops/s", "ns/op", "bytes/op"));
+	}
+
+	private static void report(String name, int visits, long operations, long nanos, long bytes) {
+		System.out.println(String.format("%-28s %12d %12d %16.1f %16.1f %16s", name, visits, operations,
+				operations * 1e9 / Math.max(nanos, 1), (double) nanos / operations,
+				bytes < 0 ? "n/a" : String.format("%.1f", (double) bytes / operations)));
+	}
+
+	/**
+	 * Print the heap and direct memory in use after a full collection, the time the collector
+	 * took while the population was recorded, and the pause of the full collection.
+	 */
+	private static void reportMemory(int visits, long recordingMillis) {
+		long start = System.nanoTime();
+		System.gc();
+		long fullMillis = (System.nanoTime() - start) / 1000000;
+		long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		long direct = 0;
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct")) {
+				direct = pool.getMemoryUsed();
+			}
+		}
+		System.out.println(String.format("%-28s %12d   heap %.1f MB, direct %.1f MB, GC while recording %d ms, full GC %d ms",
+				"memory", visits, heap / 1048576.0, direct / 1048576.0, recordingMillis, fullMillis));
+	}
+
+	/**
+	 * The total time the garbage collectors have taken so far, in milliseconds.
+	 */
+	private static long collectionMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, collector.getCollectionTime());
+		}
+		return millis;
+	}
+
+	/**
+	 * The number of bytes allocated so far by the current thread, or -1 if the JVM cannot tell.
+	 */
+	private static long allocatedBytes() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) THREADS).getCurrentThreadAllocatedBytes();
+		}
+		return -1;
+	}
+
+	/**
+	 * A writer that throws away everything written to it.
+	 */
+	private static final Writer NULL_WRITER = new Writer() {
+		public void write(char[] buffer, int offset, int length) {
+		}
+		public void write(String text) {
+		}
+		public void write(int c) {
+		}
+		public void flush() {
+		}
+		public void close() {
+		}
+	};
+
+	/* **********************************************************
+	 * Synthetic data
+	 */
+
+	/**
+	 * A synthetic population of hosts and visits for one VisitorMan object.
+	 */
+	private static class Population {
+		final int visits;
+		final int hosts;
+		final int visitors;
+		final VisitorMan visitorManager;
+		private final Random random = new Random(251);
+
+		Population(int visits, VisitStore.Layout layout) throws IOException {
+			this(visits, layout, null);
+		}
+
+		/**
+		 * Create a population whose VisitorMan object keeps a PER_EVENT journal in the
+		 * directory, if one is given.
+		 */
+		Population(int visits, VisitStore.Layout layout, Path directory) throws IOException {
+			this.visits = visits;
+			this.visitorManager = directory == null ? new VisitorMan("Benchmark Corp", layout) 
+					: new VisitorMan("Benchmark Corp", layout, directory, VisitorJournal.Durability.PER_EVENT);
+			this.hosts = Math.max(10, visits / 100);
+			this.visitors = Math.max(10, visits / 4);
+		}
+
+		void registerHosts() {
+			for (int h = 0; h < hosts; h++) {
+				visitorManager.registerHost("Host" + h, "Staff", hostEmail(h));
+			}
+		}
+
+		/**
+		 * Check in every visit, checking out all but the last few. Visitor and host numbers
+		 * are skewed towards small numbers, so some visitors and hosts are much busier than others.
+		 */
+		void recordHistory() {
+			for (int v = 0; v < visits; v++) {
+				int visitor = skewed(visitors);
+				String email = "visitor" + visitor + "@guest" + (visitor % 97) + ".test";
+				String date = FIRST_DAY.plusDays(v / VISITS_PER_DAY).toString();
+				int minute = 7 * 60 + random.nextInt(11 * 60);
+				visitorManager.checkIn("Visitor" + visitor, "Guest", "Guest Org " + (visitor % 97), email,
+						hostEmail(skewed(hosts)), date, String.format("%02d:%02d", minute / 60, minute % 60));
+				if (v < visits - ON_SITE) {
+					minute = Math.min(minute + 30 + random.nextInt(120), 23 * 60 + 59);
+					visitorManager.checkOut(email, String.format("%02d:%02d", minute / 60, minute % 60));
+				}
+			}
+		}
+
+		String hostEmail(int h) {
+			return "host" + h + "@benchmark.test";
+		}
+
+		private int skewed(int bound) {
+			double r = random.nextDouble();
+			return (int) (bound * r * r);
+		}
+	}
+}
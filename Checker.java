@@ -1,7 +1,32 @@
 package visitorman;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * This provides a simple test system for the VisitorMan system. 
@@ -112,6 +137,7 @@ public class Checker {
 		testTwoHostRegistration(HariSheldon, EblingMis);
 		testRegisteredHost(BaytaDarell);
 		testRegisteredHosts(BaytaDarell, DorsVenabili );
+		testDuplicateHostRegistration(BaytaDarell, DorsVenabili);
 		testCheckInOneVisitorForOneHost(EblingMis, Visit_BaytaDarrell1, BaytaDarell);
 		testCheckOutOneVisitorForOneHost(HariSheldon, Visit_GaalDornick1, GaalDornick);
 		testVisitorLogMultipleHostsNoVisitor(EblingMis); // Just one host to begin with
@@ -129,6 +155,69 @@ public class Checker {
 				new String[][] { Visit_BaytaDarrell1, Visit_GaalDornick2, Visit_DorsVenabili1, Visit_PreemPalver1 }, 
 				new boolean[] {true, false, true, false }, 
 				new String[][] { GaalDornick, DorsVenabili, PreemPalver, BaytaDarell });
+		testRepeatVisitorCheckOut(EblingMis, Visit_BaytaDarrell1, Visit_BaytaDarrell2, BaytaDarell);
+		testConcurrentVisitors(8, 5000, Visit_BaytaDarrell1, BaytaDarell, VisitStore.Layout.OBJECTS);
+		testConcurrentVisitors(8, 5000, Visit_BaytaDarrell1, BaytaDarell, VisitStore.Layout.COLUMNS);
+		testConcurrentVisitors(8, 5000, Visit_BaytaDarrell1, BaytaDarell, VisitStore.Layout.OFF_HEAP);
+		testPipeline(8, 5000, Visit_BaytaDarrell1, BaytaDarell, 
+				new String[][] { EblingMis, SalvorHardin, HariSheldon, EblingMis }, 
+				new String[][] { Visit_BaytaDarrell1, Visit_GaalDornick2, Visit_DorsVenabili1, Visit_PreemPalver1 }, 
+				new boolean[] {true, false, true, false }, 
+				new String[][] { GaalDornick, DorsVenabili, PreemPalver, BaytaDarell });
+		testPipelineFailure(EblingMis, Visit_BaytaDarrell1, BaytaDarell);
+		testNotifications(GaalDornick, DorsVenabili, Visit_BaytaDarrell1);
+		testHostVisitors(
+				new String[][] { EblingMis, SalvorHardin, HariSheldon, EblingMis, SalvorHardin }, 
+				new String[][] { Visit_BaytaDarrell1, Visit_GaalDornick2, Visit_BaytaDarrell2, Visit_PreemPalver1, Visit_BaytaDarrell2 }, 
+				new boolean[] {true, true, false, false, false }, 
+				new String[][] { GaalDornick, DorsVenabili, PreemPalver, BaytaDarell });
+		testVisitsByTime(
+				new String[][] { EblingMis, SalvorHardin, HariSheldon, EblingMis }, 
+				new String[][] { Visit_BaytaDarrell1, Visit_GaalDornick2, Visit_DorsVenabili1, Visit_PreemPalver1 }, 
+				new String[][] { GaalDornick, DorsVenabili, PreemPalver, BaytaDarell },
+				"2019-10-12", "09:00", "12:00");
+		testVisitorIdentities(EblingMis, SalvorHardin);
+		testHostImport(5000, GaalDornick, DorsVenabili, PreemPalver);
+		testHostImport(100000, GaalDornick, DorsVenabili, PreemPalver);
+		testHostSwap(GaalDornick, SalvorHardin);
+		testGroupArrival(
+				new String[][] { EblingMis, SalvorHardin, HariSheldon, EblingMis }, 
+				new String[][] { Visit_BaytaDarrell1, Visit_GaalDornick2, Visit_DorsVenabili1, Visit_PreemPalver1 }, 
+				new boolean[] {true, false, true, false }, 
+				new String[][] { GaalDornick, DorsVenabili, PreemPalver, BaytaDarell });
+		testMetrics(
+				new String[][] { EblingMis, SalvorHardin, HariSheldon, EblingMis }, 
+				new String[][] { Visit_BaytaDarrell1, Visit_GaalDornick2, Visit_DorsVenabili1, Visit_PreemPalver1 }, 
+				new boolean[] {true, false, true, false }, 
+				new String[][] { GaalDornick, DorsVenabili, PreemPalver, BaytaDarell });
+		testLatencyHistogram();
+		testOrganisations(3, 
+				new String[][] { EblingMis, SalvorHardin, HariSheldon, EblingMis }, 
+				new String[][] { Visit_BaytaDarrell1, Visit_GaalDornick2, Visit_DorsVenabili1, Visit_PreemPalver1 }, 
+				new boolean[] {true, false, true, false }, 
+				new String[][] { GaalDornick, DorsVenabili, PreemPalver, BaytaDarell });
+		testColumnLayout(
+				new String[][] { EblingMis, SalvorHardin, HariSheldon, EblingMis, SalvorHardin }, 
+				new String[][] { Visit_BaytaDarrell1, Visit_GaalDornick2, Visit_DorsVenabili1, Visit_PreemPalver1, Visit_BaytaDarrell2 }, 
+				new boolean[] {true, true, false, false, true }, 
+				new String[][] { GaalDornick, DorsVenabili, PreemPalver, BaytaDarell });
+		testAnalytics(EblingMis, SalvorHardin, GaalDornick);
+		testOvernightVisit(EblingMis, GaalDornick);
+		testPartySearch(new String[][] { GaalDornick, SalvorHardin, EblingMis }, DorsVenabili, GaalDornick, HariSheldon);
+		testServer(new String[][] { GaalDornick, SalvorHardin }, DorsVenabili, EblingMis);
+		testParallelReport(40000, EblingMis, new String[][] { GaalDornick, DorsVenabili, PreemPalver, BaytaDarell }, VisitStore.Layout.OBJECTS);
+		testParallelReport(40000, EblingMis, new String[][] { GaalDornick, DorsVenabili, PreemPalver, BaytaDarell }, VisitStore.Layout.COLUMNS);
+		testParallelReport(40000, EblingMis, new String[][] { GaalDornick, DorsVenabili, PreemPalver, BaytaDarell }, VisitStore.Layout.OFF_HEAP);
+		testRetention(3000, EblingMis, new String[][] { GaalDornick, DorsVenabili, PreemPalver, BaytaDarell }, VisitStore.Layout.OBJECTS);
+		testRetention(3000, EblingMis, new String[][] { GaalDornick, DorsVenabili, PreemPalver, BaytaDarell }, VisitStore.Layout.COLUMNS);
+		testRetention(3000, EblingMis, new String[][] { GaalDornick, DorsVenabili, PreemPalver, BaytaDarell }, VisitStore.Layout.OFF_HEAP);
+		testJournalRecovery(
+				new String[][] { EblingMis, SalvorHardin, HariSheldon, EblingMis }, 
+				new String[][] { Visit_BaytaDarrell1, Visit_GaalDornick2, Visit_DorsVenabili1, Visit_PreemPalver1 }, 
+				new boolean[] {true, false, true, false }, 
+				new String[][] { GaalDornick, DorsVenabili, PreemPalver, BaytaDarell });
+		testJournalFailure(VisitorJournal.Durability.PER_EVENT, EblingMis, SalvorHardin, Visit_GaalDornick2, GaalDornick, DorsVenabili);
+		testJournalFailure(VisitorJournal.Durability.BATCHED, EblingMis, SalvorHardin, Visit_GaalDornick2, GaalDornick, DorsVenabili);
 	}
 		
 	/* *******
@@ -196,6 +285,26 @@ public class Checker {
 		checkAndReport(iut, expected, actual);
 	}
 	
+	/**
+	 * Register hosts twice and check that the duplicates are ignored, and that a host
+	 * can be found by an email address that differs only in case.
+	 */
+	private static void testDuplicateHostRegistration(String[]... hosts) {
+		String iut = "getRegisteredHosts()";
+		System.out.println("==testDuplicateHostRegistration: Register hosts twice and check they are only registered once==");
+		VisitorMan visitorManager = new VisitorMan(COMPANY_NAME);
+		checkRegisterMultipleHosts(visitorManager, hosts);
+		checkRegisterMultipleHosts(visitorManager, hosts);
+		List<String> actual = visitorManager.getRegisteredHosts();
+		List<String> expected = new ArrayList<String>();
+		for (String[] host: hosts) {
+			expected.add(constructHostFormalDetails(host));
+		}
+		checkAndReport(iut, expected, actual);
+		checkAndReport("showHostDetails()", constructHostFormalDetails(hosts[0]), 
+				visitorManager.showHostDetails(hosts[0][EMAIL_INDEX].toUpperCase()));
+	}
+	
 	private static void testCheckInOneVisitorForOneHost(String[] visitor, String[] visitInfo, String[] host) {
 		String iut = "getVisitorsOnSite()";
 		System.out.println("==testCheckInOneVisitorForOneHost: Register one host, one visitor visits==");
@@ -208,6 +317,7 @@ public class Checker {
 		List<String> expected = new ArrayList<String>();
 		expected.add(constructVisitorDetails(visitor));
 		checkAndReport(iut, expected, actual);
+		checkAndReport(iut, expected, visitorManager.getVisitorsOnSite()); // Asking again must give the same roster
 	}
 
 	private static void testCheckOutOneVisitorForOneHost(String[] visitor, String[] visitInfo, String[] host) {
@@ -281,6 +391,1183 @@ public class Checker {
 			printListFormatted(actual);
 		}
 		checkAndReport(iut, expected, actual);
+		checkStreamedVisitorLogReports(visitorManager, expected);
+	}
+	
+	/**
+	 * A visitor visits the same host twice, checking out each time. Checking out of
+	 * the second visit must not change the first visit.
+	 */
+	private static void testRepeatVisitorCheckOut(String[] visitor, String[] visitInfo1, String[] visitInfo2, String[] host) {
+		String iut = "getVisiterLogReport()";
+		System.out.println("==testRepeatVisitorCheckOut: One visitor visits twice, check out only changes the current visit==");
+		VisitorMan visitorManager = new VisitorMan(COMPANY_NAME);
+		checkRegisterAndShowHost(visitorManager, host);
+		List<String> expected = new ArrayList<String>();
+		expected.add(COMPANY_NAME);
+		for (String[] visitInfo: new String[][] { visitInfo1, visitInfo2 }) {
+			visitorManager.checkIn(visitor[FAMILY_INDEX], visitor[GIVEN_INDEX], 
+					visitor[ORG_INDEX], visitor[EMAIL_INDEX],
+					visitInfo[VISITING_HOST_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[VISIT_TIME_INDEX]);
+			visitorManager.checkOut(visitor[EMAIL_INDEX], visitInfo[LEAVE_TIME_INDEX]);
+			expected.add(constructLogEntry(visitor, visitInfo, host, true));
+		}
+		List<String> actual = visitorManager.getVisitorLogReport();
+		checkAndReport(iut, expected, actual);
+	}
+	
+	/**
+	 * Several threads (think of them as kiosks) check visitors in and out at the same time, 
+	 * each kiosk with its own visitors. Every second visitor of each kiosk checks out again.
+	 * No visit may be lost, and exactly the visitors who did not check out must be on site.
+	 */
+	private static void testConcurrentVisitors(int kiosks, int visitorsPerKiosk, String[] visitInfo, String[] host, 
+			VisitStore.Layout layout) {
+		System.out.println("==testConcurrentVisitors: " + kiosks + " kiosks check in " + visitorsPerKiosk + " visitors each, "
+				+ layout + "==");
+		final VisitorMan visitorManager = new VisitorMan(COMPANY_NAME, layout);
+		checkRegisterAndShowHost(visitorManager, host);
+		Thread[] threads = new Thread[kiosks];
+		for (int k = 0; k < kiosks; k++) {
+			final int kiosk = k;
+			threads[k] = new Thread(() -> {
+				for (int v = 0; v < visitorsPerKiosk; v++) {
+					String email = "v" + v + "@kiosk" + kiosk + ".test";
+					visitorManager.checkIn("Visitor" + v, "Kiosk" + kiosk, "Stress Ltd", email, 
+							visitInfo[VISITING_HOST_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[VISIT_TIME_INDEX]);
+					if (v % 2 == 0) {
+						visitorManager.checkOut(email, visitInfo[LEAVE_TIME_INDEX]);
+					}
+				}
+			});
+			threads[k].start();
+		}
+		for (Thread thread: threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Problem with test. Interrupted while waiting for kiosks", e);
+			}
+		}
+		List<String> log = visitorManager.getVisitorLogReport();
+		checkAndReport("getVisitorLogReport() size", String.valueOf(1 + kiosks * visitorsPerKiosk), String.valueOf(log.size()));
+		checkAndReport("getVisitorLogReport() distinct", String.valueOf(1 + kiosks * visitorsPerKiosk), 
+				String.valueOf(new HashSet<String>(log).size()));
+		List<String> onSite = visitorManager.getVisitorsOnSite();
+		checkAndReport("getVisitorsOnSite() size", String.valueOf(kiosks * (visitorsPerKiosk / 2)), String.valueOf(onSite.size()));
+	}
+	
+	/**
+	 * Visitors visit several hosts, some checking out. For each host, the visitors on site
+	 * and the visit log must only include that host's visitors, in order of arrival.
+	 */
+	/**
+	 * Publish check-ins and check-outs from several kiosks into a pipeline, with a stage that 
+	 * counts the events it is given and checks they arrive in order. Then publish visits from
+	 * one kiosk, including one for a host that is not registered, and check the report is the 
+	 * same as when the visits are checked in directly.
+	 */
+	private static void testPipeline(int kiosks, int visitorsPerKiosk, String[] visitInfo, String[] host, 
+			String[][] visitors, String[][] visitsInfo, boolean[] checkedOuts, String[][] hosts) {
+		System.out.println("==testPipeline: " + kiosks + " kiosks publish " + visitorsPerKiosk + " visitors each to a pipeline==");
+		final VisitorMan visitorManager = new VisitorMan(COMPANY_NAME);
+		checkRegisterAndShowHost(visitorManager, host);
+		long[] consumed = { 0, -1 };      //The number of events, and the last sequence seen, or -2 if out of order.
+		VisitPipeline pipeline = new VisitPipeline(visitorManager, 1024, batch -> {
+			for (VisitEvent event : batch) {
+				consumed[1] = event.AccessSequence() == consumed[1] + 1 ? event.AccessSequence() : -2;
+				consumed[0]++;
+			}
+		});
+		Thread[] threads = new Thread[kiosks];
+		for (int k = 0; k < kiosks; k++) {
+			final int kiosk = k;
+			threads[k] = new Thread(() -> {
+				for (int v = 0; v < visitorsPerKiosk; v++) {
+					String email = "v" + v + "@kiosk" + kiosk + ".test";
+					pipeline.PublishCheckIn("Visitor" + v, "Kiosk" + kiosk, "Stress Ltd", email, 
+							visitInfo[VISITING_HOST_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[VISIT_TIME_INDEX]);
+					if (v % 2 == 0) {
+						pipeline.PublishCheckOut(email, visitInfo[LEAVE_TIME_INDEX]);
+					}
+				}
+			});
+			threads[k].start();
+		}
+		for (Thread thread: threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Problem with test. Interrupted while waiting for kiosks", e);
+			}
+		}
+		pipeline.Close();
+		int events = kiosks * (visitorsPerKiosk + (visitorsPerKiosk + 1) / 2);
+		checkAndReport("Stage events", String.valueOf(events), String.valueOf(consumed[0]));
+		checkAndReport("Stage order", String.valueOf(events - 1), String.valueOf(consumed[1]));
+		checkAndReport("Failures()", "0", String.valueOf(pipeline.Failures()));
+		checkAndReport("AccessLatencies() count", String.valueOf(events), String.valueOf(pipeline.AccessLatencies().Count()));
+		checkAndReport("getVisitorLogReport() size", String.valueOf(1 + kiosks * visitorsPerKiosk), 
+				String.valueOf(visitorManager.getVisitorLogReport().size()));
+		checkAndReport("getVisitorsOnSite() size", String.valueOf(kiosks * (visitorsPerKiosk / 2)), 
+				String.valueOf(visitorManager.getVisitorsOnSite().size()));
+
+		VisitorMan direct = new VisitorMan(COMPANY_NAME);
+		VisitorMan piped = new VisitorMan(COMPANY_NAME);
+		checkRegisterMultipleHosts(direct, hosts);
+		checkRegisterMultipleHosts(piped, hosts);
+		VisitPipeline kiosk = new VisitPipeline(piped, 4);
+		long last = -1;
+		for (int i = 0; i < visitors.length; i++) {
+			direct.checkIn(visitors[i][FAMILY_INDEX], visitors[i][GIVEN_INDEX], visitors[i][ORG_INDEX], visitors[i][EMAIL_INDEX],
+					visitsInfo[i][VISITING_HOST_INDEX], visitsInfo[i][VISIT_DATE_INDEX], visitsInfo[i][VISIT_TIME_INDEX]);
+			kiosk.PublishCheckIn(visitors[i][FAMILY_INDEX], visitors[i][GIVEN_INDEX], visitors[i][ORG_INDEX], visitors[i][EMAIL_INDEX],
+					visitsInfo[i][VISITING_HOST_INDEX], visitsInfo[i][VISIT_DATE_INDEX], visitsInfo[i][VISIT_TIME_INDEX]);
+			direct.checkIn("Nobody", "Known", "Nowhere", "nobody@known.test", 
+					"unknown@host.test", visitsInfo[i][VISIT_DATE_INDEX], visitsInfo[i][VISIT_TIME_INDEX]);
+			kiosk.PublishCheckIn("Nobody", "Known", "Nowhere", "nobody@known.test", 
+					"unknown@host.test", visitsInfo[i][VISIT_DATE_INDEX], visitsInfo[i][VISIT_TIME_INDEX]);
+			if (checkedOuts[i]) {
+				direct.checkOut(visitors[i][EMAIL_INDEX], visitsInfo[i][LEAVE_TIME_INDEX]);
+				last = kiosk.PublishCheckOut(visitors[i][EMAIL_INDEX], visitsInfo[i][LEAVE_TIME_INDEX]);
+			}
+		}
+		checkAndReport("AwaitApplied()", "true", String.valueOf(kiosk.AwaitApplied(last)));
+		checkAndReport("AwaitApplied() checked out", String.valueOf(direct.getMetrics().getCheckOuts()), 
+				String.valueOf(piped.getMetrics().getCheckOuts()));
+		kiosk.Close();
+		checkAndReport("getVisitorLogReport() piped", direct.getVisitorLogReport(), piped.getVisitorLogReport());
+		checkAndReport("getVisitorsOnSite() piped", direct.getVisitorsOnSite(), piped.getVisitorsOnSite());
+	}
+
+	/**
+	 * Publish visits into a pipeline whose journal has been closed, so no batch can be recorded,
+	 * and check that the writer keeps going and that AwaitApplied() reports each event failed.
+	 */
+	private static void testPipelineFailure(String[] visitor, String[] visitInfo, String[] host) {
+		System.out.println("==testPipelineFailure: Events that cannot be recorded are reported as failed==");
+		try {
+			Path directory = Files.createTempDirectory("visitorman");
+			VisitorMan visitorManager = new VisitorMan(COMPANY_NAME, directory, VisitorJournal.Durability.PER_EVENT);
+			checkRegisterMultipleHosts(visitorManager, host);
+			visitorManager.close();
+			VisitPipeline pipeline = new VisitPipeline(visitorManager, 4);
+			long checkIn = pipeline.PublishCheckIn(visitor[FAMILY_INDEX], visitor[GIVEN_INDEX], visitor[ORG_INDEX], 
+					visitor[EMAIL_INDEX], visitInfo[VISITING_HOST_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[VISIT_TIME_INDEX]);
+			checkAndReport("AwaitApplied() check-in", "false", String.valueOf(pipeline.AwaitApplied(checkIn)));
+			long checkOut = pipeline.PublishCheckOut(visitor[EMAIL_INDEX], visitInfo[LEAVE_TIME_INDEX]);
+			checkAndReport("AwaitApplied() check-out", "false", String.valueOf(pipeline.AwaitApplied(checkOut)));
+			pipeline.Close();
+			checkAndReport("Failures()", "2", String.valueOf(pipeline.Failures()));
+			checkAndReport("getVisitorsOnSite() after failures", new ArrayList<String>(), visitorManager.getVisitorsOnSite());
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+				for (Path file: files) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(directory);
+		} catch (IOException e) {
+			throw new RuntimeException("Problem with test. Cannot use the data directory", e);
+		}
+	}
+
+	/**
+	 * Check visitors in for two hosts and check that each host is sent one message about all
+	 * his/her visitors, that a host who has had his/her message is rate limited, that a
+	 * message that cannot be sent is tried again, and that visits waiting for a host count
+	 * towards the limit on queued visits.
+	 */
+	private static void testNotifications(String[] host1, String[] host2, String[] visitInfo) {
+		System.out.println("==testNotifications: Tell hosts their visitors have arrived==");
+		try {
+			Path file = Files.createTempFile("visitorman", ".mail");
+			VisitorMan visitorManager = new VisitorMan(COMPANY_NAME);
+			checkRegisterMultipleHosts(visitorManager, host1, host2);
+			HostNotifier notifier = new HostNotifier(new FileTransport(file), 3600000, 1, 3600000, 1);
+			visitorManager.addVisitListener(notifier);
+			for (int v = 0; v < 3; v++) {
+				visitorManager.checkIn("Arrival" + v, "Visitor", "Corp Ltd", "arrival" + v + "@corp.test",
+						host1[EMAIL_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[VISIT_TIME_INDEX]);
+			}
+			List<Arrival> group = new ArrayList<Arrival>();
+			group.add(new Arrival("Arrival3", "Visitor", "Corp Ltd", "arrival3@corp.test",
+					host2[EMAIL_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[VISIT_TIME_INDEX]));
+			group.add(new Arrival("Arrival4", "Visitor", "Other Ltd", "arrival4@other.test",
+					host2[EMAIL_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[VISIT_TIME_INDEX]));
+			visitorManager.checkInAll(group);
+			notifier.Flush();
+			List<String> expected = new ArrayList<String>();
+			expected.add("To: " + host1[EMAIL_INDEX]);
+			expected.add("Subject: 3 visitors from Corp Ltd have arrived");
+			expected.add("");
+			for (int v = 0; v < 3; v++) {
+				expected.add("Visitor Arrival" + v + " (Corp Ltd). arrival" + v + "@corp.test arrived at " 
+						+ visitInfo[VISIT_TIME_INDEX] + " on " + visitInfo[VISIT_DATE_INDEX]);
+			}
+			expected.add(".");
+			expected.add("To: " + host2[EMAIL_INDEX]);
+			expected.add("Subject: 2 visitors have arrived");
+			expected.add("");
+			expected.add("Visitor Arrival3 (Corp Ltd). arrival3@corp.test arrived at " 
+					+ visitInfo[VISIT_TIME_INDEX] + " on " + visitInfo[VISIT_DATE_INDEX]);
+			expected.add("Visitor Arrival4 (Other Ltd). arrival4@other.test arrived at " 
+					+ visitInfo[VISIT_TIME_INDEX] + " on " + visitInfo[VISIT_DATE_INDEX]);
+			expected.add(".");
+			List<String> actual = Files.readAllLines(file);
+			Collections.sort(expected);      //The hosts may be sent their messages in either order.
+			Collections.sort(actual);
+			checkAndReport("FileTransport messages", expected, actual);
+			visitorManager.checkIn("Late", "Visitor", "Corp Ltd", "late@corp.test",
+					host1[EMAIL_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[VISIT_TIME_INDEX]);
+			notifier.Flush();
+			checkAndReport("Sent() rate limited", "2", String.valueOf(notifier.Sent()));
+			checkAndReport("Notified()", "5", String.valueOf(notifier.Notified()));
+			notifier.Close();
+			Files.delete(file);
+
+			int[] failures = { 2 };
+			List<HostNotification> delivered = new ArrayList<HostNotification>();
+			HostNotifier retrying = new HostNotifier(message -> {
+				if (failures[0]-- > 0) {
+					throw new IOException("The mail server is down");
+				}
+				delivered.add(message);
+			}, 3600000, 3, 3600000, 1);
+			visitorManager.removeVisitListener(notifier);
+			visitorManager.addVisitListener(retrying);
+			visitorManager.checkIn("Retry", "Visitor", "Corp Ltd", "retry@corp.test",
+					host2[EMAIL_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[VISIT_TIME_INDEX]);
+			for (int attempt = 0; attempt < 3; attempt++) {
+				Thread.sleep(10);      //Longer than the backoff.
+				retrying.Flush();
+			}
+			retrying.Close();
+			checkAndReport("Retries()", "2", String.valueOf(retrying.Retries()));
+			checkAndReport("Sent() after retries", "1", String.valueOf(retrying.Sent()));
+			checkAndReport("Retried message", "1 visitor from Corp Ltd has arrived", 
+					delivered.isEmpty() ? "nothing" : delivered.get(0).AccessSubject());
+
+			HostNotifier down = new HostNotifier(message -> {
+				throw new IOException("The mail server is down");
+			}, 3600000, 3, 3600000, 3600000);
+			Party arrival = new Party("Crowd", "Visitor", "crowd@corp.test", "Corp Ltd");
+			LogEntry visit = new LogEntry(arrival, host1[EMAIL_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[VISIT_TIME_INDEX], false, null);
+			for (int v = 0; v < 100000; v++) {
+				down.CheckedIn(v, visit);
+			}
+			down.Flush();      //The visits now wait for the host's next message.
+			for (int v = 0; v < 5; v++) {
+				down.CheckedIn(v, visit);
+			}
+			down.Close();
+			checkAndReport("Dropped() while the transport is down", "5", String.valueOf(down.Dropped()));
+		} catch (IOException | InterruptedException e) {
+			throw new RuntimeException("Problem with test. Cannot use the mail file", e);
+		}
+	}
+
+	private static void testHostVisitors(String[][] visitors, String[][] visitsInfo, boolean[] checkedOuts, String[][] hosts) {
+		System.out.println("==testHostVisitors: Visitors on site and visit log of each host==");
+		VisitorMan visitorManager = new VisitorMan(COMPANY_NAME);
+		checkRegisterMultipleHosts(visitorManager, hosts);
+		for (int i = 0; i < visitors.length; i++) {
+			visitorManager.checkIn(visitors[i][FAMILY_INDEX], visitors[i][GIVEN_INDEX], 
+					visitors[i][ORG_INDEX], visitors[i][EMAIL_INDEX],
+					visitsInfo[i][VISITING_HOST_INDEX], visitsInfo[i][VISIT_DATE_INDEX], visitsInfo[i][VISIT_TIME_INDEX]);
+			if (checkedOuts[i]) {
+				visitorManager.checkOut(visitors[i][EMAIL_INDEX], visitsInfo[i][LEAVE_TIME_INDEX]);
+			}
+		}
+		for (String[] host: hosts) {
+			List<String> onSite = new ArrayList<String>();
+			List<String> log = new ArrayList<String>();
+			for (int i = 0; i < visitors.length; i++) {
+				if (visitsInfo[i][VISITING_HOST_INDEX].equals(host[EMAIL_INDEX])) {
+					log.add(constructLogEntry(visitors[i], visitsInfo[i], host, checkedOuts[i]));
+					if (!checkedOuts[i]) {
+						onSite.add(constructVisitorDetails(visitors[i]));
+					}
+				}
+			}
+			checkAndReport("getVisitorsOnSite(" + host[EMAIL_INDEX] + ")", onSite, visitorManager.getVisitorsOnSite(host[EMAIL_INDEX]));
+			checkAndReport("getHostVisitLog(" + host[EMAIL_INDEX] + ")", log, visitorManager.getHostVisitLog(host[EMAIL_INDEX]));
+		}
+	}
+	
+	/**
+	 * Visitors check in (and do not check out) on several days, then the visits on one day,
+	 * and in a range of time on that day, are asked for. They must come in order of check-in time.
+	 */
+	private static void testVisitsByTime(String[][] visitors, String[][] visitsInfo, String[][] hosts, 
+			String date, String fromTime, String toTime) {
+		System.out.println("==testVisitsByTime: Visits on a date and in a range of time==");
+		VisitorMan visitorManager = new VisitorMan(COMPANY_NAME);
+		checkRegisterMultipleHosts(visitorManager, hosts);
+		for (int i = 0; i < visitors.length; i++) {
+			visitorManager.checkIn(visitors[i][FAMILY_INDEX], visitors[i][GIVEN_INDEX], 
+					visitors[i][ORG_INDEX], visitors[i][EMAIL_INDEX],
+					visitsInfo[i][VISITING_HOST_INDEX], visitsInfo[i][VISIT_DATE_INDEX], visitsInfo[i][VISIT_TIME_INDEX]);
+		}
+		List<Integer> visitsOnDate = new ArrayList<Integer>();
+		for (int i = 0; i < visitors.length; i++) {
+			if (visitsInfo[i][VISIT_DATE_INDEX].equals(date)) {
+				visitsOnDate.add(i);
+			}
+		}
+		visitsOnDate.sort((i, j) -> visitsInfo[i][VISIT_TIME_INDEX].compareTo(visitsInfo[j][VISIT_TIME_INDEX]));
+		List<String> onDate = new ArrayList<String>();
+		List<String> inRange = new ArrayList<String>();
+		for (int i: visitsOnDate) {
+			String[] host = getPartySpecFromEmail(visitsInfo[i][VISITING_HOST_INDEX], hosts);
+			String line = constructLogEntry(visitors[i], visitsInfo[i], host, false);
+			onDate.add(line);
+			String time = visitsInfo[i][VISIT_TIME_INDEX];
+			if (time.compareTo(fromTime) >= 0 && time.compareTo(toTime) < 0) {
+				inRange.add(line);
+			}
+		}
+		checkAndReport("getVisitsOn()", onDate, visitorManager.getVisitsOn(date));
+		checkAndReport("getVisitsBetween()", inRange, visitorManager.getVisitsBetween(date, fromTime, toTime));
+	}
+	
+	/**
+	 * Resolve visitors in a VisitorRegistry and check that a repeat visitor keeps his/her
+	 * id, that changed details give a new id, and that organisation names are shared.
+	 */
+	private static void testVisitorIdentities(String[] visitor1, String[] visitor2) {
+		System.out.println("==testVisitorIdentities: Repeat visitors share one identity==");
+		VisitorRegistry registry = new VisitorRegistry();
+		Party first = registry.Resolve(visitor1[FAMILY_INDEX], visitor1[GIVEN_INDEX], visitor1[EMAIL_INDEX], visitor1[ORG_INDEX]);
+		Party other = registry.Resolve(visitor2[FAMILY_INDEX], visitor2[GIVEN_INDEX], visitor2[EMAIL_INDEX], new String(visitor1[ORG_INDEX]));
+		Party again = registry.Resolve(new String(visitor1[FAMILY_INDEX]), visitor1[GIVEN_INDEX], visitor1[EMAIL_INDEX], visitor1[ORG_INDEX]);
+		Party renamed = registry.Resolve("Renamed", visitor1[GIVEN_INDEX], visitor1[EMAIL_INDEX], visitor1[ORG_INDEX]);
+		checkAndReport("Resolve() ids", Arrays.asList("0", "1", "0", "2"), Arrays.asList(String.valueOf(first.AccessId()),
+				String.valueOf(other.AccessId()), String.valueOf(again.AccessId()), String.valueOf(renamed.AccessId())));
+		checkAndReport("Resolve() shared", "true true", (first == registry.Get(0)) + " " 
+				+ (first.AccessOrganisation() == other.AccessOrganisation()));
+	}
+	
+	/**
+	 * Record the same hosts and visits in a VisitorMan that stores visits as objects, in one
+	 * that stores them as columns and in one that stores them off the heap. Every report must
+	 * be the same for all three.
+	 */
+	private static void testColumnLayout(String[][] visitors, String[][] visitsInfo, boolean[] checkedOuts, String[][] hosts) {
+		System.out.println("==testColumnLayout: Visits stored as columns or off the heap give the same reports==");
+		VisitorMan objects = new VisitorMan(COMPANY_NAME, VisitStore.Layout.OBJECTS);
+		VisitorMan columns = new VisitorMan(COMPANY_NAME, VisitStore.Layout.COLUMNS);
+		VisitorMan offHeap = new VisitorMan(COMPANY_NAME, VisitStore.Layout.OFF_HEAP);
+		for (VisitorMan visitorManager: new VisitorMan[] { objects, columns, offHeap }) {
+			checkRegisterMultipleHosts(visitorManager, hosts);
+			for (int i = 0; i < visitors.length; i++) {
+				visitorManager.checkIn(visitors[i][FAMILY_INDEX], visitors[i][GIVEN_INDEX], 
+						visitors[i][ORG_INDEX], visitors[i][EMAIL_INDEX],
+						visitsInfo[i][VISITING_HOST_INDEX], visitsInfo[i][VISIT_DATE_INDEX], visitsInfo[i][VISIT_TIME_INDEX]);
+				if (checkedOuts[i]) {
+					visitorManager.checkOut(visitors[i][EMAIL_INDEX], visitsInfo[i][LEAVE_TIME_INDEX]);
+				}
+			}
+		}
+		for (VisitorMan stored: new VisitorMan[] { columns, offHeap }) {
+			checkAndReport("getVisitorLogReport()", objects.getVisitorLogReport(), stored.getVisitorLogReport());
+			checkAndReport("getVisitorsOnSite()", objects.getVisitorsOnSite(), stored.getVisitorsOnSite());
+			checkAndReport("getVisitsOn()", objects.getVisitsOn(visitsInfo[0][VISIT_DATE_INDEX]), 
+					stored.getVisitsOn(visitsInfo[0][VISIT_DATE_INDEX]));
+			for (String[] host: hosts) {
+				checkAndReport("getHostVisitLog(" + host[EMAIL_INDEX] + ")", objects.getHostVisitLog(host[EMAIL_INDEX]), 
+						stored.getHostVisitLog(host[EMAIL_INDEX]));
+			}
+		}
+	}
+	
+	/**
+	 * Check in a group of visitors with checkInAll() and check some out again with checkOutAll(),
+	 * journalling the group. The reports must be the same as when each visitor checks in and out
+	 * on his/her own, also after restoring from the journal. A group with a host that is not
+	 * registered, or with a time that is not in ISO8601 format, must be rejected as a whole.
+	 */
+	private static void testGroupArrival(String[][] visitors, String[][] visitsInfo, boolean[] checkedOuts, String[][] hosts) {
+		System.out.println("==testGroupArrival: Check in and out a group of visitors at once==");
+		try {
+			Path directory = Files.createTempDirectory("visitorman");
+			VisitorMan oneByOne = new VisitorMan(COMPANY_NAME);
+			VisitorMan group = new VisitorMan(COMPANY_NAME, directory, VisitorJournal.Durability.PER_EVENT);
+			checkRegisterMultipleHosts(oneByOne, hosts);
+			checkRegisterMultipleHosts(group, hosts);
+			List<Arrival> arrivals = new ArrayList<Arrival>();
+			List<String> leaving = new ArrayList<String>();
+			for (int i = 0; i < visitors.length; i++) {
+				oneByOne.checkIn(visitors[i][FAMILY_INDEX], visitors[i][GIVEN_INDEX], 
+						visitors[i][ORG_INDEX], visitors[i][EMAIL_INDEX],
+						visitsInfo[i][VISITING_HOST_INDEX], visitsInfo[i][VISIT_DATE_INDEX], visitsInfo[i][VISIT_TIME_INDEX]);
+				arrivals.add(new Arrival(visitors[i][FAMILY_INDEX], visitors[i][GIVEN_INDEX], 
+						visitors[i][ORG_INDEX], visitors[i][EMAIL_INDEX],
+						visitsInfo[i][VISITING_HOST_INDEX], visitsInfo[i][VISIT_DATE_INDEX], visitsInfo[i][VISIT_TIME_INDEX]));
+			}
+			for (int i = 0; i < visitors.length; i++) {
+				if (checkedOuts[i]) {
+					oneByOne.checkOut(visitors[i][EMAIL_INDEX], visitsInfo[0][LEAVE_TIME_INDEX]);
+					leaving.add(visitors[i][EMAIL_INDEX]);
+				}
+			}
+			checkAndReport("checkInAll()", "true", String.valueOf(group.checkInAll(arrivals)));
+			checkAndReport("checkOutAll()", String.valueOf(leaving.size()), 
+					String.valueOf(group.checkOutAll(leaving, visitsInfo[0][LEAVE_TIME_INDEX])));
+			arrivals.add(new Arrival("Nobody", "Known", "Nowhere", "nobody@known.test", 
+					"unknown@host.test", visitsInfo[0][VISIT_DATE_INDEX], visitsInfo[0][VISIT_TIME_INDEX]));
+			checkAndReport("checkInAll() unknown host", "false", String.valueOf(group.checkInAll(arrivals)));
+			List<Arrival> rejected = new ArrayList<Arrival>();
+			rejected.add(new Arrival("Newcomer", "First", "Nowhere", "first@newcomer.test", 
+					visitsInfo[0][VISITING_HOST_INDEX], visitsInfo[0][VISIT_DATE_INDEX], visitsInfo[0][VISIT_TIME_INDEX]));
+			rejected.add(new Arrival("Nobody", "Known", "Nowhere", "nobody@known.test", 
+					"unknown@host.test", visitsInfo[0][VISIT_DATE_INDEX], visitsInfo[0][VISIT_TIME_INDEX]));
+			checkAndReport("checkInAll() unknown second host", "false", String.valueOf(group.checkInAll(rejected)));
+			rejected.set(1, new Arrival("Newcomer", "Second", "Nowhere", "second@newcomer.test", 
+					visitsInfo[0][VISITING_HOST_INDEX], visitsInfo[0][VISIT_DATE_INDEX], "9:00"));
+			try {
+				group.checkInAll(rejected);
+				checkAndReport("checkInAll() bad time", "DateTimeParseException", "nothing thrown");
+			} catch (DateTimeParseException e) {
+				checkAndReport("checkInAll() bad time", "DateTimeParseException", "DateTimeParseException");
+			}
+			checkAndReport("findVisitors() rejected group", new ArrayList<String>(), group.findVisitors("newcomer", 5));
+			checkAndReport("getVisitorLogReport()", oneByOne.getVisitorLogReport(), group.getVisitorLogReport());
+			checkAndReport("getVisitorsOnSite()", oneByOne.getVisitorsOnSite(), group.getVisitorsOnSite());
+			group.close();
+			VisitorMan restored = new VisitorMan(COMPANY_NAME, directory, VisitorJournal.Durability.PER_EVENT);
+			checkAndReport("getVisitorLogReport() restored", oneByOne.getVisitorLogReport(), restored.getVisitorLogReport());
+			restored.close();
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+				for (Path file: files) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(directory);
+		} catch (IOException e) {
+			throw new RuntimeException("Problem with test. Cannot use the journal file", e);
+		}
+	}
+	
+	/**
+	 * Check visitors in and out and look hosts up, then check the counts and gauges of the 
+	 * metrics, both directly and as published over JMX, and that closing unpublishes them.
+	 */
+	private static void testMetrics(String[][] visitors, String[][] visitsInfo, boolean[] checkedOuts, String[][] hosts) {
+		System.out.println("==testMetrics: Count the calls of each method and publish them over JMX==");
+		VisitorMan visitorMan = new VisitorMan(COMPANY_NAME);
+		checkRegisterMultipleHosts(visitorMan, hosts);
+		int leaving = 0;
+		for (int i = 0; i < visitors.length; i++) {
+			visitorMan.checkIn(visitors[i][FAMILY_INDEX], visitors[i][GIVEN_INDEX], 
+					visitors[i][ORG_INDEX], visitors[i][EMAIL_INDEX],
+					visitsInfo[i][VISITING_HOST_INDEX], visitsInfo[i][VISIT_DATE_INDEX], visitsInfo[i][VISIT_TIME_INDEX]);
+			if (checkedOuts[i]) {
+				visitorMan.checkOut(visitors[i][EMAIL_INDEX], visitsInfo[i][LEAVE_TIME_INDEX]);
+				leaving++;
+			}
+		}
+		int lookups = 1000;
+		long lookedUp = visitorMan.getMetrics().getLookups();
+		for (int i = 0; i < lookups; i++) {
+			visitorMan.showHostDetails(hosts[i % hosts.length][EMAIL_INDEX]);
+		}
+		visitorMan.getVisitorLogReport();
+		VisitorMetrics metrics = visitorMan.getMetrics();
+		OperationMetrics stream = metrics.AccessOperation(VisitorMetrics.Operation.STREAM_VISITOR_LOG_REPORT);
+		Stream<String> lines = visitorMan.streamVisitorLogReport();
+		checkAndReport("streamVisitorLogReport() not yet consumed", "0", String.valueOf(stream.getCount()));
+		lines.forEach(line -> { });
+		lines.close();
+		try (Stream<String> first = visitorMan.streamVisitorLogReport()) {
+			first.findFirst();
+		}
+		checkAndReport("streamVisitorLogReport() consumed, then closed", "2", String.valueOf(stream.getCount()));
+		checkAndReport("getCheckIns()", String.valueOf(visitors.length), String.valueOf(metrics.getCheckIns()));
+		checkAndReport("getCheckOuts()", String.valueOf(leaving), String.valueOf(metrics.getCheckOuts()));
+		checkAndReport("getLookups()", String.valueOf(lookedUp + lookups + 3), String.valueOf(metrics.getLookups()));
+		checkAndReport("getOnSite()", String.valueOf(visitors.length - leaving), String.valueOf(metrics.getOnSite()));
+		checkAndReport("getVisits()", String.valueOf(visitors.length), String.valueOf(metrics.getVisits()));
+		checkAndReport("getHosts()", String.valueOf(hosts.length), String.valueOf(metrics.getHosts()));
+		OperationMetrics report = metrics.AccessOperation(VisitorMetrics.Operation.GET_VISITOR_LOG_REPORT);
+		checkAndReport("getVisitorLogReport() timed", "1", String.valueOf(report.AccessLatencies().Count()));
+		OperationMetrics lookup = metrics.AccessOperation(VisitorMetrics.Operation.SHOW_HOST_DETAILS);
+		checkAndReport("showHostDetails() sampled", "true", 
+				String.valueOf(lookup.AccessLatencies().Count() > 0 && lookup.AccessLatencies().Count() < lookups));
+		checkAndReport("dumpMetrics()", "true", String.valueOf(visitorMan.dumpMetrics().contains("\ncheckIn ")));
+		try {
+			visitorMan.publishMetrics();
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("visitorman:type=VisitorMan,name=" + ObjectName.quote(COMPANY_NAME));
+			checkAndReport("JMX CheckIns", String.valueOf(visitors.length), String.valueOf(server.getAttribute(name, "CheckIns")));
+			ObjectName checkIn = new ObjectName("visitorman:type=Operation,name=" + ObjectName.quote(COMPANY_NAME) + ",operation=checkIn");
+			checkAndReport("JMX checkIn Count", String.valueOf(visitors.length), String.valueOf(server.getAttribute(checkIn, "Count")));
+			visitorMan.close();
+			checkAndReport("close() unpublished", "false", String.valueOf(server.isRegistered(name) || server.isRegistered(checkIn)));
+		} catch (JMException | IOException e) {
+			throw new RuntimeException("Problem with test. Cannot publish the metrics", e);
+		}
+	}
+
+	/**
+	 * Check the same visitors in and out of several organisations sharing a building, each
+	 * with a different subset of them, and compare the building's roster with the roster of a 
+	 * VisitorMan object for each organisation on its own.
+	 */
+	private static void testOrganisations(int shards, String[][] visitors, String[][] visitsInfo, 
+			boolean[] checkedOuts, String[][] hosts) {
+		System.out.println("==testOrganisations: Manage the visitors of many organisations at once==");
+		OrganisationRegistry building = new OrganisationRegistry(shards);
+		SortedMap<String, List<String>> expected = new TreeMap<String, List<String>>();
+		int onSite = 0;
+		for (int o = 0; o < 2 * shards; o++) {
+			String organisation = COMPANY_NAME + " " + o;
+			VisitorMan alone = new VisitorMan(organisation);
+			checkAndReport("Add()", "true", String.valueOf(building.Add(organisation).join()));
+			checkRegisterMultipleHosts(alone, hosts);
+			building.Submit(organisation, visitorMan -> {
+				checkRegisterMultipleHosts(visitorMan, hosts);
+				return null;
+			});
+			for (int i = 0; i < visitors.length; i++) {
+				if ((i + o) % 3 == 0) {      //Every organisation has a different subset of the visitors.
+					continue;
+				}
+				final String[] visitor = visitors[i];
+				final String[] visitInfo = visitsInfo[i];
+				final boolean checkedOut = checkedOuts[i];
+				Function<VisitorMan, Object> visit = visitorMan -> {
+					visitorMan.checkIn(visitor[FAMILY_INDEX], visitor[GIVEN_INDEX], visitor[ORG_INDEX], visitor[EMAIL_INDEX],
+							visitInfo[VISITING_HOST_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[VISIT_TIME_INDEX]);
+					if (checkedOut) {
+						visitorMan.checkOut(visitor[EMAIL_INDEX], visitInfo[LEAVE_TIME_INDEX]);
+					}
+					return null;
+				};
+				visit.apply(alone);
+				building.Submit(organisation, visit);
+			}
+			checkAndReport("getVisitorLogReport() of " + organisation, alone.getVisitorLogReport(), 
+					building.Submit(organisation, VisitorMan::getVisitorLogReport).join());
+			if (!alone.getVisitorsOnSite().isEmpty()) {
+				expected.put(organisation, alone.getVisitorsOnSite());
+			}
+			onSite += alone.getVisitorsOnSite().size();
+		}
+		checkAndReport("Add() again", "false", String.valueOf(building.Add(COMPANY_NAME + " 0").join()));
+		checkAndReport("GetVisitorsOnSite()", expected.toString(), building.GetVisitorsOnSite().toString());
+		checkAndReport("NumOnSite()", String.valueOf(onSite), String.valueOf(building.NumOnSite()));
+		checkAndReport("Remove()", "true", String.valueOf(building.Remove(COMPANY_NAME + " 0").join()));
+		checkAndReport("GetOrganisations()", String.valueOf(2 * shards - 1), String.valueOf(building.GetOrganisations().size()));
+		String unknown;
+		try {
+			building.Submit(COMPANY_NAME + " 0", VisitorMan::getVisitorsOnSite).join();
+			unknown = "no exception";
+		} catch (CompletionException e) {
+			unknown = e.getCause().getClass().getSimpleName();
+		}
+		checkAndReport("Submit() after Remove()", "IllegalArgumentException", unknown);
+		try {
+			building.Close();
+		} catch (IOException e) {
+			throw new RuntimeException("Problem with test. Cannot close the organisations", e);
+		}
+	}
+
+	/**
+	 * Record known latencies, and check that values are recorded to within the precision
+	 * of the histogram.
+	 */
+	private static void testLatencyHistogram() {
+		System.out.println("==testLatencyHistogram: Read percentiles of recorded latencies==");
+		LatencyHistogram exact = new LatencyHistogram();
+		for (int i = 1; i <= 20; i++) {
+			exact.Record(i);
+		}
+		checkAndReport("ValueAt(50) small", "10", String.valueOf(exact.ValueAt(50)));
+		checkAndReport("ValueAt(100) small", "20", String.valueOf(exact.ValueAt(100)));
+		checkAndReport("Mean() small", "10.5", String.valueOf(exact.Mean()));
+		LatencyHistogram large = new LatencyHistogram();
+		for (int i = 1; i <= 100000; i++) {
+			large.Record(i * 1000L);
+		}
+		for (double percentile : new double[] {50, 90, 99, 99.9}) {
+			long value = large.ValueAt(percentile);
+			long want = Math.round(percentile * 1000000);
+			checkAndReport("ValueAt(" + percentile + ") large", "true", 
+					String.valueOf(value >= want && value <= want * 1.04));
+		}
+		checkAndReport("Max() large", "100000000", String.valueOf(large.Max()));
+		checkAndReport("Count() large", "100000", String.valueOf(large.Count()));
+	}
+
+	/**
+	 * Register three hosts, then import a staff directory (first as CSV, then the same staff as 
+	 * LDIF) in which the first host is unchanged, the second has a new email address, the third
+	 * is missing, and many new hosts are added. The hosts must be the same after restoring from
+	 * the journal, and importing the same staff again must change nothing.
+	 */
+	private static void testHostImport(int staff, String[] unchanged, String[] moved, String[] leaving) {
+		System.out.println("==testHostImport: Import " + staff + " hosts from a staff directory==");
+		try {
+			Path directory = Files.createTempDirectory("visitorman");
+			Path csv = directory.resolve("staff.csv");
+			Path ldif = directory.resolve("staff.ldif");
+			VisitorMan visitorManager = new VisitorMan(COMPANY_NAME, directory.resolve("data"), VisitorJournal.Durability.BATCHED);
+			checkRegisterMultipleHosts(visitorManager, unchanged, moved, leaving);
+			checkAndReport("findHosts() before import", Arrays.asList(constructHostFormalDetails(leaving)), 
+					visitorManager.findHosts(leaving[FAMILY_INDEX], 5));
+			String[] movedTo = moved.clone();
+			movedTo[EMAIL_INDEX] = "new." + moved[EMAIL_INDEX];
+			List<String[]> hosts = new ArrayList<String[]>();
+			hosts.add(unchanged);
+			hosts.add(movedTo);
+			for (int h = 0; h < staff; h++) {
+				String[] host = new String[3];
+				host[FAMILY_INDEX] = "Staff" + h + (h % 7 == 0 ? ", Jr" : "");
+				host[GIVEN_INDEX] = "Member \"" + h + "\"";
+				host[EMAIL_INDEX] = "staff" + h + "@foundation.test";
+				hosts.add(host);
+			}
+			StringBuilder csvText = new StringBuilder("mail,givenName,sn,title\r\n");
+			StringBuilder ldifText = new StringBuilder("version: 1\n\n");
+			List<String> expected = new ArrayList<String>();
+			for (String[] host: hosts) {
+				csvText.append(host[EMAIL_INDEX]).append(",\"").append(host[GIVEN_INDEX].replace("\"", "\"\""))
+						.append("\",\"").append(host[FAMILY_INDEX]).append("\",Staff\r\n");
+				ldifText.append("dn: mail=").append(host[EMAIL_INDEX]).append(",dc=test\nsn:: ")
+						.append(Base64.getEncoder().encodeToString(host[FAMILY_INDEX].getBytes(StandardCharsets.UTF_8)))
+						.append("\ngivenName: ").append(host[GIVEN_INDEX].substring(0, 3)).append("\n ").append(host[GIVEN_INDEX].substring(3))
+						.append("\nmail: ").append(host[EMAIL_INDEX]).append("\n\n");
+				expected.add(constructHostFormalDetails(host));
+			}
+			csvText.append("staff0@foundation.test,Duplicate,Email,Staff\r\n");
+			Files.write(csv, csvText.toString().getBytes(StandardCharsets.UTF_8));
+			Files.write(ldif, ldifText.toString().getBytes(StandardCharsets.UTF_8));
+			
+			HostRegistry.Changes changes = visitorManager.importHosts(csv, HostImport.Format.CSV);
+			checkAndReport("importHosts() changes", staff + " added, 1 removed, 1 changed", changes.AccessAdded().size() 
+					+ " added, " + changes.AccessRemoved().size() + " removed, " + changes.AccessChanged().size() + " changed");
+			checkAndReport("getRegisteredHosts()", expected, visitorManager.getRegisteredHosts());
+			checkAndReport("showHostDetails()", "null", String.valueOf(visitorManager.showHostDetails(leaving[EMAIL_INDEX])));
+			checkAndReport("findHosts() after import", "[] " + Arrays.asList(constructHostFormalDetails(movedTo)), 
+					visitorManager.findHosts(leaving[FAMILY_INDEX], 5) + " " + visitorManager.findHosts(moved[FAMILY_INDEX], 5));
+			changes = visitorManager.importHosts(ldif, HostImport.Format.LDIF);
+			checkAndReport("importHosts() again", "0 added, 0 removed, 0 changed", changes.AccessAdded().size() 
+					+ " added, " + changes.AccessRemoved().size() + " removed, " + changes.AccessChanged().size() + " changed");
+			visitorManager.close();
+			VisitorMan restored = new VisitorMan(COMPANY_NAME, directory.resolve("data"), VisitorJournal.Durability.BATCHED);
+			checkAndReport("getRegisteredHosts() restored", expected, restored.getRegisteredHosts());
+			restored.close();
+			for (Path folder: new Path[] { directory.resolve("data"), directory }) {
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+					for (Path file: files) {
+						if (!Files.isDirectory(file)) {
+							Files.delete(file);
+						}
+					}
+				}
+			}
+			Files.delete(directory.resolve("data"));
+			Files.delete(directory);
+		} catch (IOException e) {
+			throw new RuntimeException("Problem with test. Cannot use the staff directory file", e);
+		}
+	}
+	
+	/**
+	 * Import a staff directory in which two hosts swap email addresses, with a journal. The
+	 * hosts must be the same after reopening the journal as they were before closing it.
+	 */
+	private static void testHostSwap(String[] host1, String[] host2) {
+		System.out.println("==testHostSwap: Hosts that swap email addresses in an import are restored==");
+		try {
+			Path directory = Files.createTempDirectory("visitorman");
+			Path csv = directory.resolve("staff.csv");
+			VisitorMan visitorManager = new VisitorMan(COMPANY_NAME, directory.resolve("data"), VisitorJournal.Durability.BATCHED);
+			checkRegisterMultipleHosts(visitorManager, host1, host2);
+			String[] swapped1 = host1.clone();
+			String[] swapped2 = host2.clone();
+			swapped1[EMAIL_INDEX] = host2[EMAIL_INDEX];
+			swapped2[EMAIL_INDEX] = host1[EMAIL_INDEX];
+			StringBuilder csvText = new StringBuilder("mail,givenName,sn\r\n");
+			for (String[] host: new String[][] { swapped1, swapped2 }) {
+				csvText.append(host[EMAIL_INDEX]).append(",\"").append(host[GIVEN_INDEX]).append("\",\"")
+						.append(host[FAMILY_INDEX]).append("\"\r\n");
+			}
+			Files.write(csv, csvText.toString().getBytes(StandardCharsets.UTF_8));
+			HostRegistry.Changes changes = visitorManager.importHosts(csv, HostImport.Format.CSV);
+			checkAndReport("importHosts() changes", "0 added, 0 removed, 2 changed", changes.AccessAdded().size() 
+					+ " added, " + changes.AccessRemoved().size() + " removed, " + changes.AccessChanged().size() + " changed");
+			List<String> expected = Arrays.asList(constructHostFormalDetails(swapped1), constructHostFormalDetails(swapped2));
+			checkAndReport("getRegisteredHosts()", expected, visitorManager.getRegisteredHosts());
+			visitorManager.close();
+			VisitorMan restored = new VisitorMan(COMPANY_NAME, directory.resolve("data"), VisitorJournal.Durability.BATCHED);
+			checkAndReport("getRegisteredHosts() restored", expected, restored.getRegisteredHosts());
+			checkAndReport("showHostDetails() restored", constructHostFormalDetails(swapped1), 
+					restored.showHostDetails(host2[EMAIL_INDEX]));
+			restored.close();
+			for (Path folder: new Path[] { directory.resolve("data"), directory }) {
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+					for (Path file: files) {
+						if (!Files.isDirectory(file)) {
+							Files.delete(file);
+						}
+					}
+				}
+			}
+			Files.delete(directory.resolve("data"));
+			Files.delete(directory);
+		} catch (IOException e) {
+			throw new RuntimeException("Problem with test. Cannot use the staff directory file", e);
+		}
+	}
+	
+	/**
+	 * Record hosts and visits with a journal, taking a snapshot half way through, then create
+	 * a new VisitorMan from the same data directory (with some garbage appended to the journal,
+	 * as if the process stopped while writing) and check that it reports exactly the same state.
+	 * A damaged snapshot must stop the restore rather than leave out the visits before it.
+	 */
+	private static void testJournalRecovery(String[][] visitors, String[][] visitsInfo, boolean[] checkedOuts, String[][] hosts) {
+		System.out.println("==testJournalRecovery: Restore hosts and visits from the journal==");
+		try {
+			Path directory = Files.createTempDirectory("visitorman");
+			VisitorMan visitorManager = new VisitorMan(COMPANY_NAME, directory, VisitorJournal.Durability.BATCHED);
+			checkRegisterMultipleHosts(visitorManager, hosts);
+			for (int i = 0; i < visitors.length; i++) {
+				String[] visitor = visitors[i];
+				String[] visitInfo = visitsInfo[i];
+				visitorManager.checkIn(visitor[FAMILY_INDEX], visitor[GIVEN_INDEX], 
+						visitor[ORG_INDEX], visitor[EMAIL_INDEX],
+						visitInfo[VISITING_HOST_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[VISIT_TIME_INDEX]);
+				if (checkedOuts[i]) {
+					visitorManager.checkOut(visitor[EMAIL_INDEX], visitInfo[LEAVE_TIME_INDEX]);
+				}
+				if (i == visitors.length / 2) {
+					visitorManager.takeSnapshot();
+				}
+			}
+			visitorManager.close();
+			try (DirectoryStream<Path> journals = Files.newDirectoryStream(directory, "journal-*.log")) {
+				for (Path journal: journals) {
+					Files.write(journal, new byte[] { 0, 0, 0, 42, 1, 2 }, StandardOpenOption.APPEND);
+				}
+			}
+			
+			VisitorMan restored = new VisitorMan(COMPANY_NAME, directory, VisitorJournal.Durability.PER_EVENT);
+			checkAndReport("getRegisteredHosts()", visitorManager.getRegisteredHosts(), restored.getRegisteredHosts());
+			checkAndReport("getVisitorLogReport()", visitorManager.getVisitorLogReport(), restored.getVisitorLogReport());
+			checkAndReport("getVisitorsOnSite()", visitorManager.getVisitorsOnSite(), restored.getVisitorsOnSite());
+			restored.close();
+			try (DirectoryStream<Path> snapshots = Files.newDirectoryStream(directory, "snapshot-*.snap")) {
+				for (Path snapshot: snapshots) {
+					byte[] damaged = Files.readAllBytes(snapshot);
+					damaged[damaged.length / 2] ^= 1;
+					Files.write(snapshot, damaged);
+				}
+			}
+			try {
+				new VisitorMan(COMPANY_NAME, directory, VisitorJournal.Durability.PER_EVENT).close();
+				checkAndReport("damaged snapshot", "IOException", "restored");
+			} catch (IOException e) {
+				checkAndReport("damaged snapshot", "IOException", "IOException");
+			}
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+				for (Path file: files) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(directory);
+		} catch (IOException e) {
+			throw new RuntimeException("Problem with test. Cannot use the journal file", e);
+		}
+	}
+	
+	/**
+	 * Check a visitor in with a journal, then make changes after the journal is closed, so their
+	 * records cannot be written. Each change must fail and be undone, including a check-in that
+	 * replaced the visitor's open visit, so the state is still the same as the state a new
+	 * VisitorMan restores from the journal.
+	 */
+	private static void testJournalFailure(VisitorJournal.Durability durability, String[] visitor1, String[] visitor2, 
+			String[] visitInfo, String[] host1, String[] host2) {
+		System.out.println("==testJournalFailure: Undo changes the journal cannot write (" + durability + ")==");
+		try {
+			Path directory = Files.createTempDirectory("visitorman");
+			VisitorMan visitorManager = new VisitorMan(COMPANY_NAME, directory, durability);
+			checkRegisterMultipleHosts(visitorManager, host1);
+			visitorManager.checkIn(visitor1[FAMILY_INDEX], visitor1[GIVEN_INDEX], visitor1[ORG_INDEX], visitor1[EMAIL_INDEX],
+					visitInfo[VISITING_HOST_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[VISIT_TIME_INDEX]);
+			List<String> report = visitorManager.getVisitorLogReport();
+			List<String> hosts = visitorManager.getRegisteredHosts();
+			visitorManager.close();
+			
+			checkJournalFails("checkIn()", () -> visitorManager.checkIn(visitor2[FAMILY_INDEX], visitor2[GIVEN_INDEX], 
+					visitor2[ORG_INDEX], visitor2[EMAIL_INDEX], visitInfo[VISITING_HOST_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[LEAVE_TIME_INDEX]));
+			checkJournalFails("checkIn() again", () -> visitorManager.checkIn(visitor1[FAMILY_INDEX], visitor1[GIVEN_INDEX], 
+					visitor1[ORG_INDEX], visitor1[EMAIL_INDEX], visitInfo[VISITING_HOST_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[LEAVE_TIME_INDEX]));
+			List<Arrival> arrivals = new ArrayList<Arrival>();
+			for (String[] visitor: new String[][] { visitor2, visitor1, visitor2 }) {
+				arrivals.add(new Arrival(visitor[FAMILY_INDEX], visitor[GIVEN_INDEX], visitor[ORG_INDEX], visitor[EMAIL_INDEX], 
+						visitInfo[VISITING_HOST_INDEX], visitInfo[VISIT_DATE_INDEX], visitInfo[LEAVE_TIME_INDEX]));
+			}
+			checkJournalFails("checkInAll()", () -> visitorManager.checkInAll(arrivals));
+			checkJournalFails("checkOut()", () -> visitorManager.checkOut(visitor1[EMAIL_INDEX], visitInfo[LEAVE_TIME_INDEX]));
+			checkJournalFails("checkOutAll()", () -> visitorManager.checkOutAll(Arrays.asList(visitor1[EMAIL_INDEX]), visitInfo[LEAVE_TIME_INDEX]));
+			checkJournalFails("registerHost()", () -> visitorManager.registerHost(host2[FAMILY_INDEX], host2[GIVEN_INDEX], host2[EMAIL_INDEX]));
+			Path csv = Files.createTempFile("staff", ".csv");
+			Files.write(csv, ("mail,givenName,sn\r\n" + host2[EMAIL_INDEX] + "," + host2[GIVEN_INDEX] + "," + host2[FAMILY_INDEX] + "\r\n")
+					.getBytes(StandardCharsets.UTF_8));
+			checkJournalFails("importHosts()", () -> {
+				try {
+					visitorManager.importHosts(csv, HostImport.Format.CSV);
+				} catch (IOException e) {
+					throw new RuntimeException("Problem with test. Cannot read the staff directory file", e);
+				}
+			});
+			Files.delete(csv);
+			
+			checkAndReport("getVisitorLogReport() after failures", report, visitorManager.getVisitorLogReport());
+			checkAndReport("getVisitorsOnSite() after failures", Arrays.asList(constructVisitorDetails(visitor1)), 
+					visitorManager.getVisitorsOnSite());
+			checkAndReport("getRegisteredHosts() after failures", hosts, visitorManager.getRegisteredHosts());
+			checkAndReport("findHosts() after failures", new ArrayList<String>(), visitorManager.findHosts(host2[FAMILY_INDEX], 5));
+			VisitorMan restored = new VisitorMan(COMPANY_NAME, directory, durability);
+			checkAndReport("getVisitorLogReport() restored", report, restored.getVisitorLogReport());
+			checkAndReport("getVisitorsOnSite() restored", visitorManager.getVisitorsOnSite(), restored.getVisitorsOnSite());
+			restored.close();
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+				for (Path file: files) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(directory);
+		} catch (IOException e) {
+			throw new RuntimeException("Problem with test. Cannot use the journal file", e);
+		}
+	}
+	
+	/**
+	 * Build the visitor log report on several threads, as a list and written to a Writer, both
+	 * for an empty log and for one large enough to be split into many ranges. It must be the
+	 * same as the report built on one thread.
+	 */
+	private static void testParallelReport(int visits, String[] visitor, String[][] hosts, VisitStore.Layout layout) {
+		System.out.println("==testParallelReport: The report built on several threads is the same (" + layout + ")==");
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			VisitorMan visitorManager = new VisitorMan(COMPANY_NAME, layout);
+			for (int round = 0; round < 2; round++) {
+				StringWriter sequential = new StringWriter();
+				StringWriter parallel = new StringWriter();
+				visitorManager.writeVisitorLogReport(sequential);
+				visitorManager.writeVisitorLogReport(parallel, pool);
+				checkAndReport("getVisitorLogReport(pool) of " + visitorManager.getVisitorLogReport().size() + " lines", 
+						visitorManager.getVisitorLogReport(), visitorManager.getVisitorLogReport(pool));
+				checkAndReport("writeVisitorLogReport(pool) same text", "true", String.valueOf(sequential.toString().equals(parallel.toString())));
+				if (round > 0) {
+					VisitorMetrics metrics = visitorManager.getMetrics();
+					checkAndReport("getVisitorLogReport() timed apart from getVisitorLogReport(pool)", "4 and 2", 
+							metrics.AccessOperation(VisitorMetrics.Operation.GET_VISITOR_LOG_REPORT).AccessLatencies().Count() + " and " 
+							+ metrics.AccessOperation(VisitorMetrics.Operation.GET_VISITOR_LOG_REPORT_PARALLEL).AccessLatencies().Count());
+					break;
+				}
+				checkRegisterMultipleHosts(visitorManager, hosts);
+				for (int i = 0; i < visits; i++) {
+					String email = "visitor" + i + "@test";
+					visitorManager.checkIn(visitor[FAMILY_INDEX], visitor[GIVEN_INDEX] + i, visitor[ORG_INDEX], email, 
+							hosts[i % hosts.length][EMAIL_INDEX], "2019-10-01", String.format("%02d:%02d", 8 + i % 10, i % 60));
+					if (i % 7 != 0) {
+						visitorManager.checkOut(email, "19:00");
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Problem with test. Cannot write the report", e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Check visitors in and out on two days, start the analytics, which count those visits
+	 * from the log, then check more visitors in on a third day, which are counted as they
+	 * arrive. Visits that checked out before and after the analytics started must each be
+	 * counted once.
+	 */
+	private static void testAnalytics(String[] visitor1, String[] visitor2, String[] host) {
+		System.out.println("==testAnalytics: Dashboard figures are kept up to date==");
+		VisitorMan visitorManager = new VisitorMan(COMPANY_NAME);
+		checkRegisterMultipleHosts(visitorManager, host);
+		for (int i = 0; i < 60; i++) {      //Every 10 minutes from 09:00, each staying 30 minutes.
+			String[] visitor = i % 3 == 0 ? visitor1 : visitor2;
+			String email = "visitor" + i + "@test";
+			visitorManager.checkIn(visitor[FAMILY_INDEX], visitor[GIVEN_INDEX], visitor[ORG_INDEX], email, host[EMAIL_INDEX], 
+					i < 40 ? "2019-10-01" : "2019-10-02", String.format("%02d:%02d", 9 + i % 40 / 6, i % 40 % 6 * 10));
+			if (i != 59) {
+				visitorManager.checkOut(email, String.format("%02d:%02d", 9 + (i % 40 + 3) / 6, (i % 40 + 3) % 6 * 10));
+			}
+		}
+		VisitAnalytics analytics = visitorManager.startAnalytics();
+		visitorManager.checkOut("visitor59@test", "12:40");
+		for (int i = 0; i < 5; i++) {
+			visitorManager.checkIn(visitor1[FAMILY_INDEX], visitor1[GIVEN_INDEX], visitor1[ORG_INDEX], "late" + i + "@test", 
+					host[EMAIL_INDEX], "2019-10-03", "14:0" + i);
+		}
+		visitorManager.checkOut("late0@test", "15:00");
+		checkAndReport("VisitsOn()", Arrays.asList("40", "20", "5"), Arrays.asList(String.valueOf(analytics.VisitsOn("2019-10-01")), 
+				String.valueOf(analytics.VisitsOn("2019-10-02")), String.valueOf(analytics.VisitsOn("2019-10-03"))));
+		checkAndReport("VisitsByHour()", "[0, 0, 0, 0, 0, 0, 0, 0, 0, 6, 6, 6, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0]", 
+				Arrays.toString(analytics.VisitsByHour("2019-10-02")));
+		checkAndReport("VisitsByOrganisation()", "{" + visitor1[ORG_INDEX] + "=25, " + visitor2[ORG_INDEX] + "=40}", 
+				String.valueOf(analytics.VisitsByOrganisation()));
+		checkAndReport("Occupancy()", "4", String.valueOf(analytics.Occupancy()));
+		checkAndReport("PeakOccupancy()", Arrays.asList("3", "3", "5"), Arrays.asList(String.valueOf(analytics.PeakOccupancy("2019-10-01")), 
+				String.valueOf(analytics.PeakOccupancy("2019-10-02")), String.valueOf(analytics.PeakOccupancy("2019-10-03"))));
+		checkAndReport("AverageDwellMinutes()", Arrays.asList("30.0", "30.0", "60.0"), 
+				Arrays.asList(String.valueOf(analytics.AverageDwellMinutes("2019-10-01")), 
+				String.valueOf(analytics.AverageDwellMinutes("2019-10-02")), String.valueOf(analytics.AverageDwellMinutes("2019-10-03"))));
+		checkAndReport("DwellMinutesAt(50)", "30", String.valueOf(analytics.DwellMinutesAt(50)));
+		checkAndReport("startAnalytics() again", "true", String.valueOf(visitorManager.startAnalytics() == analytics));
+	}
+	
+	/**
+	 * Check a visitor in late in the evening and out after midnight, for each layout, and check
+	 * that the visit lasts eight hours rather than ending before it started. Times that are not in
+	 * ISO8601 format must be rejected without changing anything.
+	 */
+	private static void testOvernightVisit(String[] visitor, String[] host) {
+		System.out.println("==testOvernightVisit: A visit can end on the day after it started==");
+		for (VisitStore.Layout layout: VisitStore.Layout.values()) {
+			VisitorMan visitorManager = new VisitorMan(COMPANY_NAME, layout);
+			checkRegisterMultipleHosts(visitorManager, host);
+			VisitAnalytics analytics = visitorManager.startAnalytics();
+			visitorManager.checkIn(visitor[FAMILY_INDEX], visitor[GIVEN_INDEX], visitor[ORG_INDEX], visitor[EMAIL_INDEX], 
+					host[EMAIL_INDEX], "2019-10-04", "22:00");
+			try {
+				visitorManager.checkOut(visitor[EMAIL_INDEX], "6:00");
+				checkAndReport("checkOut(6:00) " + layout, "DateTimeParseException", "checked out");
+			} catch (DateTimeParseException e) {
+				checkAndReport("checkOut(6:00) " + layout, "DateTimeParseException", "DateTimeParseException");
+			}
+			checkAndReport("getVisitorsOnSite() " + layout, Arrays.asList(constructVisitorDetails(visitor)), 
+					visitorManager.getVisitorsOnSite());
+			visitorManager.checkOut(visitor[EMAIL_INDEX], "06:00");
+			checkAndReport("AverageDwellMinutes() " + layout, "480.0", String.valueOf(analytics.AverageDwellMinutes("2019-10-04")));
+			checkAndReport("Occupancy() " + layout, "0", String.valueOf(analytics.Occupancy()));
+			try {
+				visitorManager.checkIn(visitor[FAMILY_INDEX], visitor[GIVEN_INDEX], visitor[ORG_INDEX], visitor[EMAIL_INDEX], 
+						host[EMAIL_INDEX], "2019-10-05", "9:00");
+				checkAndReport("checkIn(9:00) " + layout, "DateTimeParseException", "checked in");
+			} catch (DateTimeParseException e) {
+				checkAndReport("checkIn(9:00) " + layout, "DateTimeParseException", "DateTimeParseException");
+			}
+			checkAndReport("getVisitorLogReport() size " + layout, "2", String.valueOf(visitorManager.getVisitorLogReport().size()));
+		}
+	}
+	
+	/**
+	 * Find hosts and visitors from part of their names, with and without typos, and check that
+	 * hosts registered and visitors checked in after the first search are found too, and a
+	 * visitor who comes back with new details is only found with them.
+	 */
+	private static void testPartySearch(String[][] hosts, String[] visitor1, String[] visitor2, String[] visitor3) {
+		System.out.println("==testPartySearch: Find hosts and visitors from part of their names==");
+		VisitorMan visitorManager = new VisitorMan(COMPANY_NAME);
+		checkRegisterMultipleHosts(visitorManager, hosts[0], hosts[1]);
+		for (String[] visitor : new String[][] { visitor1, visitor2 }) {
+			visitorManager.checkIn(visitor[FAMILY_INDEX], visitor[GIVEN_INDEX], visitor[ORG_INDEX], visitor[EMAIL_INDEX], 
+					hosts[0][EMAIL_INDEX], "2019-10-12", "09:00");
+		}
+		String prefix = hosts[0][FAMILY_INDEX].substring(0, 4);
+		checkAndReport("findHosts(prefix)", Arrays.asList(constructHostFormalDetails(hosts[0])), visitorManager.findHosts(prefix, 5));
+		String typo = hosts[0][FAMILY_INDEX].substring(0, 5) + hosts[0][FAMILY_INDEX].substring(6);
+		checkAndReport("findHosts(typo)", Arrays.asList(constructHostFormalDetails(hosts[0])), visitorManager.findHosts(typo, 5));
+		checkAndReport("findHosts(no match)", Collections.emptyList(), visitorManager.findHosts("zzzz", 5));
+		checkAndReport("findHosts(no limit)", Arrays.asList(constructHostFormalDetails(hosts[0])), 
+				visitorManager.findHosts(prefix, Integer.MAX_VALUE));
+		checkRegisterMultipleHosts(visitorManager, hosts[2]);
+		checkAndReport("findHosts(new host)", Arrays.asList(constructHostFormalDetails(hosts[2])), 
+				visitorManager.findHosts(hosts[2][GIVEN_INDEX].toUpperCase(), 5));
+		
+		String venab = visitor1[FAMILY_INDEX].substring(0, 5);
+		checkAndReport("findVisitors(prefix)", Arrays.asList(constructVisitorFormalDetails(visitor1)), visitorManager.findVisitors(venab, 5));
+		String corp = "corp";      //In the organisation of the first two visitors, so they are ranked by formal name.
+		List<String> both = Arrays.asList(constructVisitorFormalDetails(visitor1), constructVisitorFormalDetails(visitor2));
+		both.sort(null);
+		checkAndReport("findVisitors(organisation)", both, visitorManager.findVisitors(corp, 5));
+		checkAndReport("findVisitors(limit)", both.subList(0, 1), visitorManager.findVisitors(corp, 1));
+		checkAndReport("findVisitors(two words)", Arrays.asList(constructVisitorFormalDetails(visitor2)), 
+				visitorManager.findVisitors(visitor2[GIVEN_INDEX] + " " + corp, 5));
+		checkAndReport("findHosts(visitor)", Collections.emptyList(), visitorManager.findHosts(venab, 5));
+		
+		visitorManager.checkIn(visitor3[FAMILY_INDEX], visitor3[GIVEN_INDEX], visitor3[ORG_INDEX], visitor3[EMAIL_INDEX], 
+				hosts[1][EMAIL_INDEX], "2019-10-12", "10:00");
+		checkAndReport("findVisitors(new visitor)", Arrays.asList(constructVisitorFormalDetails(visitor3)), 
+				visitorManager.findVisitors(visitor3[FAMILY_INDEX], 5));
+		String[] moved = visitor1.clone();
+		moved[ORG_INDEX] = visitor3[ORG_INDEX];
+		visitorManager.checkIn(moved[FAMILY_INDEX], moved[GIVEN_INDEX], moved[ORG_INDEX], moved[EMAIL_INDEX], 
+				hosts[1][EMAIL_INDEX], "2019-10-13", "10:00");
+		checkAndReport("findVisitors(new details)", Arrays.asList(constructVisitorFormalDetails(moved)), visitorManager.findVisitors(venab, 5));
+		String oldOrganisation = visitor1[ORG_INDEX].substring(visitor1[ORG_INDEX].lastIndexOf(' ') + 1);
+		checkAndReport("findVisitors(old details)", Collections.emptyList(), visitorManager.findVisitors(oldOrganisation, 5));
+	}
+	
+	/**
+	 * Register hosts and check visitors in and out over HTTP, and check that every answer is
+	 * the same as calling the VisitorMan object directly, that one connection serves all the
+	 * requests, and that bad requests are refused without changing anything.
+	 */
+	private static void testServer(String[][] hosts, String[] visitor1, String[] visitor2) {
+		System.out.println("==testServer: Drive a VisitorMan object over HTTP and JSON==");
+		VisitorMan visitorManager = new VisitorMan(COMPANY_NAME);
+		VisitorServer server = null;
+		try {
+			server = new VisitorServer(visitorManager, 0);
+			try (ServerLoadTest.Kiosk kiosk = new ServerLoadTest.Kiosk("localhost", server.Port())) {
+				for (String[] host : hosts) {
+					checkAndReport("POST /hosts", "204", "" + kiosk.send("POST", "/hosts", "{\"familyName\": " 
+							+ VisitorServer.Quote(host[FAMILY_INDEX]) + ", \"givenName\": " + VisitorServer.Quote(host[GIVEN_INDEX]) 
+							+ ", \"email\": " + VisitorServer.Quote(host[EMAIL_INDEX]) + "}"));
+				}
+				checkAndReport("GET /hosts", "200 " + toJson(visitorManager.getRegisteredHosts()), 
+						kiosk.send("GET", "/hosts", null) + " " + kiosk.body());
+				checkAndReport("GET /hosts?q=", "200 " + toJson(Arrays.asList(constructHostFormalDetails(hosts[1]))), 
+						kiosk.send("GET", "/hosts?q=" + hosts[1][FAMILY_INDEX].substring(0, 4) + "&limit=3", null) + " " + kiosk.body());
+				checkAndReport("GET /hosts?limit= too large", "200 " + toJson(Arrays.asList(constructHostFormalDetails(hosts[1]))), 
+						kiosk.send("GET", "/hosts?q=" + hosts[1][FAMILY_INDEX].substring(0, 4) + "&limit=1500000000", null) + " " + kiosk.body());
+				
+				String[][] visitors = { visitor1, visitor2 };
+				for (int v = 0; v < visitors.length; v++) {
+					String[] visitor = visitors[v];
+					checkAndReport("POST /checkins", "204", "" + kiosk.send("POST", "/checkins", "{\"familyName\":" 
+							+ VisitorServer.Quote(visitor[FAMILY_INDEX]) + ",\"givenName\":" + VisitorServer.Quote(visitor[GIVEN_INDEX]) 
+							+ ",\"organisation\":" + VisitorServer.Quote(visitor[ORG_INDEX]) + ",\"visitorEmail\":" 
+							+ VisitorServer.Quote(visitor[EMAIL_INDEX]) + ",\"hostEmail\":" + VisitorServer.Quote(hosts[v][EMAIL_INDEX]) 
+							+ ",\"visitDate\":\"2019-10-12\",\"visitStartTime\":\"0" + (v + 8) + ":30\"}"));
+				}
+				checkAndReport("GET /visitors/onsite", "200 " + toJson(visitorManager.getVisitorsOnSite()), 
+						kiosk.send("GET", "/visitors/onsite", null) + " " + kiosk.body());
+				checkAndReport("GET /visitors/onsite?host=", "200 " + toJson(visitorManager.getVisitorsOnSite(hosts[1][EMAIL_INDEX])), 
+						kiosk.send("GET", "/visitors/onsite?host=" + hosts[1][EMAIL_INDEX], null) + " " + kiosk.body());
+				checkAndReport("POST /checkouts", "204", "" + kiosk.send("POST", "/checkouts", 
+						"{\"email\":" + VisitorServer.Quote(visitor1[EMAIL_INDEX]) + ",\"checkOutTime\":\"11:15\"}"));
+				checkAndReport("checkOut() over HTTP", "1", "" + visitorManager.getVisitorsOnSite().size());
+				checkAndReport("GET /report", "200 true " + toJson(visitorManager.getVisitorLogReport()), 
+						kiosk.send("GET", "/report", null) + " " + kiosk.chunked() + " " + kiosk.body());
+				
+				checkAndReport("bad JSON", "400", "" + kiosk.send("POST", "/checkouts", "{\"email\":"));
+				checkAndReport("missing field", "400 {\"error\":\"Missing \\\"checkOutTime\\\"\"}", 
+						kiosk.send("POST", "/checkouts", "{\"email\":\"a@b.c\"}") + " " + kiosk.body());
+				checkAndReport("bad time", "400", "" + kiosk.send("POST", "/checkouts", 
+						"{\"email\":" + VisitorServer.Quote(visitor2[EMAIL_INDEX]) + ",\"checkOutTime\":\"noon\"}"));
+				checkAndReport("visitor still on site", "1", "" + visitorManager.getVisitorsOnSite().size());
+				checkAndReport("wrong method", "405", "" + kiosk.send("GET", "/checkins", null));
+				checkAndReport("no such endpoint", "404", "" + kiosk.send("GET", "/visitors", null));
+				checkAndReport("connections kept alive", "1", "" + kiosk.connections());
+			}
+			checkAndReport("errors counted", "5", "" + (int) server.Errors());
+		} catch (IOException e) {
+			checkAndReport("testServer", "no exception", e.toString());
+		} finally {
+			if (server != null) {
+				server.Close(0);
+			}
+		}
+	}
+	
+	private static String toJson(List<String> lines) {
+		return lines.stream().map(VisitorServer::Quote).collect(Collectors.joining(",", "[", "]"));
+	}
+	
+	/**
+	 * Check in visits over ten days and check all but one out, then archive those older than
+	 * two days. Only whole chunks with no visitor on site may be archived, and every report must
+	 * be the same as for a VisitorMan that keeps all its visits in memory, also once the last
+	 * visitor leaves and after reopening the archive.
+	 */
+	private static void testRetention(int visits, String[] visitor, String[][] hosts, VisitStore.Layout layout) {
+		System.out.println("==testRetention: Old visits are archived to disk and still reported (" + layout + ")==");
+		try {
+			Path directory = Files.createTempDirectory("visitorman");
+			Path journalled = Files.createTempDirectory("visitorman");
+			VisitorMan inMemory = new VisitorMan(COMPANY_NAME, layout);
+			VisitorMan retained = new VisitorMan(COMPANY_NAME, layout);
+			VisitorMan reopened = new VisitorMan(COMPANY_NAME, layout);
+			VisitorMan snapshotted = new VisitorMan(COMPANY_NAME, layout, journalled.resolve("data"), VisitorJournal.Durability.ASYNC);
+			for (VisitorMan visitorManager: new VisitorMan[] { inMemory, retained, reopened, snapshotted }) {
+				checkRegisterMultipleHosts(visitorManager, hosts);
+				for (int i = 0; i < visits; i++) {
+					String email = i == 1500 ? "visitor1100@test" : "visitor" + i + "@test";      //Visit 1100 is replaced, never checked out.
+					visitorManager.checkIn(visitor[FAMILY_INDEX], visitor[GIVEN_INDEX] + i, visitor[ORG_INDEX], email, 
+							hosts[i % hosts.length][EMAIL_INDEX], String.format("2019-10-%02d", 1 + i * 10 / visits),
+							String.format("%02d:%02d", 8 + (i % 300) / 60, i * 7 % 60));
+					if (i != 5 && i != 1100) {
+						visitorManager.checkOut(email, "18:00");
+					}
+				}
+			}
+			retained.setRetention(directory, 2);
+			checkAndReport("applyRetention()", "1024", String.valueOf(retained.applyRetention("2019-10-10")));
+			checkRetainedReports(inMemory, retained, hosts);
+			for (VisitorMan visitorManager: new VisitorMan[] { inMemory, retained, reopened, snapshotted }) {
+				visitorManager.checkOut("visitor5@test", "18:00");
+			}
+			checkAndReport("applyRetention() after check-out", "1024", String.valueOf(retained.applyRetention("2019-10-10")));
+			checkRetainedReports(inMemory, retained, hosts);
+			reopened.setRetention(directory, 2);
+			checkAndReport("applyRetention() reopened", "0", String.valueOf(reopened.applyRetention("2019-10-10")));
+			checkRetainedReports(inMemory, reopened, hosts);
+			snapshotted.takeSnapshot();
+			long fullSize = snapshotSize(journalled.resolve("data"));
+			snapshotted.setRetention(journalled.resolve("archive"), 2);
+			checkAndReport("applyRetention() journalled", "2048", String.valueOf(snapshotted.applyRetention("2019-10-10")));
+			snapshotted.takeSnapshot();
+			long retainedSize = snapshotSize(journalled.resolve("data"));
+			checkAndReport("takeSnapshot() leaves out archived visits", "true", 
+					String.valueOf(retainedSize < fullSize - 2048 * 32));
+			snapshotted.close();
+			VisitorMan restored = new VisitorMan(COMPANY_NAME, layout, journalled.resolve("data"), VisitorJournal.Durability.ASYNC);
+			checkRetainedReports(inMemory, restored, hosts);
+			restored.setRetention(journalled.resolve("archive"), 2);
+			checkAndReport("applyRetention() restored", "0", String.valueOf(restored.applyRetention("2019-10-10")));
+			restored.close();
+			for (Path folder: new Path[] { journalled.resolve("data"), journalled.resolve("archive"), journalled }) {
+				try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+					for (Path file: files) {
+						if (!Files.isDirectory(file)) {
+							Files.delete(file);
+						}
+					}
+				}
+				Files.delete(folder);
+			}
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+				int segments = 0;
+				for (Path file: files) {
+					Files.delete(file);
+					segments++;
+				}
+				checkAndReport("archive segments", "2", String.valueOf(segments));
+			}
+			Files.delete(directory);
+		} catch (IOException e) {
+			throw new RuntimeException("Problem with test. Cannot use the archive directory", e);
+		}
+	}
+	
+	/**
+	 * Return the size of the snapshot in a data directory, which only holds the latest one.
+	 */
+	private static long snapshotSize(Path dataDirectory) throws IOException {
+		long size = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dataDirectory, "snapshot-*.snap")) {
+			for (Path file: files) {
+				size += Files.size(file);
+			}
+		}
+		return size;
 	}
 	
 	/* ******************************************************************
@@ -307,12 +1594,74 @@ public class Checker {
 	 * @param host An array of host specs. Note that this uses the Java 'varargs' syntax.
 	 * See https://docs.oracle.com/javase/8/docs/technotes/guides/language/varargs.html (and lots of other places)
 	 */
+	private static void checkJournalFails(String iut, Runnable change) {
+		try {
+			change.run();
+			checkAndReport(iut, "UncheckedIOException", "nothing thrown");
+		} catch (UncheckedIOException e) {
+			checkAndReport(iut, "UncheckedIOException", "UncheckedIOException");
+		}
+	}
+	
 	private static void checkRegisterMultipleHosts(VisitorMan visitorManager, String[]... hosts) { 
 		for (String[] host: hosts) {
 			checkRegisterAndShowHost(visitorManager, host);
 		}
 	}	
 
+	/**
+	 * Check that a VisitorMan with archived visits gives the same reports as one without.
+	 * @param expected The visitor manager that keeps all its visits in memory
+	 * @param actual The visitor manager with archived visits
+	 * @param hosts The specs of the hosts visited
+	 */
+	private static void checkRetainedReports(VisitorMan expected, VisitorMan actual, String[][] hosts) {
+		checkAndReport("getVisitorLogReport()", expected.getVisitorLogReport(), actual.getVisitorLogReport());
+		checkAndReport("getVisitorsOnSite()", expected.getVisitorsOnSite(), actual.getVisitorsOnSite());
+		for (int day = 1; day <= 10; day++) {
+			String date = String.format("2019-10-%02d", day);
+			checkAndReport("getVisitsOn(" + date + ")", expected.getVisitsOn(date), actual.getVisitsOn(date));
+		}
+		checkAndReport("getVisitsBetween()", expected.getVisitsBetween("2019-10-07", "08:30", "10:00"), 
+				actual.getVisitsBetween("2019-10-07", "08:30", "10:00"));
+		for (String[] host: hosts) {
+			checkAndReport("getHostVisitLog(" + host[EMAIL_INDEX] + ")", expected.getHostVisitLog(host[EMAIL_INDEX]), 
+					actual.getHostVisitLog(host[EMAIL_INDEX]));
+		}
+	}
+
+	/**
+	 * Check that the paged, streamed and written forms of the visitor log report all give
+	 * the same lines as expected.
+	 * @param visitorManager The visitor manager to report on
+	 * @param expected The list of expected lines
+	 */
+	private static void checkStreamedVisitorLogReports(VisitorMan visitorManager, List<String> expected) {
+		List<String> paged = new ArrayList<String>();
+		ReportPage page = visitorManager.getVisitorLogReport(0, 2);
+		paged.addAll(page.AccessLines());
+		while (page.HasNext()) {
+			page = visitorManager.getVisitorLogReport(page.AccessNextCursor(), 2);
+			paged.addAll(page.AccessLines());
+		}
+		checkAndReport("getVisitorLogReport(cursor, pageSize)", expected, paged);
+		try {
+			visitorManager.getVisitorLogReport(-2, 2);
+			checkAndReport("getVisitorLogReport(negative cursor)", "IllegalArgumentException", "a page");
+		} catch (IllegalArgumentException e) {
+			checkAndReport("getVisitorLogReport(negative cursor)", "IllegalArgumentException", "IllegalArgumentException");
+		}
+		checkAndReport("streamVisitorLogReport()", expected, 
+				visitorManager.streamVisitorLogReport().collect(Collectors.toList()));
+		StringWriter written = new StringWriter();
+		try {
+			visitorManager.writeVisitorLogReport(written);
+		} catch (IOException e) {
+			throw new RuntimeException("Problem with test. Cannot write to a StringWriter", e);
+		}
+		checkAndReport("writeVisitorLogReport()", expected, Arrays.asList(written.toString().split("\n")));
+	}
+	
 	/**
 	 * Check that the actual list of strings provided by the implementation under test (iut) matches the expected
 	 * list of strings (including order). Report the result (note use of VERBOSE).
@@ -0,0 +1,242 @@
+package visitorman;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * @author chenh
+ * The ColumnStore class is meant to store visits as rows of primitive columns rather than as
+ * LogEntry objects: the visitor id (from the {@link VisitorRegistry}), the host id, the check-in
+ * time and the check-out time, and a bitset of the state of each visit. Each host email address
+ * is stored once, in a dictionary, and visits only hold its id. A visit takes 24 bytes of
+ * columns and 2 bits of state, and the garbage collector only sees a few arrays per chunk.
+ * Columns grow in chunks of a fixed size, so the store grows without copying visits, and
+ * archived chunks are dropped whole.
+ *
+ * The visits are read through views: small LogEntry objects that read and change the columns
+ * of one position, and can be moved to another position. Loops over many visits move one view
+ * along the log instead of creating an object per visit.
+ *
+ * A visit is written to the columns before it is marked as stored in the state bitset, and
+ * readers wait for the mark, so they always see complete visits. The check-out time is
+ * likewise written before the visit is marked as checked out.
+ *
+ */
+public class ColumnStore implements VisitStore {
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int NO_HOST = -1;
+
+	private final VisitorRegistry _Visitors;
+	//Below are the chunks of columns, and the dictionary of host email addresses.
+	private volatile Columns[] _Chunks = new Columns[0];
+	private final ConcurrentHashMap<String, Integer> _HostIds = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] _HostEmails = new String[16];
+	private int _NumHosts;
+
+	/**
+	 * Create an empty ColumnStore object.
+	 * @param Visitors The registry giving the ids of visitors. The visitors of stored visits
+	 * are registered if they are not already.
+	 */
+	public ColumnStore(VisitorRegistry Visitors) {
+		_Visitors = Visitors;
+	}
+	@Override
+	public void Set(int i, LogEntry Visit) {
+		Columns Chunk = Chunk(i);
+		int Slot = i & (CHUNK_SIZE - 1);
+		Chunk._VisitorIds[Slot] = _Visitors.Resolve(Visit.AccessVisitor()).AccessId();
+		Chunk._HostIds[Slot] = HostId(Visit.AccesshostEmail());
+		Chunk._ArrivedAt[Slot] = Visit.AccessArrivedAt();
+		Chunk._LeftAt.set(Slot, Visit.AccessLeftAt());
+		if (Visit.Checkout()) {
+			SetBit(Chunk._CheckedOut, Slot);
+		}
+		SetBit(Chunk._Stored, Slot);      //Publishes the columns written above.
+	}
+	@Override
+	public LogEntry Get(int i, LogEntry Reuse) {
+		if (Chunk(i) == null) {
+			return null;
+		}
+		View Visit = Reuse instanceof View && ((View) Reuse).Store() == this ? (View) Reuse : new View();
+		return Visit.MoveTo(i);
+	}
+	@Override
+	public void Ensure(int Size) {
+		if (Size > 0) {
+			Chunk(Size - 1);
+		}
+	}
+	@Override
+	public long ArrivedAt(int i) {
+		if (Chunk(i) == null) {
+			return EVICTED;
+		}
+		Columns Chunk = Stored(i);
+		return Chunk._ArrivedAt[i & (CHUNK_SIZE - 1)];
+	}
+	@Override
+	public synchronized void Evict(int Chunk) {
+		Columns[] Directory = _Chunks;
+		if (Chunk < Directory.length) {
+			Columns[] Evicted = Directory.clone();
+			Evicted[Chunk] = null;
+			_Chunks = Evicted;
+		}
+	}
+
+	/**
+	 * Return the chunk holding position i once the visit at i is stored.
+	 */
+	private Columns Stored(int i) {
+		Columns Chunk = Chunk(i);
+		int Slot = i & (CHUNK_SIZE - 1);
+		while (!GetBit(Chunk._Stored, Slot)) {      //The position is reserved but the writer has not stored the visit yet.
+			Thread.onSpinWait();
+		}
+		return Chunk;
+	}
+
+	/**
+	 * Return the id of a host email address, adding it to the dictionary if needed.
+	 */
+	private int HostId(String hostEmail) {
+		if (hostEmail == null) {
+			return NO_HOST;
+		}
+		Integer Id = _HostIds.get(hostEmail);
+		if (Id != null) {
+			return Id;
+		}
+		return _HostIds.computeIfAbsent(hostEmail, this::AddHost);
+	}
+
+	/**
+	 * Give a host email address the next id. The array is copied when it grows and republished,
+	 * so readers that found an id always see its address.
+	 */
+	private synchronized int AddHost(String hostEmail) {
+		String[] HostEmails = _HostEmails;
+		if (_NumHosts == HostEmails.length) {
+			HostEmails = Arrays.copyOf(HostEmails, HostEmails.length * 2);
+		}
+		HostEmails[_NumHosts] = hostEmail;
+		_HostEmails = HostEmails;
+		return _NumHosts++;
+	}
+
+	/**
+	 * Return the chunk holding position i, adding chunks to the directory if needed, or null
+	 * if the chunk has been evicted.
+	 */
+	private Columns Chunk(int i) {
+		int c = i >>> CHUNK_BITS;
+		Columns[] Directory = _Chunks;
+		if (c < Directory.length) {
+			return Directory[c];
+		}
+		synchronized (this) {
+			Directory = _Chunks;
+			if (c >= Directory.length) {
+				//The directory is copied and republished, so readers always see fully built chunks.
+				Columns[] Grown = Arrays.copyOf(Directory, c + 1);
+				for (int j = Directory.length; j <= c; j++) {
+					Grown[j] = new Columns();
+				}
+				_Chunks = Grown;
+				Directory = Grown;
+			}
+			return Directory[c];
+		}
+	}
+
+	private static boolean GetBit(AtomicLongArray Bits, int Slot) {
+		return (Bits.get(Slot >>> 6) & (1L << Slot)) != 0;
+	}
+
+	private static void SetBit(AtomicLongArray Bits, int Slot) {
+		int Word = Slot >>> 6;
+		long Old = Bits.get(Word);
+		while (!Bits.compareAndSet(Word, Old, Old | (1L << Slot))) {
+			Old = Bits.get(Word);
+		}
+	}
+
+	private static void ClearBit(AtomicLongArray Bits, int Slot) {
+		int Word = Slot >>> 6;
+		long Old = Bits.get(Word);
+		while (!Bits.compareAndSet(Word, Old, Old & ~(1L << Slot))) {
+			Old = Bits.get(Word);
+		}
+	}
+
+	/**
+	 * The columns of one chunk of visits. The check-out times and the state change after a visit
+	 * is stored, so they are atomic; the other columns are only written before the visit is stored.
+	 */
+	private static class Columns {
+		final int[] _VisitorIds = new int[CHUNK_SIZE];
+		final int[] _HostIds = new int[CHUNK_SIZE];
+		final long[] _ArrivedAt = new long[CHUNK_SIZE];
+		final AtomicLongArray _LeftAt = new AtomicLongArray(CHUNK_SIZE);
+		final AtomicLongArray _Stored = new AtomicLongArray(CHUNK_SIZE / 64);
+		final AtomicLongArray _CheckedOut = new AtomicLongArray(CHUNK_SIZE / 64);
+	}
+
+	/**
+	 * A view of the visit at one position of the columns, which can be moved to another position.
+	 * A view is not meant to be shared between threads.
+	 */
+	private class View extends LogEntry {
+		private Columns _Chunk;
+		private int _Slot;
+
+		View MoveTo(int i) {
+			_Chunk = Stored(i);
+			_Slot = i & (CHUNK_SIZE - 1);
+			return this;
+		}
+
+		ColumnStore Store() {
+			return ColumnStore.this;
+		}
+
+		@Override
+		public Party AccessVisitor() {
+			return _Visitors.Get(_Chunk._VisitorIds[_Slot]);
+		}
+		@Override
+		public String AccesshostEmail() {
+			int Host = _Chunk._HostIds[_Slot];
+			return Host == NO_HOST ? null : _HostEmails[Host];
+		}
+		@Override
+		public long AccessArrivedAt() {
+			return _Chunk._ArrivedAt[_Slot];
+		}
+		@Override
+		public void IfCheckOut() {
+			SetBit(_Chunk._CheckedOut, _Slot);
+		}
+		@Override
+		public void UndoCheckOut() {
+			ClearBit(_Chunk._CheckedOut, _Slot);
+			_Chunk._LeftAt.set(_Slot, NOT_LEFT);
+		}
+		@Override
+		public boolean Checkout() {
+			return GetBit(_Chunk._CheckedOut, _Slot);
+		}
+		@Override
+		public void AddLeftTime(String LeftTime) {
+			_Chunk._LeftAt.set(_Slot, LeftAt(AccessArrivedAt(), LeftTime));
+		}
+		@Override
+		public long AccessLeftAt() {
+			return _Chunk._LeftAt.get(_Slot);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package visitorman;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ *
+ * @author chenh
+ * The EntryStore class is meant to store each visit as the LogEntry object it was recorded with.
+ * Visits are kept in fixed size chunks, so the store grows without copying the visits.
+ * The directory of chunks is copied when it grows or a chunk is evicted, so readers never lock.
+ *
+ */
+public class EntryStore implements VisitStore {
+	//Below are the chunks of LogEntry field, which are meant to store all visits.
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private volatile AtomicReferenceArray<LogEntry>[] _VisitorGroup = NewDirectory(0);
+
+	/**
+	 * Create an empty EntryStore object.
+	 */
+	public EntryStore() {
+	}
+	@Override
+	public void Set(int i, LogEntry Visit) {
+		Chunk(i).set(i & (CHUNK_SIZE - 1), Visit);
+	}
+	@Override
+	public LogEntry Get(int i, LogEntry Reuse) {
+		AtomicReferenceArray<LogEntry> Chunk = Chunk(i);
+		if (Chunk == null) {
+			return null;
+		}
+		LogEntry Visitor = Chunk.get(i & (CHUNK_SIZE - 1));
+		while (Visitor == null) {      //The position is reserved but the writer has not stored the visit yet.
+			Thread.onSpinWait();
+			Visitor = Chunk.get(i & (CHUNK_SIZE - 1));
+		}
+		return Visitor;
+	}
+	@Override
+	public void Ensure(int Size) {
+		if (Size > 0) {
+			Chunk(Size - 1);
+		}
+	}
+	@Override
+	public long ArrivedAt(int i) {
+		LogEntry Visitor = Get(i, null);
+		return Visitor == null ? EVICTED : Visitor.AccessArrivedAt();
+	}
+	@Override
+	public synchronized void Evict(int Chunk) {
+		AtomicReferenceArray<LogEntry>[] Directory = _VisitorGroup;
+		if (Chunk < Directory.length) {
+			AtomicReferenceArray<LogEntry>[] Evicted = Directory.clone();
+			Evicted[Chunk] = null;
+			_VisitorGroup = Evicted;
+		}
+	}
+
+	/**
+	 * Return the chunk holding position i, adding chunks to the directory if needed, or null
+	 * if the chunk has been evicted.
+	 */
+	private AtomicReferenceArray<LogEntry> Chunk(int i) {
+		int c = i >>> CHUNK_BITS;
+		AtomicReferenceArray<LogEntry>[] Directory = _VisitorGroup;
+		if (c < Directory.length) {
+			return Directory[c];
+		}
+		synchronized (this) {
+			Directory = _VisitorGroup;
+			if (c >= Directory.length) {
+				//The directory is copied and republished, so readers always see fully built chunks.
+				AtomicReferenceArray<LogEntry>[] Grown = NewDirectory(c + 1);
+				System.arraycopy(Directory, 0, Grown, 0, Directory.length);
+				for (int j = Directory.length; j <= c; j++) {
+					Grown[j] = new AtomicReferenceArray<LogEntry>(CHUNK_SIZE);
+				}
+				_VisitorGroup = Grown;
+				Directory = Grown;
+			}
+			return Directory[c];
+		}
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static AtomicReferenceArray<LogEntry>[] NewDirectory(int length) {
+		return new AtomicReferenceArray[length];
+	}
+}
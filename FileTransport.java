@@ -0,0 +1,38 @@
+package visitorman;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *
+ * @author chenh
+ * The FileTransport class is meant to stand in for a mail server: each message is appended
+ * to a file as a To line, a Subject line, a blank line, the body, and a line holding only a
+ * full stop, which is how a message is sent to an SMTP server.
+ *
+ */
+public class FileTransport implements NotificationTransport {
+	private Path _File;
+
+	/**
+	 * Create a FileTransport object.
+	 * @param File The file the messages are appended to; it is created if it does not exist.
+	 */
+	public FileTransport(Path File) {
+		_File = File;
+	}
+	@Override
+	public synchronized void Send(HostNotification Message) throws IOException {
+		try (Writer Out = Files.newBufferedWriter(_File, StandardCharsets.UTF_8, 
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			Out.write("To: " + Message.AccesshostEmail() + "\n");
+			Out.write("Subject: " + Message.AccessSubject() + "\n\n");
+			Out.write(Message.AccessBody());
+			Out.write(".\n");
+		}
+	}
+}
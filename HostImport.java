@@ -0,0 +1,285 @@
+package visitorman;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ *
+ * @author chenh
+ * The HostImport class is meant to read the hosts of a staff directory export, for
+ * {@link VisitorMan#importHosts(Path, HostImport.Format)}. Two formats are read:
+ * - CSV: a header line naming the columns, then one host per line. The family name, given name
+ *   and email columns are found by their names (such as "sn", "givenName" and "mail", or
+ *   "Family Name", "Given Name" and "Email"); other columns are ignored. Fields may be quoted,
+ *   with doubled quotes inside, but may not span lines.
+ * - LDIF: entries separated by blank lines, with the sn, givenName and mail attributes.
+ *   Base64 values and continuation lines are read; other attributes are ignored.
+ * Lines or entries without a family name, given name or email address are skipped.
+ *
+ * Large files are split into chunks at line (or entry) boundaries. Each chunk is memory-mapped
+ * and parsed on its own thread, and the hosts are returned in the order of the file.
+ *
+ */
+public class HostImport {
+
+	/**
+	 * The formats of staff directory exports.
+	 */
+	public enum Format {
+		CSV,
+		LDIF
+	}
+
+	private static final long MIN_CHUNK_SIZE = 1 << 16;
+	private static final int SCAN_BUFFER_SIZE = 1 << 12;
+
+	/**
+	 * Read the hosts in a staff directory export.
+	 * @param File The file to read.
+	 * @param FileFormat The format of the file.
+	 * @return A new list of the hosts, in the order of the file.
+	 * @throws IOException If the file cannot be read, or a CSV file has no header line
+	 * naming the family name, given name and email columns.
+	 */
+	public static List<Party> Read(Path File, Format FileFormat) throws IOException {
+		try (FileChannel Channel = FileChannel.open(File, StandardOpenOption.READ)) {
+			long Size = Channel.size();
+			long Start = 0;
+			int[] Columns = null;
+			if (FileFormat == Format.CSV) {
+				Start = NextLine(Channel, 0);
+				Columns = HeaderColumns(Decode(Channel, 0, Start));
+			}
+			long[] Bounds = ChunkBounds(Channel, Start, Size, FileFormat);
+			final int[] CsvColumns = Columns;
+			List<List<Party>> Chunks = IntStream.range(0, Bounds.length - 1).parallel().mapToObj(c -> {
+				try {
+					String Text = Decode(Channel, Bounds[c], Bounds[c + 1]);
+					return FileFormat == Format.CSV ? ParseCsv(Text, CsvColumns) : ParseLdif(Text);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).collect(Collectors.toList());
+			List<Party> Hosts = new ArrayList<Party>();
+			for (List<Party> Chunk : Chunks) {
+				Hosts.addAll(Chunk);
+			}
+			return Hosts;
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Split the file from Start to Size into chunks that end at line boundaries (CSV) or at
+	 * blank lines (LDIF), about one per processor, but no smaller than MIN_CHUNK_SIZE.
+	 */
+	private static long[] ChunkBounds(FileChannel Channel, long Start, long Size, Format FileFormat) throws IOException {
+		int Chunks = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4L, (Size - Start) / MIN_CHUNK_SIZE));
+		List<Long> Bounds = new ArrayList<Long>();
+		Bounds.add(Start);
+		for (int c = 1; c < Chunks; c++) {
+			long Nominal = Start + (Size - Start) * c / Chunks;
+			long Bound = FileFormat == Format.CSV ? NextLine(Channel, Nominal) : NextEntry(Channel, Nominal);
+			if (Bound > Bounds.get(Bounds.size() - 1) && Bound < Size) {
+				Bounds.add(Bound);
+			}
+		}
+		Bounds.add(Size);
+		long[] Result = new long[Bounds.size()];
+		for (int b = 0; b < Result.length; b++) {
+			Result[b] = Bounds.get(b);
+		}
+		return Result;
+	}
+
+	/**
+	 * Return the position just after the next newline at or after From, or the size of the file.
+	 */
+	private static long NextLine(FileChannel Channel, long From) throws IOException {
+		ByteBuffer Buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+		long Position = From;
+		while (Channel.read(Buffer, Position) > 0) {
+			Buffer.flip();
+			while (Buffer.hasRemaining()) {
+				Position++;
+				if (Buffer.get() == '\n') {
+					return Position;
+				}
+			}
+			Buffer.clear();
+		}
+		return Position;
+	}
+
+	/**
+	 * Return the position just after the next blank line at or after From, or the size of the file.
+	 */
+	private static long NextEntry(FileChannel Channel, long From) throws IOException {
+		long Position = NextLine(Channel, From);
+		long Size = Channel.size();
+		while (Position < Size) {
+			long Next = NextLine(Channel, Position);
+			if (Next - Position <= 2 && IsBlank(Channel, Position, Next)) {
+				return Next;
+			}
+			Position = Next;
+		}
+		return Size;
+	}
+
+	private static boolean IsBlank(FileChannel Channel, long From, long To) throws IOException {
+		ByteBuffer Line = ByteBuffer.allocate((int) (To - From));
+		Channel.read(Line, From);
+		Line.flip();
+		while (Line.hasRemaining()) {
+			byte Byte = Line.get();
+			if (Byte != '\r' && Byte != '\n') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String Decode(FileChannel Channel, long From, long To) throws IOException {
+		if (To <= From) {
+			return "";
+		}
+		return StandardCharsets.UTF_8.decode(Channel.map(FileChannel.MapMode.READ_ONLY, From, To - From)).toString();
+	}
+
+	/**
+	 * Find the family name, given name and email columns named in a CSV header line.
+	 */
+	private static int[] HeaderColumns(String Header) throws IOException {
+		int[] Columns = { -1, -1, -1 };
+		List<String> Names = CsvFields(Header.replace("\uFEFF", "").strip());      //Without any byte order mark.
+		for (int c = 0; c < Names.size(); c++) {
+			String Name = Names.get(c).strip().toLowerCase(Locale.ROOT).replace(" ", "").replace("_", "");
+			if (Name.equals("sn") || Name.equals("surname") || Name.equals("familyname") || Name.equals("lastname")) {
+				Columns[0] = c;
+			} else if (Name.equals("givenname") || Name.equals("firstname")) {
+				Columns[1] = c;
+			} else if (Name.equals("mail") || Name.equals("email") || Name.equals("e-mail")) {
+				Columns[2] = c;
+			}
+		}
+		if (Columns[0] < 0 || Columns[1] < 0 || Columns[2] < 0) {
+			throw new IOException("The CSV header does not name the family name, given name and email columns: " + Header.strip());
+		}
+		return Columns;
+	}
+
+	private static List<Party> ParseCsv(String Text, int[] Columns) {
+		List<Party> Hosts = new ArrayList<Party>();
+		for (String Line : Text.split("\r?\n")) {
+			if (Line.isBlank()) {
+				continue;
+			}
+			List<String> Fields = CsvFields(Line);
+			String Family = Field(Fields, Columns[0]);
+			String Given = Field(Fields, Columns[1]);
+			String Email = Field(Fields, Columns[2]);
+			if (Family != null && Given != null && Email != null) {
+				Hosts.add(new Party(Family, Given, Email, null));
+			}
+		}
+		return Hosts;
+	}
+
+	/**
+	 * Split a CSV line into its fields, removing quotes.
+	 */
+	private static List<String> CsvFields(String Line) {
+		List<String> Fields = new ArrayList<String>();
+		StringBuilder Field = new StringBuilder();
+		boolean Quoted = false;
+		for (int i = 0; i < Line.length(); i++) {
+			char Char = Line.charAt(i);
+			if (Quoted) {
+				if (Char == '"' && i + 1 < Line.length() && Line.charAt(i + 1) == '"') {
+					Field.append('"');
+					i++;
+				} else if (Char == '"') {
+					Quoted = false;
+				} else {
+					Field.append(Char);
+				}
+			} else if (Char == '"') {
+				Quoted = true;
+			} else if (Char == ',') {
+				Fields.add(Field.toString());
+				Field.setLength(0);
+			} else {
+				Field.append(Char);
+			}
+		}
+		Fields.add(Field.toString());
+		return Fields;
+	}
+
+	private static String Field(List<String> Fields, int Column) {
+		if (Column >= Fields.size()) {
+			return null;
+		}
+		String Value = Fields.get(Column).strip();
+		return Value.isEmpty() ? null : Value;
+	}
+
+	private static List<Party> ParseLdif(String Text) {
+		List<Party> Hosts = new ArrayList<Party>();
+		String[] Entry = new String[3];
+		String Attribute = null;
+		StringBuilder Value = new StringBuilder();
+		for (String Line : (Text + "\n\n").split("\r?\n", -1)) {
+			if (Line.startsWith(" ") && Attribute != null) {      //A continuation of the previous value.
+				Value.append(Line, 1, Line.length());
+				continue;
+			}
+			if (Attribute != null) {
+				SetAttribute(Entry, Attribute, Value.toString());
+				Attribute = null;
+			}
+			if (Line.isEmpty()) {
+				if (Entry[0] != null && Entry[1] != null && Entry[2] != null) {
+					Hosts.add(new Party(Entry[0], Entry[1], Entry[2], null));
+				}
+				Entry = new String[3];
+			} else if (!Line.startsWith("#") && Line.indexOf(':') > 0) {
+				Attribute = Line.substring(0, Line.indexOf(':'));
+				Value.setLength(0);
+				Value.append(Line, Line.indexOf(':') + 1, Line.length());
+			}
+		}
+		return Hosts;
+	}
+
+	/**
+	 * Store the value of an attribute of an LDIF entry, decoding it if it is base64 ("attr:: value").
+	 */
+	private static void SetAttribute(String[] Entry, String Attribute, String Value) {
+		if (Value.startsWith(":")) {
+			Value = new String(Base64.getMimeDecoder().decode(Value.substring(1).strip()), StandardCharsets.UTF_8);
+		}
+		Value = Value.strip();
+		if (Value.isEmpty()) {
+			return;
+		}
+		String Name = Attribute.toLowerCase(Locale.ROOT);
+		int Index = Name.equals("sn") || Name.equals("surname") ? 0 : Name.equals("givenname") ? 1 : Name.equals("mail") ? 2 : -1;
+		if (Index >= 0 && Entry[Index] == null) {      //Only the first value of each attribute is used.
+			Entry[Index] = Value;
+		}
+	}
+}
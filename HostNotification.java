@@ -0,0 +1,58 @@
+package visitorman;
+
+/**
+ *
+ * @author chenh
+ * The HostNotification class is meant to hold one message telling a host that his/her visitors
+ * have arrived, as built by {@link HostNotifier} and sent by a {@link NotificationTransport}.
+ * One message may tell the host about several visitors.
+ *
+ */
+public class HostNotification {
+	private String _hostEmail;
+	private String _Subject;
+	private String _Body;
+	private int _Visitors;
+
+	/**
+	 * Create a HostNotification object.
+	 * @param hostEmail The email address of the host.
+	 * @param Subject The subject line, such as "3 visitors from Corp Ltd have arrived".
+	 * @param Body The body, with one line per visitor.
+	 * @param Visitors The number of visitors the message is about.
+	 */
+	public HostNotification(String hostEmail, String Subject, String Body, int Visitors) {
+		_hostEmail = hostEmail;
+		_Subject = Subject;
+		_Body = Body;
+		_Visitors = Visitors;
+	}
+	/**
+	 * Access the email address of the host.
+	 * @return a string of the email address.
+	 */
+	public String AccesshostEmail() {
+		return _hostEmail;
+	}
+	/**
+	 * Access the subject line.
+	 * @return a string of the subject.
+	 */
+	public String AccessSubject() {
+		return _Subject;
+	}
+	/**
+	 * Access the body.
+	 * @return a string of the body, with each line ended by a newline.
+	 */
+	public String AccessBody() {
+		return _Body;
+	}
+	/**
+	 * Access the number of visitors the message is about.
+	 * @return The number of visitors.
+	 */
+	public int AccessVisitors() {
+		return _Visitors;
+	}
+}
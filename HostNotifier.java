@@ -0,0 +1,298 @@
+package visitorman;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author chenh
+ * The HostNotifier class is meant to tell hosts that their visitors have arrived. It listens
+ * to a VisitorMan object (see {@link VisitorMan#addVisitListener(VisitListener)}); a check-in
+ * only adds the visit to a lock-free queue, so it never waits for a message to be sent.
+ * The notifier's own thread takes the queue once per window and sends each host one message
+ * for all the visitors that arrived for him/her, such as "3 visitors from Corp Ltd have arrived".
+ * - Each host has a token bucket: a burst of messages may be sent at once, then one more per
+ *   refill period. Visitors arriving while a host is limited wait, and are added to the
+ *   host's next message.
+ * - A message that cannot be sent is tried again after a backoff that doubles with each
+ *   attempt (with some jitter), and is given up after MAX_ATTEMPTS attempts.
+ * - If MAX_QUEUED visits are queued or waiting in a host's next message, further visits are
+ *   dropped rather than using up memory while the transport is down. A visit counts until its
+ *   message is sent or given up.
+ *
+ */
+public class HostNotifier implements VisitListener {
+	private static final int MAX_QUEUED = 100000;
+	private static final int MAX_ATTEMPTS = 8;
+	private static final long MAX_RETRY_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+	private final NotificationTransport _Transport;
+	private final int _Burst;
+	private final long _RefillNanos;
+	private final long _RetryNanos;
+
+	//Below are the visits not yet taken by the notifier's thread, the number of visits not yet sent or
+	//given up (whether queued or waiting for a host), and the hosts the notifier's thread knows about.
+	private final ConcurrentLinkedQueue<Arrived> _Queue = new ConcurrentLinkedQueue<Arrived>();
+	private final AtomicInteger _Queued = new AtomicInteger();
+	private final Map<String, Host> _Hosts = new HashMap<String, Host>();      //Only used by the notifier's thread.
+	private final ScheduledExecutorService _Dispatcher;
+
+	//Below are the counts of messages sent, visitors notified, retries, visitors given up on, and visits dropped.
+	private final LongAdder _Sent = new LongAdder();
+	private final LongAdder _Notified = new LongAdder();
+	private final LongAdder _Retries = new LongAdder();
+	private final LongAdder _Failed = new LongAdder();
+	private final LongAdder _Dropped = new LongAdder();
+
+	/**
+	 * Create a HostNotifier object that sends at most once every 2 seconds, with a burst of
+	 * 3 messages per host and then 1 a minute, retrying after 1 second at first.
+	 * @param Transport How the messages are delivered.
+	 */
+	public HostNotifier(NotificationTransport Transport) {
+		this(Transport, 2000, 3, 60000, 1000);
+	}
+	/**
+	 * Create a HostNotifier object and start its thread.
+	 * @param Transport How the messages are delivered.
+	 * @param WindowMillis The time between sends, in milliseconds; visitors arriving for the
+	 * same host within a window are told about in one message.
+	 * @param Burst The number of messages a host may be sent at once.
+	 * @param RefillMillis The time after which a host may be sent one more message, in milliseconds.
+	 * @param RetryMillis The time before the first retry of a message, in milliseconds.
+	 */
+	public HostNotifier(NotificationTransport Transport, long WindowMillis, int Burst, long RefillMillis, long RetryMillis) {
+		_Transport = Transport;
+		_Burst = Burst;
+		_RefillNanos = TimeUnit.MILLISECONDS.toNanos(RefillMillis);
+		_RetryNanos = TimeUnit.MILLISECONDS.toNanos(RetryMillis);
+		_Dispatcher = Executors.newSingleThreadScheduledExecutor(Task -> {
+			Thread Notifier = new Thread(Task, "visitorman-notifier");
+			Notifier.setDaemon(true);
+			return Notifier;
+		});
+		_Dispatcher.scheduleWithFixedDelay(this::Dispatch, WindowMillis, WindowMillis, TimeUnit.MILLISECONDS);
+	}
+	@Override
+	public void CheckedIn(int i, LogEntry Visit) {
+		if (_Queued.incrementAndGet() > MAX_QUEUED) {
+			_Queued.decrementAndGet();
+			_Dropped.increment();
+			return;
+		}
+		_Queue.add(new Arrived(Visit.AccessVisitor(), Visit.AccesshostEmail(), Visit.AccessDate(), Visit.AccessTime()));
+	}
+	@Override
+	public void CheckedOut(int i, LogEntry Visit) {
+	}
+	/**
+	 * Send the messages that are due now, without waiting for the end of the window, and
+	 * wait until they are sent. Hosts that are rate limited or waiting to retry are skipped.
+	 */
+	public void Flush() {
+		try {
+			_Dispatcher.submit(this::Dispatch).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("The notifier failed", e.getCause());
+		}
+	}
+	/**
+	 * Send the messages that are due and stop the notifier's thread. Messages that are
+	 * rate limited or waiting to retry are not sent.
+	 */
+	public void Close() {
+		Flush();
+		_Dispatcher.shutdown();
+		try {
+			_Dispatcher.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	/**
+	 * Access the number of messages sent.
+	 * @return The number of messages.
+	 */
+	public long Sent() {
+		return _Sent.sum();
+	}
+	/**
+	 * Access the number of visitors told about in the messages sent.
+	 * @return The number of visitors.
+	 */
+	public long Notified() {
+		return _Notified.sum();
+	}
+	/**
+	 * Access the number of times a message had to be tried again.
+	 * @return The number of retries.
+	 */
+	public long Retries() {
+		return _Retries.sum();
+	}
+	/**
+	 * Access the number of visitors whose message was given up after MAX_ATTEMPTS attempts.
+	 * @return The number of visitors.
+	 */
+	public long Failed() {
+		return _Failed.sum();
+	}
+	/**
+	 * Access the number of visits dropped because MAX_QUEUED visits were waiting to be sent.
+	 * @return The number of visits.
+	 */
+	public long Dropped() {
+		return _Dropped.sum();
+	}
+
+	/**
+	 * Take the queued visits and send every host whose message is due, on the notifier's thread.
+	 */
+	private void Dispatch() {
+		long Now = System.nanoTime();
+		for (Arrived Visit = _Queue.poll(); Visit != null; Visit = _Queue.poll()) {      //Still counted in _Queued until sent or given up.
+			String EmailKey = Party.NormaliseEmail(Visit._hostEmail);
+			Host Recipient = _Hosts.get(EmailKey == null ? "" : EmailKey);
+			if (Recipient == null) {
+				Recipient = new Host(Visit._hostEmail, _Burst, Now);
+				_Hosts.put(EmailKey == null ? "" : EmailKey, Recipient);
+			}
+			Recipient._Pending.add(Visit);
+		}
+		Iterator<Host> Hosts = _Hosts.values().iterator();
+		while (Hosts.hasNext()) {
+			Host Recipient = Hosts.next();
+			if (Recipient._Pending.isEmpty()) {
+				if (Recipient.Refill(Now, _Burst, _RefillNanos) == _Burst) {      //Forgotten once it has nothing to wait for.
+					Hosts.remove();
+				}
+				continue;
+			}
+			if (Now < Recipient._RetryAt || !Recipient.TakeToken(Now, _Burst, _RefillNanos)) {
+				continue;
+			}
+			HostNotification Message = Compose(Recipient._hostEmail, Recipient._Pending);
+			try {
+				_Transport.Send(Message);
+				_Sent.increment();
+				_Notified.add(Message.AccessVisitors());
+				_Queued.addAndGet(-Message.AccessVisitors());
+				Recipient._Pending.clear();
+				Recipient._Attempts = 0;
+			} catch (Exception e) {
+				Recipient._Attempts++;
+				if (Recipient._Attempts >= MAX_ATTEMPTS) {
+					System.err.println("Gave up telling " + Recipient._hostEmail + " that " + Message.AccessVisitors()
+							+ " visitors arrived: " + e);
+					_Failed.add(Message.AccessVisitors());
+					_Queued.addAndGet(-Message.AccessVisitors());
+					Recipient._Pending.clear();
+					Recipient._Attempts = 0;
+				} else {
+					_Retries.increment();
+					Recipient._RetryAt = Now + Backoff(Recipient._Attempts);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the time to wait before the next attempt: RetryNanos doubled for each earlier
+	 * failure, up to MAX_RETRY_NANOS, of which a random half is taken off so hosts that failed
+	 * together are not all retried together.
+	 */
+	private long Backoff(int Attempts) {
+		long Delay = Math.min(_RetryNanos << Math.min(Attempts - 1, 30), MAX_RETRY_NANOS);
+		return Delay / 2 + ThreadLocalRandom.current().nextLong(Delay / 2 + 1);
+	}
+
+	/**
+	 * Build one message for all the visitors waiting for a host.
+	 */
+	static HostNotification Compose(String hostEmail, List<Arrived> Visits) {
+		Map<String, Integer> ByOrganisation = new LinkedHashMap<String, Integer>();
+		StringBuilder Body = new StringBuilder();
+		for (Arrived Visit : Visits) {
+			ByOrganisation.merge(String.valueOf(Visit._Visitor.AccessOrganisation()), 1, Integer::sum);
+			Body.append(Visit._Visitor.AccessVisitorDetail()).append(" arrived at ").append(Visit._Time)
+					.append(" on ").append(Visit._Date).append('\n');
+		}
+		int Count = Visits.size();
+		String Subject = Count == 1 ? "1 visitor" : Count + " visitors";
+		if (ByOrganisation.size() == 1) {
+			Subject += " from " + ByOrganisation.keySet().iterator().next();
+		}
+		Subject += Count == 1 ? " has arrived" : " have arrived";
+		return new HostNotification(hostEmail, Subject, Body.toString(), Count);
+	}
+
+	/**
+	 * A visitor who arrived for a host.
+	 */
+	static class Arrived {
+		final Party _Visitor;
+		final String _hostEmail;
+		final String _Date;
+		final String _Time;
+
+		Arrived(Party Visitor, String hostEmail, String Date, String Time) {
+			_Visitor = Visitor;
+			_hostEmail = hostEmail;
+			_Date = Date;
+			_Time = Time;
+		}
+	}
+
+	/**
+	 * The visitors waiting to be told about to a host, and the state of its rate limit and retries.
+	 */
+	private static class Host {
+		final String _hostEmail;
+		final List<Arrived> _Pending = new ArrayList<Arrived>();
+		int _Tokens;
+		long _RefilledAt;
+		int _Attempts;
+		long _RetryAt;
+
+		Host(String hostEmail, int Burst, long Now) {
+			_hostEmail = hostEmail;
+			_Tokens = Burst;
+			_RefilledAt = Now;
+		}
+
+		/**
+		 * Add the tokens earned since the last refill, and return the tokens held.
+		 */
+		int Refill(long Now, int Burst, long RefillNanos) {
+			long Earned = RefillNanos <= 0 ? Burst : (Now - _RefilledAt) / RefillNanos;
+			if (Earned > 0) {
+				_Tokens = (int) Math.min(Burst, _Tokens + Earned);
+				_RefilledAt = _Tokens == Burst ? Now : _RefilledAt + Earned * RefillNanos;
+			}
+			return _Tokens;
+		}
+
+		boolean TakeToken(long Now, int Burst, long RefillNanos) {
+			if (Refill(Now, Burst, RefillNanos) == 0) {
+				return false;
+			}
+			_Tokens--;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,329 @@
+package visitorman;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ *
+ * @author chenh
+ * The HostRegistry class is meant to store all registered hosts. Hosts are indexed by their
+ * normalised email address and by their formal name, so a host can be found without scanning
+ * every registered host. The order in which hosts were registered is kept for reporting.
+ * Lookups do not lock, so they can run while hosts are being registered. Registration is
+ * rare and is serialised on the registry.
+ * The indexes and the order of the hosts are kept together in a table. A bulk import from a
+ * staff directory builds a new table and replaces the old one in one step, so lookups see
+ * either all of the import or none of it.
+ *
+ */
+public class HostRegistry {
+
+	//Below is the table of hosts, replaced as a whole by a bulk import.
+	private volatile Table _Table = new Table();
+	//Below is the search index kept up to date with the hosts, if there is one.
+	private PartySearch _Search;
+
+	/**
+	 * Create an empty HostRegistry object.
+	 */
+	public HostRegistry() {
+	}
+	/**
+	 * Register a host. Email addresses and names of hosts must be unique, so a host
+	 * whose email address or formal name is already registered is rejected.
+	 * @param Host A party representing the host.
+	 * @return true if the host was registered, false if it was rejected as a duplicate.
+	 */
+	public synchronized boolean Register(Party Host) {
+		if (!_Table.Add(Host)) {
+			return false;
+		}
+		if (_Search != null) {
+			_Search.Add(Host, true);
+		}
+		return true;
+	}
+	/**
+	 * Remove the host with the specified email address.
+	 * @param email The email address of the host.
+	 * @return true if the host was removed, false if there is no such host.
+	 */
+	public synchronized boolean Remove(String email) {
+		Table Hosts = _Table;
+		Party Host = Hosts._HostsByEmail.remove(NormalisedKey(email));
+		if (Host == null) {
+			return false;
+		}
+		Hosts._HostsByName.remove(FormalNameKey(Host.AccessFname(), Host.AccessGname()));
+		Hosts._Hosts.remove(Host);
+		if (_Search != null) {
+			_Search.Remove(Host, true);
+		}
+		return true;
+	}
+	/**
+	 * Replace the host with the specified email address by another, keeping its place in the
+	 * order of registration, such as when the email address of a host changes.
+	 * @param email The email address of the host to replace.
+	 * @param Host A party representing the new host.
+	 * @return true if the host was replaced, false if there is no such host or the new
+	 * host's email address or formal name belongs to another host.
+	 */
+	public synchronized boolean Replace(String email, Party Host) {
+		Table Hosts = _Table;
+		Party Old = Hosts._HostsByEmail.get(NormalisedKey(email));
+		String EmailKey = Party.NormaliseEmail(Host.AccessEmail());
+		String NameKey = FormalNameKey(Host.AccessFname(), Host.AccessGname());
+		if (Old == null || EmailKey == null || Hosts.Taken(EmailKey, NameKey, Old)) {
+			return false;
+		}
+		Hosts._HostsByEmail.remove(NormalisedKey(email));
+		Hosts._HostsByName.remove(FormalNameKey(Old.AccessFname(), Old.AccessGname()));
+		Hosts._HostsByEmail.put(EmailKey, Host);
+		Hosts._HostsByName.put(NameKey, Host);
+		Hosts._Hosts.set(Hosts._Hosts.indexOf(Old), Host);
+		if (_Search != null) {
+			_Search.Remove(Old, true);
+			_Search.Add(Host, true);
+		}
+		return true;
+	}
+	/**
+	 * Make the registered hosts the same as the hosts of a staff directory. Hosts are matched
+	 * by formal name: hosts that are not in the directory are removed, hosts whose email address
+	 * changed are replaced in their place, and new hosts are added at the end in the order of
+	 * the directory. A directory entry with the same email address or name as an earlier entry
+	 * is skipped. The new hosts are swapped in at once.
+	 * @param Directory The hosts of the staff directory.
+	 * @return The changes made.
+	 */
+	public Changes Sync(List<Party> Directory) {
+		return Sync(Directory, null);
+	}
+	/**
+	 * Make the registered hosts the same as the hosts of a staff directory, as
+	 * {@link #Sync(List)} does, and pass the new hosts to BeforeSwap before they are swapped
+	 * in, for example to record them. If BeforeSwap throws, the hosts are not changed.
+	 * @param Directory The hosts of the staff directory.
+	 * @param BeforeSwap Given the new hosts in order of registration, or null.
+	 * @return The changes made.
+	 */
+	public synchronized Changes Sync(List<Party> Directory, Consumer<List<Party>> BeforeSwap) {
+		Table Old = _Table;
+		Map<String, Party> Wanted = new HashMap<String, Party>(Directory.size() * 2);
+		Map<String, Party> WantedEmails = new HashMap<String, Party>(Directory.size() * 2);
+		List<Party> InOrder = new ArrayList<Party>(Directory.size());
+		for (Party Host : Directory) {
+			String EmailKey = Party.NormaliseEmail(Host.AccessEmail());
+			String NameKey = FormalNameKey(Host.AccessFname(), Host.AccessGname());
+			if (EmailKey != null && !Wanted.containsKey(NameKey) && !WantedEmails.containsKey(EmailKey)) {
+				Wanted.put(NameKey, Host);
+				WantedEmails.put(EmailKey, Host);
+				InOrder.add(Host);
+			}
+		}
+		Changes Result = new Changes();
+		Table New = new Table(Wanted.size());
+		for (Party Host : Old._Hosts) {
+			Party Replacement = Wanted.get(FormalNameKey(Host.AccessFname(), Host.AccessGname()));
+			if (Replacement == null) {
+				Result._Removed.add(Host);
+			} else if (Party.NormaliseEmail(Replacement.AccessEmail()).equals(Party.NormaliseEmail(Host.AccessEmail()))) {
+				New.Add(Host);      //Unchanged, so the registered party is kept.
+			} else {
+				New.Add(Replacement);
+				Result._Replaced.add(Host);
+				Result._Changed.add(Replacement);
+			}
+		}
+		for (Party Host : InOrder) {
+			if (Old._HostsByName.get(FormalNameKey(Host.AccessFname(), Host.AccessGname())) == null && New.Add(Host)) {
+				Result._Added.add(Host);
+			}
+		}
+		if (BeforeSwap != null) {
+			BeforeSwap.accept(Collections.unmodifiableList(New._Hosts));
+		}
+		_Table = New;
+		if (_Search != null) {
+			for (Party Host : Result._Removed) {
+				_Search.Remove(Host, true);
+			}
+			for (Party Host : Result._Replaced) {
+				_Search.Remove(Host, true);
+			}
+			for (Party Host : Result._Changed) {
+				_Search.Add(Host, true);
+			}
+			for (Party Host : Result._Added) {
+				_Search.Add(Host, true);
+			}
+		}
+		return Result;
+	}
+	/**
+	 * Make the registered hosts exactly the specified hosts, in their order, such as when
+	 * the hosts recorded after an import are read back from a journal. A host with the same
+	 * email address or name as an earlier one is skipped. The new hosts are swapped in at once.
+	 * @param Hosts The parties of the hosts.
+	 */
+	public synchronized void Load(List<Party> Hosts) {
+		Table Old = _Table;
+		Table New = new Table(Hosts.size());
+		for (Party Host : Hosts) {
+			New.Add(Host);
+		}
+		_Table = New;
+		if (_Search != null) {
+			for (Party Host : Old._Hosts) {
+				_Search.Remove(Host, true);
+			}
+			for (Party Host : New._Hosts) {
+				_Search.Add(Host, true);
+			}
+		}
+	}
+	/**
+	 * Find the host with the specified email address. Email addresses are compared
+	 * ignoring case and surrounding spaces.
+	 * @param email The email address of the host.
+	 * @return The party of the host, or null if there is no such host.
+	 */
+	public Party FindByEmail(String email) {
+		String EmailKey = Party.NormaliseEmail(email);
+		if (EmailKey == null) {
+			return null;
+		}
+		return _Table._HostsByEmail.get(EmailKey);
+	}
+	/**
+	 * Find the host with the specified name.
+	 * @param familyName The family name of the host.
+	 * @param givenName The given name of the host.
+	 * @return The party of the host, or null if there is no such host.
+	 */
+	public Party FindByFormalName(String familyName, String givenName) {
+		return _Table._HostsByName.get(FormalNameKey(familyName, givenName));
+	}
+	/**
+	 * Return all the registered hosts in the order that they were registered.
+	 * @return A new list of the hosts.
+	 */
+	public synchronized List<Party> GetHosts() {
+		return new ArrayList<Party>(_Table._Hosts);
+	}
+	/**
+	 * Access the number of registered hosts.
+	 * @return The number of hosts.
+	 */
+	public int Size() {
+		return _Table._HostsByEmail.size();
+	}
+
+	/**
+	 * Add the registered hosts to a search index and keep it up to date from now on; only
+	 * called by VisitorMan.
+	 */
+	synchronized void Index(PartySearch Search) {
+		for (Party Host : _Table._Hosts) {
+			Search.Add(Host, true);
+		}
+		_Search = Search;
+	}
+
+	private static String FormalNameKey(String familyName, String givenName) {
+		return familyName + ", " + givenName;
+	}
+
+	private static String NormalisedKey(String email) {
+		String EmailKey = Party.NormaliseEmail(email);
+		return EmailKey == null ? "" : EmailKey;
+	}
+
+	/**
+	 * The changes made to the registered hosts by {@link HostRegistry#Sync(List)}.
+	 */
+	public static class Changes {
+		private List<Party> _Added = new ArrayList<Party>();
+		private List<Party> _Removed = new ArrayList<Party>();
+		private List<Party> _Replaced = new ArrayList<Party>();
+		private List<Party> _Changed = new ArrayList<Party>();
+
+		/**
+		 * Access the hosts that were added.
+		 * @return An unmodifiable list of the new hosts.
+		 */
+		public List<Party> AccessAdded() {
+			return Collections.unmodifiableList(_Added);
+		}
+		/**
+		 * Access the hosts that were removed.
+		 * @return An unmodifiable list of the removed hosts.
+		 */
+		public List<Party> AccessRemoved() {
+			return Collections.unmodifiableList(_Removed);
+		}
+		/**
+		 * Access the hosts whose email address changed, as they were before.
+		 * @return An unmodifiable list, in the same order as {@link #AccessChanged()}.
+		 */
+		public List<Party> AccessReplaced() {
+			return Collections.unmodifiableList(_Replaced);
+		}
+		/**
+		 * Access the hosts whose email address changed, with their new email address.
+		 * @return An unmodifiable list, in the same order as {@link #AccessReplaced()}.
+		 */
+		public List<Party> AccessChanged() {
+			return Collections.unmodifiableList(_Changed);
+		}
+	}
+
+	/**
+	 * The indexes of the hosts and the order they were registered in.
+	 */
+	private static class Table {
+		final Map<String, Party> _HostsByEmail;
+		final Map<String, Party> _HostsByName;
+		final List<Party> _Hosts;
+
+		Table() {
+			this(16);
+		}
+
+		Table(int Capacity) {
+			_HostsByEmail = new ConcurrentHashMap<String, Party>(Capacity);
+			_HostsByName = new ConcurrentHashMap<String, Party>(Capacity);
+			_Hosts = new ArrayList<Party>(Capacity);
+		}
+
+		/**
+		 * Add a host unless its email address or formal name is taken.
+		 */
+		boolean Add(Party Host) {
+			String EmailKey = Party.NormaliseEmail(Host.AccessEmail());
+			String NameKey = FormalNameKey(Host.AccessFname(), Host.AccessGname());
+			if (EmailKey == null || Taken(EmailKey, NameKey, null)) {
+				return false;
+			}
+			_HostsByEmail.put(EmailKey, Host);
+			_HostsByName.put(NameKey, Host);
+			_Hosts.add(Host);
+			return true;
+		}
+
+		/**
+		 * Check whether an email address or formal name belongs to a host other than Except.
+		 */
+		boolean Taken(String EmailKey, String NameKey, Party Except) {
+			Party ByEmail = _HostsByEmail.get(EmailKey);
+			Party ByName = _HostsByName.get(NameKey);
+			return (ByEmail != null && ByEmail != Except) || (ByName != null && ByName != Except);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package visitorman;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author chenh
+ * The LatencyHistogram class is meant to record a distribution of latencies, in nanoseconds,
+ * in the same way as an HDR histogram: values below 2^SUB_BITS each have their own bucket, and
+ * every power of two above that is split into 2^SUB_BITS buckets of equal width, so every value
+ * is recorded to within about 3% whatever its size. The buckets are a fixed AtomicLongArray and
+ * the sum and maximum are striped, so recording a value never locks or allocates.
+ * Percentiles are read from the buckets while values are being recorded, so they may be
+ * slightly behind, which is fine for monitoring.
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+	//Below are the count of values in each bucket, the sum of all values, and the largest value.
+	private final AtomicLongArray _Buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder _Total = new LongAdder();
+	private final LongAccumulator _Max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Create an empty LatencyHistogram object.
+	 */
+	public LatencyHistogram() {
+	}
+	/**
+	 * Record a value.
+	 * @param Nanos The latency in nanoseconds; negative values are recorded as 0.
+	 */
+	public void Record(long Nanos) {
+		long Value = Math.max(Nanos, 0);
+		_Buckets.getAndIncrement(Bucket(Value));
+		_Total.add(Value);
+		_Max.accumulate(Value);
+	}
+	/**
+	 * Record all the values recorded by another histogram.
+	 * @param Other The other histogram.
+	 */
+	public void Add(LatencyHistogram Other) {
+		for (int b = 0; b < BUCKETS; b++) {
+			long Count = Other._Buckets.get(b);
+			if (Count != 0) {
+				_Buckets.getAndAdd(b, Count);
+			}
+		}
+		_Total.add(Other._Total.sum());
+		_Max.accumulate(Other._Max.get());
+	}
+	/**
+	 * Access the number of values recorded.
+	 * @return The number of values.
+	 */
+	public long Count() {
+		long Count = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			Count += _Buckets.get(b);
+		}
+		return Count;
+	}
+	/**
+	 * Access the mean of the values recorded.
+	 * @return The mean in nanoseconds, or 0 if nothing was recorded.
+	 */
+	public double Mean() {
+		long Count = Count();
+		return Count == 0 ? 0 : (double) _Total.sum() / Count;
+	}
+	/**
+	 * Access the largest value recorded.
+	 * @return The largest value in nanoseconds, or 0 if nothing was recorded.
+	 */
+	public long Max() {
+		return _Max.get();
+	}
+	/**
+	 * Access the value below which a percentage of the values fall.
+	 * @param Percentile The percentage, from 0 to 100.
+	 * @return The highest value in the bucket holding the percentile, in nanoseconds,
+	 * or 0 if nothing was recorded.
+	 */
+	public long ValueAt(double Percentile) {
+		long[] Counts = new long[BUCKETS];
+		long Count = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			Counts[b] = _Buckets.get(b);
+			Count += Counts[b];
+		}
+		if (Count == 0) {
+			return 0;
+		}
+		long Rank = Math.max(1, (long) Math.ceil(Percentile / 100 * Count));
+		long Seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			Seen += Counts[b];
+			if (Seen >= Rank) {
+				return Math.min(HighestIn(b), _Max.get());
+			}
+		}
+		return _Max.get();
+	}
+
+	/**
+	 * Return the bucket of a value that is not negative.
+	 */
+	static int Bucket(long Value) {
+		if (Value < SUB_BUCKETS) {
+			return (int) Value;
+		}
+		int Shift = 63 - Long.numberOfLeadingZeros(Value) - SUB_BITS;      //Keeps the top SUB_BITS + 1 bits.
+		return (Shift + 1) * SUB_BUCKETS + (int) ((Value >>> Shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * Return the highest value that falls in a bucket.
+	 */
+	static long HighestIn(int Bucket) {
+		if (Bucket < SUB_BUCKETS) {
+			return Bucket;
+		}
+		int Shift = Bucket / SUB_BUCKETS - 1;
+		long Lowest = (long) (SUB_BUCKETS + Bucket % SUB_BUCKETS) << Shift;
+		return Lowest + (1L << Shift) - 1;
+	}
+}
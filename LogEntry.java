@@ -1,23 +1,37 @@
 package visitorman;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+
 /**
  * 
  * @author chenh
  * The LogEntry class is meant to store and display all information
  * of a single visit, including the information of visitor, which could be stored by party object,
  * the email of the host the visitor is going to visit, the check-in date and time, and check-out time.
- * Dates and time are recorded in ISO8601 format.
- * Assuming the visitor is going to leave in check-in date.
+ * Dates and time are given in ISO8601 format. They are parsed once, when the visit is recorded,
+ * and kept as seconds since 1970-01-01T00:00 (the date and time as given, without a time zone), 
+ * so visits can be compared and filtered by time without parsing strings. They are formatted 
+ * back to ISO8601 when accessed as strings; times are given to the minute, or to the second 
+ * if the seconds are not zero.
+ * A visitor leaves on the check-in date, or on the day after it if the check-out time is
+ * earlier than the check-in time, as for a night shift.
+ * The visitor is normally the shared Party object from the {@link VisitorRegistry}, so a
+ * visit only holds a reference to it (which is no larger than the visitor's id) and its times.
+ * The check-out state may be changed by one thread while others read it, so the left time
+ * is always recorded before the visit is marked as checked out.
  *
  */
 public class LogEntry {
 	
 	//Bellow are fields that created for representing all the information.
+	private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+	static final long NOT_LEFT = Long.MIN_VALUE;
 	private String _hostEmail;
-	private String _visitDate;
-	private String _visitStartTime;
+	private long _ArrivedAt;
 	private Party _Visitor;
-	private boolean _CheckOut = false;
-	private String _visitEndTime;
+	private volatile boolean _CheckOut = false;
+	private volatile long _LeftAt = NOT_LEFT;
 	
 	/**
 	 * An LogEntry object is created for the information of a visit.
@@ -27,14 +41,38 @@ public class LogEntry {
 	 * @param visitStartTime The check-in time.
 	 * @param CheckOut A boolean varaible representing whether the visitor is checked out.
 	 * @param visitEndTime The check-out time if the visitor is checked out.
+	 * @throws java.time.format.DateTimeParseException If a date or time is not in ISO8601 format.
 	 */
 	public LogEntry(Party Visitor, String hostEmail, String visitDate, String visitStartTime, boolean CheckOut, String visitEndTime) {
 		_Visitor = Visitor;
 		_hostEmail = hostEmail;
-		_visitDate = visitDate;
-		_visitStartTime = visitStartTime;
+		_ArrivedAt = EpochSecond(visitDate, visitStartTime);
+		if (visitEndTime != null) {
+			AddLeftTime(visitEndTime);
+		}
+		_CheckOut = CheckOut;
+	}
+	/**
+	 * Create an empty LogEntry object, for a view of a visit stored elsewhere, such as a
+	 * visit in a {@link ColumnStore}. A view overrides all the methods of LogEntry.
+	 */
+	protected LogEntry() {
+	}
+	/**
+	 * An LogEntry object is created for a visit whose times are already known, 
+	 * such as a visit being restored.
+	 * @param Visitor A party representing the visitor.
+	 * @param hostEmail The email address of the host.
+	 * @param ArrivedAt The check-in date and time, in seconds since 1970-01-01T00:00.
+	 * @param CheckOut A boolean varaible representing whether the visitor is checked out.
+	 * @param LeftAt The check-out date and time, or Long.MIN_VALUE if no left time was added.
+	 */
+	public LogEntry(Party Visitor, String hostEmail, long ArrivedAt, boolean CheckOut, long LeftAt) {
+		_Visitor = Visitor;
+		_hostEmail = hostEmail;
+		_ArrivedAt = ArrivedAt;
+		_LeftAt = LeftAt;
 		_CheckOut = CheckOut;
-		_visitEndTime = visitEndTime;
 	}
 	/**
 	 * Access the basic information of a visitor in Party type.
@@ -55,14 +93,21 @@ public class LogEntry {
 	 * @return a string of date (ISO8601 format).
 	 */
 	public String AccessDate() {
-		return _visitDate;
+		return LocalDate.ofEpochDay(Math.floorDiv(AccessArrivedAt(), SECONDS_PER_DAY)).toString();
 	}
 	/**
 	 * Access the check-in time.
 	 * @return a string of check-in time (ISO8601 format).
 	 */
 	public String AccessTime() {
-		return _visitStartTime;
+		return LocalTime.ofSecondOfDay(Math.floorMod(AccessArrivedAt(), SECONDS_PER_DAY)).toString();
+	}
+	/**
+	 * Access the check-in date and time.
+	 * @return the seconds since 1970-01-01T00:00.
+	 */
+	public long AccessArrivedAt() {
+		return _ArrivedAt;
 	}
 	/**
 	 * Change the state of the visitor if he/she is checked-out.
@@ -71,6 +116,14 @@ public class LogEntry {
 	public void IfCheckOut() {
 		_CheckOut = true;
 	}
+	/**
+	 * Undo the check-out of the visit, such as one that could not be recorded. The visit is
+	 * marked as not checked out before its left time is removed.
+	 */
+	public void UndoCheckOut() {
+		_CheckOut = false;
+		_LeftAt = NOT_LEFT;
+	}
 	/**
 	 * Access the the state representing whether the visitor is checked-out.
 	 * @return a boolean variable of the state.
@@ -79,17 +132,53 @@ public class LogEntry {
 		return _CheckOut;
 	}
 	/**
-	 * Add the left time to the object.
-	 *
+	 * Add the left time to the object. The visitor leaves on the check-in date, or on the day
+	 * after it if the time is earlier than the check-in time, as for a night shift.
+	 * @param LeftTime The check-out time (ISO8601 format).
+	 * @throws java.time.format.DateTimeParseException If the time is not in ISO8601 format.
 	 */
 	public void AddLeftTime(String LeftTime) {
-		_visitEndTime = LeftTime;
+		_LeftAt = LeftAt(_ArrivedAt, LeftTime);
 	}
 	/**
 	 * Access the left time (check-out time) of the object.
-	 * @return a string of check-out time.
+	 * @return a string of check-out time, or null if no left time was added.
 	 */
 	public String AccessLeftTime() {
-		return _visitEndTime;
+		long LeftAt = AccessLeftAt();
+		if (LeftAt == NOT_LEFT) {
+			return null;
+		}
+		return LocalTime.ofSecondOfDay(Math.floorMod(LeftAt, SECONDS_PER_DAY)).toString();
+	}
+	/**
+	 * Access the check-out date and time.
+	 * @return the seconds since 1970-01-01T00:00, or Long.MIN_VALUE if no left time was added.
+	 */
+	public long AccessLeftAt() {
+		return _LeftAt;
+	}
+	/**
+	 * Work out the check-out date and time of a visit, which ends on its check-in date, or on
+	 * the next day if the check-out time is earlier than the check-in time. A visit is taken to
+	 * last less than a day, since only the time of the check-out is given.
+	 * @param ArrivedAt The check-in date and time, in seconds since 1970-01-01T00:00.
+	 * @param LeftTime The check-out time (ISO8601 format).
+	 * @return the seconds since 1970-01-01T00:00, never before ArrivedAt.
+	 * @throws java.time.format.DateTimeParseException If the time is not in ISO8601 format.
+	 */
+	static long LeftAt(long ArrivedAt, String LeftTime) {
+		long LeftAt = Math.floorDiv(ArrivedAt, SECONDS_PER_DAY) * SECONDS_PER_DAY + LocalTime.parse(LeftTime).toSecondOfDay();
+		return LeftAt < ArrivedAt ? LeftAt + SECONDS_PER_DAY : LeftAt;      //Left after midnight.
+	}
+	/**
+	 * Convert a date and time to the seconds since 1970-01-01T00:00.
+	 * @param date A date (ISO8601 format).
+	 * @param time A time (ISO8601 format).
+	 * @return the seconds since 1970-01-01T00:00.
+	 * @throws java.time.format.DateTimeParseException If the date or time is not in ISO8601 format.
+	 */
+	public static long EpochSecond(String date, String time) {
+		return LocalDate.parse(date).toEpochDay() * SECONDS_PER_DAY + LocalTime.parse(time).toSecondOfDay();
 	}
 }
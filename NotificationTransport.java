@@ -0,0 +1,20 @@
+package visitorman;
+
+import java.io.IOException;
+
+/**
+ *
+ * @author chenh
+ * The NotificationTransport interface is meant to deliver the messages of a {@link HostNotifier},
+ * such as by email. {@link FileTransport} stands in for a mail server while testing.
+ *
+ */
+public interface NotificationTransport {
+	/**
+	 * Deliver a message to a host. This is only called from the notifier's own thread, so
+	 * it may take as long as it needs.
+	 * @param Message The message.
+	 * @throws IOException If the message could not be delivered; it is tried again later.
+	 */
+	void Send(HostNotification Message) throws IOException;
+}
@@ -0,0 +1,266 @@
+package visitorman;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * @author chenh
+ * The OffHeapStore class is meant to store visits outside the Java heap, so the garbage
+ * collector never traces or copies them, however many there are. Each visit is a fixed-width
+ * record of RECORD_SIZE bytes in direct memory: the check-in time, the check-out time, the
+ * visitor id (from the {@link VisitorRegistry}), the offset of the host email address, and the
+ * state of the visit. Each host email address is written once, as UTF-8, to a separate off-heap
+ * string area, and records hold its offset. A chunk of visits is one direct buffer, so the heap
+ * only holds a few objects per 2^CHUNK_BITS visits.
+ *
+ * The visits are read through views, as in {@link ColumnStore}; host email addresses are decoded
+ * from the string area when they are read, unless the view read the same address last. The
+ * record is written before the visit is marked as stored with a release write of its state, and
+ * readers wait for the mark with an acquire read, so they always see complete records. The
+ * check-out time is likewise written before the visit is marked as checked out.
+ *
+ * Direct memory is outside -Xmx and is limited by -XX:MaxDirectMemorySize instead. The memory of
+ * an evicted chunk is freed once the garbage collector finds its buffer unreachable.
+ *
+ */
+public class OffHeapStore implements VisitStore {
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int NO_HOST = -1;
+
+	//Below are the layout of a record, and the bits of its state.
+	private static final int RECORD_SIZE = 32;
+	private static final int ARRIVED_AT = 0;
+	private static final int LEFT_AT = 8;
+	private static final int VISITOR_ID = 16;
+	private static final int HOST = 20;
+	private static final int STATE = 24;
+	private static final long STORED = 1;
+	private static final long CHECKED_OUT = 2;
+
+	//Below are the size of a block of the string area, and the bits of an offset that give its place in its block.
+	private static final int BLOCK_BITS = 20;
+	private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private final VisitorRegistry _Visitors;
+	//Below are the chunks of records, and the blocks of the string area with the offsets of the host email addresses in it.
+	private volatile ByteBuffer[] _Chunks = new ByteBuffer[0];
+	private volatile ByteBuffer[] _Blocks = new ByteBuffer[0];
+	private final ConcurrentHashMap<String, Integer> _HostOffsets = new ConcurrentHashMap<String, Integer>();
+	private int _StringsEnd;
+
+	/**
+	 * Create an empty OffHeapStore object.
+	 * @param Visitors The registry giving the ids of visitors. The visitors of stored visits
+	 * are registered if they are not already.
+	 */
+	public OffHeapStore(VisitorRegistry Visitors) {
+		_Visitors = Visitors;
+	}
+	@Override
+	public void Set(int i, LogEntry Visit) {
+		ByteBuffer Chunk = Chunk(i);
+		int Record = (i & (CHUNK_SIZE - 1)) * RECORD_SIZE;
+		Chunk.putLong(Record + ARRIVED_AT, Visit.AccessArrivedAt());
+		Chunk.putLong(Record + LEFT_AT, Visit.AccessLeftAt());
+		Chunk.putInt(Record + VISITOR_ID, _Visitors.Resolve(Visit.AccessVisitor()).AccessId());
+		Chunk.putInt(Record + HOST, HostOffset(Visit.AccesshostEmail()));
+		LONGS.setRelease(Chunk, Record + STATE, Visit.Checkout() ? STORED | CHECKED_OUT : STORED);      //Publishes the record written above.
+	}
+	@Override
+	public LogEntry Get(int i, LogEntry Reuse) {
+		if (Chunk(i) == null) {
+			return null;
+		}
+		View Visit = Reuse instanceof View && ((View) Reuse).Store() == this ? (View) Reuse : new View();
+		return Visit.MoveTo(i);
+	}
+	@Override
+	public void Ensure(int Size) {
+		if (Size > 0) {
+			Chunk(Size - 1);
+		}
+	}
+	@Override
+	public long ArrivedAt(int i) {
+		if (Chunk(i) == null) {
+			return EVICTED;
+		}
+		return Stored(i).getLong((i & (CHUNK_SIZE - 1)) * RECORD_SIZE + ARRIVED_AT);
+	}
+	@Override
+	public synchronized void Evict(int Chunk) {
+		ByteBuffer[] Directory = _Chunks;
+		if (Chunk < Directory.length) {
+			ByteBuffer[] Evicted = Directory.clone();
+			Evicted[Chunk] = null;
+			_Chunks = Evicted;
+		}
+	}
+
+	/**
+	 * Return the chunk holding position i once the visit at i is stored.
+	 */
+	private ByteBuffer Stored(int i) {
+		ByteBuffer Chunk = Chunk(i);
+		int State = (i & (CHUNK_SIZE - 1)) * RECORD_SIZE + STATE;
+		while (((long) LONGS.getAcquire(Chunk, State) & STORED) == 0) {      //The position is reserved but the writer has not stored the visit yet.
+			Thread.onSpinWait();
+		}
+		return Chunk;
+	}
+
+	/**
+	 * Return the offset of a host email address in the string area, adding it if needed.
+	 */
+	private int HostOffset(String hostEmail) {
+		if (hostEmail == null) {
+			return NO_HOST;
+		}
+		Integer Offset = _HostOffsets.get(hostEmail);
+		if (Offset != null) {
+			return Offset;
+		}
+		return _HostOffsets.computeIfAbsent(hostEmail, this::AddString);
+	}
+
+	/**
+	 * Write a string to the end of the string area as its length and its UTF-8 bytes, in one
+	 * block, and return its offset. The directory of blocks is copied when it grows and
+	 * republished, so readers that found an offset always see its block.
+	 */
+	private synchronized int AddString(String Text) {
+		byte[] Bytes = Text.getBytes(StandardCharsets.UTF_8);
+		int Needed = Integer.BYTES + Bytes.length;
+		if (Needed > BLOCK_SIZE) {
+			throw new IllegalArgumentException("A host email address of " + Bytes.length + " bytes is too long");
+		}
+		ByteBuffer[] Blocks = _Blocks;
+		if (Blocks.length == 0 || _StringsEnd - ((Blocks.length - 1) << BLOCK_BITS) + Needed > BLOCK_SIZE) {
+			if (Blocks.length == 1 << (Integer.SIZE - 1 - BLOCK_BITS)) {
+				throw new IllegalStateException("The string area is full");
+			}
+			Blocks = Arrays.copyOf(Blocks, Blocks.length + 1);
+			Blocks[Blocks.length - 1] = Allocate(BLOCK_SIZE);
+			_Blocks = Blocks;
+			_StringsEnd = (Blocks.length - 1) << BLOCK_BITS;
+		}
+		int Offset = _StringsEnd;
+		ByteBuffer Block = Blocks[Offset >>> BLOCK_BITS];
+		Block.putInt(Offset & (BLOCK_SIZE - 1), Bytes.length);
+		Block.put((Offset & (BLOCK_SIZE - 1)) + Integer.BYTES, Bytes);
+		_StringsEnd += Needed;
+		return Offset;
+	}
+
+	/**
+	 * Read the string at an offset of the string area.
+	 */
+	private String ReadString(int Offset) {
+		ByteBuffer Block = _Blocks[Offset >>> BLOCK_BITS];
+		int At = Offset & (BLOCK_SIZE - 1);
+		byte[] Bytes = new byte[Block.getInt(At)];
+		Block.get(At + Integer.BYTES, Bytes);
+		return new String(Bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Return the chunk holding position i, adding chunks to the directory if needed, or null
+	 * if the chunk has been evicted.
+	 */
+	private ByteBuffer Chunk(int i) {
+		int c = i >>> CHUNK_BITS;
+		ByteBuffer[] Directory = _Chunks;
+		if (c < Directory.length) {
+			return Directory[c];
+		}
+		synchronized (this) {
+			Directory = _Chunks;
+			if (c >= Directory.length) {
+				//The directory is copied and republished, so readers always see allocated chunks.
+				ByteBuffer[] Grown = Arrays.copyOf(Directory, c + 1);
+				for (int j = Directory.length; j <= c; j++) {
+					Grown[j] = Allocate(CHUNK_SIZE * RECORD_SIZE);
+				}
+				_Chunks = Grown;
+				Directory = Grown;
+			}
+			return Directory[c];
+		}
+	}
+
+	/**
+	 * Allocate a zeroed direct buffer in native byte order, aligned so its longs can be read
+	 * and written atomically.
+	 */
+	private static ByteBuffer Allocate(int Size) {
+		return ByteBuffer.allocateDirect(Size + Long.BYTES - 1).alignedSlice(Long.BYTES).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * A view of the visit at one record, which can be moved to another position.
+	 * A view is not meant to be shared between threads.
+	 */
+	private class View extends LogEntry {
+		private ByteBuffer _Chunk;
+		private int _Record;
+		private int _HostOffset = NO_HOST;      //The last host email address read, so visits to one host decode it once.
+		private String _hostEmail;
+
+		View MoveTo(int i) {
+			_Chunk = Stored(i);
+			_Record = (i & (CHUNK_SIZE - 1)) * RECORD_SIZE;
+			return this;
+		}
+
+		OffHeapStore Store() {
+			return OffHeapStore.this;
+		}
+
+		@Override
+		public Party AccessVisitor() {
+			return _Visitors.Get(_Chunk.getInt(_Record + VISITOR_ID));
+		}
+		@Override
+		public String AccesshostEmail() {
+			int Host = _Chunk.getInt(_Record + HOST);
+			if (Host != _HostOffset) {
+				_hostEmail = Host == NO_HOST ? null : ReadString(Host);
+				_HostOffset = Host;
+			}
+			return _hostEmail;
+		}
+		@Override
+		public long AccessArrivedAt() {
+			return _Chunk.getLong(_Record + ARRIVED_AT);
+		}
+		@Override
+		public void IfCheckOut() {
+			LONGS.getAndBitwiseOrRelease(_Chunk, _Record + STATE, CHECKED_OUT);
+		}
+		@Override
+		public void UndoCheckOut() {
+			LONGS.getAndBitwiseAndRelease(_Chunk, _Record + STATE, ~CHECKED_OUT);
+			LONGS.setRelease(_Chunk, _Record + LEFT_AT, NOT_LEFT);
+		}
+		@Override
+		public boolean Checkout() {
+			return ((long) LONGS.getAcquire(_Chunk, _Record + STATE) & CHECKED_OUT) != 0;
+		}
+		@Override
+		public void AddLeftTime(String LeftTime) {
+			LONGS.setRelease(_Chunk, _Record + LEFT_AT, LeftAt(AccessArrivedAt(), LeftTime));
+		}
+		@Override
+		public long AccessLeftAt() {
+			return (long) LONGS.getAcquire(_Chunk, _Record + LEFT_AT);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package visitorman;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author chenh
+ * The OperationMetrics class is meant to count the calls of one VisitorMan operation and record
+ * their latencies in a {@link LatencyHistogram}. Every call is counted; the latency of a very
+ * fast operation, such as a host lookup, is only timed for a random sample of its calls, as
+ * reading the clock would otherwise cost a noticeable part of the call.
+ *
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+	/**
+	 * The start time given for calls that are not timed.
+	 */
+	static final long NOT_TIMED = Long.MIN_VALUE;
+
+	private final String _Name;
+	private final int _SampleMask;
+	private final LongAdder _Count = new LongAdder();
+	private final LatencyHistogram _Latencies = new LatencyHistogram();
+
+	/**
+	 * Create an OperationMetrics object for an operation.
+	 * @param Name The name of the operation.
+	 * @param SampleMask 0 to time every call, or one less than a power of two, to time one call
+	 * in that power of two.
+	 */
+	public OperationMetrics(String Name, int SampleMask) {
+		_Name = Name;
+		_SampleMask = SampleMask;
+	}
+	/**
+	 * Start a call of the operation.
+	 * @return The time the call started, to pass to {@link #Stop(long)}.
+	 */
+	public long Start() {
+		if (_SampleMask != 0 && (ThreadLocalRandom.current().nextInt() & _SampleMask) != 0) {
+			return NOT_TIMED;
+		}
+		return System.nanoTime();
+	}
+	/**
+	 * End a call of the operation, counting it and recording its latency if it was timed.
+	 * @param Started The value returned by {@link #Start()}.
+	 */
+	public void Stop(long Started) {
+		_Count.increment();
+		if (Started != NOT_TIMED) {
+			_Latencies.Record(System.nanoTime() - Started);
+		}
+	}
+	/**
+	 * Access the name of the operation.
+	 * @return The name, which is the name of the VisitorMan method.
+	 */
+	public String AccessName() {
+		return _Name;
+	}
+	/**
+	 * Access the latencies of the timed calls.
+	 * @return The histogram of latencies.
+	 */
+	public LatencyHistogram AccessLatencies() {
+		return _Latencies;
+	}
+
+	//Below are the attributes published over JMX.
+	@Override
+	public long getCount() {
+		return _Count.sum();
+	}
+	@Override
+	public double getMeanMicros() {
+		return _Latencies.Mean() / 1000;
+	}
+	@Override
+	public double getP50Micros() {
+		return _Latencies.ValueAt(50) / 1000.0;
+	}
+	@Override
+	public double getP90Micros() {
+		return _Latencies.ValueAt(90) / 1000.0;
+	}
+	@Override
+	public double getP99Micros() {
+		return _Latencies.ValueAt(99) / 1000.0;
+	}
+	@Override
+	public double getP999Micros() {
+		return _Latencies.ValueAt(99.9) / 1000.0;
+	}
+	@Override
+	public double getMaxMicros() {
+		return _Latencies.Max() / 1000.0;
+	}
+}
@@ -0,0 +1,39 @@
+package visitorman;
+
+/**
+ *
+ * @author chenh
+ * The OperationMetricsMBean interface is meant to publish the metrics of one VisitorMan
+ * operation over JMX, see {@link OperationMetrics}. Latencies are given in microseconds.
+ *
+ */
+public interface OperationMetricsMBean {
+	/**
+	 * @return The number of calls of the operation.
+	 */
+	long getCount();
+	/**
+	 * @return The mean latency of the timed calls.
+	 */
+	double getMeanMicros();
+	/**
+	 * @return The median latency of the timed calls.
+	 */
+	double getP50Micros();
+	/**
+	 * @return The 90th percentile latency of the timed calls.
+	 */
+	double getP90Micros();
+	/**
+	 * @return The 99th percentile latency of the timed calls.
+	 */
+	double getP99Micros();
+	/**
+	 * @return The 99.9th percentile latency of the timed calls.
+	 */
+	double getP999Micros();
+	/**
+	 * @return The largest latency of the timed calls.
+	 */
+	double getMaxMicros();
+}
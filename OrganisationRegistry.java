@@ -0,0 +1,237 @@
+package visitorman;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ *
+ * @author chenh
+ * The OrganisationRegistry class is meant to manage the visitors of many organisations at once,
+ * such as the tenants of a building with a shared front desk. Each organisation has its own
+ * VisitorMan object, so its own hosts, visitor log and visitors on site.
+ * Organisations are split between shards by the hash of their name. Each shard has one worker
+ * thread, which owns the organisations of that shard: every task for an organisation runs on
+ * its shard's thread, in the order the tasks were submitted, so busy tenants on different
+ * shards run on different cores without waiting for each other.
+ * Queries over the whole building are run by every shard on its own organisations at the same
+ * time, and the results of the shards are then merged.
+ *
+ */
+public class OrganisationRegistry {
+
+	//Below are the worker thread of each shard, and the organisations owned by each shard.
+	private final ExecutorService[] _Workers;
+	private final List<Map<String, VisitorMan>> _Organisations;
+
+	/**
+	 * Create an OrganisationRegistry object with one shard per processor.
+	 */
+	public OrganisationRegistry() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	/**
+	 * Create an OrganisationRegistry object with no organisations.
+	 * @param Shards The number of shards, and so of worker threads.
+	 */
+	public OrganisationRegistry(int Shards) {
+		if (Shards < 1) {
+			throw new IllegalArgumentException("There must be at least 1 shard");
+		}
+		_Workers = new ExecutorService[Shards];
+		_Organisations = new ArrayList<Map<String, VisitorMan>>(Shards);
+		for (int s = 0; s < Shards; s++) {
+			final int Shard = s;
+			_Workers[s] = Executors.newSingleThreadExecutor(Task -> {
+				Thread Worker = new Thread(Task, "visitorman-shard-" + Shard);
+				Worker.setDaemon(true);
+				return Worker;
+			});
+			_Organisations.add(new HashMap<String, VisitorMan>());      //Only used by the shard's thread.
+		}
+	}
+	/**
+	 * Add an organisation, with its visits stored as LogEntry objects.
+	 * @param Organisation The name of the organisation.
+	 * @return Completes with true if the organisation was added, or false if there already is
+	 * an organisation with that name.
+	 */
+	public CompletableFuture<Boolean> Add(String Organisation) {
+		return Add(Organisation, VisitStore.Layout.OBJECTS);
+	}
+	/**
+	 * Add an organisation, with its visits stored with the specified layout.
+	 * @param Organisation The name of the organisation.
+	 * @param Layout How the visits of the organisation are stored.
+	 * @return Completes with true if the organisation was added, or false if there already is
+	 * an organisation with that name.
+	 */
+	public CompletableFuture<Boolean> Add(String Organisation, VisitStore.Layout Layout) {
+		int s = Shard(Organisation);
+		return CompletableFuture.supplyAsync(() -> {
+			Map<String, VisitorMan> Owned = _Organisations.get(s);
+			if (Owned.containsKey(Organisation)) {
+				return false;
+			}
+			Owned.put(Organisation, new VisitorMan(Organisation, Layout));
+			return true;
+		}, _Workers[s]);
+	}
+	/**
+	 * Remove an organisation, closing its VisitorMan object.
+	 * @param Organisation The name of the organisation.
+	 * @return Completes with true if the organisation was removed, or false if there is no
+	 * organisation with that name; completes exceptionally if it could not be closed.
+	 */
+	public CompletableFuture<Boolean> Remove(String Organisation) {
+		int s = Shard(Organisation);
+		return CompletableFuture.supplyAsync(() -> {
+			VisitorMan Removed = _Organisations.get(s).remove(Organisation);
+			if (Removed == null) {
+				return false;
+			}
+			try {
+				Removed.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return true;
+		}, _Workers[s]);
+	}
+	/**
+	 * Run a task on the VisitorMan object of an organisation, on the thread of its shard.
+	 * Tasks for the same organisation run one at a time, in the order they were submitted.
+	 * @param <T> The type of the result of the task.
+	 * @param Organisation The name of the organisation.
+	 * @param Task The task, such as {@code v -> v.getVisitorsOnSite()}.
+	 * @return Completes with the result of the task, or exceptionally with an
+	 * IllegalArgumentException if there is no organisation with that name.
+	 */
+	public <T> CompletableFuture<T> Submit(String Organisation, Function<VisitorMan, T> Task) {
+		int s = Shard(Organisation);
+		return CompletableFuture.supplyAsync(() -> {
+			VisitorMan Owner = _Organisations.get(s).get(Organisation);
+			if (Owner == null) {
+				throw new IllegalArgumentException("There is no organisation named " + Organisation);
+			}
+			return Task.apply(Owner);
+		}, _Workers[s]);
+	}
+	/**
+	 * Run a task on every organisation, with the shards running at the same time, and merge
+	 * the results.
+	 * @param <T> The type of the result of the task.
+	 * @param Task The task, such as {@code v -> v.getVisitorsOnSite()}.
+	 * @return Completes with the result of the task for each organisation, by name.
+	 */
+	public <T> CompletableFuture<SortedMap<String, T>> SubmitToAll(Function<VisitorMan, T> Task) {
+		List<CompletableFuture<Map<String, T>>> Parts = new ArrayList<CompletableFuture<Map<String, T>>>(_Workers.length);
+		for (int s = 0; s < _Workers.length; s++) {
+			final int Shard = s;
+			Parts.add(CompletableFuture.supplyAsync(() -> {
+				Map<String, T> Part = new HashMap<String, T>();
+				for (Map.Entry<String, VisitorMan> Owned : _Organisations.get(Shard).entrySet()) {
+					Part.put(Owned.getKey(), Task.apply(Owned.getValue()));
+				}
+				return Part;
+			}, _Workers[s]));
+		}
+		return CompletableFuture.allOf(Parts.toArray(new CompletableFuture<?>[0])).thenApply(Done -> {
+			SortedMap<String, T> Merged = new TreeMap<String, T>();
+			for (CompletableFuture<Map<String, T>> Part : Parts) {
+				Merged.putAll(Part.join());
+			}
+			return Merged;
+		});
+	}
+	/**
+	 * Return the names of all the organisations.
+	 * @return A new list of the names, in alphabetical order.
+	 */
+	public List<String> GetOrganisations() {
+		return new ArrayList<String>(Await(SubmitToAll(Owner -> Boolean.TRUE)).keySet());
+	}
+	/**
+	 * Return a report of everyone on site in the building: the visitors on site of each
+	 * organisation that has any, in the format of {@link VisitorMan#getVisitorsOnSite()}.
+	 * @return The visitors on site, by the name of the organisation they are visiting, in
+	 * alphabetical order.
+	 */
+	public SortedMap<String, List<String>> GetVisitorsOnSite() {
+		SortedMap<String, List<String>> OnSite = Await(SubmitToAll(VisitorMan::getVisitorsOnSite));
+		OnSite.values().removeIf(List::isEmpty);
+		return OnSite;
+	}
+	/**
+	 * Access the number of visitors on site in the whole building.
+	 * @return The number of visitors on site of all organisations.
+	 */
+	public int NumOnSite() {
+		int OnSite = 0;
+		for (int Visitors : Await(SubmitToAll(Owner -> Owner.getMetrics().getOnSite())).values()) {
+			OnSite += Visitors;
+		}
+		return OnSite;
+	}
+	/**
+	 * Close the VisitorMan object of every organisation and stop the worker threads.
+	 * @throws IOException If any organisation could not be closed; the others are still closed.
+	 */
+	public void Close() throws IOException {
+		List<IOException> Failures = Collections.synchronizedList(new ArrayList<IOException>());
+		Await(SubmitToAll(Owner -> {
+			try {
+				Owner.close();
+			} catch (IOException e) {
+				Failures.add(e);
+			}
+			return Boolean.TRUE;
+		}));
+		for (ExecutorService Worker : _Workers) {
+			Worker.shutdown();
+		}
+		try {
+			for (ExecutorService Worker : _Workers) {
+				Worker.awaitTermination(1, TimeUnit.MINUTES);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!Failures.isEmpty()) {
+			throw Failures.get(0);
+		}
+	}
+
+	/**
+	 * Return the shard that owns an organisation.
+	 */
+	private int Shard(String Organisation) {
+		return Math.floorMod(Organisation.hashCode(), _Workers.length);
+	}
+
+	/**
+	 * Wait for a result, rethrowing the failure of a task as it was thrown.
+	 */
+	private static <T> T Await(CompletableFuture<T> Result) {
+		try {
+			return Result.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+}
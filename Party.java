@@ -1,5 +1,8 @@
 package visitorman;
 
+import java.util.Locale;
+import java.util.Objects;
+
 /**
  * 
  * @author chenh
@@ -14,6 +17,13 @@ public class Party {
 	private String _Gname;
 	private String _email;
 	private String _Organisation;
+	//Below are the cached names and descriptions, each created the first time it is needed.
+	private String _VisitorDetail;
+	private String _FormalName;
+	private String _FormalVisitorDetail;
+	private String _HostDetail;
+	//Below is the id given by the VisitorRegistry, or -1 if the party is not registered there.
+	private int _Id = -1;
 	/**
 	 * 
 	 * Create a Party object to store those information mentioned above.
@@ -57,4 +67,97 @@ public class Party {
 	public String AccessOrganisation() {
 		return _Organisation;
 	}
+	/**
+	 * Access the description of the party as a visitor, with the format
+	 * INFORMAL_NAME " (" ORGANISATION "). " EMAIL_ADDRESS
+	 * The description is only built once per party.
+	 * @return a string describing the visitor.
+	 */
+	public String AccessVisitorDetail() {
+		String Detail = _VisitorDetail;
+		if (Detail == null) {
+			Detail = _Gname + " " + _Fname + " (" + _Organisation + "). " + _email;
+			_VisitorDetail = Detail;
+		}
+		return Detail;
+	}
+	/**
+	 * Access the formal name of the party, with the format
+	 * FAMILY_NAME ", " GIVEN_NAME
+	 * The name is only built once per party.
+	 * @return a string of the formal name.
+	 */
+	public String AccessFormalName() {
+		String Name = _FormalName;
+		if (Name == null) {
+			Name = _Fname + ", " + _Gname;
+			_FormalName = Name;
+		}
+		return Name;
+	}
+	/**
+	 * Access the description of the party as a visitor in the visitor log, with the format
+	 * FORMAL_NAME " (" ORGANISATION "). " EMAIL_ADDRESS
+	 * The description is only built once per party.
+	 * @return a string describing the visitor.
+	 */
+	public String AccessFormalVisitorDetail() {
+		String Detail = _FormalVisitorDetail;
+		if (Detail == null) {
+			Detail = AccessFormalName() + " (" + _Organisation + "). " + _email;
+			_FormalVisitorDetail = Detail;
+		}
+		return Detail;
+	}
+	/**
+	 * Access the description of the party as a host, with the format
+	 * FORMAL_NAME ". " EMAIL_ADDRESS
+	 * The description is only built once per party.
+	 * @return a string describing the host.
+	 */
+	public String AccessHostDetail() {
+		String Detail = _HostDetail;
+		if (Detail == null) {
+			Detail = AccessFormalName() + ". " + _email;
+			_HostDetail = Detail;
+		}
+		return Detail;
+	}
+	/**
+	 * Access the id of the party in the VisitorRegistry.
+	 * @return the id of the party, or -1 if it is not a registered visitor.
+	 */
+	public int AccessId() {
+		return _Id;
+	}
+	/**
+	 * Check whether the party has exactly the specified details.
+	 * @param Fname Family name.
+	 * @param Gname Given name.
+	 * @param email Email address.
+	 * @param Organisation Organisation name.
+	 * @return true if all the details are equal to those of the party.
+	 */
+	public boolean HasDetails(String Fname, String Gname, String email, String Organisation) {
+		return Objects.equals(_email, email) && Objects.equals(_Fname, Fname)
+				&& Objects.equals(_Gname, Gname) && Objects.equals(_Organisation, Organisation);
+	}
+	/**
+	 * Give the party its id; only called by the VisitorRegistry.
+	 */
+	void AssignId(int id) {
+		_Id = id;
+	}
+	/**
+	 * Normalise an email address so that addresses differing only in case or
+	 * surrounding spaces are treated as the same address.
+	 * @param email The email address to normalise.
+	 * @return The normalised email address, or null if email is null.
+	 */
+	public static String NormaliseEmail(String email) {
+		if (email == null) {
+			return null;
+		}
+		return email.trim().toLowerCase(Locale.ROOT);
+	}
 }
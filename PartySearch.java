@@ -0,0 +1,482 @@
+package visitorman;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ *
+ * @author chenh
+ * The PartySearch class is meant to find hosts and returning visitors from part of a name, as
+ * reception staff type it: "Dorn" finds Gaal Dornick and "Venab" finds Dors Venabili.
+ * The family name, given name, organisation and email address of each party are split into
+ * words, and each word is a term of a sorted term dictionary, so the terms that start with
+ * what was typed are one range of it. A word with a typo ("Dornik") finds the terms that start
+ * within one or two edits of it: the dictionary is walked as a trie, and every range of terms
+ * whose start is already too many edits away is skipped at once.
+ * Parties are ranked by how well each word typed matches: a whole term before the start of a
+ * term before a typo, and a name before an organisation or email address. Typos are only
+ * looked for when fewer parties than asked for match without them.
+ * Each party has a slot, and the parties with a term are kept as an array of slots, so a
+ * search adds up scores in an array of ints kept by each thread rather than in maps.
+ * The index is kept up to date by the {@link HostRegistry} and {@link VisitorRegistry} as
+ * parties are registered, see {@link VisitorMan#findHosts(String, int)}. A visitor is only
+ * found with his/her latest details. Searches do not lock, so they may miss a party that is
+ * being registered at the same time.
+ *
+ */
+public class PartySearch {
+	//Below are the scores of a word matching a whole term, the start of a term, and a term with typos,
+	//and what is added when the term is in a name.
+	private static final int EXACT = 6;
+	private static final int PREFIX = 4;
+	private static final int FUZZY = 2;
+	private static final int NAME = 1;
+	//Below are the lengths of a word from which one or two typos are allowed.
+	private static final int ONE_EDIT = 4;
+	private static final int TWO_EDITS = 8;
+
+	//Below are the terms in order, each with the postings of the parties that have it.
+	private final ConcurrentSkipListMap<String, Postings> _Terms = new ConcurrentSkipListMap<String, Postings>();
+	//Below are the parties and the first letters of their names by slot; slots are not reused.
+	private volatile Indexed[] _Parties = new Indexed[64];
+	private volatile long[] _SortKeys = new long[64];
+	private int _NumParties;
+	//Below are the parties indexed, by normalised email address; only changed while holding the lock.
+	private final Map<String, Indexed> _Hosts = new HashMap<String, Indexed>();
+	private final Map<String, Indexed> _Visitors = new HashMap<String, Indexed>();
+	private final ThreadLocal<Scratch> _Scratch = ThreadLocal.withInitial(Scratch::new);
+
+	/**
+	 * Create an empty PartySearch object.
+	 */
+	public PartySearch() {
+	}
+	/**
+	 * Find the parties that best match some text. Every word of the text must match a word of
+	 * the party's names, organisation or email address.
+	 * @param Text What was typed, such as "Dorn" or "gaal corp".
+	 * @param Limit The most parties to return.
+	 * @param Hosts true to find hosts, false to find visitors.
+	 * @return A new list of at most Limit parties, the best match first; parties that match
+	 * equally well are in order of formal name.
+	 */
+	public List<Party> Find(String Text, int Limit, boolean Hosts) {
+		List<String> Words = Words(Text);
+		if (Words.isEmpty() || Limit <= 0) {
+			return new ArrayList<Party>();
+		}
+		Indexed[] Parties = _Parties;      //Read before the sort keys, which are published first, so they are never shorter.
+		long[] SortKeys = _SortKeys;
+		Scratch Work = _Scratch.get();
+		Work.Fit(Parties.length);
+		try {
+			if (Match(Work, Words, Hosts, false) < Limit) {
+				Work.Clear();
+				Match(Work, Words, Hosts, true);
+			}
+			return Rank(Work, Parties, SortKeys, Words.size(), Limit);
+		} finally {
+			Work.Clear();
+		}
+	}
+	/**
+	 * Access the number of terms in the index.
+	 * @return The number of terms.
+	 */
+	public int Terms() {
+		return _Terms.size();
+	}
+
+	/**
+	 * Add a party, replacing any party of the same kind with the same email address, such as
+	 * an earlier Party object of a visitor whose details changed.
+	 */
+	synchronized void Add(Party Added, boolean Host) {
+		String EmailKey = Party.NormaliseEmail(Added.AccessEmail());
+		Indexed[] Parties = _Parties;
+		long[] SortKeys = _SortKeys;
+		if (_NumParties == Parties.length) {
+			SortKeys = Arrays.copyOf(SortKeys, Parties.length * 2);
+			Parties = Arrays.copyOf(Parties, Parties.length * 2);
+		}
+		Indexed Entry = new Indexed(Added, Host, _NumParties);
+		SortKeys[_NumParties] = Entry.SortKey();
+		Parties[_NumParties++] = Entry;
+		_SortKeys = SortKeys;      //Published first, so it is never shorter than the parties.
+		_Parties = Parties;
+		Indexed Old = (Host ? _Hosts : _Visitors).put(EmailKey == null ? "" : EmailKey, Entry);
+		if (Old != null) {
+			Unindex(Old);
+		}
+		for (Map.Entry<String, Boolean> Word : Words(Added).entrySet()) {
+			_Terms.computeIfAbsent(Word.getKey(), Key -> new Postings()).Add(Entry.Posting(Word.getValue()));
+		}
+	}
+
+	/**
+	 * Remove a party, if it is the one indexed for its email address.
+	 */
+	synchronized void Remove(Party Removed, boolean Host) {
+		String EmailKey = Party.NormaliseEmail(Removed.AccessEmail());
+		Map<String, Indexed> Parties = Host ? _Hosts : _Visitors;
+		Indexed Entry = Parties.get(EmailKey == null ? "" : EmailKey);
+		if (Entry != null && Entry._Party == Removed) {
+			Parties.remove(EmailKey == null ? "" : EmailKey);
+			Unindex(Entry);
+		}
+	}
+
+	private void Unindex(Indexed Entry) {
+		_Parties[Entry._Slot] = null;
+		for (Map.Entry<String, Boolean> Word : Words(Entry._Party).entrySet()) {
+			Postings Indexed = _Terms.get(Word.getKey());
+			if (Indexed != null && Indexed.Remove(Entry.Posting(Word.getValue())) && Indexed._Size == 0) {
+				_Terms.remove(Word.getKey());      //The last party with the term, so the term goes too.
+			}
+		}
+	}
+
+	/**
+	 * Score the parties that match every word, adding up the score of each word's best match,
+	 * count how many have each score, and return how many there are.
+	 */
+	private int Match(Scratch Work, List<String> Words, boolean Hosts, boolean Fuzzy) {
+		int[] State = Work._State;
+		int Found = 0;
+		Work._Counts = new int[(EXACT + NAME) * Words.size() + 1];
+		for (int w = 0; w < Words.size(); w++) {
+			String Word = Words.get(w);
+			for (Map.Entry<String, Postings> Term : _Terms.subMap(Word, Word + Character.MAX_VALUE).entrySet()) {
+				Score(Work, Term.getValue(), Term.getKey().length() == Word.length() ? EXACT : PREFIX, Hosts, w);
+			}
+			if (Fuzzy) {
+				for (Postings Term : Similar(Word)) {
+					Score(Work, Term, FUZZY, Hosts, w);
+				}
+			}
+			int[] Touched = Work._Touched._Items;
+			for (int t = 0, Size = Work._Touched._Size; t < Size; t++) {
+				int At = Touched[t] * Scratch.STRIDE;
+				if (State[At + Scratch.WORDS] == w) {      //Matched every word so far.
+					State[At + Scratch.TOTAL] += State[At + Scratch.BEST];
+					State[At + Scratch.WORDS] = w + 1;
+					if (w == 0) {
+						Work._Found.Add(Touched[t]);
+					}
+					if (w == Words.size() - 1) {
+						Work._Counts[State[At + Scratch.TOTAL]]++;
+						Found++;
+					}
+				}
+				State[At + Scratch.BEST] = 0;
+			}
+			Work._Touched._Size = 0;
+		}
+		return Found;
+	}
+
+	/**
+	 * Keep the best score of a word for each party with a term.
+	 */
+	private static void Score(Scratch Work, Postings Term, int Score, boolean Hosts, int Word) {
+		int Size = Term._Size;
+		int[] Postings = Term._Items;
+		int[] State = Work._State;
+		int Kind = Hosts ? 2 : 0;
+		for (int p = 0; p < Size; p++) {
+			int Posting = Postings[p];
+			int Slot = Posting >>> 2;
+			if ((Posting & 2) != Kind || Slot >= Work._Slots) {      //Slots added since the search began are left out.
+				continue;
+			}
+			int At = Slot * Scratch.STRIDE;
+			if (State[At + Scratch.WORDS] != Word) {
+				continue;
+			}
+			int Scored = Score + ((Posting & 1) == 0 ? 0 : NAME);
+			if (State[At + Scratch.BEST] == 0) {
+				Work._Touched.Add(Slot);
+			}
+			State[At + Scratch.BEST] = Math.max(State[At + Scratch.BEST], Scored);
+		}
+	}
+
+	/**
+	 * Return the best Limit parties that matched every word. Names are only compared among the
+	 * parties with the lowest score that makes the cut, and mostly by their first letters.
+	 */
+	private static List<Party> Rank(Scratch Work, Indexed[] Parties, long[] SortKeys, int Words, int Limit) {
+		int[] State = Work._State;
+		int[] Counts = Work._Counts;
+		int Cut = Counts.length - 1;
+		for (int Above = Counts[Cut]; Cut > 0 && Above < Limit; Above += Counts[Cut]) {
+			Cut--;
+		}
+		Comparator<Integer> Order = (First, Second) -> Compare(State, Parties, SortKeys, First, Second);
+		PriorityQueue<Integer> Best = new PriorityQueue<Integer>(Math.min(Limit, Work._Found._Size) + 1, Order.reversed());
+		for (int f = 0; f < Work._Found._Size; f++) {
+			int Slot = Work._Found._Items[f];
+			int At = Slot * Scratch.STRIDE;
+			if (State[At + Scratch.WORDS] != Words || State[At + Scratch.TOTAL] < Cut) {
+				continue;
+			}
+			if (Best.size() < Limit || Compare(State, Parties, SortKeys, Slot, Best.peek()) < 0) {
+				Best.add(Slot);
+				if (Best.size() > Limit) {
+					Best.poll();
+				}
+			}
+		}
+		List<Integer> Ranked = new ArrayList<Integer>(Best);
+		Ranked.sort(Order);
+		List<Party> Found = new ArrayList<Party>(Ranked.size());
+		for (int Slot : Ranked) {
+			if (Parties[Slot] != null) {      //Unless removed since it was found.
+				Found.add(Parties[Slot]._Party);
+			}
+		}
+		return Found;
+	}
+
+	/**
+	 * Compare two parties found by a search: the higher score first, then by formal name and email address.
+	 */
+	private static int Compare(int[] State, Indexed[] Parties, long[] SortKeys, int First, int Second) {
+		int FirstTotal = State[First * Scratch.STRIDE + Scratch.TOTAL];
+		int SecondTotal = State[Second * Scratch.STRIDE + Scratch.TOTAL];
+		if (FirstTotal != SecondTotal) {
+			return FirstTotal > SecondTotal ? -1 : 1;
+		}
+		int Order = Long.compareUnsigned(SortKeys[First], SortKeys[Second]);
+		if (Order != 0 || Parties[First] == null || Parties[Second] == null) {
+			return Order;
+		}
+		return Parties[First]._Key.compareTo(Parties[Second]._Key);
+	}
+
+	/**
+	 * Return the postings of the terms that start with the word give or take one or two typos.
+	 * Consecutive terms share the rows of the edit distance table for the letters they share.
+	 * Once the start of a term is near enough to the whole word, or too far from every start of
+	 * it, the same goes for all the terms with that start, so they are taken or skipped at once.
+	 */
+	private List<Postings> Similar(String Word) {
+		List<Postings> Similar = new ArrayList<Postings>();
+		int Edits = Word.length() >= TWO_EDITS ? 2 : Word.length() >= ONE_EDIT ? 1 : 0;
+		if (Edits == 0) {
+			return Similar;
+		}
+		int Length = Word.length();
+		int[][] Rows = new int[Length + Edits + 1][Length + 1];      //Rows[d][i]: edits between d letters of the term and i of the word.
+		for (int i = 0; i <= Length; i++) {
+			Rows[0][i] = i;
+		}
+		String Previous = "";
+		String Term = _Terms.isEmpty() ? null : _Terms.firstKey();
+		while (Term != null) {
+			int Shared = 0;
+			while (Shared < Previous.length() && Shared < Term.length() && Previous.charAt(Shared) == Term.charAt(Shared)) {
+				Shared++;
+			}
+			Previous = Term;
+			String Next = null;
+			for (int d = Shared + 1; d <= Term.length() && Next == null; d++) {      //Always decided by d = Length + Edits.
+				int Lowest = Rows[d][0] = d;
+				for (int i = 1; i <= Length; i++) {
+					int Substitute = Rows[d - 1][i - 1] + (Term.charAt(d - 1) == Word.charAt(i - 1) ? 0 : 1);
+					Rows[d][i] = Math.min(Substitute, Math.min(Rows[d - 1][i], Rows[d][i - 1]) + 1);
+					Lowest = Math.min(Lowest, Rows[d][i]);
+				}
+				String Start = Term.substring(0, d);
+				if (Rows[d][Length] <= Edits) {
+					if (Rows[d][Length] > 0) {      //Terms that start with the word itself were already found.
+						Similar.addAll(_Terms.subMap(Start, Start + Character.MAX_VALUE).values());
+					}
+					Next = Start + Character.MAX_VALUE;
+				} else if (Lowest > Edits) {
+					Next = Start + Character.MAX_VALUE;
+				}
+			}
+			Term = _Terms.higherKey(Next == null ? Term : Next);
+		}
+		return Similar;
+	}
+
+	/**
+	 * Return the words of a party, each with whether it is in a name.
+	 */
+	private static Map<String, Boolean> Words(Party Indexed) {
+		Map<String, Boolean> Words = new LinkedHashMap<String, Boolean>();
+		for (String Word : Words(Indexed.AccessFname())) {
+			Words.put(Word, true);
+		}
+		for (String Word : Words(Indexed.AccessGname())) {
+			Words.put(Word, true);
+		}
+		for (String Word : Words(Indexed.AccessOrganisation())) {
+			Words.putIfAbsent(Word, false);
+		}
+		for (String Word : Words(Indexed.AccessEmail())) {
+			Words.putIfAbsent(Word, false);
+		}
+		return Words;
+	}
+
+	/**
+	 * Split text into lower case words of letters and digits, without accents, so "Zo\u00EB
+	 * O'Brien" has the words "zoe", "o" and "brien".
+	 */
+	static List<String> Words(String Text) {
+		List<String> Words = new ArrayList<String>(4);
+		if (Text == null) {
+			return Words;
+		}
+		String Plain = Text;
+		for (int i = 0; i < Text.length(); i++) {
+			if (Text.charAt(i) > 127) {
+				Plain = Normalizer.normalize(Text, Normalizer.Form.NFD).replaceAll("\\p{M}+", "");
+				break;
+			}
+		}
+		Plain = Plain.toLowerCase(Locale.ROOT);
+		int Start = -1;
+		for (int i = 0; i <= Plain.length(); i++) {
+			boolean InWord = i < Plain.length() && Character.isLetterOrDigit(Plain.charAt(i));
+			if (InWord && Start < 0) {
+				Start = i;
+			} else if (!InWord && Start >= 0) {
+				Words.add(Plain.substring(Start, i));
+				Start = -1;
+			}
+		}
+		return Words;
+	}
+
+	/**
+	 * A party in the index, ordered by formal name and then email address when ranked.
+	 */
+	private static class Indexed {
+		final Party _Party;
+		final boolean _Host;
+		final int _Slot;
+		final String _Key;
+
+		Indexed(Party Indexed, boolean Host, int Slot) {
+			_Party = Indexed;
+			_Host = Host;
+			_Slot = Slot;
+			_Key = (Indexed.AccessFormalName() + "\n" + Indexed.AccessEmail()).toLowerCase(Locale.ROOT);
+		}
+
+		/**
+		 * Return the first four characters of the key, in a long that sorts in the same order.
+		 */
+		long SortKey() {
+			long Key = 0;
+			for (int i = 0; i < 4; i++) {
+				Key = Key << 16 | (i < _Key.length() ? _Key.charAt(i) : 0);
+			}
+			return Key;
+		}
+
+		/**
+		 * Return the entry of the party in the postings of a term: its slot, whether it is a
+		 * host, and whether the term is in its name.
+		 */
+		int Posting(boolean InName) {
+			return _Slot << 2 | (_Host ? 2 : 0) | (InName ? 1 : 0);
+		}
+	}
+
+	/**
+	 * The postings of the parties with a term, as a growing array of ints changed while
+	 * holding the lock of the PartySearch object. A reader takes the size and then the array,
+	 * so it always sees that many entries.
+	 */
+	private static class Postings {
+		volatile int[] _Items = new int[1];
+		volatile int _Size;
+
+		void Add(int Item) {
+			int[] Items = _Items;
+			if (_Size == Items.length) {
+				Items = Arrays.copyOf(Items, Items.length * 2);
+				_Items = Items;
+			}
+			Items[_Size] = Item;
+			_Size = _Size + 1;
+		}
+
+		/**
+		 * Remove an entry by moving the last entry into its place.
+		 */
+		boolean Remove(int Item) {
+			int[] Items = _Items;
+			for (int i = 0; i < _Size; i++) {
+				if (Items[i] == Item) {
+					Items[i] = Items[_Size - 1];
+					_Size = _Size - 1;
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * The state a thread adds up scores in: for each slot, the best score of the current word,
+	 * the total of the earlier words and how many words matched, side by side so a slot is
+	 * read from one cache line. It is all 0 again after each search.
+	 */
+	private static class Scratch {
+		static final int STRIDE = 4;
+		static final int BEST = 0;
+		static final int TOTAL = 1;
+		static final int WORDS = 2;
+
+		int[] _State = new int[0];
+		int[] _Counts;
+		int _Slots;
+		final IntList _Touched = new IntList();
+		final IntList _Found = new IntList();
+
+		void Fit(int Parties) {
+			_Slots = Parties;
+			if (_State.length < Parties * STRIDE) {
+				_State = new int[Parties * STRIDE];
+			}
+		}
+
+		void Clear() {
+			for (int f = 0; f < _Found._Size; f++) {
+				_State[_Found._Items[f] * STRIDE + TOTAL] = 0;
+				_State[_Found._Items[f] * STRIDE + WORDS] = 0;
+			}
+			_Found._Size = 0;
+		}
+	}
+
+	/**
+	 * A growing array of ints used by one thread.
+	 */
+	private static class IntList {
+		int[] _Items = new int[64];
+		int _Size;
+
+		void Add(int Item) {
+			if (_Size == _Items.length) {
+				_Items = Arrays.copyOf(_Items, _Size * 2);
+			}
+			_Items[_Size++] = Item;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package visitorman;
 
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.List;
 /**
@@ -7,15 +8,18 @@ import java.util.List;
  * @author chenh
  * The PartytoString class is meant to provide strings  or list of strings in different formatting 
  * of a given party object or a list of party objects. 2 objects are included. 
- * 
+ * The names and descriptions of a party are built once and cached by the party itself.
+ * The lines of the visitor log are appended to a StringBuilder given by the caller, which 
+ * may be reused for every line, so a report does not build each line from temporary strings.
  * 
  *
  */
 public class PartytoString {
 	
+	private static final long SECONDS_PER_DAY = 24 * 60 * 60;
 	//Below are fields including List<Party> and String types.
-	private List<String> _VisitorsDetail = new ArrayList<String>();
-	private List<String> _HostsDetail = new ArrayList<String>();
+	private List<String> _VisitorsDetail;
+	private List<String> _HostsDetail;
 	private List<Party> _PartyDetail = new ArrayList<Party>();
 	private Party _Party;
 	private String _OneVisitor;
@@ -35,9 +39,9 @@ public class PartytoString {
 	 * @return A list of string describing the host in the formatting "with format FORMAL_NAME ". " EMAIL_ADDRESS."
 	 */
 	public List<String> GetHostsDetail (){
+		_HostsDetail = new ArrayList<String>(_PartyDetail.size());
 		for (int i = 0; i<_PartyDetail.size(); i++) {
-			Party CurrentDetail = _PartyDetail.get(i);
-			_HostsDetail.add(i, CurrentDetail.AccessFname() + ", " + CurrentDetail.AccessGname() + ". " + CurrentDetail.AccessEmail());
+			_HostsDetail.add(i, _PartyDetail.get(i).AccessHostDetail());
 		}
 		return _HostsDetail;
 	}
@@ -51,10 +55,9 @@ public class PartytoString {
 	 * 
 	 */
 	public List<String> GetVisitorssDetail (){
+		_VisitorsDetail = new ArrayList<String>(_PartyDetail.size());
 		for (int i = 0; i<_PartyDetail.size(); i++) {
-			Party CurrentDetail = _PartyDetail.get(i);
-			_VisitorsDetail.add(i, CurrentDetail.AccessGname()+ " " + CurrentDetail.AccessFname()+ " (" +
-					CurrentDetail.AccessOrganisation() + "). "+ CurrentDetail.AccessEmail());
+			_VisitorsDetail.add(i, _PartyDetail.get(i).AccessVisitorDetail());
 		}
 		return _VisitorsDetail;
 	}
@@ -71,8 +74,88 @@ public class PartytoString {
 	 * @return A string representing the state of PartyDetail.
 	 */
 	public String GetOneVisitorDetail() {
-		_OneVisitor = _Party.AccessFname()+ ", " + _Party.AccessGname()+ " (" +
-				_Party.AccessOrganisation() + "). "+ _Party.AccessEmail();
+		_OneVisitor = _Party.AccessFormalVisitorDetail();
 		return _OneVisitor;
 	}
+	/**
+	 * Append the line of the visitor log report for one visit, with the format
+	 * FORMAL_NAME " (" ORGANISATION "). " EMAIL_ADDRESS [" visiting " HOST_FORMAL_NAME] 
+	 * ". Arrived:" DATE "T" TIME "." (" Left:" TIME | " On site.")
+	 * Nothing but the line itself is allocated once the names of the parties are cached.
+	 * @param Line The StringBuilder to append to.
+	 * @param Visit The visit.
+	 * @param Host The host of the visit, or null if the host is not registered.
+	 * @return Line.
+	 */
+	public static StringBuilder AppendVisitLine(StringBuilder Line, LogEntry Visit, Party Host) {
+		Line.append(Visit.AccessVisitor().AccessFormalVisitorDetail());
+		if (Host != null) {
+			Line.append(" visiting ").append(Host.AccessFormalName());
+		}
+		long ArrivedAt = Visit.AccessArrivedAt();
+		Line.append(". Arrived:");
+		AppendDate(Line, Math.floorDiv(ArrivedAt, SECONDS_PER_DAY));
+		Line.append('T');
+		AppendTime(Line, (int) Math.floorMod(ArrivedAt, SECONDS_PER_DAY));
+		Line.append('.');
+		if (Visit.Checkout()) {            //Check whether the visitor have checked out and report the state.
+			long LeftAt = Visit.AccessLeftAt();
+			Line.append(" Left:");
+			if (LeftAt == LogEntry.NOT_LEFT) {
+				Line.append((String) null);
+			} else {
+				AppendTime(Line, (int) Math.floorMod(LeftAt, SECONDS_PER_DAY));
+			}
+		} else {
+			Line.append(" On site.");
+		}
+		return Line;
+	}
+	/**
+	 * Append a date in ISO8601 format, the same as {@link LocalDate#toString()}.
+	 * @param Line The StringBuilder to append to.
+	 * @param EpochDay The number of days since 1970-01-01.
+	 */
+	public static void AppendDate(StringBuilder Line, long EpochDay) {
+		LocalDate Date = LocalDate.ofEpochDay(EpochDay);
+		int Year = Date.getYear();
+		if (Year < 0 || Year > 9999) {      //Years outside 4 digits have a sign, so leave them to LocalDate.
+			Line.append(Date.toString());
+			return;
+		}
+		AppendDigits(Line, Year, 4);
+		Line.append('-');
+		AppendDigits(Line, Date.getMonthValue(), 2);
+		Line.append('-');
+		AppendDigits(Line, Date.getDayOfMonth(), 2);
+	}
+	/**
+	 * Append a time in ISO8601 format, the same as {@link java.time.LocalTime#toString()}:
+	 * to the minute, or to the second if the seconds are not zero.
+	 * @param Line The StringBuilder to append to.
+	 * @param SecondOfDay The seconds since midnight.
+	 */
+	public static void AppendTime(StringBuilder Line, int SecondOfDay) {
+		AppendDigits(Line, SecondOfDay / 3600, 2);
+		Line.append(':');
+		AppendDigits(Line, SecondOfDay / 60 % 60, 2);
+		if (SecondOfDay % 60 != 0) {
+			Line.append(':');
+			AppendDigits(Line, SecondOfDay % 60, 2);
+		}
+	}
+
+	/**
+	 * Append a number that is not negative, padded with zeros to the specified width.
+	 */
+	private static void AppendDigits(StringBuilder Line, int Value, int Width) {
+		int Digits = 1;
+		for (int Rest = Value / 10; Rest > 0; Rest /= 10) {
+			Digits++;
+		}
+		for (; Digits < Width; Digits++) {
+			Line.append('0');
+		}
+		Line.append(Value);
+	}
 }
@@ -0,0 +1,46 @@
+package visitorman;
+
+import java.util.List;
+
+/**
+ *
+ * @author chenh
+ * The ReportPage class is meant to hold one page of a report, together with the cursor
+ * needed to ask for the next page.
+ *
+ */
+public class ReportPage {
+	private List<String> _Lines;
+	private int _NextCursor;
+
+	/**
+	 * Create a ReportPage object.
+	 * @param Lines The lines of the report on this page.
+	 * @param NextCursor The cursor of the first line of the next page, or -1 if this is the last page.
+	 */
+	public ReportPage(List<String> Lines, int NextCursor) {
+		_Lines = Lines;
+		_NextCursor = NextCursor;
+	}
+	/**
+	 * Access the lines of the report on this page.
+	 * @return A list of strings, one per line.
+	 */
+	public List<String> AccessLines() {
+		return _Lines;
+	}
+	/**
+	 * Access the cursor to pass when asking for the next page.
+	 * @return The cursor of the next page, or -1 if there are no more lines.
+	 */
+	public int AccessNextCursor() {
+		return _NextCursor;
+	}
+	/**
+	 * Check whether there are more lines after this page.
+	 * @return true if there is a next page.
+	 */
+	public boolean HasNext() {
+		return _NextCursor >= 0;
+	}
+}
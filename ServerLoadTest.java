@@ -0,0 +1,353 @@
+package visitorman;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This provides a load test for {@link VisitorServer}, in the same spirit as {@link Benchmark}:
+ * it needs nothing but the JDK, and prints its results.
+ *
+ * A server is started on a free port in front of a VisitorMan object, and hosts are registered
+ * through it. Then many kiosks each open one connection, and once every kiosk is connected they
+ * all check visitors in and out at once, each over its own kept-alive connection, as the kiosks
+ * in the lobbies of a large site would. Every kiosk holds its connection open until all are done,
+ * so the server has that many open connections throughout. Finally one kiosk streams the visitor
+ * log report. It reports:
+ * - the kiosks, and the connections they opened (the same number unless the server closed some)
+ * - the requests, requests per second, and the p50, p99 and largest latencies
+ * - the size of the report and the time taken to stream it
+ *
+ * The kiosks run on virtual threads when the JDK has them, and otherwise on platform threads with
+ * small stacks. The process needs a limit of open files of at least twice the number of kiosks.
+ *
+ * Run with, for example:
+ *   java -cp out visitorman.ServerLoadTest 5000 20
+ */
+public class ServerLoadTest {
+	/**
+	 * The number of kiosks and of visits per kiosk used when none are given on the command line.
+	 */
+	private static final int DEFAULT_KIOSKS = 2000;
+	private static final int DEFAULT_VISITS = 20;
+
+	/**
+	 * The number of registered hosts the visitors are spread over.
+	 */
+	private static final int HOSTS = 200;
+
+	/**
+	 * The stack size of a kiosk's thread when there are no virtual threads.
+	 */
+	private static final long KIOSK_STACK = 256 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int kiosks = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_KIOSKS;
+		int visits = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_VISITS;
+		VisitorServer.AllowIdleConnections();      //Before the server is created, so every kiosk keeps its connection.
+		VisitorMan visitorManager = new VisitorMan("Load Test Ltd");
+		VisitorServer server = new VisitorServer(visitorManager, 0);
+		System.out.println("****Version: ServerLoadTest, " + (server.IsVirtual() ? "virtual threads" : "thread pool") + " ****");
+		try (Kiosk reception = new Kiosk("localhost", server.Port())) {
+			for (int h = 0; h < HOSTS; h++) {
+				expect(reception.send("POST", "/hosts", "{\"familyName\":\"Host" + h + "\",\"givenName\":\"Load\",\"email\":\""
+						+ hostEmail(h) + "\"}"), 204, reception);
+			}
+		}
+		run(server, kiosks, 1, "warmup");
+		Result result = run(server, kiosks, visits, "kiosk");
+		System.out.println(String.format("%-10s%12s%12s%12s%12s%12s%12s",
+				"kiosks", "connections", "requests", "requests/s", "p50 ns", "p99 ns", "max ns"));
+		System.out.println(String.format("%-10d%12d%12d%12.0f%12d%12d%12d", kiosks, result.connections,
+				result.latencies.Count(), result.latencies.Count() * 1e9 / result.elapsed,
+				result.latencies.ValueAt(50), result.latencies.ValueAt(99), result.latencies.Max()));
+		try (Kiosk reception = new Kiosk("localhost", server.Port())) {
+			expect(reception.send("GET", "/visitors/onsite", null), 200, reception);
+			System.out.println("Visitors on site afterwards: " + reception.body());
+			long start = System.nanoTime();
+			expect(reception.send("GET", "/report", null), 200, reception);
+			long elapsed = System.nanoTime() - start;
+			System.out.println(String.format("Streamed a report of %d visits (%d bytes, chunked=%b) in %.1f ms",
+					visitorManager.getVisitorLogReport().size() - 1, reception.body().length(), reception.chunked(), elapsed / 1e6));
+		}
+		System.out.println("Requests answered with an error: " + server.Errors());
+		server.Close(1);
+	}
+
+	/**
+	 * The outcome of a run of the kiosks.
+	 */
+	private static class Result {
+		final LatencyHistogram latencies = new LatencyHistogram();
+		final LongAdder failures = new LongAdder();
+		int connections;
+		long elapsed;
+	}
+
+	/**
+	 * Connect every kiosk, then have each check in and out the specified number of visitors
+	 * once all are connected.
+	 */
+	private static Result run(VisitorServer server, int kiosks, int visits, String prefix) throws InterruptedException {
+		Result result = new Result();
+		CountDownLatch connected = new CountDownLatch(kiosks);
+		CountDownLatch go = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(kiosks);
+		AtomicInteger connections = new AtomicInteger();
+		ExecutorService virtual = VisitorServer.VirtualThreads();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int k = 0; k < kiosks; k++) {
+			final int kiosk = k;
+			Runnable task = () -> {
+				try (Kiosk client = new Kiosk("localhost", server.Port())) {
+					try {
+						client.connect();
+					} finally {
+						connected.countDown();
+					}
+					go.await();
+					for (int v = 0; v < visits; v++) {
+						String email = prefix + v + "@kiosk" + kiosk + ".test";
+						long started = System.nanoTime();
+						expect(client.send("POST", "/checkins", "{\"familyName\":\"Arrival\",\"givenName\":\"Kiosk\","
+								+ "\"organisation\":\"Kiosk Ltd\",\"visitorEmail\":\"" + email + "\",\"hostEmail\":\""
+								+ hostEmail((kiosk + v) % HOSTS) + "\",\"visitDate\":\"2020-01-03\",\"visitStartTime\":\"09:00\"}"), 204, client);
+						long checkedIn = System.nanoTime();
+						expect(client.send("POST", "/checkouts", "{\"email\":\"" + email + "\",\"checkOutTime\":\"10:00\"}"), 204, client);
+						result.latencies.Record(checkedIn - started);
+						result.latencies.Record(System.nanoTime() - checkedIn);
+					}
+					done.countDown();
+					done.await();      //Every connection stays open until all kiosks are done.
+					connections.addAndGet(client.connections());
+				} catch (IOException | RuntimeException e) {
+					result.failures.increment();
+					System.err.println("Kiosk " + kiosk + " failed: " + e);
+					done.countDown();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			};
+			if (virtual != null) {
+				virtual.execute(task);
+				continue;
+			}
+			Thread thread = new Thread(null, task, "kiosk-" + k, KIOSK_STACK);
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+		connected.await();
+		long start = System.nanoTime();
+		go.countDown();
+		done.await();
+		result.elapsed = System.nanoTime() - start;
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (virtual != null) {
+			virtual.shutdown();
+			while (!virtual.isTerminated()) {
+				Thread.sleep(10);
+			}
+		}
+		result.connections = connections.get();
+		if (result.failures.sum() > 0) {
+			throw new IllegalStateException(result.failures.sum() + " kiosks failed");
+		}
+		return result;
+	}
+
+	private static String hostEmail(int h) {
+		return "host" + h + "@loadtest.test";
+	}
+
+	private static void expect(int status, int expected, Kiosk client) {
+		if (status != expected) {
+			throw new IllegalStateException("Expected status " + expected + " but got " + status + ": " + client.body());
+		}
+	}
+
+	/**
+	 * A kiosk's HTTP/1.1 client, which sends its requests one after another over one
+	 * connection kept alive between them. If the server closed a connection that had been
+	 * used before (because it was idle for too long), the request is sent again on a new one.
+	 */
+	static class Kiosk implements Closeable {
+		private final String host;
+		private final int port;
+		private Socket socket;
+		private InputStream in;
+		private OutputStream out;
+		private int connections;
+		private int responses;      //On the current connection.
+		private String body;
+		private boolean chunked;
+
+		Kiosk(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		/**
+		 * Open a new connection, closing the current one if there is one.
+		 */
+		void connect() throws IOException {
+			close();
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host, port), 30000);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = new BufferedOutputStream(socket.getOutputStream());
+			connections++;
+			responses = 0;
+		}
+
+		/**
+		 * Send a request and read the whole response.
+		 * @param method The method, such as GET or POST.
+		 * @param path The path and query.
+		 * @param json The body, or null for none.
+		 * @return The status of the response; its body is then given by {@link #body()}.
+		 */
+		int send(String method, String path, String json) throws IOException {
+			byte[] content = json == null ? new byte[0] : json.getBytes(StandardCharsets.UTF_8);
+			while (true) {
+				if (socket == null) {
+					connect();
+				}
+				boolean reused = responses > 0;
+				try {
+					out.write((method + " " + path + " HTTP/1.1\r\nHost: " + host + "\r\n"
+							+ (json == null ? "" : "Content-Type: application/json\r\n")
+							+ "Content-Length: " + content.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+					out.write(content);
+					out.flush();
+					return read(method);
+				} catch (IOException e) {
+					close();
+					if (!reused) {
+						throw e;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Access the number of connections this kiosk has opened.
+		 */
+		int connections() {
+			return connections;
+		}
+
+		/**
+		 * Access the body of the last response.
+		 */
+		String body() {
+			return body;
+		}
+
+		/**
+		 * Check whether the last response was sent with chunked encoding.
+		 */
+		boolean chunked() {
+			return chunked;
+		}
+
+		@Override
+		public void close() {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+				socket = null;
+			}
+		}
+
+		private int read(String method) throws IOException {
+			String statusLine = line();
+			if (!statusLine.startsWith("HTTP/1.1 ")) {
+				throw new IOException("Not an HTTP/1.1 response: " + statusLine);
+			}
+			int status = Integer.parseInt(statusLine.substring(9, 12));
+			long length = -1;
+			boolean closing = false;
+			chunked = false;
+			for (String header = line(); !header.isEmpty(); header = line()) {
+				int colon = header.indexOf(':');
+				String name = header.substring(0, colon).trim().toLowerCase();
+				String value = header.substring(colon + 1).trim();
+				if (name.equals("content-length")) {
+					length = Long.parseLong(value);
+				} else if (name.equals("transfer-encoding")) {
+					chunked = value.equalsIgnoreCase("chunked");
+				} else if (name.equals("connection")) {
+					closing = value.equalsIgnoreCase("close");
+				}
+			}
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			if (chunked) {
+				for (long size = chunkSize(); size > 0; size = chunkSize()) {
+					copy(size, content);
+					line();
+				}
+				while (!line().isEmpty()) {      //Trailers.
+				}
+			} else if (length > 0 && status != 204 && !method.equals("HEAD")) {
+				copy(length, content);
+			}
+			body = content.toString(StandardCharsets.UTF_8);
+			responses++;
+			if (closing) {
+				close();
+			}
+			return status;
+		}
+
+		private long chunkSize() throws IOException {
+			String size = line();
+			int extension = size.indexOf(';');
+			return Long.parseLong((extension < 0 ? size : size.substring(0, extension)).trim(), 16);
+		}
+
+		private void copy(long length, ByteArrayOutputStream content) throws IOException {
+			byte[] buffer = new byte[8192];
+			while (length > 0) {
+				int read = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+				if (read < 0) {
+					throw new EOFException("The connection closed in a response body");
+				}
+				content.write(buffer, 0, read);
+				length -= read;
+			}
+		}
+
+		private String line() throws IOException {
+			StringBuilder line = new StringBuilder();
+			for (int c = in.read(); c != '\n'; c = in.read()) {
+				if (c < 0) {
+					throw new EOFException("The connection closed");
+				}
+				if (c != '\r') {
+					line.append((char) c);
+				}
+			}
+			return line.toString();
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package visitorman;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.stream.IntStream;
+
+/**
+ *
+ * @author chenh
+ * The VisitAnalytics class is meant to keep the figures of a dashboard up to date as visitors
+ * check in and out, so they are read without going through the visitor log: the visits of
+ * each day and each hour, the visits from each organisation, the number of visitors on site
+ * and the most there were on each day, and how long visitors stay.
+ * It listens to a VisitorMan object, see {@link VisitorMan#startAnalytics()}, which first fills
+ * it from the visits already in the log, going through them in parallel. Events for visits
+ * that the backfill covers are ignored, so no visit is counted twice.
+ * Counters are LongAdders, so check-ins on many threads do not contend. Only the last
+ * DAYS_KEPT days (before the latest day of a visit) are kept; the counts of each organisation
+ * are kept for all time.
+ *
+ */
+public class VisitAnalytics implements VisitListener {
+	private static final int DAYS_KEPT = 400;
+	private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+	//Below are the number of visitors on site, read from the VisitorMan object, and the figures of each day.
+	private final IntSupplier _OnSite;
+	private final ConcurrentHashMap<Long, Day> _Days = new ConcurrentHashMap<Long, Day>();
+	private final LongAccumulator _LatestDay = new LongAccumulator(Math::max, Long.MIN_VALUE);
+	private final ConcurrentHashMap<String, LongAdder> _ByOrganisation = new ConcurrentHashMap<String, LongAdder>();
+	private final LatencyHistogram _Dwell = new LatencyHistogram();      //In seconds rather than nanoseconds.
+
+	//Below are the first position not covered by the backfill, or -1 before it is known, the
+	//events held until it is known, and the visits the backfill found open.
+	private volatile int _Backfilled = -1;
+	private final List<Object[]> _Held = new ArrayList<Object[]>();
+	private final Set<Integer> _OpenAtBackfill = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Create an empty VisitAnalytics object.
+	 * @param OnSite Gives the number of visitors on site.
+	 */
+	VisitAnalytics(IntSupplier OnSite) {
+		_OnSite = OnSite;
+	}
+	@Override
+	public void CheckedIn(int i, LogEntry Visit) {
+		if (_Backfilled < 0 && Hold(i, Visit, true)) {
+			return;
+		}
+		if (i >= _Backfilled) {
+			Arrived(Visit, true);
+		}
+	}
+	@Override
+	public void CheckedOut(int i, LogEntry Visit) {
+		if (_Backfilled < 0 && Hold(i, Visit, false)) {
+			return;
+		}
+		if (i >= _Backfilled || _OpenAtBackfill.remove(i)) {      //Otherwise the backfill found it checked out.
+			Left(Visit);
+		}
+	}
+	/**
+	 * Access the number of visits that checked in on a date.
+	 * @param date The date (ISO8601 format)
+	 * @return The number of visits.
+	 */
+	public long VisitsOn(String date) {
+		Day Figures = _Days.get(LocalDate.parse(date).toEpochDay());
+		return Figures == null ? 0 : Figures._Visits.sum();
+	}
+	/**
+	 * Access the number of visits that checked in during each hour of a date.
+	 * @param date The date (ISO8601 format)
+	 * @return A new array of 24 counts, from 00:00-01:00 to 23:00-24:00.
+	 */
+	public long[] VisitsByHour(String date) {
+		long[] Hours = new long[24];
+		Day Figures = _Days.get(LocalDate.parse(date).toEpochDay());
+		if (Figures != null) {
+			for (int h = 0; h < Hours.length; h++) {
+				Hours[h] = Figures._ByHour.get(h);
+			}
+		}
+		return Hours;
+	}
+	/**
+	 * Access the number of visits of visitors from an organisation.
+	 * @param organisation The name of the organisation.
+	 * @return The number of visits, for all time.
+	 */
+	public long VisitsFrom(String organisation) {
+		LongAdder Visits = _ByOrganisation.get(organisation == null ? "" : organisation);
+		return Visits == null ? 0 : Visits.sum();
+	}
+	/**
+	 * Return the number of visits from every organisation.
+	 * @return A new map of the number of visits, for all time, by the name of the
+	 * organisation, in alphabetical order.
+	 */
+	public SortedMap<String, Long> VisitsByOrganisation() {
+		SortedMap<String, Long> Visits = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> Organisation : _ByOrganisation.entrySet()) {
+			Visits.put(Organisation.getKey(), Organisation.getValue().sum());
+		}
+		return Visits;
+	}
+	/**
+	 * Access the number of visitors on site now.
+	 * @return The number of visitors.
+	 */
+	public int Occupancy() {
+		return _OnSite.getAsInt();
+	}
+	/**
+	 * Access the most visitors there were on site on a date. For visits found by the backfill
+	 * this is worked out from their check-in and check-out times; from then on it is the
+	 * number on site when each visitor checked in.
+	 * @param date The date (ISO8601 format)
+	 * @return The number of visitors.
+	 */
+	public int PeakOccupancy(String date) {
+		Day Figures = _Days.get(LocalDate.parse(date).toEpochDay());
+		return Figures == null ? 0 : (int) Figures._Peak.get();
+	}
+	/**
+	 * Access the average time the visitors who checked in on a date stayed, counting those
+	 * who have checked out.
+	 * @param date The date (ISO8601 format)
+	 * @return The average time in minutes, or 0 if no visitor of that date checked out.
+	 */
+	public double AverageDwellMinutes(String date) {
+		Day Figures = _Days.get(LocalDate.parse(date).toEpochDay());
+		long Dwells = Figures == null ? 0 : Figures._Dwells.sum();
+		return Dwells == 0 ? 0 : Figures._DwellSeconds.sum() / 60.0 / Dwells;
+	}
+	/**
+	 * Access the time below which a percentage of the visitors who checked out stayed.
+	 * @param percentile The percentage, from 0 to 100.
+	 * @return The time in minutes, to within about 3%, for all time.
+	 */
+	public long DwellMinutesAt(double percentile) {
+		return _Dwell.ValueAt(percentile) / 60;
+	}
+
+	/**
+	 * Count the visits already in a log, from first to last in parallel, and from then on
+	 * only count the events of later visits and of visits that were open.
+	 * @param Log The visitor log this object listens to; it must already be listening.
+	 */
+	void Backfill(VisitorLog Log) {
+		List<Object[]> Held;
+		int Count;
+		synchronized (_Held) {
+			Count = Log.Size();
+			_Backfilled = Count;
+			Held = new ArrayList<Object[]>(_Held);
+			_Held.clear();
+		}
+		for (Object[] Event : Held) {
+			if ((Boolean) Event[2]) {
+				CheckedIn((Integer) Event[0], (LogEntry) Event[1]);
+			} else {
+				CheckedOut((Integer) Event[0], (LogEntry) Event[1]);
+			}
+		}
+		long[] Changes = new long[Count * 2];      //Each check-in and check-out, as time * 2 + 1 for a check-in.
+		IntStream.range(0, Count).parallel().forEach(i -> {
+			LogEntry Visit = Log.GetVisit(i);
+			Arrived(Visit, false);
+			Changes[2 * i] = Long.MIN_VALUE;
+			Changes[2 * i + 1] = Long.MIN_VALUE;
+			if (Visit.Checkout()) {
+				Left(Visit);
+			} else {
+				_OpenAtBackfill.add(i);      //Added first, so a check-out from now on is counted by one side only.
+				if (Log.IsOnSite(i)) {
+					Changes[2 * i] = Visit.AccessArrivedAt() * 2 + 1;
+					return;
+				}
+				if (!Visit.Checkout()) {      //Replaced by a later visit of the same visitor.
+					_OpenAtBackfill.remove(i);
+					return;
+				}
+				if (_OpenAtBackfill.remove(i)) {      //Otherwise the check-out was counted as an event.
+					Left(Visit);
+				}
+			}
+			Changes[2 * i] = Visit.AccessArrivedAt() * 2 + 1;
+			Changes[2 * i + 1] = Visit.AccessLeftAt() * 2;
+		});
+		Arrays.parallelSort(Changes);
+		Map<Long, Integer> Peaks = new HashMap<Long, Integer>();
+		int OnSite = 0;
+		for (long Change : Changes) {
+			if (Change == Long.MIN_VALUE) {
+				continue;
+			}
+			if ((Change & 1) == 0) {      //Check-outs sort before check-ins at the same time.
+				OnSite--;
+				continue;
+			}
+			OnSite++;
+			Peaks.merge(Math.floorDiv(Change >> 1, SECONDS_PER_DAY), OnSite, Math::max);
+		}
+		for (Map.Entry<Long, Integer> Peak : Peaks.entrySet()) {
+			Day Figures = Figures(Peak.getKey());
+			if (Figures != null) {
+				Figures._Peak.accumulate(Peak.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Keep an event that came before the backfill started, or return false if it has started.
+	 */
+	private boolean Hold(int i, LogEntry Visit, boolean CheckIn) {
+		synchronized (_Held) {
+			if (_Backfilled >= 0) {
+				return false;
+			}
+			_Held.add(new Object[] { i, Visit, CheckIn });
+			return true;
+		}
+	}
+
+	/**
+	 * Count a visit that checked in, and the visitors on site if it was checked in just now.
+	 */
+	private void Arrived(LogEntry Visit, boolean Now) {
+		String Organisation = Visit.AccessVisitor().AccessOrganisation();
+		_ByOrganisation.computeIfAbsent(Organisation == null ? "" : Organisation, Key -> new LongAdder()).increment();
+		long ArrivedAt = Visit.AccessArrivedAt();
+		Day Figures = Figures(Math.floorDiv(ArrivedAt, SECONDS_PER_DAY));
+		if (Figures == null) {
+			return;
+		}
+		Figures._Visits.increment();
+		Figures._ByHour.incrementAndGet((int) (Math.floorMod(ArrivedAt, SECONDS_PER_DAY) / 3600));
+		if (Now) {
+			Figures._Peak.accumulate(_OnSite.getAsInt());
+		}
+	}
+
+	/**
+	 * Count how long a visit that checked out stayed.
+	 */
+	private void Left(LogEntry Visit) {
+		long Dwell = Visit.AccessLeftAt() - Visit.AccessArrivedAt();
+		_Dwell.Record(Dwell);
+		Day Figures = Figures(Math.floorDiv(Visit.AccessArrivedAt(), SECONDS_PER_DAY));
+		if (Figures != null) {
+			Figures._Dwells.increment();
+			Figures._DwellSeconds.add(Dwell);
+		}
+	}
+
+	/**
+	 * Return the figures of a day, adding the day and forgetting days that are no longer kept
+	 * if it is new, or null if the day is too old to be kept.
+	 */
+	private Day Figures(long EpochDay) {
+		Day Figures = _Days.get(EpochDay);
+		if (Figures != null) {
+			return Figures;
+		}
+		long Latest = _LatestDay.get();
+		if (Latest != Long.MIN_VALUE && EpochDay <= Latest - DAYS_KEPT) {
+			return null;
+		}
+		Figures = _Days.computeIfAbsent(EpochDay, Key -> new Day());
+		if (EpochDay > Latest) {
+			_LatestDay.accumulate(EpochDay);
+			_Days.keySet().removeIf(Kept -> Kept <= EpochDay - DAYS_KEPT);
+		}
+		return Figures;
+	}
+
+	/**
+	 * The figures of one day.
+	 */
+	private static class Day {
+		final LongAdder _Visits = new LongAdder();
+		final AtomicLongArray _ByHour = new AtomicLongArray(24);
+		final LongAccumulator _Peak = new LongAccumulator(Math::max, 0);
+		final LongAdder _Dwells = new LongAdder();
+		final LongAdder _DwellSeconds = new LongAdder();
+	}
+}
@@ -0,0 +1,424 @@
+package visitorman;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ *
+ * @author chenh
+ * The VisitArchive class is meant to keep old visits on disk instead of in memory. Each chunk
+ * of visits archived by a {@link VisitorLog} is written once to its own segment file, which is
+ * never changed afterwards: a small header with the positions, the range of check-in times and
+ * the hosts of the visits, then the visits themselves, compressed with Deflate.
+ * The headers are kept in memory and indexed by the days and hosts of the visits, so a query
+ * only opens the segments that can hold its visits. Segments are read through a memory mapped
+ * file and the last few decoded are cached, so a report that goes through the whole log
+ * decodes each segment once.
+ *
+ */
+public class VisitArchive {
+	private static final int MAGIC = 0x56415243;
+	private static final int VERSION = 1;
+	private static final int CACHED_SEGMENTS = 8;
+	private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+	private final Path _Directory;
+	//Below are the segments by their first position, and the segments holding visits of each day and of each host.
+	private final ConcurrentSkipListMap<Integer, Segment> _Segments = new ConcurrentSkipListMap<Integer, Segment>();
+	private final ConcurrentSkipListMap<Long, ConcurrentSkipListSet<Integer>> _ByDay =
+			new ConcurrentSkipListMap<Long, ConcurrentSkipListSet<Integer>>();
+	private final ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>> _ByHost =
+			new ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>>();
+	//Below are the segments decoded most recently, the least recently used first.
+	private final LinkedHashMap<Integer, LogEntry[]> _Decoded = new LinkedHashMap<Integer, LogEntry[]>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, LogEntry[]> Eldest) {
+			return size() > CACHED_SEGMENTS;
+		}
+	};
+
+	/**
+	 * Create a VisitArchive object for a directory, creating the directory if needed. The
+	 * segments already in the directory are indexed; a segment that is incomplete or damaged
+	 * is left out, and is written again when its visits are next archived.
+	 * @param Directory The directory of the segment files.
+	 * @throws IOException If the directory cannot be created or read.
+	 */
+	public VisitArchive(Path Directory) throws IOException {
+		_Directory = Directory.toAbsolutePath().normalize();
+		Files.createDirectories(Directory);
+		try (DirectoryStream<Path> Entries = Files.newDirectoryStream(Directory, "visits-*.seg")) {
+			for (Path File : Entries) {
+				Segment Loaded = Open(File);
+				if (Loaded == null) {
+					System.err.println("The archive segment " + File + " is damaged and was left out");
+				} else {
+					Index(Loaded);
+				}
+			}
+		}
+	}
+	/**
+	 * Write a chunk of closed visits to a new segment, and add it to the archive.
+	 * @param First The position of the first visit in the log.
+	 * @param Visits The visits, in order of position.
+	 * @throws IOException If the segment cannot be written; the archive is not changed.
+	 */
+	public void Write(int First, List<LogEntry> Visits) throws IOException {
+		long MinArrivedAt = Long.MAX_VALUE;
+		long MaxArrivedAt = Long.MIN_VALUE;
+		Set<String> Hosts = new TreeSet<String>();
+		ByteArrayOutputStream Raw = new ByteArrayOutputStream(Visits.size() * 64);
+		DataOutputStream Payload = new DataOutputStream(Raw);
+		for (LogEntry Visit : Visits) {
+			Party Visitor = Visit.AccessVisitor();
+			PutString(Payload, Visitor.AccessFname());
+			PutString(Payload, Visitor.AccessGname());
+			PutString(Payload, Visitor.AccessEmail());
+			PutString(Payload, Visitor.AccessOrganisation());
+			PutString(Payload, Visit.AccesshostEmail());
+			Payload.writeLong(Visit.AccessArrivedAt());
+			boolean CheckedOut = Visit.Checkout();      //Read before the left time, which is recorded first.
+			Payload.writeBoolean(CheckedOut);
+			Payload.writeLong(Visit.AccessLeftAt());
+			MinArrivedAt = Math.min(MinArrivedAt, Visit.AccessArrivedAt());
+			MaxArrivedAt = Math.max(MaxArrivedAt, Visit.AccessArrivedAt());
+			Hosts.add(VisitorLog.HostKey(Visit.AccesshostEmail()));
+		}
+		ByteArrayOutputStream Compressed = new ByteArrayOutputStream(Raw.size() / 4 + 64);
+		Deflater Compressor = new Deflater(Deflater.BEST_COMPRESSION);
+		try (DeflaterOutputStream Out = new DeflaterOutputStream(Compressed, Compressor)) {
+			Raw.writeTo(Out);
+		} finally {
+			Compressor.end();
+		}
+		ByteArrayOutputStream Header = new ByteArrayOutputStream(256);
+		DataOutputStream Data = new DataOutputStream(Header);
+		Data.writeInt(MAGIC);
+		Data.writeInt(VERSION);
+		Data.writeInt(First);
+		Data.writeInt(Visits.size());
+		Data.writeLong(MinArrivedAt);
+		Data.writeLong(MaxArrivedAt);
+		Data.writeInt(Hosts.size());
+		for (String Host : Hosts) {
+			PutString(Data, Host);
+		}
+		Data.writeInt(Raw.size());
+		Data.writeInt(Compressed.size());
+		CRC32 Checksum = new CRC32();
+		Checksum.update(Header.toByteArray());
+		Checksum.update(Compressed.toByteArray());
+
+		Path Target = SegmentFile(_Directory, First);
+		Path Temporary = _Directory.resolve(Target.getFileName() + ".tmp");
+		try (FileOutputStream Out = new FileOutputStream(Temporary.toFile())) {
+			Header.writeTo(Out);
+			Compressed.writeTo(Out);
+			new DataOutputStream(Out).writeInt((int) Checksum.getValue());
+			Out.getChannel().force(true);
+		}
+		Files.move(Temporary, Target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		Segment Written = Open(Target);
+		if (Written == null) {
+			throw new IOException("The archive segment " + Target + " could not be read back");
+		}
+		Drop(First);
+		Index(Written);
+	}
+	/**
+	 * Remove a segment from the archive and delete its file, such as a segment that does not
+	 * match the visits of the log.
+	 * @param First The position of the first visit of the segment.
+	 * @throws IOException If the file cannot be deleted.
+	 */
+	public void Remove(int First) throws IOException {
+		Drop(First);
+		Files.deleteIfExists(SegmentFile(_Directory, First));
+	}
+	/**
+	 * Access the directory of the archive.
+	 * @return The directory, as an absolute path.
+	 */
+	public Path AccessDirectory() {
+		return _Directory;
+	}
+	/**
+	 * Return the first positions of the segments in the archive.
+	 * @return A new list of positions, in order.
+	 */
+	public List<Integer> Segments() {
+		return new ArrayList<Integer>(_Segments.keySet());
+	}
+	/**
+	 * Access the number of visits in a segment.
+	 * @param First The position of the first visit of the segment.
+	 * @return The number of visits, or 0 if there is no such segment.
+	 */
+	public int SegmentSize(int First) {
+		Segment Archived = _Segments.get(First);
+		return Archived == null ? 0 : Archived._Count;
+	}
+	/**
+	 * Access the number of visits in the archive.
+	 * @return The number of visits.
+	 */
+	public int Size() {
+		int Size = 0;
+		for (Segment Archived : _Segments.values()) {
+			Size += Archived._Count;
+		}
+		return Size;
+	}
+	/**
+	 * Access an archived visit.
+	 * @param i The position of the visit in the log.
+	 * @return A LogEntry object of the visit, or null if it is not archived.
+	 * @throws UncheckedIOException If its segment cannot be read.
+	 */
+	public LogEntry Get(int i) {
+		Map.Entry<Integer, Segment> Holding = _Segments.floorEntry(i);
+		if (Holding == null || i - Holding.getKey() >= Holding.getValue()._Count) {
+			return null;
+		}
+		return Decode(Holding.getValue())[i - Holding.getKey()];
+	}
+	/**
+	 * Return the positions of the archived visits that checked in during a range of time.
+	 * @param From The start of the range, in seconds since 1970-01-01T00:00 (inclusive).
+	 * @param To The end of the range, in seconds since 1970-01-01T00:00 (exclusive).
+	 * @return A new list of the positions, in order of position.
+	 */
+	public List<Integer> VisitsBetween(long From, long To) {
+		List<Integer> Visits = new ArrayList<Integer>();
+		if (From >= To) {
+			return Visits;
+		}
+		NavigableSet<Integer> Firsts = new TreeSet<Integer>();
+		for (ConcurrentSkipListSet<Integer> OfDay : _ByDay.subMap(Math.floorDiv(From, SECONDS_PER_DAY), true,
+				Math.floorDiv(To - 1, SECONDS_PER_DAY), true).values()) {
+			Firsts.addAll(OfDay);
+		}
+		for (Integer First : Firsts) {
+			Segment Archived = _Segments.get(First);
+			if (Archived == null || Archived._MaxArrivedAt < From || Archived._MinArrivedAt >= To) {
+				continue;
+			}
+			LogEntry[] Decoded = Decode(Archived);
+			for (int j = 0; j < Decoded.length; j++) {
+				long ArrivedAt = Decoded[j].AccessArrivedAt();
+				if (ArrivedAt >= From && ArrivedAt < To) {
+					Visits.add(First + j);
+				}
+			}
+		}
+		return Visits;
+	}
+	/**
+	 * Return the positions of the archived visits of a host.
+	 * @param hostEmail The email address of the host.
+	 * @return A new list of the positions, in order of position.
+	 */
+	public List<Integer> VisitsOfHost(String hostEmail) {
+		List<Integer> Visits = new ArrayList<Integer>();
+		String HostKey = VisitorLog.HostKey(hostEmail);
+		ConcurrentSkipListSet<Integer> Firsts = _ByHost.get(HostKey);
+		if (Firsts == null) {
+			return Visits;
+		}
+		for (Integer First : Firsts) {
+			Segment Archived = _Segments.get(First);
+			if (Archived == null) {
+				continue;
+			}
+			LogEntry[] Decoded = Decode(Archived);
+			for (int j = 0; j < Decoded.length; j++) {
+				if (HostKey.equals(VisitorLog.HostKey(Decoded[j].AccesshostEmail()))) {
+					Visits.add(First + j);
+				}
+			}
+		}
+		return Visits;
+	}
+
+	/**
+	 * Add a segment to the indexes.
+	 */
+	private void Index(Segment Archived) {
+		_Segments.put(Archived._First, Archived);
+		for (long Day = Math.floorDiv(Archived._MinArrivedAt, SECONDS_PER_DAY);
+				Day <= Math.floorDiv(Archived._MaxArrivedAt, SECONDS_PER_DAY); Day++) {
+			_ByDay.computeIfAbsent(Day, Key -> new ConcurrentSkipListSet<Integer>()).add(Archived._First);
+		}
+		for (String Host : Archived._Hosts) {
+			_ByHost.computeIfAbsent(Host, Key -> new ConcurrentSkipListSet<Integer>()).add(Archived._First);
+		}
+	}
+
+	/**
+	 * Remove a segment from the indexes and the cache, if it is there.
+	 */
+	private void Drop(int First) {
+		Segment Archived = _Segments.remove(First);
+		if (Archived == null) {
+			return;
+		}
+		for (ConcurrentSkipListSet<Integer> OfDay : _ByDay.subMap(Math.floorDiv(Archived._MinArrivedAt, SECONDS_PER_DAY), true,
+				Math.floorDiv(Archived._MaxArrivedAt, SECONDS_PER_DAY), true).values()) {
+			OfDay.remove(First);
+		}
+		for (String Host : Archived._Hosts) {
+			ConcurrentSkipListSet<Integer> OfHost = _ByHost.get(Host);
+			if (OfHost != null) {
+				OfHost.remove(First);
+			}
+		}
+		synchronized (_Decoded) {
+			_Decoded.remove(First);
+		}
+	}
+
+	/**
+	 * Return the visits of a segment, decoding it if it is not cached.
+	 */
+	private LogEntry[] Decode(Segment Archived) {
+		synchronized (_Decoded) {
+			LogEntry[] Cached = _Decoded.get(Archived._First);
+			if (Cached != null) {
+				return Cached;
+			}
+		}
+		byte[] Raw = new byte[Archived._RawLength];
+		Inflater Decompressor = new Inflater();
+		try {
+			ByteBuffer Payload = Archived._Mapped.duplicate();
+			Payload.position(Archived._PayloadStart).limit(Archived._PayloadStart + Archived._PayloadLength);
+			Decompressor.setInput(Payload);
+			int Inflated = 0;
+			while (Inflated < Raw.length && !Decompressor.finished()) {
+				Inflated += Decompressor.inflate(Raw, Inflated, Raw.length - Inflated);
+			}
+		} catch (DataFormatException e) {
+			throw new UncheckedIOException(new IOException("The archive segment of visit " + Archived._First + " is damaged", e));
+		} finally {
+			Decompressor.end();
+		}
+		ByteBuffer In = ByteBuffer.wrap(Raw);
+		LogEntry[] Decoded = new LogEntry[Archived._Count];
+		for (int j = 0; j < Decoded.length; j++) {
+			Party Visitor = new Party(GetString(In), GetString(In), GetString(In), GetString(In));
+			String HostEmail = GetString(In);
+			long ArrivedAt = In.getLong();
+			boolean CheckedOut = In.get() != 0;
+			Decoded[j] = new LogEntry(Visitor, HostEmail, ArrivedAt, CheckedOut, In.getLong());
+		}
+		synchronized (_Decoded) {
+			_Decoded.put(Archived._First, Decoded);
+		}
+		return Decoded;
+	}
+
+	/**
+	 * Map a segment file and read its header, or return null if the file is not a complete segment.
+	 */
+	private static Segment Open(Path File) throws IOException {
+		MappedByteBuffer Mapped;
+		try (FileChannel Channel = FileChannel.open(File, StandardOpenOption.READ)) {
+			if (Channel.size() < 48 || Channel.size() > Integer.MAX_VALUE) {
+				return null;
+			}
+			Mapped = Channel.map(FileChannel.MapMode.READ_ONLY, 0, Channel.size());      //Stays valid once the channel is closed.
+		}
+		int Size = Mapped.capacity();
+		CRC32 Checksum = new CRC32();
+		Checksum.update(Mapped.duplicate().limit(Size - 4));
+		if (Mapped.getInt(Size - 4) != (int) Checksum.getValue() || Mapped.getInt(0) != MAGIC || Mapped.getInt(4) != VERSION) {
+			return null;
+		}
+		ByteBuffer Header = Mapped.duplicate();
+		Header.position(8);
+		Segment Archived = new Segment();
+		Archived._First = Header.getInt();
+		Archived._Count = Header.getInt();
+		Archived._MinArrivedAt = Header.getLong();
+		Archived._MaxArrivedAt = Header.getLong();
+		int Hosts = Header.getInt();
+		List<String> HostKeys = new ArrayList<String>(Hosts);
+		for (int h = 0; h < Hosts; h++) {
+			HostKeys.add(GetString(Header));
+		}
+		Archived._Hosts = Collections.unmodifiableList(HostKeys);
+		Archived._RawLength = Header.getInt();
+		Archived._PayloadLength = Header.getInt();
+		Archived._PayloadStart = Header.position();
+		Archived._Mapped = Mapped;
+		return Archived;
+	}
+
+	private static void PutString(DataOutputStream Data, String Value) throws IOException {
+		if (Value == null) {
+			Data.writeInt(-1);
+			return;
+		}
+		byte[] Bytes = Value.getBytes(StandardCharsets.UTF_8);
+		Data.writeInt(Bytes.length);
+		Data.write(Bytes);
+	}
+
+	private static String GetString(ByteBuffer In) {
+		int Length = In.getInt();
+		if (Length < 0) {
+			return null;
+		}
+		byte[] Bytes = new byte[Length];
+		In.get(Bytes);
+		return new String(Bytes, StandardCharsets.UTF_8);
+	}
+
+	private static Path SegmentFile(Path Directory, int First) {
+		return Directory.resolve(String.format("visits-%010d.seg", First));
+	}
+
+	/**
+	 * The header of a segment, and its mapped file.
+	 */
+	private static class Segment {
+		int _First;
+		int _Count;
+		long _MinArrivedAt;
+		long _MaxArrivedAt;
+		List<String> _Hosts;
+		int _RawLength;
+		int _PayloadStart;
+		int _PayloadLength;
+		MappedByteBuffer _Mapped;
+	}
+}
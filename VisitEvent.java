@@ -0,0 +1,146 @@
+package visitorman;
+
+/**
+ *
+ * @author chenh
+ * The VisitEvent class is meant to hold one check-in or check-out published to a
+ * {@link VisitPipeline}. The pipeline creates all its VisitEvent objects up front and reuses
+ * them, so a VisitEvent given to a {@link VisitPipeline.Stage} is only valid until the stage
+ * returns; a stage that keeps any of its details must copy them.
+ *
+ */
+public class VisitEvent {
+
+	/**
+	 * The kinds of events.
+	 */
+	public enum Kind {
+		CHECK_IN,
+		CHECK_OUT
+	}
+
+	private Kind _Kind;
+	private long _Sequence;
+	private long _PublishedAt;
+	private String _Fname;
+	private String _Gname;
+	private String _Organisation;
+	private String _email;
+	private String _hostEmail;
+	private String _Date;
+	private String _Time;
+
+	/**
+	 * Create an empty VisitEvent object, for a slot of the ring buffer.
+	 */
+	VisitEvent() {
+	}
+
+	/**
+	 * Fill the event with a check-in, see {@link VisitorMan#checkIn}.
+	 */
+	void SetCheckIn(String familyName, String givenName, String organisation, String visitorEmail,
+			String hostEmail, String visitDate, String visitStartTime) {
+		_Kind = Kind.CHECK_IN;
+		_Fname = familyName;
+		_Gname = givenName;
+		_Organisation = organisation;
+		_email = visitorEmail;
+		_hostEmail = hostEmail;
+		_Date = visitDate;
+		_Time = visitStartTime;
+	}
+
+	/**
+	 * Fill the event with a check-out, see {@link VisitorMan#checkOut}.
+	 */
+	void SetCheckOut(String emailAddress, String checkOutTime) {
+		_Kind = Kind.CHECK_OUT;
+		_Fname = null;
+		_Gname = null;
+		_Organisation = null;
+		_email = emailAddress;
+		_hostEmail = null;
+		_Date = null;
+		_Time = checkOutTime;
+	}
+
+	/**
+	 * Stamp the event with its position in the pipeline and the time it was published.
+	 */
+	void SetPublished(long Sequence, long PublishedAt) {
+		_Sequence = Sequence;
+		_PublishedAt = PublishedAt;
+	}
+
+	/**
+	 * Access the kind of the event.
+	 * @return CHECK_IN or CHECK_OUT.
+	 */
+	public Kind AccessKind() {
+		return _Kind;
+	}
+	/**
+	 * Access the position of the event in the pipeline.
+	 * @return The sequence number of the event, starting at 0.
+	 */
+	public long AccessSequence() {
+		return _Sequence;
+	}
+	/**
+	 * Access the time the event was published.
+	 * @return The value of System.nanoTime() when the event was published.
+	 */
+	public long AccessPublishedAt() {
+		return _PublishedAt;
+	}
+	/**
+	 * Access the family name of the visitor checking in.
+	 * @return a string of the family name, or null for a check-out.
+	 */
+	public String AccessFname() {
+		return _Fname;
+	}
+	/**
+	 * Access the given name of the visitor checking in.
+	 * @return a string of the given name, or null for a check-out.
+	 */
+	public String AccessGname() {
+		return _Gname;
+	}
+	/**
+	 * Access the organisation of the visitor checking in.
+	 * @return a string of the organisation, or null for a check-out.
+	 */
+	public String AccessOrganisation() {
+		return _Organisation;
+	}
+	/**
+	 * Access the email address of the visitor.
+	 * @return a string of the email address.
+	 */
+	public String AccessEmail() {
+		return _email;
+	}
+	/**
+	 * Access the email address of the host.
+	 * @return a string of the email address, or null for a check-out.
+	 */
+	public String AccesshostEmail() {
+		return _hostEmail;
+	}
+	/**
+	 * Access the date of the visit.
+	 * @return a string of date (ISO8601 format), or null for a check-out.
+	 */
+	public String AccessDate() {
+		return _Date;
+	}
+	/**
+	 * Access the check-in time of a check-in, or the check-out time of a check-out.
+	 * @return a string of the time (ISO8601 format).
+	 */
+	public String AccessTime() {
+		return _Time;
+	}
+}
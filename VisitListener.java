@@ -0,0 +1,26 @@
+package visitorman;
+
+/**
+ *
+ * @author chenh
+ * The VisitListener interface is meant to be told about the visits recorded by a VisitorMan
+ * object, see {@link VisitorMan#addVisitListener(VisitListener)}. A listener is called on the
+ * thread that checked the visitor in or out, after the change is recorded, so it must return
+ * quickly and must not call back into the VisitorMan object; anything slow, such as sending
+ * an email, should be handed to another thread. A listener that throws does not undo the change.
+ *
+ */
+public interface VisitListener {
+	/**
+	 * A visitor checked in. Visits restored from a journal or snapshot are not reported.
+	 * @param i The position of the visit in the log.
+	 * @param Visit The visit.
+	 */
+	void CheckedIn(int i, LogEntry Visit);
+	/**
+	 * A visitor checked out.
+	 * @param i The position of the visit in the log.
+	 * @param Visit The visit, with its check-out time.
+	 */
+	void CheckedOut(int i, LogEntry Visit);
+}
@@ -0,0 +1,346 @@
+package visitorman;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ *
+ * @author chenh
+ * The VisitPipeline class is meant to take check-ins and check-outs from many kiosks at once
+ * and apply them to a VisitorMan object from a single writer thread, in batches.
+ * Kiosks publish events into a ring buffer of {@link VisitEvent} slots that are created up
+ * front. A kiosk claims the next position with one atomic increment, fills the slot, and marks
+ * it published; it only waits if the ring is full. The writer takes every event published so
+ * far, in order, and applies runs of check-ins with {@link VisitorMan#checkInAll} and runs of
+ * check-outs at the same time with {@link VisitorMan#checkOutAll}. The whole batch is one
+ * batch of the journal, so a rush of arrivals costs one journal write and one flush per batch
+ * instead of one per visitor.
+ * Downstream {@link Stage}s, such as notifications or an index, each run on their own thread
+ * behind the writer and get the events it has applied in batches. A slot is only reused once
+ * the writer and every stage are done with it.
+ * Events that cannot be applied are counted, and are given to the stages like any other;
+ * {@link #AwaitApplied(long)} tells a kiosk whether its event was applied.
+ *
+ */
+public class VisitPipeline {
+
+	/**
+	 * A consumer of applied events, run on its own thread.
+	 */
+	public interface Stage {
+		/**
+		 * Consume a batch of events that have been applied to the VisitorMan object, in order.
+		 * The events are only valid until this method returns.
+		 * @param Batch The events.
+		 */
+		void Consume(List<VisitEvent> Batch);
+	}
+
+	//Below are the largest number of events taken at once, and how long an idle thread sleeps.
+	private static final int MAX_BATCH = 1024;
+	private static final long PARK_NANOS = 50000;
+
+	private final VisitorMan _Target;
+	private final VisitEvent[] _Ring;
+	private final int _Mask;
+
+	//Below are the sequence each slot was last published with, and the last sequence claimed.
+	private final AtomicLongArray _Published;
+	private final AtomicLong _Claimed = new AtomicLong(-1);
+
+	//Below are the last sequence applied by the writer, and the last consumed by each stage.
+	private final AtomicLong _Applied = new AtomicLong(-1);
+	private final AtomicLong[] _Consumed;
+
+	private final List<Thread> _Threads = new ArrayList<Thread>();
+	private volatile boolean _Running = true;
+	private final LatencyHistogram _Latencies = new LatencyHistogram();
+	private final LongAdder _Failures = new LongAdder();
+	//Below are the runs of events that could not be applied, from the first sequence to the one after the last.
+	private final ConcurrentSkipListMap<Long, Long> _Failed = new ConcurrentSkipListMap<Long, Long>();
+
+	/**
+	 * Create a VisitPipeline object and start its writer and stage threads.
+	 * @param Target The VisitorMan object the events are applied to.
+	 * @param Capacity The number of slots in the ring; rounded up to a power of two.
+	 * @param Stages The downstream stages, each given every applied event.
+	 */
+	public VisitPipeline(VisitorMan Target, int Capacity, Stage... Stages) {
+		int Size = Integer.highestOneBit(Math.max(Capacity, 2) - 1) << 1;
+		_Target = Target;
+		_Ring = new VisitEvent[Size];
+		_Mask = Size - 1;
+		_Published = new AtomicLongArray(Size);
+		for (int i = 0; i < Size; i++) {
+			_Ring[i] = new VisitEvent();
+			_Published.set(i, -1);
+		}
+		_Consumed = new AtomicLong[Stages.length];
+		Start("visitorman-pipeline-writer", this::Write);
+		for (int s = 0; s < Stages.length; s++) {
+			final int StageIndex = s;
+			_Consumed[s] = new AtomicLong(-1);
+			Start("visitorman-pipeline-stage-" + s, () -> Consume(Stages[StageIndex], _Consumed[StageIndex]));
+		}
+	}
+	/**
+	 * Publish a check-in, see {@link VisitorMan#checkIn}.
+	 * @param familyName The family name of the visitor
+	 * @param givenName The given name of the visitor
+	 * @param organisation The organisation the visitor is from
+	 * @param visitorEmail The email address of the visitor
+	 * @param hostEmail The email address of the host the visitor is visiting
+	 * @param visitDate The date of the visit (ISO8601 format)
+	 * @param visitStartTime The time of the start of the visit (ISO8601 format)
+	 * @return The sequence of the event, to pass to {@link #AwaitApplied(long)}.
+	 * @throws java.time.format.DateTimeParseException If the date or time is not in ISO8601
+	 * format; nothing is published.
+	 */
+	public long PublishCheckIn(String familyName, String givenName, String organisation, String visitorEmail,
+			String hostEmail, String visitDate, String visitStartTime) {
+		LogEntry.EpochSecond(visitDate, visitStartTime);      //Checked here, so the writer never fails on it.
+		long Sequence = Claim();
+		_Ring[(int) Sequence & _Mask].SetCheckIn(familyName, givenName, organisation, visitorEmail, hostEmail, visitDate, visitStartTime);
+		return Publish(Sequence);
+	}
+	/**
+	 * Publish a check-out, see {@link VisitorMan#checkOut}.
+	 * @param emailAddress The visitor's email address.
+	 * @param checkOutTime The checkout time (ISO8601 format)
+	 * @return The sequence of the event, to pass to {@link #AwaitApplied(long)}.
+	 * @throws java.time.format.DateTimeParseException If the time is not in ISO8601 format;
+	 * nothing is published.
+	 */
+	public long PublishCheckOut(String emailAddress, String checkOutTime) {
+		LogEntry.EpochSecond("1970-01-01", checkOutTime);
+		long Sequence = Claim();
+		_Ring[(int) Sequence & _Mask].SetCheckOut(emailAddress, checkOutTime);
+		return Publish(Sequence);
+	}
+	/**
+	 * Wait until the writer has applied an event, so its effect can be seen through the
+	 * VisitorMan object.
+	 * @param Sequence The sequence returned when the event was published.
+	 * @return True if the event was applied and recorded, false if it could not be (see
+	 * {@link #Failures()}).
+	 */
+	public boolean AwaitApplied(long Sequence) {
+		for (int Round = 0; _Applied.get() < Sequence; Round++) {
+			Idle(Round);
+		}
+		Map.Entry<Long, Long> Run = _Failed.floorEntry(Sequence);
+		return Run == null || Run.getValue() <= Sequence;
+	}
+	/**
+	 * Access the latencies of the applied events, from being published to being applied.
+	 * @return The histogram of latencies, in nanoseconds.
+	 */
+	public LatencyHistogram AccessLatencies() {
+		return _Latencies;
+	}
+	/**
+	 * Access the number of events that could not be applied. The reason is printed to the
+	 * standard error stream.
+	 * @return The number of failed events.
+	 */
+	public long Failures() {
+		return _Failures.sum();
+	}
+	/**
+	 * Apply every event published so far, let the stages consume them, and stop the threads.
+	 * No events may be published once this method is called.
+	 */
+	public void Close() {
+		_Running = false;
+		for (Thread Worker : _Threads) {
+			try {
+				Worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Claim the next sequence, waiting while the ring is full.
+	 */
+	private long Claim() {
+		long Sequence = _Claimed.incrementAndGet();
+		for (int Round = 0; Sequence - _Ring.length > Slowest(); Round++) {
+			Idle(Round);
+		}
+		return Sequence;
+	}
+
+	private long Publish(long Sequence) {
+		_Ring[(int) Sequence & _Mask].SetPublished(Sequence, System.nanoTime());
+		_Published.set((int) Sequence & _Mask, Sequence);
+		return Sequence;
+	}
+
+	/**
+	 * Return the last sequence that every consumer is done with.
+	 */
+	private long Slowest() {
+		if (_Consumed.length == 0) {
+			return _Applied.get();
+		}
+		long Slowest = Long.MAX_VALUE;
+		for (AtomicLong Consumed : _Consumed) {
+			Slowest = Math.min(Slowest, Consumed.get());
+		}
+		return Slowest;
+	}
+
+	/**
+	 * The loop of the writer thread.
+	 */
+	private void Write() {
+		List<Arrival> Arrivals = new ArrayList<Arrival>();
+		List<String> Leaving = new ArrayList<String>();
+		long Next = 0;
+		for (int Round = 0; _Running || Next <= _Claimed.get(); Round++) {
+			long Last = Next - 1;
+			while (Last - Next < MAX_BATCH - 1 && _Published.get((int) (Last + 1) & _Mask) == Last + 1) {
+				Last++;
+			}
+			if (Last < Next) {
+				Idle(Round);
+				continue;
+			}
+			final long From = Next;
+			final long To = Last + 1;
+			try {
+				_Target.ApplyBatch(() -> {
+					long s = From;
+					while (s < To) {      //Each run of events of the same kind (and check-out time) is applied at once.
+						VisitEvent First = _Ring[(int) s & _Mask];
+						long End = s + 1;
+						while (End < To && SameRun(First, _Ring[(int) End & _Mask])) {
+							End++;
+						}
+						Apply(s, End, Arrivals, Leaving);
+						s = End;
+					}
+				});
+			} catch (RuntimeException e) {      //The batch could not be recorded in the journal, so none of it counts as applied.
+				Fail(From, To, e);
+			}
+			long Now = System.nanoTime();
+			for (long s = Next; s <= Last; s++) {
+				_Latencies.Record(Now - _Ring[(int) s & _Mask].AccessPublishedAt());
+			}
+			_Applied.set(Last);
+			Next = Last + 1;
+			Round = -1;
+		}
+	}
+
+	private static boolean SameRun(VisitEvent First, VisitEvent Event) {
+		return First.AccessKind() == Event.AccessKind()
+				&& (First.AccessKind() == VisitEvent.Kind.CHECK_IN || First.AccessTime().equals(Event.AccessTime()));
+	}
+
+	/**
+	 * Apply the run of events from From up to (but not including) To. If it is applied one
+	 * check-in at a time, only the events from the check-in that failed onward are failed.
+	 */
+	private void Apply(long From, long To, List<Arrival> Arrivals, List<String> Leaving) {
+		VisitEvent First = _Ring[(int) From & _Mask];
+		long Applied = From;      //The first event not yet applied.
+		try {
+			if (First.AccessKind() == VisitEvent.Kind.CHECK_OUT) {
+				Leaving.clear();
+				for (long s = From; s < To; s++) {
+					Leaving.add(_Ring[(int) s & _Mask].AccessEmail());
+				}
+				_Target.checkOutAll(Leaving, First.AccessTime());
+				return;
+			}
+			Arrivals.clear();
+			for (long s = From; s < To; s++) {
+				VisitEvent Event = _Ring[(int) s & _Mask];
+				Arrivals.add(new Arrival(Event.AccessFname(), Event.AccessGname(), Event.AccessOrganisation(),
+						Event.AccessEmail(), Event.AccesshostEmail(), Event.AccessDate(), Event.AccessTime()));
+			}
+			if (_Target.checkInAll(Arrivals)) {
+				return;
+			}
+			for (Arrival Visitor : Arrivals) {      //A host is not registered, which checkIn allows but checkInAll does not.
+				_Target.checkIn(Visitor.AccessFname(), Visitor.AccessGname(), Visitor.AccessOrganisation(),
+						Visitor.AccessEmail(), Visitor.AccesshostEmail(), Visitor.AccessDate(), Visitor.AccessTime());
+				Applied++;
+			}
+		} catch (RuntimeException e) {
+			Fail(Applied, To, e);
+		}
+	}
+
+	/**
+	 * Record that the events from From up to (but not including) To could not be applied,
+	 * replacing any failed runs among them.
+	 */
+	private void Fail(long From, long To, RuntimeException Reason) {
+		_Failures.add(To - From);
+		for (Map.Entry<Long, Long> Run : _Failed.subMap(From, To).entrySet()) {
+			_Failures.add(Run.getKey() - Run.getValue());      //Already counted by Apply.
+		}
+		_Failed.subMap(From, To).clear();
+		_Failed.put(From, To);
+		System.err.println("The pipeline could not apply events " + From + " to " + (To - 1) + ": " + Reason);
+	}
+
+	/**
+	 * The loop of a stage thread.
+	 */
+	private void Consume(Stage Consumer, AtomicLong Consumed) {
+		List<VisitEvent> Batch = new ArrayList<VisitEvent>(MAX_BATCH);
+		long Next = 0;
+		for (int Round = 0; _Running || Next <= _Claimed.get(); Round++) {
+			long Last = Math.min(_Applied.get(), Next + MAX_BATCH - 1);
+			if (Last < Next) {
+				Idle(Round);
+				continue;
+			}
+			Batch.clear();
+			for (long s = Next; s <= Last; s++) {
+				Batch.add(_Ring[(int) s & _Mask]);
+			}
+			try {
+				Consumer.Consume(Batch);
+			} catch (RuntimeException e) {
+				System.err.println("A pipeline stage failed on events " + Next + " to " + Last + ": " + e);
+			}
+			Consumed.set(Last);
+			Next = Last + 1;
+			Round = -1;
+		}
+	}
+
+	private void Start(String Name, Runnable Loop) {
+		Thread Worker = new Thread(Loop, Name);
+		Worker.setDaemon(true);
+		_Threads.add(Worker);
+		Worker.start();
+	}
+
+	/**
+	 * Wait for more work: spin at first, then yield, then sleep, so an idle pipeline uses no CPU.
+	 */
+	private static void Idle(int Round) {
+		if (Round < 64) {
+			Thread.onSpinWait();
+		} else if (Round < 128) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package visitorman;
+
+/**
+ *
+ * @author chenh
+ * The VisitStore interface is meant to hide how the visits of a {@link VisitorLog} are stored.
+ * The VisitorLog hands out the positions of visits and keeps its indexes; a VisitStore only keeps
+ * the visit at each position.
+ * A position is reserved before its visit is stored, so a reader may ask for a visit that is
+ * still being stored by another thread; the store then waits until the visit is complete.
+ * Visits are kept in chunks of 2^CHUNK_BITS positions. A chunk whose visits have been archived
+ * (see {@link VisitArchive}) can be evicted, after which the store no longer holds its visits.
+ *
+ */
+public interface VisitStore {
+	/**
+	 * The number of bits of a position that give its place within its chunk.
+	 */
+	static final int CHUNK_BITS = 10;
+	/**
+	 * The check-in time returned for a position whose chunk has been evicted.
+	 */
+	static final long EVICTED = Long.MIN_VALUE;
+
+	/**
+	 * The ways visits can be stored.
+	 */
+	public enum Layout {
+		/** Each visit is a LogEntry object, see {@link EntryStore}. */
+		OBJECTS,
+		/** Visits are rows of primitive columns, see {@link ColumnStore}. */
+		COLUMNS,
+		/** Visits are fixed-width records outside the Java heap, see {@link OffHeapStore}. */
+		OFF_HEAP
+	}
+
+	/**
+	 * Create an empty store with the specified layout.
+	 * @param StoreLayout The layout of the store.
+	 * @param Visitors The registry giving the ids of visitors.
+	 * @return The new store.
+	 */
+	public static VisitStore Create(Layout StoreLayout, VisitorRegistry Visitors) {
+		switch (StoreLayout) {
+		case COLUMNS:
+			return new ColumnStore(Visitors);
+		case OFF_HEAP:
+			return new OffHeapStore(Visitors);
+		default:
+			return new EntryStore();
+		}
+	}
+	/**
+	 * Store a visit at a reserved position. Each position is stored once, unless the visit
+	 * stored there is removed again by {@link VisitorLog#Unstore(int, int[])}; a reader may then
+	 * see either visit. A visit is only removed once it is not checked out.
+	 * @param i The position of the visit.
+	 * @param Visit The visit.
+	 */
+	void Set(int i, LogEntry Visit);
+	/**
+	 * Make room for the positions below the specified size, so a batch of visits can be stored
+	 * without growing the store one chunk at a time.
+	 * @param Size The number of positions needed.
+	 */
+	void Ensure(int Size);
+	/**
+	 * Access the visit at a position. Changes made through the returned object, such as
+	 * a check-out, change the stored visit.
+	 * @param i The position of the visit, which must have been reserved.
+	 * @param Reuse An object returned by an earlier call that is no longer needed, or null.
+	 * A store that returns views of its visits may move that view to the new position
+	 * instead of creating another one.
+	 * @return The visit, or null if its chunk has been evicted.
+	 */
+	LogEntry Get(int i, LogEntry Reuse);
+	/**
+	 * Access the check-in date and time of the visit at a position.
+	 * @param i The position of the visit, which must have been reserved.
+	 * @return the seconds since 1970-01-01T00:00, or EVICTED if its chunk has been evicted.
+	 */
+	long ArrivedAt(int i);
+	/**
+	 * Drop a chunk of visits from memory, once they are kept elsewhere. Its positions are
+	 * never stored again.
+	 * @param Chunk The number of the chunk, which is its first position shifted right by CHUNK_BITS.
+	 */
+	void Evict(int Chunk);
+}
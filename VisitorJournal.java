@@ -0,0 +1,766 @@
+package visitorman;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * @author chenh
+ * The VisitorJournal class is meant to record every change made to a VisitorMan object in
+ * append-only files, so that the state can be rebuilt after a restart.
+ * The journal is a directory of numbered segment files. New records go to the segment with
+ * the highest number, and {@link #Roll(Runnable)} starts the next one, so segments that are
+ * covered by a {@link VisitorSnapshot} can be deleted.
+ * Each change is one record: the length of the record, a CRC32 checksum, the type of the change
+ * and its fields. Strings are stored as a length followed by their UTF-8 bytes.
+ * A record that was only partly written when the process stopped fails its checksum and is
+ * dropped, together with anything after it, when the journal is replayed.
+ *
+ * Records are appended to a buffer in memory and written to the file according to the
+ * {@link Durability} of the journal. The order of the records is the order in which the
+ * record methods are called. A caller that needs this order to match its own order of
+ * changes can make both while holding the monitor of the journal.
+ *
+ * A record is appended after its change is made in memory, together with a way to undo the
+ * change. If records cannot be written, they are dropped with every record appended after them,
+ * and the changes of all those records are undone, the latest first, while the journal is held.
+ * The changes in memory then match the records on disk, so no later record depends on a change
+ * that was lost. With the ASYNC durability the callers of those changes have already returned,
+ * and the changes are lost as they would be in a crash.
+ *
+ */
+public class VisitorJournal {
+
+	/**
+	 * How long a caller waits before a change is known to be on disk.
+	 */
+	public enum Durability {
+		/** Every record is written and forced to disk on its own before the change returns. */
+		PER_EVENT,
+		/** Changes wait until their record is on disk, but records waiting together are
+		 * written and forced as one batch (group commit). */
+		BATCHED,
+		/** Changes do not wait. Records are written and forced in the background, so the
+		 * last few milliseconds of changes may be lost in a crash, or undone if they cannot
+		 * be written. */
+		ASYNC
+	}
+
+	/**
+	 * Receives the changes read back from a journal.
+	 */
+	public interface Events {
+		/**
+		 * A host was registered.
+		 * @param Host The party of the host.
+		 */
+		void Host(Party Host);
+		/**
+		 * The hosts were made the same as a staff directory by a bulk import.
+		 * @param Hosts The parties of all the hosts after the import, in the order of registration.
+		 */
+		void Hosts(List<Party> Hosts);
+		/**
+		 * A host was removed by a bulk import, in a journal written before imports were
+		 * recorded as a whole.
+		 * @param email The email address of the host.
+		 */
+		void RemoveHost(String email);
+		/**
+		 * A host was replaced in its place by a bulk import, because his/her email address changed,
+		 * in a journal written before imports were recorded as a whole.
+		 * @param email The old email address of the host.
+		 * @param Host The party of the host with the new email address.
+		 */
+		void ReplaceHost(String email, Party Host);
+		/**
+		 * A visitor checked in.
+		 * @param Visit The visit. Visits read from a snapshot may already be checked out.
+		 */
+		void CheckIn(LogEntry Visit);
+		/**
+		 * The old visits are kept in an archive. Read from a snapshot, before any visit.
+		 * @param Directory The directory of the archive.
+		 * @throws IOException If the archive cannot be opened.
+		 */
+		void Archive(Path Directory) throws IOException;
+		/**
+		 * A chunk of positions is in the archive, so a snapshot left its visits out. Read from
+		 * a snapshot in order of position, so the next visit is at the first position after it.
+		 * @param Chunk The number of the chunk.
+		 * @throws IOException If the archive does not hold the chunk.
+		 */
+		void Archived(int Chunk) throws IOException;
+		/**
+		 * A visitor checked out.
+		 * @param i The position of the visit in the log.
+		 * @param CheckOutTime The check-out time.
+		 */
+		void CheckOut(int i, String CheckOutTime);
+	}
+
+	private static final byte HOST = 1;
+	private static final byte CHECK_IN = 2;
+	private static final byte CHECK_OUT = 3;
+	private static final byte REMOVE_HOST = 4;
+	private static final byte REPLACE_HOST = 5;
+	private static final byte HOST_TABLE = 6;
+	private static final byte HOST_TABLE_PART = 7;
+	private static final int HOST_TABLE_PART_SIZE = 64 * 1024;      //Bytes after which a part of the host table is ended.
+	private static final int HEADER_SIZE = 8;      //Length and checksum of a record.
+	private static final int READ_BUFFER_SIZE = 1 << 20;
+	private static final long ASYNC_INTERVAL_MILLIS = 10;
+
+	private final Path _Directory;
+	private long _Segment;
+	private FileChannel _Channel;
+	private long _Replayed;
+	private final Durability _Durability;
+	private final CRC32 _Checksum = new CRC32();
+	//Below are the records not yet written, and the buffer that is being written.
+	private ByteBuffer _Pending = ByteBuffer.allocate(64 * 1024);
+	private ByteBuffer _Writing = ByteBuffer.allocate(64 * 1024);
+	private long _Appended;
+	private volatile long _Durable;
+	//Below are the runs of records that could not be written, from the first number to the last.
+	private final ConcurrentSkipListMap<Long, Long> _Lost = new ConcurrentSkipListMap<Long, Long>();
+	//Below are the changes whose records are not yet on disk, the oldest first, with how to undo them.
+	private final ArrayDeque<Change> _Changes = new ArrayDeque<Change>();
+	private final Object _FlushLock = new Object();
+	private final Thread _Flusher;
+	private volatile boolean _Closed;
+	private volatile UncheckedIOException _FlusherFailure;      //The last write the ASYNC flusher could not make, not yet reported.
+	//Below are the number of batches open, so PER_EVENT writes a batch at once, and the thread that opened them.
+	private int _BatchDepth;
+	private volatile Thread _BatchOwner;
+	private List<Party> _TableRead;      //The hosts read so far of a table recorded in parts.
+
+	/**
+	 * Open a journal directory, creating it if it does not exist. New records are appended
+	 * after the records already in the last segment; call {@link #Replay(Events, long)} first 
+	 * to read those.
+	 * @param directory The journal directory.
+	 * @param durability How changes are made durable.
+	 * @throws IOException If the directory or the last segment cannot be opened.
+	 */
+	public VisitorJournal(Path directory, Durability durability) throws IOException {
+		Files.createDirectories(directory);
+		_Directory = directory;
+		List<Long> Segments = ListSegments(directory);
+		_Segment = Segments.isEmpty() ? 1 : Segments.get(Segments.size() - 1);
+		_Channel = OpenSegment(_Segment);
+		_Channel.position(_Channel.size());
+		_Durability = durability;
+		if (durability == Durability.ASYNC) {
+			_Flusher = new Thread(this::FlushPeriodically, "visitor-journal-flusher");
+			_Flusher.setDaemon(true);
+			_Flusher.start();
+		} else {
+			_Flusher = null;
+		}
+	}
+	/**
+	 * Access the durability of the journal.
+	 * @return The durability mode.
+	 */
+	public Durability AccessDurability() {
+		return _Durability;
+	}
+	/**
+	 * Access the number of the segment that new records are appended to.
+	 * @return The segment number.
+	 */
+	public synchronized long AccessSegment() {
+		return _Segment;
+	}
+	/**
+	 * Read every complete record in the journal, starting with the specified segment, in the
+	 * order they were written. A damaged or partly written tail of the last segment is cut off 
+	 * the file, so new records follow the last good one.
+	 * @param Target The receiver of the changes.
+	 * @param FromSegment The first segment to read; earlier segments are skipped.
+	 * @return The number of records read.
+	 * @throws IOException If a segment cannot be read.
+	 */
+	public synchronized long Replay(Events Target, long FromSegment) throws IOException {
+		_Replayed = 0;
+		for (long Segment : ListSegments(_Directory)) {
+			if (Segment < FromSegment || Segment > _Segment) {
+				continue;
+			}
+			if (Segment == _Segment) {
+				long End = ReadSegment(_Channel, Target);
+				if (_Channel.size() > End) {
+					_Channel.truncate(End);
+				}
+				_Channel.position(End);
+			} else {
+				try (FileChannel Channel = FileChannel.open(SegmentFile(_Directory, Segment), StandardOpenOption.READ)) {
+					ReadSegment(Channel, Target);
+				}
+			}
+		}
+		return _Replayed;
+	}
+	/**
+	 * Write every pending record, then start a new segment. The cut runs while no record
+	 * can be appended, so it sees exactly the changes that are in the earlier segments.
+	 * @param AtCut Run at the moment the new segment starts, for example to take a snapshot.
+	 * @return The number of the new segment.
+	 * @throws IOException If the segments cannot be written or created.
+	 */
+	public long Roll(Runnable AtCut) throws IOException {
+		synchronized (_FlushLock) {
+			synchronized (this) {
+				Write(_Pending, _Appended);
+				AtCut.run();
+				FileChannel Next = OpenSegment(_Segment + 1);
+				_Channel.close();
+				_Channel = Next;
+				_Segment++;
+				return _Segment;
+			}
+		}
+	}
+	/**
+	 * Delete the segments before the specified one, once their changes are safely
+	 * stored elsewhere.
+	 * @param Segment The first segment to keep.
+	 * @throws IOException If a segment cannot be deleted.
+	 */
+	public void DeleteSegmentsBefore(long Segment) throws IOException {
+		for (long Old : ListSegments(_Directory)) {
+			if (Old < Segment) {
+				Files.deleteIfExists(SegmentFile(_Directory, Old));
+			}
+		}
+	}
+
+	/**
+	 * Read the complete records of one segment.
+	 * @return The position just after the last good record.
+	 */
+	private long ReadSegment(FileChannel Channel, Events Target) throws IOException {
+		ByteBuffer Buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		long Position = 0;      //Start of the first record not yet read.
+		Channel.position(0);
+		while (Channel.read(Buffer) > 0 || Buffer.position() > 0) {
+			Buffer.flip();
+			int Before = Buffer.remaining();
+			while (Buffer.remaining() >= HEADER_SIZE) {
+				int Start = Buffer.position();
+				int Length = Buffer.getInt(Start);
+				if (Length <= 0 || Length > READ_BUFFER_SIZE - HEADER_SIZE) {
+					return Position;
+				}
+				if (Buffer.remaining() < HEADER_SIZE + Length) {
+					break;
+				}
+				_Checksum.reset();
+				_Checksum.update(Buffer.array(), Start + HEADER_SIZE, Length);
+				if ((int) _Checksum.getValue() != Buffer.getInt(Start + 4)) {
+					return Position;
+				}
+				Buffer.position(Start + HEADER_SIZE);
+				Decode(Buffer, Target);
+				Buffer.position(Start + HEADER_SIZE + Length);
+				Position += HEADER_SIZE + Length;
+				_Replayed++;
+			}
+			boolean AtEnd = Channel.position() >= Channel.size();
+			Buffer.compact();
+			if (AtEnd && Buffer.position() > 0 && Before == Buffer.position()) {
+				return Position;      //A partly written record at the end of the file.
+			}
+		}
+		return Position;
+	}
+	/**
+	 * Record that a host was registered.
+	 * @param Host The party of the host.
+	 * @param Undo Undoes the registration if the record cannot be written.
+	 * @return The number of the record, to pass to {@link #AwaitDurable(long)}.
+	 */
+	public synchronized long LogHost(Party Host, Runnable Undo) {
+		return Change(Undo, () -> {
+			int Start = BeginRecord(HOST);
+			PutString(Host.AccessFname());
+			PutString(Host.AccessGname());
+			PutString(Host.AccessEmail());
+			EndRecord(Start);
+		});
+	}
+	/**
+	 * Record the hosts after a bulk import, as one change holding all of them. Replaying it
+	 * gives the same hosts whatever the changes were, even when hosts swapped email addresses.
+	 * The hosts are split into parts of bounded size, so a large staff directory does not make
+	 * a record too long to read back, and the table is only replayed once every part is read.
+	 * @param Hosts The parties of all the hosts, in the order of registration.
+	 * @param Undo Undoes the import if the records cannot be written.
+	 * @return The number of the last record, to pass to {@link #AwaitDurable(long)}.
+	 */
+	public synchronized long LogHosts(List<Party> Hosts, Runnable Undo) {
+		return Change(Undo, () -> {
+			int From = 0;
+			do {
+				int Start = BeginRecord(HOST_TABLE_PART);
+				Reserve(12);
+				_Pending.putInt(Hosts.size());
+				_Pending.putInt(From);
+				int CountAt = _Pending.position();
+				_Pending.putInt(0);
+				int To = From;
+				while (To < Hosts.size() && _Pending.position() - Start < HOST_TABLE_PART_SIZE) {
+					Party Host = Hosts.get(To++);
+					PutString(Host.AccessFname());
+					PutString(Host.AccessGname());
+					PutString(Host.AccessEmail());
+				}
+				_Pending.putInt(CountAt, To - From);
+				EndRecord(Start);
+				From = To;
+			} while (From < Hosts.size());
+		});
+	}
+	/**
+	 * Record that a visitor checked in.
+	 * @param Visit The visit.
+	 * @param Undo Undoes the check-in if the record cannot be written.
+	 * @return The number of the record, to pass to {@link #AwaitDurable(long)}.
+	 */
+	public synchronized long LogCheckIn(LogEntry Visit, Runnable Undo) {
+		return Change(Undo, () -> PutCheckIn(Visit));
+	}
+	/**
+	 * Record that a group of visitors checked in. The records are one change, so with the
+	 * PER_EVENT durability they are written and forced to disk once for the group.
+	 * @param Visits The visits, in order of their positions in the log.
+	 * @param Undo Undoes the check-ins of the whole group if the records cannot be written.
+	 * @return The number of the last record, to pass to {@link #AwaitDurable(long)}.
+	 */
+	public synchronized long LogCheckIns(List<LogEntry> Visits, Runnable Undo) {
+		return Change(Undo, () -> {
+			for (LogEntry Visit : Visits) {
+				PutCheckIn(Visit);
+			}
+		});
+	}
+	/**
+	 * Record that a group of visitors checked out at the same time, in the same way as
+	 * {@link #LogCheckIns(List, Runnable)}.
+	 * @param Positions The positions of the visits in the log.
+	 * @param CheckOutTime The check-out time.
+	 * @param Undo Undoes the check-outs of the whole group if the records cannot be written.
+	 * @return The number of the last record, to pass to {@link #AwaitDurable(long)}.
+	 */
+	public synchronized long LogCheckOuts(int[] Positions, String CheckOutTime, Runnable Undo) {
+		return Change(Undo, () -> {
+			for (int i : Positions) {
+				PutCheckOut(i, CheckOutTime);
+			}
+		});
+	}
+	/**
+	 * Record that a visitor checked out.
+	 * @param i The position of the visit in the log.
+	 * @param CheckOutTime The check-out time.
+	 * @param Undo Undoes the check-out if the record cannot be written.
+	 * @return The number of the record, to pass to {@link #AwaitDurable(long)}.
+	 */
+	public synchronized long LogCheckOut(int i, String CheckOutTime, Runnable Undo) {
+		return Change(Undo, () -> PutCheckOut(i, CheckOutTime));
+	}
+	/**
+	 * Start a batch of records: with the PER_EVENT durability, the records appended until the
+	 * batch ends are written and forced to disk together. Batches may be nested, and only the
+	 * outermost batch writes. The caller must hold the journal from the start of the batch to
+	 * its end, so no other thread appends records to it.
+	 */
+	public synchronized void BeginBatch() {
+		_BatchDepth++;
+		_BatchOwner = Thread.currentThread();
+	}
+	/**
+	 * End a batch of records started by {@link #BeginBatch()}. If it is the outermost batch, 
+	 * its records are written with the PER_EVENT durability.
+	 * @return The number of the last record, to pass to {@link #AwaitDurable(long)}.
+	 */
+	public synchronized long EndBatch() {
+		if (--_BatchDepth == 0) {
+			_BatchOwner = null;
+			if (_Durability == Durability.PER_EVENT && _Pending.position() > 0) {
+				Write(_Pending, _Appended);
+			}
+		}
+		return _Appended;
+	}
+	/**
+	 * Wait until the record with the specified number is on disk. With the BATCHED durability
+	 * the first waiting thread writes every pending record and forces the file once, and the
+	 * threads that waited meanwhile find their records already on disk. With the ASYNC durability
+	 * this returns at once, as it does for the thread with a batch open, whose records are made
+	 * durable when it ends the batch.
+	 * @param Record The number of the record.
+	 * @throws UncheckedIOException If the record cannot be written; its change, and every
+	 * change after it, has been undone.
+	 */
+	public void AwaitDurable(long Record) {
+		if (_Durability == Durability.ASYNC || _BatchOwner == Thread.currentThread()) {
+			return;
+		}
+		if (_Durable < Record) {
+			synchronized (_FlushLock) {
+				if (_Durable < Record) {
+					WriteBatch();
+				}
+			}
+		}
+		if (!_Lost.isEmpty()) {      //Another thread's write of the record failed, and _Durable has since moved past it.
+			Map.Entry<Long, Long> Run = _Lost.floorEntry(Record);
+			if (Run != null && Run.getValue() >= Record) {
+				throw new UncheckedIOException(new IOException("Record " + Record + " could not be written to the visitor journal"));
+			}
+		}
+	}
+	/**
+	 * Write every pending record and force the file to disk.
+	 * @throws UncheckedIOException If the records cannot be written, or the ASYNC flusher could
+	 * not write some records since the last call.
+	 */
+	public void Flush() {
+		ReportFlusherFailure();
+		synchronized (_FlushLock) {
+			WriteBatch();
+		}
+	}
+	/**
+	 * Write every pending record and close the journal file.
+	 * @throws IOException If the file cannot be closed.
+	 * @throws UncheckedIOException If the records cannot be written, or the ASYNC flusher could
+	 * not write some records since the last call; the file is closed anyway.
+	 */
+	public void Close() throws IOException {
+		_Closed = true;
+		if (_Flusher != null) {
+			_Flusher.interrupt();
+			try {
+				_Flusher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			Flush();
+		} finally {
+			_Channel.close();
+		}
+	}
+
+	/**
+	 * Swap the pending buffer for an empty one and write it out. The caller must hold
+	 * the flush lock, so records can be appended while the batch is written.
+	 */
+	private void WriteBatch() {
+		ByteBuffer Batch;
+		long Upto;
+		synchronized (this) {
+			Upto = _Appended;
+			if (_Durable >= Upto) {
+				return;
+			}
+			Batch = _Pending;
+			_Pending = _Writing;
+			_Writing = Batch;
+		}
+		Write(Batch, Upto);
+	}
+
+	/**
+	 * Write a buffer of records to the end of the segment and force it to disk. If that fails,
+	 * the records are dropped and the segment is cut back to where they started, so records
+	 * written later are neither appended after them in the buffer nor after a torn record in
+	 * the file; the caller must not count them as durable.
+	 */
+	private void Write(ByteBuffer Batch) {
+		long Start = -1;
+		try {
+			Start = _Channel.position();
+			Batch.flip();
+			while (Batch.hasRemaining()) {
+				_Channel.write(Batch);
+			}
+			Batch.clear();
+			_Channel.force(false);
+		} catch (IOException e) {
+			Batch.clear();
+			if (Start >= 0) {
+				try {
+					_Channel.truncate(Start);
+				} catch (IOException Ignored) {      //The torn record is found and dropped when the journal is replayed.
+				}
+			}
+			throw new UncheckedIOException("Cannot write the visitor journal", e);
+		}
+	}
+
+	/**
+	 * Write a buffer holding the records after the durable ones up to the record numbered Upto,
+	 * and mark them durable. If they cannot be written they are lost, see {@link #Lose(long)}.
+	 */
+	private void Write(ByteBuffer Batch, long Upto) {
+		long Durable = _Durable;
+		try {
+			Write(Batch);
+		} catch (UncheckedIOException e) {
+			Lose(Durable);
+			throw e;
+		}
+		_Durable = Upto;
+	}
+
+	/**
+	 * Drop every record after the durable ones, since they could not all be written, mark them
+	 * lost, and undo their changes, the latest first, so the changes in memory match the records
+	 * on disk again.
+	 */
+	private void Lose(long Durable) {
+		synchronized (this) {
+			_Pending.clear();
+			while (!_Changes.isEmpty() && _Changes.peekLast()._First > Durable) {
+				try {
+					_Changes.pollLast()._Undo.run();
+				} catch (RuntimeException e) {
+					System.err.println("A change whose journal record was lost could not be undone: " + e);
+				}
+			}
+			_Lost.put(Durable + 1, _Appended);
+			_Durable = _Appended;
+		}
+	}
+
+	/**
+	 * Append the records of a change that has been made in memory, keeping the way to undo it
+	 * until they are on disk. If the records cannot be appended, those already appended are
+	 * taken back and the change is undone at once. With the PER_EVENT durability the records
+	 * are then written, unless a batch is open.
+	 * @return The number of the last record of the change.
+	 */
+	private long Change(Runnable Undo, Runnable Records) {
+		while (!_Changes.isEmpty() && _Changes.peekFirst()._First <= _Durable) {      //Its records are on disk.
+			_Changes.pollFirst();
+		}
+		int Start = _Pending.position();
+		long Appended = _Appended;
+		_Changes.addLast(new Change(Appended + 1, Undo));
+		try {
+			Records.run();
+		} catch (RuntimeException e) {
+			_Changes.pollLast();
+			_Pending.position(Start);
+			_Appended = Appended;
+			Undo.run();
+			throw e;
+		}
+		if (_Appended == Appended) {      //No records, so nothing to undo.
+			_Changes.pollLast();
+		} else if (_Durability == Durability.PER_EVENT && _BatchDepth == 0) {      //Written while holding the journal, one change at a time.
+			Write(_Pending, _Appended);
+		}
+		return _Appended;
+	}
+
+	/**
+	 * Throw the last failure of the ASYNC flusher, if there is one not yet reported.
+	 */
+	private void ReportFlusherFailure() {
+		UncheckedIOException Failure = _FlusherFailure;
+		if (Failure != null) {
+			_FlusherFailure = null;
+			throw Failure;
+		}
+	}
+
+	private int BeginRecord(byte Type) {
+		Reserve(HEADER_SIZE + 1);
+		int Start = _Pending.position();
+		_Pending.position(Start + HEADER_SIZE);
+		_Pending.put(Type);
+		return Start;
+	}
+
+	private long EndRecord(int Start) {
+		int Length = _Pending.position() - Start - HEADER_SIZE;
+		if (Length > READ_BUFFER_SIZE - HEADER_SIZE) {
+			_Pending.position(Start);
+			throw new IllegalArgumentException("A journal record cannot be longer than " + (READ_BUFFER_SIZE - HEADER_SIZE) + " bytes");
+		}
+		_Checksum.reset();
+		_Checksum.update(_Pending.array(), Start + HEADER_SIZE, Length);
+		_Pending.putInt(Start, Length);
+		_Pending.putInt(Start + 4, (int) _Checksum.getValue());
+		return ++_Appended;
+	}
+
+	private void PutCheckIn(LogEntry Visit) {
+		Party Visitor = Visit.AccessVisitor();
+		int Start = BeginRecord(CHECK_IN);
+		PutString(Visitor.AccessFname());
+		PutString(Visitor.AccessGname());
+		PutString(Visitor.AccessEmail());
+		PutString(Visitor.AccessOrganisation());
+		PutString(Visit.AccesshostEmail());
+		PutString(Visit.AccessDate());
+		PutString(Visit.AccessTime());
+		EndRecord(Start);
+	}
+
+	private void PutCheckOut(int i, String CheckOutTime) {
+		int Start = BeginRecord(CHECK_OUT);
+		Reserve(4);
+		_Pending.putInt(i);
+		PutString(CheckOutTime);
+		EndRecord(Start);
+	}
+
+	private void PutString(String Value) {
+		if (Value == null) {
+			Reserve(4);
+			_Pending.putInt(-1);
+			return;
+		}
+		byte[] Bytes = Value.getBytes(StandardCharsets.UTF_8);
+		Reserve(4 + Bytes.length);
+		_Pending.putInt(Bytes.length);
+		_Pending.put(Bytes);
+	}
+
+	private void Reserve(int Bytes) {
+		if (_Pending.remaining() < Bytes) {
+			ByteBuffer Grown = ByteBuffer.allocate(Math.max(_Pending.capacity() * 2, _Pending.position() + Bytes));
+			_Pending.flip();
+			Grown.put(_Pending);
+			_Pending = Grown;
+		}
+	}
+
+	private void Decode(ByteBuffer Buffer, Events Target) {
+		byte Type = Buffer.get();
+		if (Type == HOST) {
+			Target.Host(new Party(GetString(Buffer), GetString(Buffer), GetString(Buffer), null));
+		} else if (Type == CHECK_IN) {
+			Party Visitor = new Party(GetString(Buffer), GetString(Buffer), GetString(Buffer), GetString(Buffer));
+			Target.CheckIn(new LogEntry(Visitor, GetString(Buffer), GetString(Buffer), GetString(Buffer), false, null));
+		} else if (Type == CHECK_OUT) {
+			int i = Buffer.getInt();
+			Target.CheckOut(i, GetString(Buffer));
+		} else if (Type == REMOVE_HOST) {
+			Target.RemoveHost(GetString(Buffer));
+		} else if (Type == REPLACE_HOST) {
+			String Email = GetString(Buffer);
+			Target.ReplaceHost(Email, new Party(GetString(Buffer), GetString(Buffer), GetString(Buffer), null));
+		} else if (Type == HOST_TABLE) {
+			int Count = Buffer.getInt();
+			List<Party> Hosts = new ArrayList<Party>(Count);
+			for (int h = 0; h < Count; h++) {
+				Hosts.add(new Party(GetString(Buffer), GetString(Buffer), GetString(Buffer), null));
+			}
+			Target.Hosts(Hosts);
+		} else if (Type == HOST_TABLE_PART) {
+			int Total = Buffer.getInt();
+			int From = Buffer.getInt();
+			int Count = Buffer.getInt();
+			if (From == 0) {
+				_TableRead = new ArrayList<Party>(Total);
+			} else if (_TableRead == null || _TableRead.size() != From) {      //The start of the table was not replayed.
+				_TableRead = null;
+				return;
+			}
+			for (int h = 0; h < Count; h++) {
+				_TableRead.add(new Party(GetString(Buffer), GetString(Buffer), GetString(Buffer), null));
+			}
+			if (_TableRead.size() == Total) {
+				Target.Hosts(_TableRead);
+				_TableRead = null;
+			}
+		}
+	}
+
+	private static String GetString(ByteBuffer Buffer) {
+		int Length = Buffer.getInt();
+		if (Length < 0) {
+			return null;
+		}
+		String Value = new String(Buffer.array(), Buffer.arrayOffset() + Buffer.position(), Length, StandardCharsets.UTF_8);
+		Buffer.position(Buffer.position() + Length);
+		return Value;
+	}
+
+	private FileChannel OpenSegment(long Segment) throws IOException {
+		return FileChannel.open(SegmentFile(_Directory, Segment), 
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	private static Path SegmentFile(Path Directory, long Segment) {
+		return Directory.resolve(String.format("journal-%08d.log", Segment));
+	}
+
+	/**
+	 * List the numbers of the segments in a journal directory, in increasing order.
+	 */
+	private static List<Long> ListSegments(Path Directory) throws IOException {
+		List<Long> Segments = new ArrayList<Long>();
+		try (DirectoryStream<Path> Entries = Files.newDirectoryStream(Directory, "journal-*.log")) {
+			for (Path File : Entries) {
+				String Name = File.getFileName().toString();
+				Segments.add(Long.parseLong(Name.substring("journal-".length(), Name.length() - ".log".length())));
+			}
+		}
+		Collections.sort(Segments);
+		return Segments;
+	}
+
+	private void FlushPeriodically() {
+		while (!_Closed) {
+			try {
+				Thread.sleep(ASYNC_INTERVAL_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				synchronized (_FlushLock) {
+					WriteBatch();
+				}
+			} catch (UncheckedIOException e) {      //Kept for the next flush, and the flusher carries on.
+				_FlusherFailure = e;
+				System.err.println("The visitor journal could not write its records, so their changes were undone: " + e);
+			}
+		}
+	}
+
+	/**
+	 * A change made in memory, from the number of its first record, with how to undo it.
+	 */
+	private static class Change {
+		final long _First;
+		final Runnable _Undo;
+
+		Change(long First, Runnable Undo) {
+			_First = First;
+			_Undo = Undo;
+		}
+	}
+}
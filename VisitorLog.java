@@ -1,40 +1,302 @@
 package visitorman;
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * 
+ *
  * @author chenh
  * The VisitorLog class is to represent information of all visits, which are included in
  * different LogEntry objects.
- * 
- * 
+ * The visits that are still open (checked in but not checked out) are indexed by the
+ * normalised email address of the visitor, so a check-out does not scan the whole log.
+ * The positions of the open visits, kept in order of arrival, are the roster of visitors on site.
+ * Visits are also indexed by their check-in time in a skip list, so the visits in a range of
+ * time are found in O(log n + k) for k visits in the range.
+ * Visits are indexed by the normalised email address of their host as well, both all visits
+ * and the open ones, so the visits of one host are found without scanning other hosts' visits.
+ *
+ * The visits themselves are kept in a {@link VisitStore}, either as LogEntry objects or as
+ * primitive columns, chosen when the VisitorLog is created.
+ *
+ * A VisitorLog may be shared by many threads. Visits are appended without locking: each
+ * visit reserves its position from a counter and is then written into the store.
+ * Changes to the open visits of one visitor are serialised on that visitor's entry of a
+ * ConcurrentHashMap, so visits of different visitors do not contend. Readers take a
+ * snapshot of the visits stored so far and never block writers. The last visits stored, and
+ * check-outs, can be undone when they could not be recorded elsewhere, such as in a journal.
+ *
+ * Old visits may be moved to a {@link VisitArchive} on disk, a chunk of positions at a time
+ * (see {@link #Archive(long)}). An archived chunk is dropped from the store and the indexes,
+ * and its visits are read back from the archive, so every method still sees all the visits.
+ *
  */
 public class VisitorLog {
-	//Below is the list of LogEntry field, which is meant to store all visits.
-	private List<LogEntry> _VisitorGroup = new ArrayList<LogEntry>();
-	private int _NumVisitors = 0;
-	
+	//Below is the store of all visits.
+	private VisitStore _VisitorGroup;
+	private AtomicInteger _NumVisitors = new AtomicInteger();
+	//Below is the index from visitor email to the position of his/her open visit,
+	//and the positions of all open visits in order of arrival.
+	private ConcurrentHashMap<String, Integer> _OpenVisits = new ConcurrentHashMap<String, Integer>();
+	private ConcurrentSkipListSet<Integer> _OnSite = new ConcurrentSkipListSet<Integer>();
+	//Below is the index by check-in time. Each key is the check-in minute times POSITION_RANGE
+	//plus the position of the visit, so keys are unique and ordered by time, then by arrival.
+	private static final long POSITION_RANGE = 1L << 31;
+	private ConcurrentSkipListSet<Long> _ByArrival = new ConcurrentSkipListSet<Long>();
+	//Below are the positions of all visits of each host, and of the open visits of each host.
+	private ConcurrentHashMap<String, PositionList> _ByHost = new ConcurrentHashMap<String, PositionList>();
+	private ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>> _OnSiteByHost = 
+			new ConcurrentHashMap<String, ConcurrentSkipListSet<Integer>>();
+	//Below are the archive of old visits, and a bit for each chunk of positions that is archived.
+	//The bits are copied when a chunk is archived, so a reader can check a whole query against
+	//the bits it started with.
+	private volatile VisitArchive _Archive;
+	private volatile long[] _Archived = new long[0];
+
 	/**
-	 * Create a VisitorLog default object.
+	 * Create a VisitorLog default object, which stores visits as LogEntry objects.
 	 */
 	public VisitorLog(){
+		this(new EntryStore());
+	}
+	/**
+	 * Create a VisitorLog object that keeps its visits in the specified store.
+	 * @param Store An empty store for the visits.
+	 */
+	public VisitorLog(VisitStore Store) {
+		_VisitorGroup = Store;
 	}
 	/**
 	 * Store a single LogEntry object representing a single visit.
+	 * If the visit is still open it becomes the open visit of the visitor, replacing
+	 * any earlier visit of the same visitor that was never checked out.
+	 * @param Visitor A single LogEntry object representing a single visit.
+	 * @return The position of the visit in the log.
+	 */
+	public int StoreVisitor (LogEntry Visitor){
+		return StoreVisitor(Visitor, null);
+	}
+	/**
+	 * Store a single visit, as in {@link #StoreVisitor(LogEntry)}, and tell which open visit
+	 * it replaced, so the visit can be removed again by {@link #Unstore(int, int[])}.
 	 * @param Visitor A single LogEntry object representing a single visit.
+	 * @param Replaced Given the position of the open visit of the same visitor that the visit 
+	 * replaced, or -1, as its first element; may be null.
+	 * @return The position of the visit in the log.
 	 */
-	public void StoreVisitor (LogEntry Visitor){
-		_VisitorGroup.add(_NumVisitors, Visitor);
-		_NumVisitors++;
+	public int StoreVisitor(LogEntry Visitor, int[] Replaced) {
+		final int i = _NumVisitors.getAndIncrement();
+		String HostKey = HostKey(Visitor.AccesshostEmail());
+		int Previous = -1;
+		if (!Visitor.Checkout()) {      //On site before it is stored, so a stored visit is never open and off site.
+			Previous = Open(i, Visitor, HostKey);
+		}
+		if (Replaced != null) {
+			Replaced[0] = Previous;
+		}
+		_VisitorGroup.Set(i, Visitor);
+		_ByArrival.add(ArrivalKey(Math.floorDiv(Visitor.AccessArrivedAt(), 60), i));
+		_ByHost.computeIfAbsent(HostKey, Key -> new PositionList()).Add(i);
+		return i;
 	}
 	/**
-	 * 
-	 * Return the list storing all visits.
-	 * @return The list of LogEntry field.
+	 * Store a group of visits at consecutive positions, such as a group arriving together.
+	 * The positions are reserved and room is made for them once, and the visits of each host
+	 * are added to the host's index together. Each visit that is still open becomes the open 
+	 * visit of its visitor, as in {@link #StoreVisitor(LogEntry)}.
+	 * @param Visits The visits, in order of arrival.
+	 * @return The position of the first visit; the others follow it in order.
+	 */
+	public int StoreVisitors(List<LogEntry> Visits) {
+		return StoreVisitors(Visits, null);
+	}
+	/**
+	 * Store a group of visits, as in {@link #StoreVisitors(List)}, and tell which open visit 
+	 * each replaced, so the group can be removed again by {@link #Unstore(int, int[])}.
+	 * @param Visits The visits, in order of arrival.
+	 * @param Replaced Given the position of the open visit that each visit replaced, or -1, 
+	 * in the order of the visits; may be null.
+	 * @return The position of the first visit; the others follow it in order.
+	 */
+	public int StoreVisitors(List<LogEntry> Visits, int[] Replaced) {
+		int Count = Visits.size();
+		int First = _NumVisitors.getAndAdd(Count);
+		_VisitorGroup.Ensure(First + Count);
+		Map<String, PositionList> ByHost = new HashMap<String, PositionList>();
+		for (int j = 0; j < Count; j++) {
+			LogEntry Visitor = Visits.get(j);
+			String HostKey = HostKey(Visitor.AccesshostEmail());
+			int Previous = -1;
+			if (!Visitor.Checkout()) {      //On site before it is stored, as in StoreVisitor.
+				Previous = Open(First + j, Visitor, HostKey);
+			}
+			if (Replaced != null) {
+				Replaced[j] = Previous;
+			}
+			_VisitorGroup.Set(First + j, Visitor);
+			_ByArrival.add(ArrivalKey(Math.floorDiv(Visitor.AccessArrivedAt(), 60), First + j));
+			ByHost.computeIfAbsent(HostKey, Key -> new PositionList()).Add(First + j);
+		}
+		for (Map.Entry<String, PositionList> Host : ByHost.entrySet()) {
+			_ByHost.computeIfAbsent(Host.getKey(), Key -> new PositionList()).AddAll(Host.getValue());
+		}
+		return First;
+	}
+	/**
+	 *
+	 * Return a snapshot of the visits stored so far. Visits stored after the snapshot
+	 * was taken are not included, but check-outs of the included visits are visible.
+	 * @return An unmodifiable list of the LogEntry objects, in order of arrival.
 	 */
 	public List<LogEntry> GetVisitorLog (){
-		return _VisitorGroup;
+		return new Snapshot(_NumVisitors.get());
+	}
+	/**
+	 * Access the number of visits stored so far.
+	 * @return The number of visits.
+	 */
+	public int Size() {
+		return _NumVisitors.get();
+	}
+	/**
+	 * Access a single visit.
+	 * @param i The position of the visit in the log.
+	 * @return The LogEntry object of the visit.
+	 */
+	public LogEntry GetVisit(int i) {
+		return GetVisit(i, null);
+	}
+	/**
+	 * Access a single visit, reusing an object returned for another visit if the store
+	 * returns views of its visits. Loops over many visits use this so they need not
+	 * create an object per visit.
+	 * @param i The position of the visit in the log.
+	 * @param Reuse An object returned by an earlier call that is no longer needed, or null.
+	 * @return The LogEntry object of the visit, which may be Reuse.
+	 */
+	public LogEntry GetVisit(int i, LogEntry Reuse) {
+		if (i < 0 || i >= _NumVisitors.get()) {
+			throw new IndexOutOfBoundsException("Visit " + i + " is not in the log");
+		}
+		if (IsArchived(_Archived, i)) {
+			return _Archive.Get(i);
+		}
+		LogEntry Visit = _VisitorGroup.Get(i, Reuse);
+		return Visit != null ? Visit : _Archive.Get(i);      //Archived while it was being read.
+	}
+	/**
+	 * Return the positions of the visits that checked in during a range of time.
+	 * @param From The start of the range, in seconds since 1970-01-01T00:00 (inclusive).
+	 * @param To The end of the range, in seconds since 1970-01-01T00:00 (exclusive).
+	 * @return A new list of the positions of the visits, in order of check-in time.
+	 */
+	public List<Integer> VisitsBetween(long From, long To) {
+		List<Integer> Visits = new ArrayList<Integer>();
+		if (From >= To) {
+			return Visits;
+		}
+		long Low = ArrivalKey(Math.floorDiv(From, 60), 0);
+		long High = ArrivalKey(Math.floorDiv(To - 1, 60) + 1, 0);
+		while (true) {
+			long[] Archived = _Archived;
+			for (Long Key : _ByArrival.subSet(Low, High)) {
+				int i = (int) Math.floorMod(Key, POSITION_RANGE);
+				if (IsArchived(Archived, i)) {      //Found in the archive below; its key is being removed.
+					continue;
+				}
+				long ArrivedAt = _VisitorGroup.ArrivedAt(i);      //The key only has the minute.
+				if (ArrivedAt >= From && ArrivedAt < To) {
+					Visits.add(i);
+				}
+			}
+			if (Archived.length > 0) {
+				Visits = MergeArchived(Visits, _Archive.VisitsBetween(From, To), Archived);
+			}
+			if (Archived == _Archived) {
+				return Visits;
+			}
+			Visits.clear();      //A chunk was archived meanwhile, so some of its visits may have been missed.
+		}
+	}
+	/**
+	 * Return the visitors currently on site, in order of arrival.
+	 * @return A new list of the Party objects of the visitors on site.
+	 */
+	public List<Party> GetVisitorsOnSite() {
+		List<Party> OnSite = new ArrayList<Party>(_OnSite.size());
+		LogEntry Visit = null;
+		for (Integer Open : _OnSite) {
+			Visit = GetVisit(Open, Visit);
+			OnSite.add(Visit.AccessVisitor());
+		}
+		return OnSite;
+	}
+	/**
+	 * Return the positions of all the visits of a host.
+	 * @param hostEmail The email address of the host.
+	 * @return A new list of the positions of the visits, in order of arrival.
+	 */
+	public List<Integer> VisitsOfHost(String hostEmail) {
+		while (true) {
+			long[] Archived = _Archived;
+			PositionList Live = _ByHost.get(HostKey(hostEmail));
+			List<Integer> Visits = Live == null ? new ArrayList<Integer>() : Live.ToList();
+			if (Archived.length > 0) {
+				Visits.removeIf(i -> IsArchived(Archived, i));
+				for (int i : _Archive.VisitsOfHost(hostEmail)) {
+					if (IsArchived(Archived, i)) {
+						Visits.add(i);
+					}
+				}
+				Visits.sort(null);
+			}
+			if (Archived == _Archived) {
+				return Visits;
+			}
+		}
+	}
+	/**
+	 * Return the visitors currently on site to visit a host, in order of arrival.
+	 * @param hostEmail The email address of the host.
+	 * @return A new list of the Party objects of the visitors.
+	 */
+	public List<Party> GetVisitorsOnSite(String hostEmail) {
+		ConcurrentSkipListSet<Integer> Open = _OnSiteByHost.get(HostKey(hostEmail));
+		List<Party> OnSite = new ArrayList<Party>();
+		if (Open != null) {
+			LogEntry Visit = null;
+			for (Integer i : Open) {
+				Visit = GetVisit(i, Visit);
+				OnSite.add(Visit.AccessVisitor());
+			}
+		}
+		return OnSite;
+	}
+	/**
+	 * Check whether a visit is open, so its visitor is on site.
+	 * @param i The position of the visit in the log.
+	 * @return true if the visit is open.
+	 */
+	public boolean IsOnSite(int i) {
+		return _OnSite.contains(i);
+	}
+	/**
+	 * Access the number of visitors currently on site.
+	 * @return The number of open visits.
+	 */
+	public int NumOnSite() {
+		return _OpenVisits.size();
 	}
 	/**
 	 * Change the state of a specified visit if the visitor is recorded to be checked out.
@@ -42,9 +304,405 @@ public class VisitorLog {
 	 * @param CheckOutTime The check-out time of the visitor.
 	 */
 	public void ChangeState(int i, String CheckOutTime) {
-		LogEntry Visitor = _VisitorGroup.get(i);
+		LogEntry Visitor = GetVisit(i);
+		boolean Open = _OpenVisits.remove(Party.NormaliseEmail(Visitor.AccessVisitor().AccessEmail()), i);
+		Visitor.AddLeftTime(CheckOutTime);
 		Visitor.IfCheckOut();
+		if (Open) {
+			LeaveSite(i);
+		}
+	}
+	/**
+	 * Check out the open visit of the visitor with the specified email address.
+	 * Earlier visits of the same visitor are not changed.
+	 * @param email The email address of the visitor.
+	 * @param CheckOutTime The check-out time of the visitor.
+	 * @return The position of the visit that was checked out, or -1 if the visitor is not on site.
+	 */
+	public int CheckOutVisitor(String email, String CheckOutTime) {
+		Integer Open = _OpenVisits.remove(Party.NormaliseEmail(email));
+		if (Open == null) {
+			return -1;
+		}
+		LogEntry Visitor = GetVisit(Open);
 		Visitor.AddLeftTime(CheckOutTime);
-		_VisitorGroup.set(i, Visitor);
+		Visitor.IfCheckOut();
+		LeaveSite(Open);      //Only after it is checked out, so a visit off site is never mistaken for an open one.
+		return Open;
+	}
+
+	/**
+	 * Undo the check-out of a visit, such as a check-out that could not be recorded, so it is
+	 * the open visit of its visitor again.
+	 * @param i The position of the visit in the log.
+	 */
+	public void Reopen(int i) {
+		LogEntry Visitor = GetVisit(i);
+		Visitor.UndoCheckOut();
+		Open(i, Visitor, HostKey(Visitor.AccesshostEmail()));
+	}
+	/**
+	 * Remove the last visits stored, such as a check-in that could not be recorded, so their
+	 * positions are given to the next visits stored. The open visit each of them replaced is
+	 * the open visit of its visitor again. Changes made to the log since they were stored 
+	 * must be undone first, the latest first.
+	 * The store keeps the visits until their positions are stored again, so a reader that
+	 * found one of them before it was removed still reads a visit.
+	 * @param First The position of the first visit to remove.
+	 * @param Replaced The positions of the open visits they replaced, as given when they were stored.
+	 * @throws IllegalStateException If they are not the last visits, or are archived.
+	 */
+	public synchronized void Unstore(int First, int[] Replaced) {
+		int End = First + Replaced.length;
+		if (_NumVisitors.get() != End) {
+			throw new IllegalStateException("Visits " + First + " to " + (End - 1) + " are not the last in the log");
+		}
+		for (int Chunk = First >>> VisitStore.CHUNK_BITS; First < End && Chunk <= (End - 1) >>> VisitStore.CHUNK_BITS; Chunk++) {
+			if (IsArchived(_Archived, Chunk << VisitStore.CHUNK_BITS)) {
+				throw new IllegalStateException("Visits " + First + " to " + (End - 1) + " are archived");
+			}
+		}
+		Set<String> Hosts = new HashSet<String>();
+		for (int i = End - 1; i >= First; i--) {
+			LogEntry Visit = _VisitorGroup.Get(i, null);
+			if (_OpenVisits.remove(Party.NormaliseEmail(Visit.AccessVisitor().AccessEmail()), i)) {
+				LeaveSite(i);
+			}
+			int Previous = Replaced[i - First];
+			if (Previous >= 0) {
+				LogEntry Open = GetVisit(Previous);
+				Open(Previous, Open, HostKey(Open.AccesshostEmail()));
+			}
+			_ByArrival.remove(ArrivalKey(Math.floorDiv(Visit.AccessArrivedAt(), 60), i));
+			Hosts.add(HostKey(Visit.AccesshostEmail()));
+		}
+		for (String Host : Hosts) {
+			_ByHost.get(Host).RemoveBetween(First, End);
+		}
+		_NumVisitors.set(First);
+	}
+
+	/**
+	 * Check out the open visits of a group of visitors at the same time.
+	 * @param emails The email addresses of the visitors.
+	 * @param CheckOutTime The check-out time of the visitors.
+	 * @return The positions of the visits that were checked out; visitors who are not on
+	 * site are left out.
+	 */
+	public int[] CheckOutVisitors(Collection<String> emails, String CheckOutTime) {
+		int[] Positions = new int[emails.size()];
+		int Count = 0;
+		for (String email : emails) {
+			int i = CheckOutVisitor(email, CheckOutTime);
+			if (i >= 0) {
+				Positions[Count++] = i;
+			}
+		}
+		return Arrays.copyOf(Positions, Count);
+	}
+
+	/**
+	 * Keep old visits in an archive instead of in memory. Chunks of the log that are already in
+	 * the archive, such as after a restart, are dropped from memory at once, as long as they match
+	 * the visits of the log and are all closed; any other segment is written again when its
+	 * chunk is archived.
+	 * @param Archive The archive.
+	 * @throws IOException If a segment holds visits other than those at its positions in the log,
+	 * as when the archive belongs to another log.
+	 * @throws IllegalStateException If the log already has an archive.
+	 */
+	public synchronized void SetArchive(VisitArchive Archive) throws IOException {
+		if (_Archive != null) {
+			throw new IllegalStateException("The log already has an archive");
+		}
+		_Archive = Archive;
+		for (int First : Archive.Segments()) {
+			int Chunk = First >>> VisitStore.CHUNK_BITS;
+			if (First != Chunk << VisitStore.CHUNK_BITS || Archive.SegmentSize(First) != 1 << VisitStore.CHUNK_BITS) {
+				continue;
+			}
+			List<LogEntry> Visits = Closed(Chunk, Long.MAX_VALUE);
+			if (Visits == null) {
+				continue;
+			}
+			for (int j = 0; j < Visits.size(); j++) {
+				LogEntry Archived = Archive.Get(First + j);
+				LogEntry Visit = Visits.get(j);
+				if (Archived.AccessArrivedAt() != Visit.AccessArrivedAt() || !Party.NormaliseEmail(Archived.AccessVisitor().AccessEmail())
+						.equals(Party.NormaliseEmail(Visit.AccessVisitor().AccessEmail()))) {
+					throw new IOException("The archive does not match the log at visit " + (First + j));
+				}
+			}
+			Retire(Chunk, Visits);
+		}
+	}
+	/**
+	 * Move the visits that checked in before a time to the archive. Only whole chunks are
+	 * moved, and a chunk is only moved once every visit in it checked in before the time and
+	 * is closed, so a chunk with a visitor still on site stays in memory until he/she leaves.
+	 * @param Before The time, in seconds since 1970-01-01T00:00.
+	 * @return The number of visits moved.
+	 * @throws IOException If a chunk cannot be written to the archive; the chunks moved before
+	 * it stay moved.
+	 * @throws IllegalStateException If the log has no archive, see {@link #SetArchive(VisitArchive)}.
+	 */
+	public synchronized int Archive(long Before) throws IOException {
+		if (_Archive == null) {
+			throw new IllegalStateException("The log has no archive");
+		}
+		int Moved = 0;
+		int Chunks = _NumVisitors.get() >>> VisitStore.CHUNK_BITS;
+		for (int Chunk = 0; Chunk < Chunks; Chunk++) {
+			if (IsArchived(_Archived, Chunk << VisitStore.CHUNK_BITS)) {
+				continue;
+			}
+			List<LogEntry> Visits = Closed(Chunk, Before);
+			if (Visits != null) {
+				_Archive.Write(Chunk << VisitStore.CHUNK_BITS, Visits);
+				Retire(Chunk, Visits);
+				Moved += Visits.size();
+			}
+		}
+		return Moved;
+	}
+	/**
+	 * Skip the next chunk of positions while the log is restored from a snapshot that left
+	 * the chunk out because it is archived. The chunk is marked as archived without being
+	 * stored, so the visits after it keep their positions.
+	 * @param Chunk The number of the chunk, which must start at the next position.
+	 * @throws IOException If the archive does not hold the whole chunk.
+	 * @throws IllegalStateException If the log has no archive, or the chunk does not start at
+	 * the next position.
+	 */
+	public synchronized void SkipArchived(int Chunk) throws IOException {
+		int First = Chunk << VisitStore.CHUNK_BITS;
+		if (_Archive == null || _NumVisitors.get() != First) {
+			throw new IllegalStateException("Chunk " + Chunk + " cannot be skipped at position " + _NumVisitors.get());
+		}
+		if (_Archive.SegmentSize(First) != 1 << VisitStore.CHUNK_BITS) {
+			throw new IOException("The archive " + _Archive.AccessDirectory() + " does not hold the visits from " + First);
+		}
+		_NumVisitors.set(First + (1 << VisitStore.CHUNK_BITS));
+		_VisitorGroup.Ensure(First + (1 << VisitStore.CHUNK_BITS));      //So the chunk is not added back when later visits are stored.
+		MarkArchived(Chunk);
+	}
+	/**
+	 * Access the archive of old visits.
+	 * @return The archive, or null if the log has none.
+	 */
+	public VisitArchive AccessArchive() {
+		return _Archive;
+	}
+	/**
+	 * Access the chunks of positions that are archived.
+	 * @return A bit for each chunk, set if the chunk is archived. The array is not changed
+	 * afterwards, so it must not be changed by the caller either.
+	 */
+	public long[] ArchivedChunks() {
+		return _Archived;
+	}
+	/**
+	 * Access the number of visits that are archived rather than in memory.
+	 * @return The number of visits.
+	 */
+	public int NumArchived() {
+		int Chunks = 0;
+		for (long Bits : _Archived) {
+			Chunks += Long.bitCount(Bits);
+		}
+		return Chunks << VisitStore.CHUNK_BITS;
+	}
+
+	/**
+	 * Return the visits of a whole chunk if they all checked in before a time and are closed
+	 * (checked out, or replaced by a later visit of the same visitor), or null otherwise.
+	 */
+	private List<LogEntry> Closed(int Chunk, long Before) {
+		int First = Chunk << VisitStore.CHUNK_BITS;
+		int End = First + (1 << VisitStore.CHUNK_BITS);
+		if (End > _NumVisitors.get()) {
+			return null;
+		}
+		List<LogEntry> Visits = new ArrayList<LogEntry>(End - First);
+		for (int i = First; i < End; i++) {
+			LogEntry Visit = _VisitorGroup.Get(i, null);
+			if (Visit.AccessArrivedAt() >= Before || (!Visit.Checkout() && _OnSite.contains(i))) {
+				return null;
+			}
+			Visits.add(Visit);
+		}
+		return Visits;
+	}
+
+	/**
+	 * Mark a chunk that is in the archive as archived, then drop it from the store and the indexes.
+	 */
+	private void Retire(int Chunk, List<LogEntry> Visits) {
+		int First = Chunk << VisitStore.CHUNK_BITS;
+		MarkArchived(Chunk);
+		Set<String> Hosts = new HashSet<String>();
+		for (int j = 0; j < Visits.size(); j++) {
+			LogEntry Visit = Visits.get(j);
+			_ByArrival.remove(ArrivalKey(Math.floorDiv(Visit.AccessArrivedAt(), 60), First + j));
+			Hosts.add(HostKey(Visit.AccesshostEmail()));
+		}
+		for (String Host : Hosts) {
+			PositionList Positions = _ByHost.get(Host);
+			if (Positions != null) {
+				Positions.RemoveBetween(First, First + Visits.size());
+			}
+		}
+	}
+
+	/**
+	 * Add the archived visits found by a query to the visits found in memory, in order of
+	 * check-in minute and then position, as the index by check-in time orders them.
+	 */
+	private List<Integer> MergeArchived(List<Integer> Live, List<Integer> Found, long[] Archived) {
+		if (Found.isEmpty()) {
+			return Live;
+		}
+		long[] Keys = new long[Live.size() + Found.size()];
+		int Count = 0;
+		for (int i : Live) {
+			Keys[Count++] = ArrivalKey(Math.floorDiv(_VisitorGroup.ArrivedAt(i), 60), i);
+		}
+		for (int i : Found) {
+			if (IsArchived(Archived, i)) {
+				Keys[Count++] = ArrivalKey(Math.floorDiv(_Archive.Get(i).AccessArrivedAt(), 60), i);
+			}
+		}
+		Arrays.sort(Keys, 0, Count);
+		List<Integer> Visits = new ArrayList<Integer>(Count);
+		for (int k = 0; k < Count; k++) {
+			Visits.add((int) Math.floorMod(Keys[k], POSITION_RANGE));
+		}
+		return Visits;
+	}
+
+	/**
+	 * Mark a chunk as archived, then drop it from the store.
+	 */
+	private void MarkArchived(int Chunk) {
+		long[] Archived = Arrays.copyOf(_Archived, Math.max(_Archived.length, (Chunk >>> 6) + 1));
+		Archived[Chunk >>> 6] |= 1L << Chunk;
+		_Archived = Archived;
+		_VisitorGroup.Evict(Chunk);
+	}
+
+	static boolean IsArchived(long[] Archived, int i) {
+		int Chunk = i >>> VisitStore.CHUNK_BITS;
+		return (Chunk >>> 6) < Archived.length && (Archived[Chunk >>> 6] & (1L << Chunk)) != 0;
+	}
+
+	/**
+	 * Make a visit the open visit of its visitor, replacing any earlier open visit,
+	 * and add it to the rosters. The rosters are changed while the visitor's entry is held,
+	 * so a check-out of the same visitor cannot come between.
+	 * @return The position of the open visit replaced, or -1 if there was none.
+	 */
+	private int Open(int i, LogEntry Visitor, String HostKey) {
+		int[] Replaced = { -1 };
+		_OpenVisits.compute(Party.NormaliseEmail(Visitor.AccessVisitor().AccessEmail()), (EmailKey, Previous) -> {
+			if (Previous != null) {
+				LeaveSite(Previous);
+				Replaced[0] = Previous;
+			}
+			_OnSite.add(i);
+			_OnSiteByHost.computeIfAbsent(HostKey, Key -> new ConcurrentSkipListSet<Integer>()).add(i);
+			return i;
+		});
+		return Replaced[0];
+	}
+
+	/**
+	 * Remove an open visit from the roster of visitors on site and from its host's roster.
+	 */
+	private void LeaveSite(int i) {
+		_OnSite.remove(i);
+		ConcurrentSkipListSet<Integer> HostOnSite = _OnSiteByHost.get(HostKey(GetVisit(i).AccesshostEmail()));
+		if (HostOnSite != null) {
+			HostOnSite.remove(i);
+		}
+	}
+
+	static String HostKey(String hostEmail) {
+		return hostEmail == null ? "" : Party.NormaliseEmail(hostEmail);
+	}
+
+	private static long ArrivalKey(long Minute, int i) {
+		return Minute * POSITION_RANGE + i;
+	}
+
+	/**
+	 * A growable list of positions in the log, which many threads may add to.
+	 */
+	private static class PositionList {
+		private int[] _Positions = new int[4];
+		private int _Size;
+
+		synchronized void Add(int i) {
+			if (_Size == _Positions.length) {
+				_Positions = Arrays.copyOf(_Positions, _Size * 2);
+			}
+			_Positions[_Size++] = i;
+		}
+
+		synchronized void AddAll(PositionList Other) {
+			if (_Size + Other._Size > _Positions.length) {
+				_Positions = Arrays.copyOf(_Positions, Math.max(_Size * 2, _Size + Other._Size));
+			}
+			System.arraycopy(Other._Positions, 0, _Positions, _Size, Other._Size);
+			_Size += Other._Size;
+		}
+
+		synchronized List<Integer> ToList() {
+			List<Integer> Positions = new ArrayList<Integer>(_Size);
+			for (int j = 0; j < _Size; j++) {
+				Positions.add(_Positions[j]);
+			}
+			Positions.sort(null);      //Positions are reserved in order but may be added slightly out of order.
+			return Positions;
+		}
+
+		/**
+		 * Remove the positions from From up to (but not including) To, such as an archived chunk.
+		 */
+		synchronized void RemoveBetween(int From, int To) {
+			int Kept = 0;
+			for (int j = 0; j < _Size; j++) {
+				if (_Positions[j] < From || _Positions[j] >= To) {
+					_Positions[Kept++] = _Positions[j];
+				}
+			}
+			_Size = Kept;
+			if (_Size < _Positions.length / 4) {
+				_Positions = Arrays.copyOf(_Positions, Math.max(_Size * 2, 4));
+			}
+		}
+	}
+
+	/**
+	 * A read-only view of the first visits of the log.
+	 */
+	private class Snapshot extends AbstractList<LogEntry> implements RandomAccess {
+		private final int _Size;
+
+		Snapshot(int size) {
+			_Size = size;
+		}
+
+		@Override
+		public LogEntry get(int i) {
+			if (i >= _Size) {
+				throw new IndexOutOfBoundsException("Visit " + i + " is not in the snapshot");
+			}
+			return GetVisit(i);
+		}
+
+		@Override
+		public int size() {
+			return _Size;
+		}
 	}
 }
@@ -1,7 +1,28 @@
 package visitorman;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import javax.management.JMException;
 
 /**
  * Manage visitors. When a visitor arrives, he must check in by providing his name, the organisation
@@ -13,37 +34,382 @@ import java.util.List;
  * "formal" or "informal"
  * The formal format is family name followed by comma, followed by a space, followed by the given name.
  * The informal format is given name followed by space, followed family name.
+ * A VisitorMan object may be used by many threads at once, for example by several check-in 
+ * kiosks. Check-ins and check-outs of different visitors do not wait for each other, and 
+ * reports are built from a snapshot of the log without blocking check-ins.
+ * A VisitorMan object may also keep a {@link VisitorJournal} of its changes and periodic
+ * {@link VisitorSnapshot}s of its state, from which its state is rebuilt when it is created again.
+ * A change whose record cannot be written to the journal is undone, and the method that made
+ * it throws an UncheckedIOException (unless it has already returned, with the ASYNC durability),
+ * so the state never holds a change the journal has lost.
+ * Every public method is measured by {@link VisitorMetrics}, which may be published over JMX.
+ * Visits older than a number of days may be moved to a compressed {@link VisitArchive} on disk,
+ * so the memory used depends on recent traffic rather than on the whole history.
  * 
  * <P>SOFTENG251 2020 Assignment 2. Copyright Ewan Tempero, The University of Auckland, 2020.
  */
 public class VisitorMan {
 	private String _organisationName;
-	private List<Party> _hosts = new ArrayList<Party>();
-	private int _NumVisitors;
+	private HostRegistry _hosts = new HostRegistry();
+	private VisitorRegistry _Visitors = new VisitorRegistry();
+	
+	//Below is the initial size of the buffer for a line of a report, which fits most lines.
+	private static final int LINE_CAPACITY = 160;
+	//Below is the number of visits a task of a parallel report builds lines for.
+	private static final int REPORT_RANGE = 8192;
 	
 	//Below are fields that created for convenience and storing values.
-	private VisitorLog _LogVisitorsGroups = new VisitorLog();
-	private List<Party> _VisitorParty = new ArrayList<Party>();
-	private List<Party> _VisitorsPartyOnSite = new ArrayList<Party>();
+	private VisitorLog _LogVisitorsGroups;
+	private VisitorJournal _Journal;
+	private Path _DataDirectory;
+	private ScheduledExecutorService _Snapshots;
+	private int _RetentionDays = -1;
+	private VisitorMetrics _Metrics;
+	private List<VisitListener> _Listeners = new CopyOnWriteArrayList<VisitListener>();
+	private VisitAnalytics _Analytics;
+	private volatile PartySearch _Search;
 	/**
 	 * Create a VisitorMan object for the specified organisation.
 	 * @param organisationName The name of the organisation whose visitors are being managed.
 	 */
 	public VisitorMan(String organisationName) {
+		this(organisationName, VisitStore.Layout.OBJECTS);
+	}
+	/**
+	 * Create a VisitorMan object for the specified organisation that stores its visits with
+	 * the specified layout. {@link VisitStore.Layout#COLUMNS} keeps large logs in a fraction of
+	 * the memory, with fewer objects for the garbage collector to trace, and 
+	 * {@link VisitStore.Layout#OFF_HEAP} keeps them outside the heap altogether.
+	 * @param organisationName The name of the organisation whose visitors are being managed.
+	 * @param layout How the visits are stored.
+	 */
+	public VisitorMan(String organisationName, VisitStore.Layout layout) {
 		_organisationName = organisationName;
+		_LogVisitorsGroups = new VisitorLog(VisitStore.Create(layout, _Visitors));
+		_Metrics = new VisitorMetrics(_LogVisitorsGroups::NumOnSite, _LogVisitorsGroups::Size, _hosts::Size);
 		System.out.println("A VisitorMan object was created for organisation:" + _organisationName);
 	}
+	/**
+	 * Create a VisitorMan object for the specified organisation that records every change
+	 * in a journal in the data directory. If the directory already holds a snapshot or 
+	 * journal, the hosts and visits recorded there are restored first: the newest snapshot 
+	 * is loaded and only the journal written after it is replayed.
+	 * @param organisationName The name of the organisation whose visitors are being managed.
+	 * @param dataDirectory The directory for the journal and snapshots.
+	 * @param durability How changes are made durable, see {@link VisitorJournal.Durability}.
+	 * @throws IOException If the journal cannot be opened or read.
+	 */
+	public VisitorMan(String organisationName, Path dataDirectory, VisitorJournal.Durability durability) throws IOException {
+		this(organisationName, VisitStore.Layout.OBJECTS, dataDirectory, durability);
+	}
+	/**
+	 * Create a VisitorMan object for the specified organisation that stores its visits with
+	 * the specified layout and records every change in a journal in the data directory, 
+	 * see {@link #VisitorMan(String, Path, VisitorJournal.Durability)}.
+	 * @param organisationName The name of the organisation whose visitors are being managed.
+	 * @param layout How the visits are stored.
+	 * @param dataDirectory The directory for the journal and snapshots.
+	 * @param durability How changes are made durable, see {@link VisitorJournal.Durability}.
+	 * @throws IOException If the journal cannot be opened or read.
+	 */
+	public VisitorMan(String organisationName, VisitStore.Layout layout, Path dataDirectory, 
+			VisitorJournal.Durability durability) throws IOException {
+		this(organisationName, layout);
+		VisitorJournal Journal = new VisitorJournal(dataDirectory, durability);
+		VisitorJournal.Events Restore = new VisitorJournal.Events() {
+			public void Host(Party Host) {
+				_hosts.Register(Host);
+			}
+			public void Hosts(List<Party> Hosts) {
+				_hosts.Load(Hosts);
+			}
+			public void RemoveHost(String email) {
+				if (!_hosts.Remove(email)) {
+					System.err.println("The journal removes host " + email + ", who is not registered");
+				}
+			}
+			public void ReplaceHost(String email, Party Host) {
+				if (!_hosts.Replace(email, Host)) {
+					System.err.println("The journal replaces host " + email + " by " + Host.AccessEmail() 
+							+ ", which is not registered or is taken by another host");
+				}
+			}
+			public void CheckIn(LogEntry Visit) {
+				//Restored visits share the visitors' Party objects, like visits checked in now.
+				_LogVisitorsGroups.StoreVisitor(new LogEntry(_Visitors.Resolve(Visit.AccessVisitor()), 
+						_Visitors.Intern(Visit.AccesshostEmail()), Visit.AccessArrivedAt(), Visit.Checkout(), Visit.AccessLeftAt()));
+			}
+			public void Archive(Path Directory) throws IOException {
+				_LogVisitorsGroups.SetArchive(new VisitArchive(Directory));
+			}
+			public void Archived(int Chunk) throws IOException {
+				_LogVisitorsGroups.SkipArchived(Chunk);
+			}
+			public void CheckOut(int i, String CheckOutTime) {
+				if (i < _LogVisitorsGroups.Size()) {
+					_LogVisitorsGroups.ChangeState(i, CheckOutTime);
+				}
+			}
+		};
+		try {
+			long FirstSegment = VisitorSnapshot.LoadLatest(dataDirectory, Restore);
+			Journal.Replay(Restore, FirstSegment);
+		} catch (IOException e) {
+			Journal.Close();
+			throw e;
+		}
+		_Journal = Journal;
+		_DataDirectory = dataDirectory;
+	}
+	/**
+	 * Write a snapshot of the hosts and visits to the data directory, then delete the journal
+	 * segments and snapshots it replaces. Check-ins and check-outs are only held back while 
+	 * the journal starts a new segment; the snapshot itself is written while they continue.
+	 * Does nothing if this VisitorMan object has no journal.
+	 * @throws IOException If the snapshot cannot be written.
+	 */
+	public void takeSnapshot() throws IOException {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.TAKE_SNAPSHOT);
+		try {
+			if (_Journal == null) {
+				return;
+			}
+			final VisitorSnapshot Snapshot = new VisitorSnapshot();
+			long Segment = _Journal.Roll(() -> {
+				long[] Archived = _LogVisitorsGroups.ArchivedChunks();      //Before the visits, so every archived chunk is among them.
+				Snapshot.Capture(_hosts.GetHosts(), _LogVisitorsGroups.GetVisitorLog(), _LogVisitorsGroups.AccessArchive(), Archived);
+			});
+			Snapshot.Write(_DataDirectory, Segment);
+			_Journal.DeleteSegmentsBefore(Segment);
+			VisitorSnapshot.DeleteBefore(_DataDirectory, Segment);
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.TAKE_SNAPSHOT, Started);
+		}
+	}
+	/**
+	 * Take a snapshot in the background at a fixed rate, see {@link #takeSnapshot()}.
+	 * Does nothing if this VisitorMan object has no journal or snapshots are already scheduled.
+	 * @param period The time between snapshots.
+	 * @param unit The unit of the period.
+	 */
+	public synchronized void scheduleSnapshots(long period, TimeUnit unit) {
+		if (_Journal == null || _Snapshots != null) {
+			return;
+		}
+		_Snapshots = Executors.newSingleThreadScheduledExecutor(Task -> {
+			Thread Snapshotter = new Thread(Task, "visitorman-snapshot");
+			Snapshotter.setDaemon(true);
+			return Snapshotter;
+		});
+		_Snapshots.scheduleAtFixedRate(() -> {
+			try {
+				takeSnapshot();
+			} catch (IOException e) {
+				System.err.println("A snapshot for organisation:" + _organisationName + " failed: " + e);
+			}
+		}, period, period, unit);
+	}
+	/**
+	 * Keep the visits that are older than a number of days in a {@link VisitArchive} on disk
+	 * instead of in memory; they are moved there by {@link #applyRetention()}. Archived visits
+	 * are still in every report and query. Visits already in the archive, such as after a
+	 * restart, are dropped from memory at once. Snapshots leave archived visits out and name the
+	 * archive instead, so a VisitorMan object restored from one already uses the archive and
+	 * never loads its visits; only the number of days needs to be set again.
+	 * @param archiveDirectory The directory of the archive; it must only be used by this organisation.
+	 * @param days The number of days, before today, whose visits stay in memory.
+	 * @throws IOException If the archive cannot be read, or holds the visits of another log.
+	 * @throws IllegalStateException If a retention is already set, or the snapshot this object
+	 * was restored from names another archive.
+	 */
+	public synchronized void setRetention(Path archiveDirectory, int days) throws IOException {
+		if (days < 0) {
+			throw new IllegalArgumentException("The number of days must not be negative");
+		}
+		VisitArchive Restored = _LogVisitorsGroups.AccessArchive();
+		if (_RetentionDays >= 0 || Restored == null || !Restored.AccessDirectory().equals(archiveDirectory.toAbsolutePath().normalize())) {
+			_LogVisitorsGroups.SetArchive(new VisitArchive(archiveDirectory));
+		}
+		_RetentionDays = days;
+	}
+	/**
+	 * Move the visits older than the retention to the archive, see {@link #setRetention(Path, int)}.
+	 * @return The number of visits moved.
+	 * @throws IOException If the visits cannot be written to the archive.
+	 * @throws IllegalStateException If no retention is set.
+	 */
+	public int applyRetention() throws IOException {
+		return applyRetention(LocalDate.now().toString());
+	}
+	/**
+	 * Move the visits that checked in before the first day of the retention, counting back
+	 * from a date, to the archive. Visits are moved a chunk at a time, and a chunk with a
+	 * visitor still on site, or with any visit inside the retention, stays in memory.
+	 * @param today The date to count back from (ISO8601 format)
+	 * @return The number of visits moved.
+	 * @throws IOException If the visits cannot be written to the archive.
+	 * @throws IllegalStateException If no retention is set.
+	 */
+	public int applyRetention(String today) throws IOException {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.APPLY_RETENTION);
+		try {
+			int Days;
+			synchronized (this) {
+				Days = _RetentionDays;
+			}
+			if (Days < 0) {
+				throw new IllegalStateException("No retention is set for organisation:" + _organisationName);
+			}
+			return _LogVisitorsGroups.Archive(LogEntry.EpochSecond(LocalDate.parse(today).minusDays(Days).toString(), "00:00"));
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.APPLY_RETENTION, Started);
+		}
+	}
+	/**
+	 * Publish the metrics of this VisitorMan object over JMX, on the platform MBean server,
+	 * see {@link VisitorMetrics#Publish(String)}. The metrics are unpublished by {@link #close()}.
+	 * @throws JMException If the metrics cannot be published, such as when another VisitorMan
+	 * object for the same organisation is already published.
+	 */
+	public void publishMetrics() throws JMException {
+		_Metrics.Publish(_organisationName);
+	}
+	/**
+	 * Describe the metrics of this VisitorMan object as plain text, for a log: the number of
+	 * visitors checked in and out, the lookups, the gauges, and the count and latency
+	 * percentiles of each method called, see {@link VisitorMetrics#Dump()}.
+	 * @return The text of the metrics.
+	 */
+	public String dumpMetrics() {
+		return _Metrics.Dump();
+	}
+	/**
+	 * Access the metrics of this VisitorMan object.
+	 * @return The metrics, which are updated as methods are called.
+	 */
+	public VisitorMetrics getMetrics() {
+		return _Metrics;
+	}
+	/**
+	 * Add a listener to be told about every visitor checked in or out from now on, such as
+	 * a {@link HostNotifier}. Listeners are called after the change is recorded, on the thread
+	 * that made it, so they must be quick; see {@link VisitListener}.
+	 * @param listener The listener.
+	 */
+	public void addVisitListener(VisitListener listener) {
+		_Listeners.add(listener);
+	}
+	/**
+	 * Remove a listener added by {@link #addVisitListener(VisitListener)}.
+	 * @param listener The listener.
+	 */
+	public void removeVisitListener(VisitListener listener) {
+		_Listeners.remove(listener);
+	}
+	/**
+	 * Start keeping the figures of a dashboard up to date, see {@link VisitAnalytics}. The
+	 * visits already in the log are counted first, in parallel; visitors may go on checking
+	 * in and out meanwhile.
+	 * @return The analytics, which are updated as visitors check in and out; the same object
+	 * if they were already started.
+	 */
+	public synchronized VisitAnalytics startAnalytics() {
+		if (_Analytics == null) {
+			VisitAnalytics Analytics = new VisitAnalytics(_LogVisitorsGroups::NumOnSite);
+			addVisitListener(Analytics);
+			Analytics.Backfill(_LogVisitorsGroups);
+			_Analytics = Analytics;
+		}
+		return _Analytics;
+	}
+	/**
+	 * Stop any scheduled snapshots, write any changes not yet in the journal and 
+	 * close it, and unpublish any metrics. Does nothing to the journal if this 
+	 * VisitorMan object has no journal.
+	 * @throws IOException If the journal cannot be closed.
+	 */
+	public void close() throws IOException {
+		try {
+			_Metrics.Unpublish();
+		} catch (JMException e) {
+			System.err.println("The metrics for organisation:" + _organisationName + " could not be unpublished: " + e);
+		}
+		synchronized (this) {
+			if (_Snapshots != null) {
+				_Snapshots.shutdown();
+				try {
+					_Snapshots.awaitTermination(1, TimeUnit.MINUTES);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		if (_Journal != null) {
+			_Journal.Close();
+		}
+	}
 	/**
 	 * Register someone as able to host a visitor. It is assumed that there is always 
 	 * both a given and a family name, that the host's name is unique (no other hosts 
-	 * with the same name), and the email address is unique.
+	 * with the same name), and the email address is unique. A host whose email address
+	 * or name is already registered is ignored.
 	 * @param familyName The family name of the host
 	 * @param givenName The given name of the host
 	 * @param email The email address of the host.
 	 */
 	public void registerHost(String familyName, String givenName, String email) {
-		Party host = new Party(familyName, givenName, email, null);
-		_hosts.add(host);
+		long Started = _Metrics.Start(VisitorMetrics.Operation.REGISTER_HOST);
+		try {
+			Party host = new Party(familyName, givenName, email, null);
+			if (_Journal == null) {
+				_hosts.Register(host);
+				return;
+			}
+			long Record;
+			synchronized (_Journal) {
+				if (!_hosts.Register(host)) {
+					return;
+				}
+				Record = _Journal.LogHost(host, () -> _hosts.Remove(host.AccessEmail()));
+			}
+			_Journal.AwaitDurable(Record);
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.REGISTER_HOST, Started);
+		}
+	}
+
+	/**
+	 * Make the registered hosts the same as the hosts in a staff directory export, such as
+	 * a nightly export from an HR system or LDAP directory. Hosts are matched by their formal
+	 * name: hosts that are not in the export are removed, hosts whose email address changed 
+	 * get the new address, and new hosts are registered. The file is parsed in parallel 
+	 * before anything changes, and the new hosts replace the old ones in one step, so hosts 
+	 * can be looked up throughout the import.
+	 * Visits recorded for a removed host, or for the old email address of a host, are 
+	 * kept, but are no longer reported as visiting that host.
+	 * @param file The export file, see {@link HostImport} for the formats.
+	 * @param format The format of the file.
+	 * @return The changes made to the hosts.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public HostRegistry.Changes importHosts(Path file, HostImport.Format format) throws IOException {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.IMPORT_HOSTS);
+		try {
+			List<Party> Directory = HostImport.Read(file, format);
+			if (_Journal == null) {
+				return _hosts.Sync(Directory);
+			}
+			HostRegistry.Changes Changes;
+			long[] Record = new long[1];
+			synchronized (_Journal) {      //The hosts are recorded before the new table is swapped in.
+				List<Party> Previous = _hosts.GetHosts();
+				Changes = _hosts.Sync(Directory, Hosts -> Record[0] = _Journal.LogHosts(Hosts, () -> _hosts.Load(Previous)));
+			}
+			_Journal.AwaitDurable(Record[0]);
+			return Changes;
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.IMPORT_HOSTS, Started);
+		}
 	}
 
 	/**
@@ -53,13 +419,16 @@ public class VisitorMan {
 	 * Returns null if there is no host with the email address.
 	 */
 	public String showHostDetails(String emailAddress) {
-		for(int i = 0; i<_hosts.size(); i++) {
-			Party host = _hosts.get(i);
-			if(host.AccessEmail() == emailAddress) {
-				return host.AccessFname() + ", " + host.AccessGname() + ". " + emailAddress;
+		long Started = _Metrics.Start(VisitorMetrics.Operation.SHOW_HOST_DETAILS);
+		try {
+			Party host = _hosts.FindByEmail(emailAddress);
+			if(host == null) {
+				return null;
 			}
+			return host.AccessHostDetail();
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.SHOW_HOST_DETAILS, Started);
 		}
-		return null;
 	}
 	
 	/**
@@ -69,8 +438,55 @@ public class VisitorMan {
 	 * @return A list of string with host details.
 	 */
 	public List<String> getRegisteredHosts() {
-		PartytoString HostsGroup = new PartytoString(_hosts);
-		return HostsGroup.GetHostsDetail();
+		long Started = _Metrics.Start(VisitorMetrics.Operation.GET_REGISTERED_HOSTS);
+		try {
+			PartytoString HostsGroup = new PartytoString(_hosts.GetHosts());
+			return HostsGroup.GetHostsDetail();
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.GET_REGISTERED_HOSTS, Started);
+		}
+	}
+
+	/**
+	 * Find the registered hosts that best match part of a name, organisation or email address,
+	 * as typed at reception, see {@link PartySearch}. The first search indexes the hosts and
+	 * visitors; from then on the index is kept up to date as hosts are registered and
+	 * visitors check in.
+	 * @param text What was typed, such as "Dorn" for Gaal Dornick.
+	 * @param limit The most hosts to return.
+	 * @return A list of strings describing the hosts, in the same format as 
+	 * {@link #showHostDetails(String)}, the best match first.
+	 */
+	public List<String> findHosts(String text, int limit) {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.FIND_HOSTS);
+		try {
+			PartytoString HostsGroup = new PartytoString(Search().Find(text, limit, true));
+			return HostsGroup.GetHostsDetail();
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.FIND_HOSTS, Started);
+		}
+	}
+	/**
+	 * Find the visitors who have checked in before and best match part of a name, 
+	 * organisation or email address, in the same way as {@link #findHosts(String, int)}. 
+	 * Visitors are found with the details of their latest visit.
+	 * @param text What was typed, such as "Venab" for Dors Venabili.
+	 * @param limit The most visitors to return.
+	 * @return A list of strings describing the visitors, with the format
+	 * FORMAL_NAME " (" ORGANISATION "). " EMAIL_ADDRESS, the best match first.
+	 */
+	public List<String> findVisitors(String text, int limit) {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.FIND_VISITORS);
+		try {
+			List<Party> Visitors = Search().Find(text, limit, false);
+			List<String> Details = new ArrayList<String>(Visitors.size());
+			for (Party Visitor : Visitors) {
+				Details.add(Visitor.AccessFormalVisitorDetail());
+			}
+			return Details;
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.FIND_VISITORS, Started);
+		}
 	}
 
 	/**
@@ -78,6 +494,8 @@ public class VisitorMan {
 	 * host with the specified email address on the date given and starting
 	 * at the specified time. There are always both given and family names,
 	 * and names and email addresses are unique.
+	 * A visitor who has checked in before with the same details shares the Party
+	 * object of the earlier visits, see {@link VisitorRegistry}.
 	 * @param familyName The family name of the visitor
 	 * @param givenName The given name of the visitor
 	 * @param organisation The organisation the visitor is from
@@ -85,28 +503,175 @@ public class VisitorMan {
 	 * @param hostEmail The email address of the host the visitor is visiting
 	 * @param visitDate The date of the visit (ISO8601 format)
 	 * @param visitStartTime The time of the start of the visit (ISO8601 format)
+	 * @throws java.time.format.DateTimeParseException If the date or time is not in ISO8601 format,
+	 * such as a time of "9:00" rather than "09:00"; nothing is recorded.
 	 */
 	public void checkIn(String familyName, String givenName, String organisation, String visitorEmail, 
 			String hostEmail, String visitDate, String visitStartTime) {
-		Party CurrentVisitor= new Party(familyName, givenName, visitorEmail, organisation);
-		_VisitorParty.add(_NumVisitors, CurrentVisitor); 
-		_NumVisitors++;
-		LogEntry AVisitor = new LogEntry (CurrentVisitor, hostEmail, visitDate, visitStartTime, false, null);
-		_LogVisitorsGroups.StoreVisitor(AVisitor);
+		long Started = _Metrics.Start(VisitorMetrics.Operation.CHECK_IN);
+		try {
+			Party CurrentVisitor = _Visitors.Resolve(familyName, givenName, visitorEmail, organisation);
+			LogEntry AVisitor = new LogEntry (CurrentVisitor, _Visitors.Intern(hostEmail), visitDate, visitStartTime, false, null);
+			if (_Journal == null) {
+				int i = _LogVisitorsGroups.StoreVisitor(AVisitor);
+				_Metrics.CheckedIn(1);
+				TellCheckedIn(i, AVisitor);
+				return;
+			}
+			int i;
+			int[] Replaced = new int[1];
+			long Record;
+			synchronized (_Journal) {      //The journal must list the visits in the order of their positions in the log.
+				i = _LogVisitorsGroups.StoreVisitor(AVisitor, Replaced);
+				Record = _Journal.LogCheckIn(AVisitor, () -> _LogVisitorsGroups.Unstore(i, Replaced));
+			}
+			_Journal.AwaitDurable(Record);
+			_Metrics.CheckedIn(1);
+			TellCheckedIn(i, AVisitor);
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.CHECK_IN, Started);
+		}
 	}
 	
 	/**
 	 * Record that the visitor with the specified email address checked
-	 * out at the specified time.
+	 * out at the specified time. Only the visit the visitor is currently
+	 * on site for is changed; nothing happens if the visitor is not on site. A check-out time
+	 * earlier than the check-in time is taken to be on the next day.
 	 * @param emailAddress The visitor's email address.
 	 * @param checkOutTime The checkout time (ISO8601 format)
+	 * @throws java.time.format.DateTimeParseException If the time is not in ISO8601 format, such
+	 * as "9:00" rather than "09:00"; nothing is recorded.
 	 */
 	public void checkOut(String emailAddress, String checkOutTime) {
-		for (int i = 0; i<_NumVisitors; i++ ) {
-			Party LeftVisitor = _VisitorParty.get(i);
-			if(LeftVisitor.AccessEmail() == emailAddress) {  //Change the corresponding visitor's state if he/she has checked out.
-				_LogVisitorsGroups.ChangeState(i, checkOutTime);
+		long Started = _Metrics.Start(VisitorMetrics.Operation.CHECK_OUT);
+		try {
+			LocalTime.parse(checkOutTime);      //Checked before the visitor is taken off site.
+			if (_Journal == null) {
+				int i = _LogVisitorsGroups.CheckOutVisitor(emailAddress, checkOutTime);
+				if (i >= 0) {
+					_Metrics.CheckedOut(1);
+					TellCheckedOut(i);
+				}
+				return;
 			}
+			int i;
+			long Record;
+			synchronized (_Journal) {
+				i = _LogVisitorsGroups.CheckOutVisitor(emailAddress, checkOutTime);
+				if (i < 0) {
+					return;
+				}
+				Record = _Journal.LogCheckOut(i, checkOutTime, () -> _LogVisitorsGroups.Reopen(i));
+			}
+			_Journal.AwaitDurable(Record);
+			_Metrics.CheckedOut(1);
+			TellCheckedOut(i);
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.CHECK_OUT, Started);
+		}
+	}
+	
+	/**
+	 * Record that a group of visitors arrived together, such as the attendees of a conference.
+	 * Every arrival is checked before any is recorded: each host is looked up once for the 
+	 * group, and all the dates and times are parsed. The visits are then stored together
+	 * at consecutive positions of the log, and journalled as one change, so checking in a group
+	 * costs much less than checking each visitor in on his/her own.
+	 * @param arrivals The visitors, in order of arrival.
+	 * @return true if the group was checked in, false if nothing was recorded because a host
+	 * is not registered.
+	 * @throws java.time.format.DateTimeParseException If a date or time is not in ISO8601 format;
+	 * nothing is recorded.
+	 */
+	public boolean checkInAll(Collection<Arrival> arrivals) {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.CHECK_IN_ALL);
+		try {
+			Map<String, String> HostEmails = new HashMap<String, String>();
+			long[] ArrivedAt = new long[arrivals.size()];
+			int j = 0;
+			for (Arrival Visitor : arrivals) {      //Nothing is registered until every arrival is known to be valid.
+				if (!HostEmails.containsKey(Visitor.AccesshostEmail())) {      //The first arrival for this host.
+					if (_hosts.FindByEmail(Visitor.AccesshostEmail()) == null) {
+						return false;
+					}
+					HostEmails.put(Visitor.AccesshostEmail(), null);
+				}
+				ArrivedAt[j++] = LogEntry.EpochSecond(Visitor.AccessDate(), Visitor.AccessTime());
+			}
+			List<LogEntry> Visits = new ArrayList<LogEntry>(arrivals.size());
+			j = 0;
+			for (Arrival Visitor : arrivals) {
+				String HostEmail = HostEmails.get(Visitor.AccesshostEmail());
+				if (HostEmail == null) {
+					HostEmail = _Visitors.Intern(Visitor.AccesshostEmail());
+					HostEmails.put(HostEmail, HostEmail);
+				}
+				Party CurrentVisitor = _Visitors.Resolve(Visitor.AccessFname(), Visitor.AccessGname(), 
+						Visitor.AccessEmail(), Visitor.AccessOrganisation());
+				Visits.add(new LogEntry(CurrentVisitor, HostEmail, ArrivedAt[j++], false, LogEntry.NOT_LEFT));
+			}
+			if (_Journal == null) {
+				int First = _LogVisitorsGroups.StoreVisitors(Visits);
+				_Metrics.CheckedIn(Visits.size());
+				for (j = 0; j < Visits.size(); j++) {
+					TellCheckedIn(First + j, Visits.get(j));
+				}
+				return true;
+			}
+			int First;
+			int[] Replaced = new int[Visits.size()];
+			long Record;
+			synchronized (_Journal) {
+				First = _LogVisitorsGroups.StoreVisitors(Visits, Replaced);
+				Record = _Journal.LogCheckIns(Visits, () -> _LogVisitorsGroups.Unstore(First, Replaced));
+			}
+			_Journal.AwaitDurable(Record);
+			_Metrics.CheckedIn(Visits.size());
+			for (j = 0; j < Visits.size(); j++) {
+				TellCheckedIn(First + j, Visits.get(j));
+			}
+			return true;
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.CHECK_IN_ALL, Started);
+		}
+	}
+	
+	/**
+	 * Record that a group of visitors checked out at the same time. Visitors who are 
+	 * not on site are skipped, as in {@link #checkOut(String, String)}.
+	 * @param emailAddresses The email addresses of the visitors.
+	 * @param checkOutTime The checkout time (ISO8601 format)
+	 * @return The number of visitors checked out.
+	 * @throws java.time.format.DateTimeParseException If the time is not in ISO8601 format;
+	 * nothing is recorded.
+	 */
+	public int checkOutAll(Collection<String> emailAddresses, String checkOutTime) {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.CHECK_OUT_ALL);
+		try {
+			LocalTime.parse(checkOutTime);      //Checked before any visitor is checked out.
+			int[] Positions;
+			if (_Journal == null) {
+				Positions = _LogVisitorsGroups.CheckOutVisitors(emailAddresses, checkOutTime);
+			} else {
+				long Record;
+				synchronized (_Journal) {
+					Positions = _LogVisitorsGroups.CheckOutVisitors(emailAddresses, checkOutTime);
+					Record = _Journal.LogCheckOuts(Positions, checkOutTime, () -> {
+						for (int j = Positions.length - 1; j >= 0; j--) {
+							_LogVisitorsGroups.Reopen(Positions[j]);
+						}
+					});
+				}
+				_Journal.AwaitDurable(Record);
+			}
+			_Metrics.CheckedOut(Positions.length);
+			for (int i : Positions) {
+				TellCheckedOut(i);
+			}
+			return Positions.length;
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.CHECK_OUT_ALL, Started);
 		}
 	}
 
@@ -115,20 +680,50 @@ public class VisitorMan {
 	 * those that have checked in but not checked out.
 	 * The report is a list of strings (one string per visitor, with the format 
 	 * INFORMAL_NAME " (" ORGANISATION "). " EMAIL_ADDRESS
+	 * The roster is kept up to date by {@link #checkIn} and {@link #checkOut}, so
+	 * the cost only depends on the number of visitors on site.
 	 * @return A list of strings with the visitors on site.
 	 */
 	public List<String> getVisitorsOnSite() {
-		List<LogEntry> LogEntryVisitorList = _LogVisitorsGroups.GetVisitorLog();
-		for (int i = 0; i<_NumVisitors; i++){
-			Party CurrentVisitor = _VisitorParty.get(i);
-			LogEntry CurrentVisitorInfo = LogEntryVisitorList.get(i);
-			if(!CurrentVisitorInfo.Checkout()) {     //Check whether the visitor is checked out the report those who is not.
-				CurrentVisitor = CurrentVisitorInfo.AccessVisitor();
-				_VisitorsPartyOnSite.add(CurrentVisitor);
-			}
+		long Started = _Metrics.Start(VisitorMetrics.Operation.GET_VISITORS_ON_SITE);
+		try {
+			PartytoString VisitorsInfo = new PartytoString(_LogVisitorsGroups.GetVisitorsOnSite());
+			return VisitorsInfo.GetVisitorssDetail();
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.GET_VISITORS_ON_SITE, Started);
+		}
+	}
+	/**
+	 * Return a report of the visitors current on site to visit the host with the 
+	 * specified email address, in the same format as {@link #getVisitorsOnSite()}.
+	 * The cost depends only on the number of visitors of that host.
+	 * @param hostEmail The email address of the host.
+	 * @return A list of strings with the host's visitors on site.
+	 */
+	public List<String> getVisitorsOnSite(String hostEmail) {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.GET_VISITORS_ON_SITE);
+		try {
+			PartytoString VisitorsInfo = new PartytoString(_LogVisitorsGroups.GetVisitorsOnSite(hostEmail));
+			return VisitorsInfo.GetVisitorssDetail();
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.GET_VISITORS_ON_SITE, Started);
+		}
+	}
+	/**
+	 * Return the lines of the visitor log report for every visit to the host with the
+	 * specified email address, past and current. The lines have the same format as 
+	 * {@link #getVisitorLogReport()}, but there is no company name line.
+	 * The cost depends only on the number of visits to that host.
+	 * @param hostEmail The email address of the host.
+	 * @return A list of strings, one per visit, in order of arrival.
+	 */
+	public List<String> getHostVisitLog(String hostEmail) {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.GET_HOST_VISIT_LOG);
+		try {
+			return VisitLines(_LogVisitorsGroups.VisitsOfHost(hostEmail));
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.GET_HOST_VISIT_LOG, Started);
 		}
-		PartytoString VisitorsInfo = new PartytoString(_VisitorsPartyOnSite);
-		return VisitorsInfo.GetVisitorssDetail();
 	}
 	/**
 	 * Return a report of the complete visitor log as a list of strings (one string
@@ -139,29 +734,361 @@ public class VisitorMan {
 	 * @return The report for the visitor log.
 	 */
 	public List<String> getVisitorLogReport() {
-		List<LogEntry> VisitorsList = _LogVisitorsGroups.GetVisitorLog();
-		List<String> result = new ArrayList<String>();
-		for (int i = 0; i<_NumVisitors; i++ ) {
-			PartytoString VisitorInfo = new PartytoString(_VisitorParty.get(i));
-			LogEntry CurrentVisitor = VisitorsList.get(i);
-			String resultindex = new String();
-			resultindex = VisitorInfo.GetOneVisitorDetail();
-			for (int j = 0; j<_hosts.size(); j++) {    //Report the corresponding host's name of the visitor.
-				Party CurrentHost = _hosts.get(j);
-				if(CurrentVisitor.AccesshostEmail() == CurrentHost.AccessEmail()) { 
-					resultindex += " visiting " + CurrentHost.AccessFname() +  ", "  + CurrentHost.AccessGname();
-					break;
-				}
-			}
-			resultindex += ". Arrived:" + CurrentVisitor.AccessDate() + "T" + CurrentVisitor.AccessTime() + ".";
-			if (CurrentVisitor.Checkout()) {            //Check whether the visitor have checked out and report the state.
-				resultindex += " Left:" + CurrentVisitor.AccessLeftTime();
-			} else {
-				resultindex += " On site.";
+		long Started = _Metrics.Start(VisitorMetrics.Operation.GET_VISITOR_LOG_REPORT);
+		try {
+			int Size = _LogVisitorsGroups.Size();
+			List<String> result = new ArrayList<String>(Size + 1);
+			result.add(_organisationName);
+			StringBuilder Line = new StringBuilder(LINE_CAPACITY);
+			LogEntry Visit = null;
+			for (int i = 0; i < Size; i++ ) {
+				Visit = _LogVisitorsGroups.GetVisit(i, Visit);
+				result.add(VisitLine(Line, Visit).toString());
+			}
+			return result;
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.GET_VISITOR_LOG_REPORT, Started);
+		}
+	}
+	/**
+	 * Return one page of the report given by {@link #getVisitorLogReport()}. The cursor counts
+	 * lines of the report, so line 0 is the company name and line i is the i-th visit. Joining
+	 * the pages from cursor 0 until there is no next page gives the complete report.
+	 * @param cursor The line to start from: 0 for the first page, otherwise the cursor 
+	 * returned with the previous page.
+	 * @param pageSize The largest number of lines to return.
+	 * @return The page of the report.
+	 * @throws IllegalArgumentException If the cursor is negative or the page size is less than 1.
+	 */
+	public ReportPage getVisitorLogReport(int cursor, int pageSize) {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.GET_VISITOR_LOG_PAGE);
+		try {
+			if (cursor < 0) {
+				throw new IllegalArgumentException("The cursor must not be negative");
+			}
+			if (pageSize < 1) {
+				throw new IllegalArgumentException("The page size must be at least 1");
+			}
+			int Lines = _LogVisitorsGroups.Size() + 1;
+			int End = (int) Math.min((long) cursor + pageSize, Lines);
+			List<String> result = new ArrayList<String>(Math.max(End - cursor, 0));
+			StringBuilder Line = new StringBuilder(LINE_CAPACITY);
+			LogEntry Visit = null;
+			for (int i = cursor; i < End; i++) {
+				if (i == 0) {
+					result.add(_organisationName);
+				} else {
+					Visit = _LogVisitorsGroups.GetVisit(i - 1, Visit);
+					result.add(VisitLine(Line, Visit).toString());
+				}
+			}
+			return new ReportPage(result, End < Lines ? End : -1);
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.GET_VISITOR_LOG_PAGE, Started);
+		}
+	}
+	/**
+	 * Return the report given by {@link #getVisitorLogReport()} as a lazy stream. Lines are
+	 * only built as the stream is consumed, so memory use does not depend on the size of the log.
+	 * The stream covers the visits recorded when this method was called.
+	 * The call is timed until the stream is consumed to its end or closed, whichever comes
+	 * first, so the time spent building the lines is included; a stream that is only partly
+	 * consumed and never closed is not counted.
+	 * @return A stream of the lines of the report.
+	 */
+	public Stream<String> streamVisitorLogReport() {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.STREAM_VISITOR_LOG_REPORT);
+		AtomicBoolean Stopped = new AtomicBoolean();
+		Runnable Stop = () -> {
+			if (Stopped.compareAndSet(false, true)) {
+				_Metrics.Stop(VisitorMetrics.Operation.STREAM_VISITOR_LOG_REPORT, Started);
+			}
+		};
+		try {
+			List<LogEntry> VisitorsList = _LogVisitorsGroups.GetVisitorLog();
+			Stream<String> Lines = Stream.concat(Stream.of(_organisationName), 
+					IntStream.range(0, VisitorsList.size()).mapToObj(
+							i -> VisitLine(new StringBuilder(LINE_CAPACITY), VisitorsList.get(i)).toString()));
+			return Stream.concat(Lines, Stream.of(Stop).flatMap(End -> {      //Reached once every line has been consumed.
+				End.run();
+				return Stream.<String>empty();
+			})).onClose(Stop);
+		} catch (RuntimeException e) {
+			Stop.run();
+			throw e;
+		}
+	}
+	/**
+	 * Write the report given by {@link #getVisitorLogReport()} to a Writer, one line at a time,
+	 * with each line ended by a newline. The writer is not closed.
+	 * Each line is built in the same buffer and written from it, so writing the report
+	 * creates no objects per line.
+	 * @param out The writer to write the report to.
+	 * @throws IOException If the writer fails.
+	 */
+	public void writeVisitorLogReport(Writer out) throws IOException {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.WRITE_VISITOR_LOG_REPORT);
+		try {
+			int Size = _LogVisitorsGroups.Size();
+			out.write(_organisationName);
+			out.write('\n');
+			StringBuilder Line = new StringBuilder(LINE_CAPACITY);
+			char[] Buffer = new char[LINE_CAPACITY];
+			LogEntry Visit = null;
+			for (int i = 0; i < Size; i++ ) {
+				Visit = _LogVisitorsGroups.GetVisit(i, Visit);
+				VisitLine(Line, Visit).append('\n');
+				if (Buffer.length < Line.length()) {
+					Buffer = new char[Line.capacity()];
+				}
+				Line.getChars(0, Line.length(), Buffer, 0);
+				out.write(Buffer, 0, Line.length());
+			}
+			out.flush();
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.WRITE_VISITOR_LOG_REPORT, Started);
+		}
+	}
+	/**
+	 * Return the report given by {@link #getVisitorLogReport()}, building its lines on the
+	 * threads of a ForkJoinPool. The visits are split into ranges and each range is built by
+	 * its own task into its part of the result, so the report is the same as the one built on
+	 * one thread, in the same order.
+	 * @param pool The pool whose threads build the lines, such as ForkJoinPool.commonPool().
+	 * @return A list of strings, one per visit, preceded by the company name.
+	 */
+	public List<String> getVisitorLogReport(ForkJoinPool pool) {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.GET_VISITOR_LOG_REPORT_PARALLEL);
+		try {
+			int Size = _LogVisitorsGroups.Size();
+			String[] Lines = new String[Size + 1];
+			Lines[0] = _organisationName;
+			pool.invoke(new RenderRange(Lines, null, 0, Size));
+			return new ArrayList<String>(Arrays.asList(Lines));
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.GET_VISITOR_LOG_REPORT_PARALLEL, Started);
+		}
+	}
+	/**
+	 * Write the report given by {@link #getVisitorLogReport()} to a Writer, building its lines
+	 * on the threads of a ForkJoinPool. The visits are taken a window at a time: each range of
+	 * a window is built by its own task into its own buffer, and the buffers are written in
+	 * order while the next window is being built. The text written is the same as written by
+	 * {@link #writeVisitorLogReport(Writer)}, and only two windows are held at once however
+	 * large the log is. The writer is not closed.
+	 * @param out The writer to write the report to.
+	 * @param pool The pool whose threads build the lines, such as ForkJoinPool.commonPool().
+	 * @throws IOException If the writer fails.
+	 */
+	public void writeVisitorLogReport(Writer out, ForkJoinPool pool) throws IOException {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.WRITE_VISITOR_LOG_REPORT_PARALLEL);
+		try {
+			int Size = _LogVisitorsGroups.Size();
+			int Window = REPORT_RANGE * Math.max(1, pool.getParallelism()) * 2;
+			out.write(_organisationName);
+			out.write('\n');
+			StringBuilder[] Texts = new StringBuilder[(Math.min(Window, Size) + REPORT_RANGE - 1) / REPORT_RANGE];
+			ForkJoinTask<Void> Building = Size == 0 ? null : pool.submit(new RenderRange(null, Texts, 0, Math.min(Window, Size)));
+			char[] Buffer = new char[REPORT_RANGE * LINE_CAPACITY];
+			for (int From = 0; From < Size; From += Window) {
+				Building.join();
+				StringBuilder[] Built = Texts;
+				int Next = From + Window;
+				if (Next < Size) {
+					Texts = new StringBuilder[(Math.min(Window, Size - Next) + REPORT_RANGE - 1) / REPORT_RANGE];
+					Building = pool.submit(new RenderRange(null, Texts, Next, Math.min(Next + Window, Size)));
+				}
+				for (StringBuilder Text : Built) {
+					if (Buffer.length < Text.length()) {
+						Buffer = new char[Text.length()];
+					}
+					Text.getChars(0, Text.length(), Buffer, 0);
+					out.write(Buffer, 0, Text.length());
+				}
+			}
+			out.flush();
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.WRITE_VISITOR_LOG_REPORT_PARALLEL, Started);
+		}
+	}
+
+	/**
+	 * Return the lines of the visitor log report for the visits that checked in on a date.
+	 * The lines have the same format as {@link #getVisitorLogReport()}, but there is no
+	 * company name line.
+	 * @param visitDate The date of the visits (ISO8601 format)
+	 * @return A list of strings, one per visit, in order of check-in time.
+	 */
+	public List<String> getVisitsOn(String visitDate) {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.GET_VISITS_ON);
+		try {
+			long From = LogEntry.EpochSecond(visitDate, "00:00");
+			return VisitLines(_LogVisitorsGroups.VisitsBetween(From, From + 24 * 60 * 60));
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.GET_VISITS_ON, Started);
+		}
+	}
+	/**
+	 * Return the lines of the visitor log report for the visits that checked in on a date,
+	 * from one time up to (but not including) another.
+	 * The lines have the same format as {@link #getVisitorLogReport()}, but there is no
+	 * company name line.
+	 * @param visitDate The date of the visits (ISO8601 format)
+	 * @param fromTime The earliest check-in time (ISO8601 format)
+	 * @param toTime The check-in time the visits must be before (ISO8601 format)
+	 * @return A list of strings, one per visit, in order of check-in time.
+	 */
+	public List<String> getVisitsBetween(String visitDate, String fromTime, String toTime) {
+		long Started = _Metrics.Start(VisitorMetrics.Operation.GET_VISITS_BETWEEN);
+		try {
+			return VisitLines(_LogVisitorsGroups.VisitsBetween(LogEntry.EpochSecond(visitDate, fromTime), 
+					LogEntry.EpochSecond(visitDate, toTime)));
+		} finally {
+			_Metrics.Stop(VisitorMetrics.Operation.GET_VISITS_BETWEEN, Started);
+		}
+	}
+
+	/**
+	 * Return the search index, building it from the registered hosts and visitors the first time.
+	 */
+	private PartySearch Search() {
+		PartySearch Search = _Search;
+		if (Search == null) {
+			synchronized (this) {
+				Search = _Search;
+				if (Search == null) {
+					Search = new PartySearch();
+					_hosts.Index(Search);
+					_Visitors.Index(Search);
+					_Search = Search;
+				}
+			}
+		}
+		return Search;
+	}
+
+	/**
+	 * Tell the listeners about a visit that was checked in.
+	 */
+	private void TellCheckedIn(int i, LogEntry Visit) {
+		for (VisitListener Listener : _Listeners) {
+			try {
+				Listener.CheckedIn(i, Visit);
+			} catch (RuntimeException e) {
+				System.err.println("A visit listener for organisation:" + _organisationName + " failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Tell the listeners about a visit that was checked out.
+	 */
+	private void TellCheckedOut(int i) {
+		if (_Listeners.isEmpty()) {
+			return;
+		}
+		LogEntry Visit = _LogVisitorsGroups.GetVisit(i);
+		for (VisitListener Listener : _Listeners) {
+			try {
+				Listener.CheckedOut(i, Visit);
+			} catch (RuntimeException e) {
+				System.err.println("A visit listener for organisation:" + _organisationName + " failed: " + e);
 			}
-			result.add(i, resultindex);
 		}
-		result.add(0, _organisationName);
+	}
+
+	/**
+	 * Make a series of changes from the calling thread as one batch of the journal, see
+	 * {@link VisitorJournal#BeginBatch()}, so they are forced to disk together. Other threads
+	 * that change this VisitorMan object wait until the batch ends.
+	 */
+	void ApplyBatch(Runnable Changes) {
+		if (_Journal == null) {
+			Changes.run();
+			return;
+		}
+		long Record;
+		synchronized (_Journal) {
+			_Journal.BeginBatch();
+			try {
+				Changes.run();
+			} finally {
+				Record = _Journal.EndBatch();
+			}
+		}
+		_Journal.AwaitDurable(Record);
+	}
+
+	private List<String> VisitLines(List<Integer> Visits) {
+		List<String> result = new ArrayList<String>(Visits.size());
+		StringBuilder Line = new StringBuilder(LINE_CAPACITY);
+		LogEntry Visit = null;
+		for (int i : Visits) {
+			Visit = _LogVisitorsGroups.GetVisit(i, Visit);
+			result.add(VisitLine(Line, Visit).toString());
+		}
 		return result;
 	}
+
+	/**
+	 * Build the line of the visitor log report for one visit in a StringBuilder, replacing
+	 * whatever it held before.
+	 */
+	private StringBuilder VisitLine(StringBuilder Line, LogEntry CurrentVisitor) {
+		Party CurrentHost = _hosts.FindByEmail(CurrentVisitor.AccesshostEmail());    //Report the corresponding host's name of the visitor.
+		Line.setLength(0);
+		return PartytoString.AppendVisitLine(Line, CurrentVisitor, CurrentHost);
+	}
+
+	/**
+	 * A task that builds the report lines of a range of visits, splitting itself into a task
+	 * per REPORT_RANGE visits. Each task reuses one line buffer for its visits, and puts each
+	 * line into Lines at its line number, or appends each line and a newline to the text of
+	 * its range in Texts, counted from the first visit of the whole range.
+	 */
+	@SuppressWarnings("serial")      //Never serialised; it holds this VisitorMan object.
+	private class RenderRange extends RecursiveAction {
+		private final String[] _Lines;
+		private final StringBuilder[] _Texts;
+		private final int _First;
+		private final int _From;
+		private final int _To;
+
+		RenderRange(String[] Lines, StringBuilder[] Texts, int From, int To) {
+			this(Lines, Texts, From, From, To);
+		}
+
+		private RenderRange(String[] Lines, StringBuilder[] Texts, int First, int From, int To) {
+			_Lines = Lines;
+			_Texts = Texts;
+			_First = First;
+			_From = From;
+			_To = To;
+		}
+
+		@Override
+		protected void compute() {
+			int Ranges = (_To - _From + REPORT_RANGE - 1) / REPORT_RANGE;
+			if (Ranges > 1) {
+				int Middle = _From + Ranges / 2 * REPORT_RANGE;
+				invokeAll(new RenderRange(_Lines, _Texts, _First, _From, Middle), new RenderRange(_Lines, _Texts, _First, Middle, _To));
+				return;
+			}
+			StringBuilder Line = new StringBuilder(LINE_CAPACITY);
+			StringBuilder Text = _Texts == null ? null : new StringBuilder((_To - _From) * LINE_CAPACITY / 2);
+			LogEntry Visit = null;
+			for (int i = _From; i < _To; i++) {
+				Visit = _LogVisitorsGroups.GetVisit(i, Visit);
+				VisitLine(Line, Visit);
+				if (Text == null) {
+					_Lines[i + 1] = Line.toString();
+				} else {
+					Text.append(Line).append('\n');
+				}
+			}
+			if (Text != null) {
+				_Texts[(_From - _First) / REPORT_RANGE] = Text;
+			}
+		}
+	}
 }
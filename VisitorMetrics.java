@@ -0,0 +1,252 @@
+package visitorman;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ *
+ * @author chenh
+ * The VisitorMetrics class is meant to measure the operations of a VisitorMan object: how many
+ * times each public method was called and how long the calls took, the number of visitors
+ * checked in and out, and gauges of the visitors on site, the visits in the log and the
+ * registered hosts. The metrics can be published over JMX, under the domain "visitorman",
+ * or dumped as plain text for a log.
+ * Counters are striped LongAdders and latencies go into a {@link LatencyHistogram} per
+ * operation, so measuring a call never locks and threads rarely contend for a cache line.
+ * Measuring can be turned off by starting the JVM with -Dvisitorman.metrics=false.
+ *
+ */
+public class VisitorMetrics implements VisitorMetricsMBean {
+
+	/**
+	 * The measured operations, one per public method of VisitorMan; the forms of a method that
+	 * page or run in parallel are measured apart. The name is the name of the method; a lookup
+	 * is an operation that only reads. Latencies of the cheapest lookups are only timed for one
+	 * call in SAMPLE_MASK + 1.
+	 */
+	public enum Operation {
+		REGISTER_HOST("registerHost", false, false),
+		IMPORT_HOSTS("importHosts", false, false),
+		SHOW_HOST_DETAILS("showHostDetails", true, true),
+		GET_REGISTERED_HOSTS("getRegisteredHosts", true, false),
+		FIND_HOSTS("findHosts", true, false),
+		FIND_VISITORS("findVisitors", true, false),
+		CHECK_IN("checkIn", false, false),
+		CHECK_OUT("checkOut", false, false),
+		CHECK_IN_ALL("checkInAll", false, false),
+		CHECK_OUT_ALL("checkOutAll", false, false),
+		GET_VISITORS_ON_SITE("getVisitorsOnSite", true, false),
+		GET_HOST_VISIT_LOG("getHostVisitLog", true, false),
+		GET_VISITOR_LOG_REPORT("getVisitorLogReport", true, false),
+		GET_VISITOR_LOG_PAGE("getVisitorLogReportPage", true, false),
+		STREAM_VISITOR_LOG_REPORT("streamVisitorLogReport", true, false),
+		WRITE_VISITOR_LOG_REPORT("writeVisitorLogReport", true, false),
+		GET_VISITOR_LOG_REPORT_PARALLEL("getVisitorLogReportParallel", true, false),
+		WRITE_VISITOR_LOG_REPORT_PARALLEL("writeVisitorLogReportParallel", true, false),
+		GET_VISITS_ON("getVisitsOn", true, false),
+		GET_VISITS_BETWEEN("getVisitsBetween", true, false),
+		TAKE_SNAPSHOT("takeSnapshot", false, false),
+		APPLY_RETENTION("applyRetention", false, false);
+
+		private final String _Name;
+		private final boolean _Lookup;
+		private final boolean _Sampled;
+
+		Operation(String Name, boolean Lookup, boolean Sampled) {
+			_Name = Name;
+			_Lookup = Lookup;
+			_Sampled = Sampled;
+		}
+		/**
+		 * Access the name of the operation.
+		 * @return The name of the VisitorMan method.
+		 */
+		public String AccessName() {
+			return _Name;
+		}
+	}
+
+	private static final int SAMPLE_MASK = 7;
+	private static final Operation[] OPERATIONS = Operation.values();
+
+	//Below are whether metrics are measured, the metrics of each operation, and the totals.
+	private final boolean _Enabled = !"false".equalsIgnoreCase(System.getProperty("visitorman.metrics"));
+	private final OperationMetrics[] _Operations = new OperationMetrics[OPERATIONS.length];
+	private final LongAdder _CheckIns = new LongAdder();
+	private final LongAdder _CheckOuts = new LongAdder();
+
+	//Below are the gauges, read from the VisitorMan object when asked for.
+	private final IntSupplier _OnSite;
+	private final IntSupplier _Visits;
+	private final IntSupplier _Hosts;
+
+	//Below are the names the metrics are published under, if they are published.
+	private List<ObjectName> _Published;
+
+	/**
+	 * Create a VisitorMetrics object with no calls measured.
+	 * @param OnSite Gives the number of visitors on site.
+	 * @param Visits Gives the number of visits in the log.
+	 * @param Hosts Gives the number of registered hosts.
+	 */
+	public VisitorMetrics(IntSupplier OnSite, IntSupplier Visits, IntSupplier Hosts) {
+		for (Operation Op : OPERATIONS) {
+			_Operations[Op.ordinal()] = new OperationMetrics(Op._Name, Op._Sampled ? SAMPLE_MASK : 0);
+		}
+		_OnSite = OnSite;
+		_Visits = Visits;
+		_Hosts = Hosts;
+	}
+	/**
+	 * Start a call of an operation.
+	 * @param Op The operation.
+	 * @return The value to pass to {@link #Stop(Operation, long)} when the call ends.
+	 */
+	public long Start(Operation Op) {
+		return _Enabled ? _Operations[Op.ordinal()].Start() : OperationMetrics.NOT_TIMED;
+	}
+	/**
+	 * End a call of an operation.
+	 * @param Op The operation.
+	 * @param Started The value returned by {@link #Start(Operation)}.
+	 */
+	public void Stop(Operation Op, long Started) {
+		if (_Enabled) {
+			_Operations[Op.ordinal()].Stop(Started);
+		}
+	}
+	/**
+	 * Count visitors checked in.
+	 * @param Visitors The number of visitors.
+	 */
+	public void CheckedIn(int Visitors) {
+		if (_Enabled) {
+			_CheckIns.add(Visitors);
+		}
+	}
+	/**
+	 * Count visitors checked out.
+	 * @param Visitors The number of visitors.
+	 */
+	public void CheckedOut(int Visitors) {
+		if (_Enabled) {
+			_CheckOuts.add(Visitors);
+		}
+	}
+	/**
+	 * Access the metrics of an operation.
+	 * @param Op The operation.
+	 * @return The metrics of the operation.
+	 */
+	public OperationMetrics AccessOperation(Operation Op) {
+		return _Operations[Op.ordinal()];
+	}
+	/**
+	 * Describe all the metrics as plain text: a line of totals and gauges, then a line per
+	 * operation that has been called, with its latencies in microseconds.
+	 * @return The text, with each line ended by a newline.
+	 */
+	public String Dump() {
+		StringBuilder Text = new StringBuilder();
+		Text.append(String.format(Locale.ROOT, "checkIns=%d checkOuts=%d lookups=%d onSite=%d visits=%d hosts=%d%n",
+				getCheckIns(), getCheckOuts(), getLookups(), getOnSite(), getVisits(), getHosts()));
+		Text.append(String.format(Locale.ROOT, "%-24s %10s %10s %10s %10s %10s %10s %10s%n",
+				"operation", "count", "mean(us)", "p50", "p90", "p99", "p99.9", "max"));
+		for (OperationMetrics Op : _Operations) {
+			if (Op.getCount() > 0) {
+				Text.append(String.format(Locale.ROOT, "%-24s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+						Op.AccessName(), Op.getCount(), Op.getMeanMicros(), Op.getP50Micros(), Op.getP90Micros(),
+						Op.getP99Micros(), Op.getP999Micros(), Op.getMaxMicros()));
+			}
+		}
+		return Text.toString();
+	}
+	/**
+	 * Register the metrics with the platform MBean server, as
+	 * visitorman:type=VisitorMan,name=ORGANISATION and one
+	 * visitorman:type=Operation,name=ORGANISATION,operation=METHOD per operation.
+	 * Does nothing if the metrics are already published.
+	 * @param Organisation The name of the organisation.
+	 * @throws JMException If the metrics cannot be registered, such as when another
+	 * VisitorMan object for the organisation is already published.
+	 */
+	public synchronized void Publish(String Organisation) throws JMException {
+		if (_Published != null) {
+			return;
+		}
+		MBeanServer Server = ManagementFactory.getPlatformMBeanServer();
+		String Name = ObjectName.quote(Organisation);
+		List<ObjectName> Names = new ArrayList<ObjectName>();
+		try {
+			Names.add(Server.registerMBean(this, new ObjectName("visitorman:type=VisitorMan,name=" + Name)).getObjectName());
+			for (OperationMetrics Op : _Operations) {
+				Names.add(Server.registerMBean(Op, new ObjectName("visitorman:type=Operation,name=" + Name 
+						+ ",operation=" + Op.AccessName())).getObjectName());
+			}
+		} catch (JMException e) {
+			for (ObjectName Registered : Names) {
+				Server.unregisterMBean(Registered);
+			}
+			throw e;
+		}
+		_Published = Names;
+	}
+	/**
+	 * Unregister the metrics from the platform MBean server, if they were published.
+	 * @throws JMException If the metrics cannot be unregistered.
+	 */
+	public synchronized void Unpublish() throws JMException {
+		if (_Published == null) {
+			return;
+		}
+		MBeanServer Server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName Registered : _Published) {
+			Server.unregisterMBean(Registered);
+		}
+		_Published = null;
+	}
+
+	//Below are the attributes published over JMX.
+	@Override
+	public long getCheckIns() {
+		return _CheckIns.sum();
+	}
+	@Override
+	public long getCheckOuts() {
+		return _CheckOuts.sum();
+	}
+	@Override
+	public long getLookups() {
+		long Lookups = 0;
+		for (Operation Op : OPERATIONS) {
+			if (Op._Lookup) {
+				Lookups += _Operations[Op.ordinal()].getCount();
+			}
+		}
+		return Lookups;
+	}
+	@Override
+	public int getOnSite() {
+		return _OnSite.getAsInt();
+	}
+	@Override
+	public int getVisits() {
+		return _Visits.getAsInt();
+	}
+	@Override
+	public int getHosts() {
+		return _Hosts.getAsInt();
+	}
+	@Override
+	public String getDump() {
+		return Dump();
+	}
+}
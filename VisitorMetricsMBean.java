@@ -0,0 +1,40 @@
+package visitorman;
+
+/**
+ *
+ * @author chenh
+ * The VisitorMetricsMBean interface is meant to publish the totals and gauges of a VisitorMan
+ * object over JMX, see {@link VisitorMetrics}. The latencies of each operation are published
+ * by a separate {@link OperationMetricsMBean}.
+ *
+ */
+public interface VisitorMetricsMBean {
+	/**
+	 * @return The number of visitors checked in, including those checked in as a group.
+	 */
+	long getCheckIns();
+	/**
+	 * @return The number of visitors checked out, including those checked out as a group.
+	 */
+	long getCheckOuts();
+	/**
+	 * @return The number of calls that look up hosts or visits, including reports.
+	 */
+	long getLookups();
+	/**
+	 * @return The number of visitors currently on site.
+	 */
+	int getOnSite();
+	/**
+	 * @return The number of visits in the log.
+	 */
+	int getVisits();
+	/**
+	 * @return The number of registered hosts.
+	 */
+	int getHosts();
+	/**
+	 * @return All the metrics as text, as given by {@link VisitorMetrics#Dump()}.
+	 */
+	String getDump();
+}
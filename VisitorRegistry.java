@@ -0,0 +1,127 @@
+package visitorman;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * @author chenh
+ * The VisitorRegistry class is meant to keep a single Party object for each visitor, so a
+ * visitor who comes every day shares one Party object (and one copy of each of its strings)
+ * between all his/her visits. Each of these Party objects is given a compact int id, which is
+ * its position in the registry.
+ * Visitors are found by their normalised email address. If a visitor checks in again with
+ * different details, a new Party object with a new id is registered for the email address,
+ * so earlier visits keep the details they were recorded with.
+ * Organisation names are shared through a dictionary, so visitors from the same organisation
+ * share one copy of its name.
+ *
+ */
+public class VisitorRegistry {
+
+	//Below are the index from email to id, the parties by id, and the dictionary of names.
+	private ConcurrentHashMap<String, Party> _VisitorsByEmail = new ConcurrentHashMap<String, Party>();
+	private volatile Party[] _Visitors = new Party[16];
+	private int _NumVisitors;
+	private ConcurrentHashMap<String, String> _Names = new ConcurrentHashMap<String, String>();
+	//Below is the search index kept up to date with the visitors, if there is one.
+	private PartySearch _Search;
+
+	/**
+	 * Create an empty VisitorRegistry object.
+	 */
+	public VisitorRegistry() {
+	}
+	/**
+	 * Find the Party object for a visitor with the specified details, registering a new one
+	 * if the visitor is not known or his/her details have changed.
+	 * @param familyName The family name of the visitor.
+	 * @param givenName The given name of the visitor.
+	 * @param email The email address of the visitor.
+	 * @param organisation The organisation the visitor is from.
+	 * @return The shared Party object of the visitor.
+	 */
+	public Party Resolve(String familyName, String givenName, String email, String organisation) {
+		String EmailKey = Party.NormaliseEmail(email);
+		Party Known = _VisitorsByEmail.get(EmailKey == null ? "" : EmailKey);
+		if (Known != null && Known.HasDetails(familyName, givenName, email, organisation)) {
+			return Known;      //The common case for a returning visitor: no locking, nothing allocated.
+		}
+		return _VisitorsByEmail.compute(EmailKey == null ? "" : EmailKey, (Key, Current) -> {
+			if (Current != null && Current.HasDetails(familyName, givenName, email, organisation)) {
+				return Current;
+			}
+			return Add(new Party(familyName, givenName, email, Intern(organisation)));
+		});
+	}
+	/**
+	 * Find the shared Party object with the same details as the specified one, registering it if
+	 * there is none.
+	 * @param Visitor A party representing the visitor.
+	 * @return The shared Party object of the visitor.
+	 */
+	public Party Resolve(Party Visitor) {
+		int Id = Visitor.AccessId();
+		Party[] Visitors = _Visitors;
+		if (Id >= 0 && Id < Visitors.length && Visitors[Id] == Visitor) {
+			return Visitor;      //Already the shared Party object.
+		}
+		return Resolve(Visitor.AccessFname(), Visitor.AccessGname(), Visitor.AccessEmail(), Visitor.AccessOrganisation());
+	}
+	/**
+	 * Access the Party object with the specified id.
+	 * @param id The id of the visitor.
+	 * @return The shared Party object of the visitor.
+	 */
+	public Party Get(int id) {
+		return _Visitors[id];
+	}
+	/**
+	 * Access the number of Party objects registered.
+	 * @return The number of visitors.
+	 */
+	public synchronized int Size() {
+		return _NumVisitors;
+	}
+	/**
+	 * Return the shared copy of a name, such as the name of an organisation.
+	 * @param Name The name.
+	 * @return A string equal to the name, which is the same object for equal names.
+	 */
+	public String Intern(String Name) {
+		if (Name == null) {
+			return null;
+		}
+		String Shared = _Names.putIfAbsent(Name, Name);
+		return Shared == null ? Name : Shared;
+	}
+
+	/**
+	 * Add the registered visitors to a search index and keep it up to date from now on; only
+	 * called by VisitorMan. Later Party objects of a visitor replace earlier ones in the index.
+	 */
+	synchronized void Index(PartySearch Search) {
+		for (int id = 0; id < _NumVisitors; id++) {
+			Search.Add(_Visitors[id], false);
+		}
+		_Search = Search;
+	}
+
+	/**
+	 * Give a new Party object the next id. The array is copied when it grows and republished,
+	 * so readers that found an id always see its Party object.
+	 */
+	private synchronized Party Add(Party Visitor) {
+		Party[] Visitors = _Visitors;
+		if (_NumVisitors == Visitors.length) {
+			Visitors = Arrays.copyOf(Visitors, Visitors.length * 2);
+		}
+		Visitor.AssignId(_NumVisitors);
+		Visitors[_NumVisitors++] = Visitor;
+		_Visitors = Visitors;
+		if (_Search != null) {
+			_Search.Add(Visitor, false);
+		}
+		return Visitor;
+	}
+}
@@ -0,0 +1,564 @@
+package visitorman;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ *
+ * @author chenh
+ * The VisitorServer class is meant to let kiosks and reception screens drive a VisitorMan
+ * object over HTTP, with JSON bodies, using the HTTP server of the JDK. The endpoints are:
+ * - POST /hosts with {"familyName", "givenName", "email"}, see {@link VisitorMan#registerHost}
+ * - GET /hosts, or /hosts?q=text&amp;limit=n to search for at most MAX_LIMIT hosts, see {@link VisitorMan#findHosts}
+ * - POST /checkins with {"familyName", "givenName", "organisation", "visitorEmail",
+ *   "hostEmail", "visitDate", "visitStartTime"}, see {@link VisitorMan#checkIn}
+ * - POST /checkouts with {"email", "checkOutTime"}, see {@link VisitorMan#checkOut}
+ * - GET /visitors/onsite, or /visitors/onsite?host=email, see {@link VisitorMan#getVisitorsOnSite}
+ * - GET /report, the lines of {@link VisitorMan#getVisitorLogReport()} as a JSON array
+ * Changes answer 204 No Content, queries a JSON array of strings, and errors a status of
+ * 400, 404, 405 or 413 with {"error": "..."}.
+ * Connections are kept alive between requests, so a kiosk keeps one connection open all day.
+ * The JDK server closes connections beyond 200 that are idle between requests, so a JVM that
+ * embeds this server for more kiosks than that must be started with, for example,
+ * -Dsun.net.httpserver.maxIdleConnections=100000; {@link #main(String[])} sets it itself.
+ * The report is streamed with chunked encoding as it is written, so a log of millions of
+ * visits is never held in memory as a whole.
+ * Each request runs on its own virtual thread when the JDK has them (21 and later); on
+ * older JDKs requests run on a pool of MAX_THREADS daemon threads.
+ *
+ */
+public class VisitorServer {
+	private static final int MAX_THREADS = 256;
+	private static final int BACKLOG = 4096;
+	private static final int MAX_BODY = 64 * 1024;
+	private static final int STREAM_BUFFER = 64 * 1024;
+	private static final int MAX_LIMIT = 100;      //The most hosts a search returns, whatever limit is asked for.
+
+	private final VisitorMan _Target;
+	private final HttpServer _Server;
+	private final ExecutorService _Workers;
+	private final boolean _Virtual;
+
+	//Below are the counts of requests answered and of requests that failed.
+	private final LongAdder _Requests = new LongAdder();
+	private final LongAdder _Errors = new LongAdder();
+
+	/**
+	 * Create a VisitorServer object and start listening.
+	 * @param Target The VisitorMan object the requests are applied to.
+	 * @param Port The port to listen on, or 0 for any free port, see {@link #Port()}.
+	 * @throws IOException If the port cannot be bound.
+	 */
+	public VisitorServer(VisitorMan Target, int Port) throws IOException {
+		_Target = Target;
+		ExecutorService Virtual = VirtualThreads();
+		_Virtual = Virtual != null;
+		_Workers = _Virtual ? Virtual : Pool("visitorman-http-", MAX_THREADS);
+		_Server = HttpServer.create(new InetSocketAddress(Port), BACKLOG);
+		_Server.createContext("/", this::Handle);
+		_Server.setExecutor(_Workers);
+		_Server.start();
+	}
+	/**
+	 * Access the port the server listens on.
+	 * @return The port.
+	 */
+	public int Port() {
+		return _Server.getAddress().getPort();
+	}
+	/**
+	 * Check whether requests run on virtual threads rather than on a pool.
+	 * @return true if each request has its own virtual thread.
+	 */
+	public boolean IsVirtual() {
+		return _Virtual;
+	}
+	/**
+	 * Access the number of requests answered, including those that failed.
+	 * @return The number of requests.
+	 */
+	public long Requests() {
+		return _Requests.sum();
+	}
+	/**
+	 * Access the number of requests answered with an error status.
+	 * @return The number of requests.
+	 */
+	public long Errors() {
+		return _Errors.sum();
+	}
+	/**
+	 * Stop listening, let the requests being answered finish, and close all connections.
+	 * @param DelaySeconds The longest time to wait for the requests being answered.
+	 */
+	public void Close(int DelaySeconds) {
+		_Server.stop(DelaySeconds);
+		_Workers.shutdown();
+		try {
+			_Workers.awaitTermination(DelaySeconds, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Run a server until the JVM is stopped.
+	 * Run with: java visitorman.VisitorServer PORT ORGANISATION [DATA_DIRECTORY]
+	 * With a data directory, changes are journalled with BATCHED durability.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: java visitorman.VisitorServer PORT ORGANISATION [DATA_DIRECTORY]");
+			System.exit(2);
+		}
+		AllowIdleConnections();
+		VisitorMan Target = args.length > 2
+				? new VisitorMan(args[1], Paths.get(args[2]), VisitorJournal.Durability.BATCHED)
+				: new VisitorMan(args[1]);
+		VisitorServer Server = new VisitorServer(Target, Integer.parseInt(args[0]));
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			Server.Close(5);
+			try {
+				Target.close();
+			} catch (IOException e) {
+				System.err.println("Could not close the visitor log: " + e);
+			}
+		}, "visitorman-http-shutdown"));
+		System.out.println("Listening on port " + Server.Port() + (Server.IsVirtual() ? " with virtual threads" : ""));
+	}
+
+	/**
+	 * Let the JDK server keep up to 100000 idle connections, unless a limit was given on the
+	 * command line. The JDK reads the limit once, when the first server of the JVM is created,
+	 * so this only has an effect if it is called before then.
+	 */
+	static void AllowIdleConnections() {
+		if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+			System.setProperty("sun.net.httpserver.maxIdleConnections", "100000");
+		}
+	}
+
+	/**
+	 * Return an executor that starts a virtual thread per task, or null if this JDK has none.
+	 * It is looked up by reflection, so the sources still build on JDK 17.
+	 */
+	static ExecutorService VirtualThreads() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {      //Missing, or a preview feature that is not enabled.
+			return null;
+		}
+	}
+
+	/**
+	 * Return a pool of at most Threads named daemon threads, which stop when they have been idle for a minute.
+	 */
+	static ExecutorService Pool(String Name, int Threads) {
+		AtomicInteger Count = new AtomicInteger();
+		ThreadPoolExecutor Pool = new ThreadPoolExecutor(Threads, Threads, 1, TimeUnit.MINUTES,
+				new LinkedBlockingQueue<Runnable>(), Task -> {
+					Thread Worker = new Thread(Task, Name + Count.incrementAndGet());
+					Worker.setDaemon(true);
+					return Worker;
+				});
+		Pool.allowCoreThreadTimeOut(true);
+		return Pool;
+	}
+
+	/**
+	 * Answer one request.
+	 */
+	private void Handle(HttpExchange Exchange) {
+		_Requests.increment();
+		try {
+			byte[] Body = ReadBody(Exchange.getRequestBody());
+			if (Body == null) {
+				Error(Exchange, 413, "The request body is larger than " + MAX_BODY + " bytes");
+				return;
+			}
+			String Method = Exchange.getRequestMethod();
+			URI Uri = Exchange.getRequestURI();
+			Map<String, String> Query = ParseQuery(Uri.getRawQuery());
+			switch (Uri.getPath()) {
+			case "/hosts":
+				if (Method.equals("POST")) {
+					Map<String, String> Host = ParseObject(Body);
+					_Target.registerHost(Required(Host, "familyName"), Required(Host, "givenName"), Required(Host, "email"));
+					NoContent(Exchange);
+				} else if (Method.equals("GET")) {
+					String Text = Query.get("q");
+					Json(Exchange, Text == null ? _Target.getRegisteredHosts() : _Target.findHosts(Text, Limit(Query)));
+				} else {
+					NotAllowed(Exchange, "GET, POST");
+				}
+				return;
+			case "/checkins":
+				if (!Method.equals("POST")) {
+					NotAllowed(Exchange, "POST");
+					return;
+				}
+				Map<String, String> Visit = ParseObject(Body);
+				_Target.checkIn(Required(Visit, "familyName"), Required(Visit, "givenName"), Visit.get("organisation"),
+						Required(Visit, "visitorEmail"), Required(Visit, "hostEmail"), Required(Visit, "visitDate"),
+						Required(Visit, "visitStartTime"));
+				NoContent(Exchange);
+				return;
+			case "/checkouts":
+				if (!Method.equals("POST")) {
+					NotAllowed(Exchange, "POST");
+					return;
+				}
+				Map<String, String> Leaving = ParseObject(Body);
+				_Target.checkOut(Required(Leaving, "email"), Required(Leaving, "checkOutTime"));
+				NoContent(Exchange);
+				return;
+			case "/visitors/onsite":
+				if (!Method.equals("GET")) {
+					NotAllowed(Exchange, "GET");
+					return;
+				}
+				String Host = Query.get("host");
+				Json(Exchange, Host == null ? _Target.getVisitorsOnSite() : _Target.getVisitorsOnSite(Host));
+				return;
+			case "/report":
+				if (!Method.equals("GET")) {
+					NotAllowed(Exchange, "GET");
+					return;
+				}
+				StreamReport(Exchange);
+				return;
+			default:
+				Error(Exchange, 404, "No such endpoint: " + Uri.getPath());
+			}
+		} catch (IllegalArgumentException | DateTimeParseException e) {      //Includes a badly formed JSON body or query.
+			Error(Exchange, 400, e.getMessage());
+		} catch (IOException e) {      //The kiosk went away; the connection is closed below.
+		} catch (RuntimeException e) {
+			System.err.println("Could not answer " + Exchange.getRequestMethod() + " " + Exchange.getRequestURI() + ": " + e);
+			Error(Exchange, 500, "Internal error");
+		} finally {
+			Exchange.close();
+		}
+	}
+
+	/**
+	 * Write the visitor log report as a JSON array of lines, in chunks as it is rendered.
+	 */
+	private void StreamReport(HttpExchange Exchange) throws IOException {
+		Exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		Exchange.sendResponseHeaders(200, 0);      //No length, so the body is sent with chunked encoding.
+		JsonLines Out = new JsonLines(new OutputStreamWriter(
+				new BufferedOutputStream(Exchange.getResponseBody(), STREAM_BUFFER), StandardCharsets.UTF_8));
+		_Target.writeVisitorLogReport(Out);
+		Out.Finish();
+	}
+
+	private static void NoContent(HttpExchange Exchange) throws IOException {
+		Exchange.sendResponseHeaders(204, -1);
+	}
+
+	private void NotAllowed(HttpExchange Exchange, String Allowed) {
+		Exchange.getResponseHeaders().set("Allow", Allowed);
+		Error(Exchange, 405, "Use " + Allowed);
+	}
+
+	private void Error(HttpExchange Exchange, int Status, String Message) {
+		_Errors.increment();
+		try {
+			Send(Exchange, Status, "{\"error\":" + Quote(String.valueOf(Message)) + "}");
+		} catch (IOException e) {      //The headers were sent, or the kiosk went away.
+		}
+	}
+
+	private static void Json(HttpExchange Exchange, List<String> Lines) throws IOException {
+		StringBuilder Body = new StringBuilder(Lines.size() * 64 + 2).append('[');
+		for (int i = 0; i < Lines.size(); i++) {
+			if (i > 0) {
+				Body.append(',');
+			}
+			Quote(Body, Lines.get(i));
+		}
+		Send(Exchange, 200, Body.append(']').toString());
+	}
+
+	private static void Send(HttpExchange Exchange, int Status, String Json) throws IOException {
+		byte[] Bytes = Json.getBytes(StandardCharsets.UTF_8);
+		Exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		Exchange.sendResponseHeaders(Status, Bytes.length);
+		try (OutputStream Out = Exchange.getResponseBody()) {
+			Out.write(Bytes);
+		}
+	}
+
+	/**
+	 * Read the whole request body, which the server needs to keep the connection alive, or
+	 * return null if it is larger than MAX_BODY.
+	 */
+	private static byte[] ReadBody(InputStream In) throws IOException {
+		byte[] Body = In.readNBytes(MAX_BODY + 1);
+		if (Body.length <= MAX_BODY) {
+			return Body;
+		}
+		In.transferTo(OutputStream.nullOutputStream());
+		return null;
+	}
+
+	private static String Required(Map<String, String> Fields, String Name) {
+		String Value = Fields.get(Name);
+		if (Value == null) {
+			throw new IllegalArgumentException("Missing \"" + Name + "\"");
+		}
+		return Value;
+	}
+
+	private static int Limit(Map<String, String> Query) {
+		String Limit = Query.get("limit");
+		try {
+			return Limit == null ? 10 : Math.min(MAX_LIMIT, Math.max(0, Integer.parseInt(Limit)));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("The limit is not a number: " + Limit);
+		}
+	}
+
+	/**
+	 * Split a query string into its decoded names and values.
+	 */
+	static Map<String, String> ParseQuery(String RawQuery) {
+		Map<String, String> Query = new HashMap<String, String>();
+		if (RawQuery == null || RawQuery.isEmpty()) {
+			return Query;
+		}
+		for (String Pair : RawQuery.split("&")) {
+			int Equals = Pair.indexOf('=');
+			String Name = Equals < 0 ? Pair : Pair.substring(0, Equals);
+			String Value = Equals < 0 ? "" : Pair.substring(Equals + 1);
+			Query.put(URLDecoder.decode(Name, StandardCharsets.UTF_8), URLDecoder.decode(Value, StandardCharsets.UTF_8));
+		}
+		return Query;
+	}
+
+	/**
+	 * Parse a JSON object whose values are strings, numbers, booleans or null. Numbers and
+	 * booleans are kept as their text, and null as a missing field.
+	 * @throws IllegalArgumentException If the body is not such an object.
+	 */
+	static Map<String, String> ParseObject(byte[] Body) {
+		String Text = new String(Body, StandardCharsets.UTF_8);
+		Map<String, String> Fields = new HashMap<String, String>();
+		int[] At = { Skip(Text, 0) };
+		Expect(Text, At, '{');
+		if (Peek(Text, At) == '}') {
+			At[0]++;
+		} else {
+			while (true) {
+				String Name = ParseString(Text, At);
+				Expect(Text, At, ':');
+				String Value = ParseValue(Text, At);
+				if (Value != null) {
+					Fields.put(Name, Value);
+				}
+				if (Peek(Text, At) == ',') {
+					At[0]++;
+					continue;
+				}
+				Expect(Text, At, '}');
+				break;
+			}
+		}
+		if (Skip(Text, At[0]) != Text.length()) {
+			throw new IllegalArgumentException("Unexpected text after the JSON object at " + At[0]);
+		}
+		return Fields;
+	}
+
+	private static String ParseValue(String Text, int[] At) {
+		char First = Peek(Text, At);
+		if (First == '"') {
+			return ParseString(Text, At);
+		}
+		int Start = At[0];
+		while (At[0] < Text.length() && "-+.eE0123456789truefalsn".indexOf(Text.charAt(At[0])) >= 0) {
+			At[0]++;
+		}
+		String Literal = Text.substring(Start, At[0]);
+		if (Literal.equals("null")) {
+			return null;
+		}
+		if (Literal.equals("true") || Literal.equals("false") || Literal.matches("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][-+]?[0-9]+)?")) {
+			return Literal;
+		}
+		throw new IllegalArgumentException("Expected a string, number, boolean or null at " + Start);
+	}
+
+	private static String ParseString(String Text, int[] At) {
+		Expect(Text, At, '"');
+		StringBuilder Value = new StringBuilder();
+		while (true) {
+			if (At[0] >= Text.length()) {
+				throw new IllegalArgumentException("Unterminated string");
+			}
+			char c = Text.charAt(At[0]++);
+			if (c == '"') {
+				return Value.toString();
+			}
+			if (c < 0x20) {
+				throw new IllegalArgumentException("Control character in a string at " + (At[0] - 1));
+			}
+			if (c != '\\') {
+				Value.append(c);
+				continue;
+			}
+			if (At[0] >= Text.length()) {
+				throw new IllegalArgumentException("Unterminated string");
+			}
+			char Escaped = Text.charAt(At[0]++);
+			switch (Escaped) {
+			case '"': case '\\': case '/': Value.append(Escaped); break;
+			case 'b': Value.append('\b'); break;
+			case 'f': Value.append('\f'); break;
+			case 'n': Value.append('\n'); break;
+			case 'r': Value.append('\r'); break;
+			case 't': Value.append('\t'); break;
+			case 'u':
+				if (At[0] + 4 > Text.length()) {
+					throw new IllegalArgumentException("Bad \\u escape at " + (At[0] - 2));
+				}
+				try {
+					Value.append((char) Integer.parseInt(Text.substring(At[0], At[0] + 4), 16));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Bad \\u escape at " + (At[0] - 2));
+				}
+				At[0] += 4;
+				break;
+			default:
+				throw new IllegalArgumentException("Bad escape at " + (At[0] - 2));
+			}
+		}
+	}
+
+	private static void Expect(String Text, int[] At, char Expected) {
+		if (Peek(Text, At) != Expected) {
+			throw new IllegalArgumentException("Expected '" + Expected + "' at " + At[0]);
+		}
+		At[0]++;
+	}
+
+	/**
+	 * Skip white space and return the next character, or 0 at the end of the text.
+	 */
+	private static char Peek(String Text, int[] At) {
+		At[0] = Skip(Text, At[0]);
+		return At[0] < Text.length() ? Text.charAt(At[0]) : 0;
+	}
+
+	private static int Skip(String Text, int At) {
+		while (At < Text.length() && " \t\r\n".indexOf(Text.charAt(At)) >= 0) {
+			At++;
+		}
+		return At;
+	}
+
+	/**
+	 * Return a string as a JSON string literal.
+	 */
+	static String Quote(String Value) {
+		return Quote(new StringBuilder(Value.length() + 2), Value).toString();
+	}
+
+	private static StringBuilder Quote(StringBuilder Out, String Value) {
+		Out.append('"');
+		for (int i = 0; i < Value.length(); i++) {
+			Escape(Out, Value.charAt(i));
+		}
+		return Out.append('"');
+	}
+
+	private static void Escape(Appendable Out, char c) {
+		try {
+			if (c == '"' || c == '\\') {
+				Out.append('\\').append(c);
+			} else if (c < 0x20) {
+				Out.append(String.format("\\u%04x", (int) c));
+			} else {
+				Out.append(c);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * A writer that turns lines, each ended by '\n', into the strings of a JSON array as
+	 * they are written.
+	 */
+	private static class JsonLines extends Writer {
+		private final Writer _Out;
+		private boolean _Started;
+		private boolean _InLine;
+
+		JsonLines(Writer Out) {
+			_Out = Out;
+		}
+		@Override
+		public void write(char[] Buffer, int Offset, int Length) throws IOException {
+			for (int i = Offset; i < Offset + Length; i++) {
+				char c = Buffer[i];
+				if (!_InLine) {
+					_Out.write(_Started ? ",\"" : "[\"");
+					_Started = true;
+					_InLine = true;
+				}
+				if (c == '\n') {
+					_Out.write('"');
+					_InLine = false;
+				} else if (c == '"' || c == '\\' || c < 0x20) {
+					Escape(_Out, c);
+				} else {
+					_Out.write(c);
+				}
+			}
+		}
+		@Override
+		public void flush() throws IOException {
+			_Out.flush();
+		}
+		@Override
+		public void close() throws IOException {
+			Finish();
+		}
+
+		/**
+		 * End the array and the response.
+		 */
+		void Finish() throws IOException {
+			_Out.write(_Started ? "" : "[");
+			_Out.write(_InLine ? "\"]" : "]");
+			_InLine = false;
+			_Out.close();
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package visitorman;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ *
+ * @author chenh
+ * The VisitorSnapshot class is meant to store the complete state of a VisitorMan object at one
+ * point in time: the registered hosts and every visit with its check-out state. The visitors on
+ * site are the visits that are not checked out, so they are not stored separately. Visits in a
+ * {@link VisitArchive} are not stored again: the snapshot only names the archive and the chunks
+ * of positions in it, so its size and the memory needed to load it do not grow with the history.
+ * A snapshot is numbered with the journal segment that was started when it was taken, so after
+ * loading it only that segment and later ones need to be replayed.
+ *
+ * The file starts with a magic number and version, followed by the hosts, the directory of the
+ * archive (if any) with the numbers of its chunks, and then the visits that are not archived,
+ * each list preceded by its length. Strings are stored as a length followed by their UTF-8 bytes.
+ * The file ends with a CRC32 checksum of everything before it. Snapshots are written to a
+ * temporary file that is renamed when complete, and read back through memory-mapped windows.
+ *
+ */
+public class VisitorSnapshot {
+	private static final int MAGIC = 0x56534E50;
+	private static final int VERSION = 2;
+	private static final long WINDOW_SIZE = 64L << 20;
+
+	//Below are the hosts and visits captured for the snapshot.
+	private List<Party> _Hosts;
+	private List<LogEntry> _Visits;
+	private VisitArchive _Archive;
+	private long[] _Archived;
+
+	/**
+	 * Create an empty VisitorSnapshot object, to be filled by {@link #Capture(List, List, VisitArchive, long[])}.
+	 */
+	public VisitorSnapshot() {
+	}
+	/**
+	 * Capture the state to store. This should be quick, as it normally runs while changes
+	 * are held back; the visits are a snapshot view of the log rather than a copy.
+	 * @param Hosts The registered hosts, in order of registration.
+	 * @param Visits The visits, in order of arrival.
+	 * @param Archive The archive of old visits, or null if there is none.
+	 * @param Archived A bit for each chunk of positions that is archived, see {@link VisitorLog#ArchivedChunks()}.
+	 */
+	public void Capture(List<Party> Hosts, List<LogEntry> Visits, VisitArchive Archive, long[] Archived) {
+		_Hosts = Hosts;
+		_Visits = Visits;
+		_Archive = Archive;
+		_Archived = Archived;
+	}
+	/**
+	 * Write the captured state to the snapshot file with the specified number. Visits that
+	 * were checked out after the capture may be stored as checked out; replaying the check-out
+	 * again from the journal does not change them.
+	 * @param Directory The directory for snapshots.
+	 * @param Segment The number of the journal segment started when the state was captured.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void Write(Path Directory, long Segment) throws IOException {
+		Path Target = SnapshotFile(Directory, Segment);
+		Path Temporary = Directory.resolve(Target.getFileName() + ".tmp");
+		try (FileOutputStream Out = new FileOutputStream(Temporary.toFile())) {
+			CheckedOutputStream Checked = new CheckedOutputStream(Out, new CRC32());
+			DataOutputStream Data = new DataOutputStream(new BufferedOutputStream(Checked, 1 << 16));
+			Data.writeInt(MAGIC);
+			Data.writeInt(VERSION);
+			Data.writeInt(_Hosts.size());
+			for (Party Host : _Hosts) {
+				PutString(Data, Host.AccessFname());
+				PutString(Data, Host.AccessGname());
+				PutString(Data, Host.AccessEmail());
+			}
+			PutString(Data, _Archive == null ? null : _Archive.AccessDirectory().toString());
+			List<Integer> Chunks = new ArrayList<Integer>();
+			for (int Word = 0; Word < _Archived.length; Word++) {
+				for (long Bits = _Archived[Word]; Bits != 0; Bits &= Bits - 1) {
+					Chunks.add((Word << 6) + Long.numberOfTrailingZeros(Bits));
+				}
+			}
+			Data.writeInt(Chunks.size());
+			for (int Chunk : Chunks) {
+				Data.writeInt(Chunk);
+			}
+			Data.writeInt(_Visits.size() - (Chunks.size() << VisitStore.CHUNK_BITS));
+			for (int i = 0; i < _Visits.size(); i++) {
+				if (VisitorLog.IsArchived(_Archived, i)) {      //Skip the chunk; it is read back from the archive.
+					i |= (1 << VisitStore.CHUNK_BITS) - 1;
+					continue;
+				}
+				LogEntry Visit = _Visits.get(i);
+				Party Visitor = Visit.AccessVisitor();
+				PutString(Data, Visitor.AccessFname());
+				PutString(Data, Visitor.AccessGname());
+				PutString(Data, Visitor.AccessEmail());
+				PutString(Data, Visitor.AccessOrganisation());
+				PutString(Data, Visit.AccesshostEmail());
+				PutString(Data, Visit.AccessDate());
+				PutString(Data, Visit.AccessTime());
+				boolean CheckedOut = Visit.Checkout();      //Read before the left time, which is recorded first.
+				Data.writeBoolean(CheckedOut);
+				PutString(Data, CheckedOut ? Visit.AccessLeftTime() : null);
+			}
+			Data.flush();
+			new DataOutputStream(Out).writeInt((int) Checked.getChecksum().getValue());
+			Out.getChannel().force(true);
+		}
+		Files.move(Temporary, Target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+	/**
+	 * Load the newest snapshot in a directory. Snapshots are only renamed into place once they
+	 * are complete, and the journal segments before the newest one are deleted, so an older
+	 * snapshot cannot stand in for it: a newest snapshot that fails its checksum is an error.
+	 * @param Directory The directory for snapshots.
+	 * @param Target The receiver of the hosts, the archive and the visits, in their original order.
+	 * @return The number of the snapshot loaded, which is the first journal segment to replay,
+	 * or 0 if there is no snapshot.
+	 * @throws IOException If the newest snapshot cannot be read or fails its checksum, or its
+	 * archive does not hold its archived chunks.
+	 */
+	public static long LoadLatest(Path Directory, VisitorJournal.Events Target) throws IOException {
+		List<Long> Snapshots = ListSnapshots(Directory);
+		if (Snapshots.isEmpty()) {
+			return 0;
+		}
+		long Segment = Snapshots.get(Snapshots.size() - 1);
+		Path File = SnapshotFile(Directory, Segment);
+		try (FileChannel Channel = FileChannel.open(File, StandardOpenOption.READ)) {
+			if (!Verify(Channel)) {
+				throw new IOException("The snapshot " + File + " is damaged, and the journal before it has been deleted");
+			}
+			Load(Channel, Target);
+			return Segment;
+		}
+	}
+	/**
+	 * Delete the snapshots older than the specified one.
+	 * @param Directory The directory for snapshots.
+	 * @param Segment The number of the oldest snapshot to keep.
+	 * @throws IOException If a snapshot cannot be deleted.
+	 */
+	public static void DeleteBefore(Path Directory, long Segment) throws IOException {
+		for (long Old : ListSnapshots(Directory)) {
+			if (Old < Segment) {
+				Files.deleteIfExists(SnapshotFile(Directory, Old));
+			}
+		}
+	}
+
+	private static boolean Verify(FileChannel Channel) throws IOException {
+		long Size = Channel.size();
+		if (Size < 16) {
+			return false;
+		}
+		CRC32 Checksum = new CRC32();
+		for (long Start = 0; Start < Size - 4; Start += WINDOW_SIZE) {
+			Checksum.update(Channel.map(FileChannel.MapMode.READ_ONLY, Start, Math.min(WINDOW_SIZE, Size - 4 - Start)));
+		}
+		MappedByteBuffer Tail = Channel.map(FileChannel.MapMode.READ_ONLY, Size - 4, 4);
+		MappedByteBuffer Head = Channel.map(FileChannel.MapMode.READ_ONLY, 0, 8);
+		if (Tail.getInt() != (int) Checksum.getValue() || Head.getInt() != MAGIC) {
+			return false;
+		}
+		int Version = Head.getInt();
+		return Version >= 1 && Version <= VERSION;
+	}
+
+	private static void Load(FileChannel Channel, VisitorJournal.Events Target) throws IOException {
+		MappedInput In = new MappedInput(Channel);
+		In.GetInt();      //Magic number, already checked.
+		int Version = In.GetInt();
+		int Hosts = In.GetInt();
+		for (int i = 0; i < Hosts; i++) {
+			Target.Host(new Party(In.GetString(), In.GetString(), In.GetString(), null));
+		}
+		int[] Chunks = new int[0];
+		if (Version >= 2) {
+			String Archive = In.GetString();
+			if (Archive != null) {
+				Target.Archive(Paths.get(Archive));
+			}
+			Chunks = new int[In.GetInt()];
+			for (int c = 0; c < Chunks.length; c++) {
+				Chunks[c] = In.GetInt();
+			}
+		}
+		int Visits = In.GetInt();
+		int Position = 0;
+		int Next = 0;      //The next archived chunk, which is skipped when the visits reach it.
+		for (int i = 0; i <= Visits; i++) {
+			while (Next < Chunks.length && Chunks[Next] << VisitStore.CHUNK_BITS == Position) {
+				Target.Archived(Chunks[Next++]);
+				Position += 1 << VisitStore.CHUNK_BITS;
+			}
+			if (i == Visits) {
+				break;
+			}
+			Position++;
+			Party Visitor = new Party(In.GetString(), In.GetString(), In.GetString(), In.GetString());
+			String HostEmail = In.GetString();
+			String Date = In.GetString();
+			String Time = In.GetString();
+			boolean CheckedOut = In.GetByte() != 0;
+			Target.CheckIn(new LogEntry(Visitor, HostEmail, Date, Time, CheckedOut, In.GetString()));
+		}
+	}
+
+	private static void PutString(DataOutputStream Data, String Value) throws IOException {
+		if (Value == null) {
+			Data.writeInt(-1);
+			return;
+		}
+		byte[] Bytes = Value.getBytes(StandardCharsets.UTF_8);
+		Data.writeInt(Bytes.length);
+		Data.write(Bytes);
+	}
+
+	private static Path SnapshotFile(Path Directory, long Segment) {
+		return Directory.resolve(String.format("snapshot-%08d.snap", Segment));
+	}
+
+	/**
+	 * List the numbers of the snapshots in a directory, in increasing order.
+	 */
+	private static List<Long> ListSnapshots(Path Directory) throws IOException {
+		List<Long> Snapshots = new ArrayList<Long>();
+		try (DirectoryStream<Path> Entries = Files.newDirectoryStream(Directory, "snapshot-*.snap")) {
+			for (Path File : Entries) {
+				String Name = File.getFileName().toString();
+				Snapshots.add(Long.parseLong(Name.substring("snapshot-".length(), Name.length() - ".snap".length())));
+			}
+		}
+		Collections.sort(Snapshots);
+		return Snapshots;
+	}
+
+	/**
+	 * Reads a file through a memory-mapped window that moves along the file, so files
+	 * larger than one mapping can be read.
+	 */
+	private static class MappedInput {
+		private final FileChannel _Channel;
+		private final long _Size;
+		private long _WindowStart;
+		private MappedByteBuffer _Window;
+
+		MappedInput(FileChannel Channel) throws IOException {
+			_Channel = Channel;
+			_Size = Channel.size();
+			Map(0);
+		}
+
+		int GetInt() throws IOException {
+			Ensure(4);
+			return _Window.getInt();
+		}
+
+		byte GetByte() throws IOException {
+			Ensure(1);
+			return _Window.get();
+		}
+
+		String GetString() throws IOException {
+			int Length = GetInt();
+			if (Length < 0) {
+				return null;
+			}
+			Ensure(Length);
+			byte[] Bytes = new byte[Length];
+			_Window.get(Bytes);
+			return new String(Bytes, StandardCharsets.UTF_8);
+		}
+
+		private void Ensure(int Bytes) throws IOException {
+			if (_Window.remaining() < Bytes) {
+				Map(_WindowStart + _Window.position());
+			}
+		}
+
+		private void Map(long Start) throws IOException {
+			_WindowStart = Start;
+			_Window = _Channel.map(FileChannel.MapMode.READ_ONLY, Start, Math.min(WINDOW_SIZE, _Size - Start));
+		}
+	}
+}